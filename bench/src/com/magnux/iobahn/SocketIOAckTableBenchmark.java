@@ -0,0 +1,141 @@
+package com.magnux.iobahn;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.magnux.iobahn.SocketIO.AckHandler;
+
+/**
+ * SocketIOAckTable with tens of thousands of acks in flight, run with -prof
+ * gc for its allocation:
+ *
+ * <ul>
+ * <li>addRemove: an ack is added and the oldest one answered, as a steady
+ * stream of acked emits does.</li>
+ * <li>addExpire: an ack is added every millisecond of a simulated clock,
+ * with a timeout of as many milliseconds as there are acks in flight, and
+ * expired every tick as the scheduler does, so each one times out.</li>
+ * <li>baselineAddRemove: addRemove on what the table replaces, a concurrent
+ * map of acks with a timeout task each on a scheduled executor.</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SocketIOAckTableBenchmark {
+
+    // / Timeout of the acks answered before it passes, in milliseconds.
+    private static final long TIMEOUT = 30000;
+
+    @Param({ "10000", "50000" })
+    public int live;
+
+    private static final AckHandler HANDLER = new AckHandler() {
+        public void onAck(Object[] args) {
+        }
+
+        public void onTimeout() {
+        }
+    };
+
+    private static final Runnable TIMEOUT_TASK = new Runnable() {
+        public void run() {
+            HANDLER.onTimeout();
+        }
+    };
+
+    // / Answered acks, ids in flight in order, and the oldest of them.
+    private SocketIOAckTable mTable;
+    private int[] mIds;
+    private int mOldest;
+
+    // / Expired acks, their table, and its clock.
+    private SocketIOAckTable mExpiring;
+    private final ArrayList<AckHandler> mExpired = new ArrayList<AckHandler>();
+    private long mNow;
+
+    // / The baseline, and its ids in flight.
+    private ConcurrentHashMap<Integer, ScheduledFuture<?>> mMap;
+    private ScheduledThreadPoolExecutor mTimer;
+    private int[] mMapIds;
+    private int mMapOldest;
+    private int mMapNextId;
+
+    @Setup
+    public void setUp() {
+        mTable = new SocketIOAckTable(0);
+        mIds = new int[live];
+        for (int i = 0; i < live; ++i) {
+            mIds[i] = mTable.add(HANDLER, 0, TIMEOUT);
+        }
+
+        mExpiring = new SocketIOAckTable(0);
+        for (int i = 0; i < live; ++i) {
+            addExpire();
+        }
+
+        mMap = new ConcurrentHashMap<Integer, ScheduledFuture<?>>();
+        mTimer = new ScheduledThreadPoolExecutor(1);
+        mTimer.setRemoveOnCancelPolicy(true);
+        mMapIds = new int[live];
+        for (int i = 0; i < live; ++i) {
+            mMapIds[i] = ++mMapNextId;
+            mMap.put(mMapIds[i], mTimer.schedule(TIMEOUT_TASK, TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mTimer.shutdownNow();
+    }
+
+    @Benchmark
+    public int addRemove() {
+        mTable.remove(mIds[mOldest]);
+        final int id = mTable.add(HANDLER, 0, TIMEOUT);
+        mIds[mOldest] = id;
+        mOldest = (mOldest + 1) % live;
+        return id;
+    }
+
+    @Benchmark
+    public int addExpire() {
+        ++mNow;
+        final int id = mExpiring.add(HANDLER, mNow, live);
+        if (mNow % SocketIOAckTable.TICK_MILLIS == 0) {
+            mExpiring.expire(mNow, mExpired);
+            mExpired.clear();
+        }
+        return id;
+    }
+
+    @Benchmark
+    public int baselineAddRemove() {
+        final ScheduledFuture<?> timeout = mMap.remove(mMapIds[mMapOldest]);
+        timeout.cancel(false);
+        final int id = ++mMapNextId;
+        mMap.put(id, mTimer.schedule(TIMEOUT_TASK, TIMEOUT, TimeUnit.MILLISECONDS));
+        mMapIds[mMapOldest] = id;
+        mMapOldest = (mMapOldest + 1) % live;
+        return id;
+    }
+}
@@ -0,0 +1,168 @@
+package com.magnux.iobahn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * Emits written by a SocketIOWriter over loopback, with batching off and on,
+ * in messages per second. Emits come in bursts: a burst is queued while the
+ * writer is detached, then drained at once, and written before the next one
+ * is queued. Batching has no linger, so it only joins what is already
+ * queued.
+ *
+ * Frames sent, writes on the socket, each a system call, and bytes written
+ * are counted, and printed per message at the end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SocketIOBatchingBenchmark {
+
+    // / Emits per invocation, a multiple of every burst.
+    private static final int MESSAGES = 64;
+
+    @Param({ "false", "true" })
+    public boolean batching;
+
+    @Param({ "1", "8", "64" })
+    public int burst;
+
+    private ServerSocketChannel mServer;
+    private SocketChannel mPeer;
+    private SocketIOCountingChannel mChannel;
+    private HandlerThread mWriterThread;
+    private HandlerThread mMasterThread;
+    private Thread mDrainThread;
+    private SocketIOOutboundQueue mQueue;
+    private SocketIOWriter mWriter;
+    private SocketIOCorpus.Chat mEvent;
+    private final SocketIOStats mStats = new SocketIOStats();
+
+    // / Bytes a burst takes on the wire, and messages sent so far.
+    private long mBurstBytes;
+    private long mMessages;
+
+    @Setup
+    public void setUp() throws IOException {
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        mChannel = new SocketIOCountingChannel(SocketChannel.open(mServer.socket().getLocalSocketAddress()));
+        mPeer = mServer.accept();
+        mDrainThread = new Thread(new Runnable() {
+            public void run() {
+                final byte[] buf = new byte[64 * 1024];
+                try {
+                    final InputStream in = mPeer.socket().getInputStream();
+                    while (in.read(buf) >= 0) {
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "SocketIOBenchPeer");
+        mDrainThread.start();
+
+        mWriterThread = new HandlerThread("SocketIOWriter");
+        mWriterThread.start();
+        mMasterThread = new HandlerThread("SocketIOMaster");
+        mMasterThread.start();
+
+        final SocketIOOptions options = new SocketIOOptions();
+        options.setBatchingEnabled(batching);
+        options.setMaxBatchLingerMicros(0);
+        mQueue = new SocketIOOutboundQueue();
+        mWriter = new SocketIOWriter(mWriterThread.getLooper(), new Handler(mMasterThread.getLooper()), mChannel,
+                options, new ObjectMapper(), mQueue, false);
+        mWriter.setMetrics(mStats);
+        mEvent = SocketIOCorpus.event("small", SocketIOCorpus.Chat.class);
+
+        // the bytes of a burst, framing included, are the same every time
+        final long before = mChannel.mBytes.get();
+        sendBurst(Long.MAX_VALUE);
+        mBurstBytes = mChannel.mBytes.get() - before;
+        mChannel.mWrites.set(0);
+        mChannel.mBytes.set(0);
+        mStats.reset();
+        mMessages = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        System.out.printf("%nbatching=%b burst=%d: %.3f frames/msg, %.3f writes/msg, %.1f bytes/msg%n", batching,
+                burst, (double) mStats.getFramesSent() / mMessages, (double) mChannel.mWrites.get() / mMessages,
+                (double) mChannel.mBytes.get() / mMessages);
+        mWriterThread.quit();
+        mMasterThread.quit();
+        mChannel.close();
+        mPeer.close();
+        mServer.close();
+        mDrainThread.join();
+    }
+
+    /**
+     * Queue a burst while detached, then drain it and wait for it to be
+     * written.
+     *
+     * @param bytes
+     *            The bytes of a burst, or Long.MAX_VALUE to wait for writes to
+     *            stop.
+     */
+    private void sendBurst(long bytes) {
+        final long target = mChannel.mBytes.get() + bytes;
+        for (int i = 0; i < burst; ++i) {
+            mQueue.offer(new SocketIOMessage.Emit("", "chat", mEvent), true);
+        }
+        mQueue.attach(mWriter);
+        if (bytes == Long.MAX_VALUE) {
+            long seen;
+            do {
+                seen = mChannel.mBytes.get();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } while (mQueue.size() > 0 || mChannel.mBytes.get() != seen);
+        } else {
+            while (mChannel.mBytes.get() < target) {
+                Thread.yield();
+            }
+        }
+        mQueue.detach();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public long write() {
+        for (int i = 0; i < MESSAGES; i += burst) {
+            sendBurst(mBurstBytes);
+        }
+        mMessages += MESSAGES;
+        return mMessages;
+    }
+}
@@ -0,0 +1,29 @@
+package com.magnux.iobahn;
+
+/**
+ * Transport of a core without a connection: runs posted tasks right away and
+ * counts what is sent.
+ */
+final class SocketIOBenchTransport implements SocketIOCore.Transport {
+
+    long mSent;
+
+    public void send(Object message) {
+        ++mSent;
+    }
+
+    public void post(Runnable task) {
+        task.run();
+    }
+
+    public long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    public boolean isCallbackThread() {
+        return false;
+    }
+
+    public void disconnect() {
+    }
+}
@@ -0,0 +1,86 @@
+package com.magnux.iobahn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.tavendo.autobahn.NoCopyByteArrayOutputStream;
+
+/**
+ * SocketIOBufferPool against allocating, run with -prof gc for the bytes
+ * allocated per operation:
+ *
+ * <ul>
+ * <li>take: an array taken from the pool and given back.</li>
+ * <li>allocate: a new array of the same size, as without the pool.</li>
+ * <li>pooledStream: a message written in 1 KiB chunks to a
+ * SocketIOPooledOutputStream, then released, as the writers do.</li>
+ * <li>newStream: the same message written to a new stream, growing by
+ * copies, as a stream per message would.</li>
+ * </ul>
+ *
+ * Arrays are returned so that they escape and are really allocated.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SocketIOBufferPoolBenchmark {
+
+    @Param({ "1024", "16384", "262144", "1048576" })
+    public int size;
+
+    private final byte[] mChunk = new byte[1024];
+    private SocketIOPooledOutputStream mStream;
+
+    @Setup
+    public void setUp() {
+        mStream = new SocketIOPooledOutputStream();
+    }
+
+    @Benchmark
+    public byte[] take() {
+        final byte[] array = SocketIOBufferPool.take(size);
+        array[size - 1] = 1;
+        SocketIOBufferPool.release(array);
+        return array;
+    }
+
+    @Benchmark
+    public byte[] allocate() {
+        final byte[] array = new byte[size];
+        array[size - 1] = 1;
+        return array;
+    }
+
+    @Benchmark
+    public byte[] pooledStream() {
+        for (int written = 0; written < size; written += mChunk.length) {
+            mStream.write(mChunk, 0, mChunk.length);
+        }
+        final byte[] content = mStream.getByteArray();
+        mStream.release();
+        return content;
+    }
+
+    @Benchmark
+    public byte[] newStream() {
+        final NoCopyByteArrayOutputStream stream = new NoCopyByteArrayOutputStream();
+        for (int written = 0; written < size; written += mChunk.length) {
+            stream.write(mChunk, 0, mChunk.length);
+        }
+        return stream.getByteArray();
+    }
+}
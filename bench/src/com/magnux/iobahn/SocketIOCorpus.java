@@ -0,0 +1,91 @@
+package com.magnux.iobahn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Frames of the benchmark corpus, bench/resources/corpus, and the event types
+ * they decode to:
+ *
+ * <ul>
+ * <li>small: a chat event, the common case.</li>
+ * <li>large: an 18 KB order book event.</li>
+ * <li>multiarg: a four argument event asking for ack data.</li>
+ * <li>batch: a multi-message payload of the above and a heartbeat, with
+ * non-ASCII text.</li>
+ * </ul>
+ */
+final class SocketIOCorpus {
+
+    public static class Chat {
+        public String user;
+        public String text;
+        public long ts;
+    }
+
+    public static class Quote {
+        public int id;
+        public String symbol;
+        public double bid;
+        public double ask;
+        public long volume;
+        public String venue;
+        public List<String> flags;
+    }
+
+    public static class Book {
+        public long seq;
+        public List<Quote> items;
+    }
+
+    public static class Move {
+        public int x;
+        public int y;
+        public String heading;
+    }
+
+    // / Types of the move arguments.
+    static final Class<?>[] MOVE_ARGS = { Move.class, String.class, Integer.class, Boolean.class, Object.class };
+
+    private SocketIOCorpus() {
+    }
+
+    /**
+     * Read a frame of the corpus.
+     *
+     * @param name
+     *            small, large, multiarg or batch.
+     */
+    static byte[] frame(String name) throws IOException {
+        final InputStream in = SocketIOCorpus.class.getResourceAsStream("/corpus/" + name + ".txt");
+        if (in == null) {
+            throw new IOException("no corpus frame " + name);
+        }
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decode the first argument of a single event frame, for the encoder
+     * benchmarks to emit again.
+     */
+    static <T> T event(String name, Class<T> type) throws IOException {
+        final String frame = new String(frame(name), "UTF-8");
+        final ObjectMapper mapper = new ObjectMapper();
+        final String json = frame.substring(frame.indexOf('{'));
+        return mapper.convertValue(mapper.readTree(json).get("args").get(0), type);
+    }
+}
@@ -0,0 +1,133 @@
+package com.magnux.iobahn;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Socket channel counting the writes made on another, each one a write
+ * system call on a blocking channel, and the bytes they wrote.
+ */
+final class SocketIOCountingChannel extends SocketChannel {
+
+    private final SocketChannel mChannel;
+
+    final AtomicLong mWrites = new AtomicLong();
+    final AtomicLong mBytes = new AtomicLong();
+
+    SocketIOCountingChannel(SocketChannel channel) {
+        super(SelectorProvider.provider());
+        mChannel = channel;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        final int written = mChannel.write(src);
+        mWrites.incrementAndGet();
+        mBytes.addAndGet(written);
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        final long written = mChannel.write(srcs, offset, length);
+        mWrites.incrementAndGet();
+        mBytes.addAndGet(written);
+        return written;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return mChannel.read(dst);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        return mChannel.read(dsts, offset, length);
+    }
+
+    @Override
+    public SocketChannel bind(SocketAddress local) throws IOException {
+        mChannel.bind(local);
+        return this;
+    }
+
+    @Override
+    public <T> SocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+        mChannel.setOption(name, value);
+        return this;
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name) throws IOException {
+        return mChannel.getOption(name);
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return mChannel.supportedOptions();
+    }
+
+    @Override
+    public SocketChannel shutdownInput() throws IOException {
+        mChannel.shutdownInput();
+        return this;
+    }
+
+    @Override
+    public SocketChannel shutdownOutput() throws IOException {
+        mChannel.shutdownOutput();
+        return this;
+    }
+
+    @Override
+    public Socket socket() {
+        return mChannel.socket();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mChannel.isConnected();
+    }
+
+    @Override
+    public boolean isConnectionPending() {
+        return mChannel.isConnectionPending();
+    }
+
+    @Override
+    public boolean connect(SocketAddress remote) throws IOException {
+        return mChannel.connect(remote);
+    }
+
+    @Override
+    public boolean finishConnect() throws IOException {
+        return mChannel.finishConnect();
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() throws IOException {
+        return mChannel.getRemoteAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() throws IOException {
+        return mChannel.getLocalAddress();
+    }
+
+    @Override
+    protected void implCloseSelectableChannel() throws IOException {
+        mChannel.close();
+    }
+
+    @Override
+    protected void implConfigureBlocking(boolean block) throws IOException {
+        mChannel.configureBlocking(block);
+    }
+}
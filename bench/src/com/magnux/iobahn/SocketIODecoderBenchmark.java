@@ -0,0 +1,129 @@
+package com.magnux.iobahn;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.magnux.iobahn.SocketIO.EventHandler;
+import com.magnux.iobahn.SocketIO.MultiArgEventHandler;
+
+/**
+ * Decoding of received frames into routed, typed events, up to their
+ * delivery to the callback thread. Handlers are not run.
+ *
+ * baseline() takes the frames down the path of the reader this decoder
+ * replaced, for comparison: a String of the frame, split(":", 4), org.json
+ * for the event body, its first argument back to text, and Jackson on that.
+ * It did not know multi-message payloads, batches are split on their
+ * framing first, and it only decoded the first argument of an event, as it
+ * did, which flatters it on multiarg.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SocketIODecoderBenchmark {
+
+    @Param({ "small", "large", "multiarg", "batch" })
+    public String frame;
+
+    private byte[] mPayload;
+    private SocketIODecoder mDecoder;
+    private Blackhole mBlackhole;
+
+    // / The baseline's mapper and the first argument type of each event.
+    private ObjectMapper mBaselineMapper;
+    private final Map<String, Class<?>> mBaselineTypes = new HashMap<String, Class<?>>();
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws IOException {
+        mPayload = SocketIOCorpus.frame(frame);
+        mBlackhole = blackhole;
+
+        final SocketIOCore core = new SocketIOCore(new SocketIOBenchTransport());
+        final SocketIOOptions options = new SocketIOOptions();
+        core.configure(options);
+        final EventHandler ignore = new EventHandler() {
+            public void onEvent(Object event) {
+            }
+        };
+        core.of("").on("chat", SocketIOCorpus.Chat.class, ignore);
+        core.of("").on("book", SocketIOCorpus.Book.class, ignore);
+        core.of("").on("move", SocketIOCorpus.MOVE_ARGS, new MultiArgEventHandler() {
+            public void onEvent(Object[] args) {
+            }
+        });
+        mDecoder = new SocketIODecoder(core, options, new SocketIODecoder.Sink() {
+            public void deliver(Object message) {
+                mBlackhole.consume(message);
+            }
+        });
+
+        mBaselineMapper = new ObjectMapper();
+        mBaselineMapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        mBaselineTypes.put("chat", SocketIOCorpus.Chat.class);
+        mBaselineTypes.put("book", SocketIOCorpus.Book.class);
+        mBaselineTypes.put("move", SocketIOCorpus.MOVE_ARGS[0]);
+    }
+
+    @Benchmark
+    public boolean decode() throws IOException {
+        return mDecoder.decode(mPayload, mPayload.length, false);
+    }
+
+    @Benchmark
+    public void baseline() throws IOException, JSONException {
+        final String payload = new String(mPayload, "UTF-8");
+        if (payload.charAt(0) != '\ufffd') {
+            baselineMessage(payload);
+            return;
+        }
+        int start = 0;
+        while (start < payload.length()) {
+            final int lengthEnd = payload.indexOf('\ufffd', start + 1);
+            final int length = Integer.parseInt(payload.substring(start + 1, lengthEnd));
+            baselineMessage(payload.substring(lengthEnd + 1, lengthEnd + 1 + length));
+            start = lengthEnd + 1 + length;
+        }
+    }
+
+    private void baselineMessage(String message) throws IOException, JSONException {
+        final String[] parts = message.split(":", 4);
+        if (Integer.parseInt(parts[0]) != SocketIOMessage.MESSAGE_TYPE_EVENT) {
+            return;
+        }
+        final JSONObject data = new JSONObject(parts[3]);
+        final String name = data.getString("name");
+        final JSONArray args = data.getJSONArray("args");
+        final String arg = args.getString(0);
+        final JsonParser parser = mBaselineMapper.getJsonFactory().createJsonParser(arg);
+        final Class<?> type = mBaselineTypes.get(name);
+        if (type != null) {
+            mBlackhole.consume(parser.readValueAs(type));
+        }
+        parser.close();
+    }
+}
@@ -0,0 +1,157 @@
+package com.magnux.iobahn;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.magnux.iobahn.SocketIO.EventHandler;
+import com.magnux.iobahn.SocketIO.MultiArgEventHandler;
+
+/**
+ * Decode, route and dispatch of received events through SocketIOCore, up to
+ * the handlers, for each dispatch target: the callback thread (here the
+ * benchmark thread), per subscription serial lanes running inline, and
+ * serial lanes on a pool of four threads. Each invocation decodes a burst of
+ * frames and waits for their handlers to have run.
+ *
+ * With slow, each burst starts with an event for another subscription whose
+ * handler takes a millisecond, and only the handlers of the burst are waited
+ * for: on the callback thread and inline lanes they wait behind it, on the
+ * pool the slow subscription only holds its own lane.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SocketIODispatchBenchmark {
+
+    // / Frames decoded per invocation.
+    private static final int BURST = 64;
+
+    @Param({ "small", "multiarg", "batch" })
+    public String frame;
+
+    @Param({ "callback", "lane", "pool" })
+    public String dispatcher;
+
+    @Param({ "false", "true" })
+    public boolean slow;
+
+    // / Time the slow handler takes, in milliseconds.
+    private static final int SLOW_MILLIS = 1;
+
+    private static final byte[] SLOW_FRAME = "5:::{\"name\":\"slow\",\"args\":[1]}".getBytes();
+
+    private byte[] mPayload;
+    private SocketIODecoder mDecoder;
+    private ExecutorService mPool;
+    private final AtomicLong mHandled = new AtomicLong();
+    private long mExpected;
+    private int mEventsPerFrame;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPayload = SocketIOCorpus.frame(frame);
+
+        final SocketIOCore core = new SocketIOCore(new SocketIOBenchTransport());
+        final SocketIOOptions options = new SocketIOOptions();
+        if ("lane".equals(dispatcher)) {
+            // not SocketIOExecutors.inline(), which needs no lane
+            options.setDispatcher(new Executor() {
+                public void execute(Runnable command) {
+                    command.run();
+                }
+            });
+        } else if ("pool".equals(dispatcher)) {
+            mPool = Executors.newFixedThreadPool(4);
+            options.setDispatcher(mPool);
+        }
+        core.configure(options);
+        final EventHandler count = new EventHandler() {
+            public void onEvent(Object event) {
+                mHandled.incrementAndGet();
+            }
+        };
+        core.of("").on("chat", SocketIOCorpus.Chat.class, count);
+        core.of("").on("move", SocketIOCorpus.MOVE_ARGS, new MultiArgEventHandler() {
+            public void onEvent(Object[] args) {
+                mHandled.incrementAndGet();
+            }
+        });
+        core.of("").on("slow", Integer.class, new EventHandler() {
+            public void onEvent(Object event) {
+                try {
+                    Thread.sleep(SLOW_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        mDecoder = new SocketIODecoder(core, options, new SocketIODecoder.Sink() {
+            public void deliver(Object message) {
+                core.processMessage(message);
+            }
+        });
+
+        // count the events of a frame
+        mDecoder.decode(mPayload, mPayload.length, false);
+        awaitQuiet();
+        mEventsPerFrame = (int) mHandled.get();
+        mExpected = mHandled.get();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mPool != null) {
+            // drop the slow events still queued
+            mPool.shutdownNow();
+        }
+    }
+
+    private void awaitQuiet() {
+        long seen;
+        do {
+            seen = mHandled.get();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+        } while (mHandled.get() != seen);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public long dispatch() throws IOException {
+        if (slow) {
+            mDecoder.decode(SLOW_FRAME, SLOW_FRAME.length, false);
+        }
+        for (int i = 0; i < BURST; ++i) {
+            mDecoder.decode(mPayload, mPayload.length, false);
+        }
+        mExpected += (long) BURST * mEventsPerFrame;
+        while (mHandled.get() < mExpected) {
+            Thread.yield();
+        }
+        return mExpected;
+    }
+}
@@ -0,0 +1,97 @@
+package com.magnux.iobahn;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.tavendo.autobahn.WebSocketException;
+
+/**
+ * Encoding of outgoing messages into frame payloads, as the writer does:
+ * emits of the corpus events, a multi-argument ack, and a batch of all of
+ * them framed into one multi-message payload. Each with the JSON codec, in
+ * text frames, and with Smile, in binary ones; the size of the encoded
+ * payload is printed at the end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SocketIOEncoderBenchmark {
+
+    @Param({ "small", "large", "multiarg", "batch" })
+    public String frame;
+
+    @Param({ "json", "smile" })
+    public String codec;
+
+    private SocketIOEncoder mEncoder;
+    private Object[] mMessages;
+    private SocketIOPooledOutputStream mPayload;
+    private SocketIOPooledOutputStream mBatch;
+
+    // / Size of the latest payload encoded.
+    private int mSize;
+
+    @Setup
+    public void setUp() throws IOException {
+        final SocketIOCodec codec = "smile".equals(this.codec) ? SocketIOCodecs.binary(new SmileFactory())
+                : SocketIOCodecs.json();
+        mEncoder = new SocketIOEncoder(codec, new ObjectMapper(), SocketIOOptions.PROTOCOL_0_9);
+        mPayload = new SocketIOPooledOutputStream();
+        mBatch = new SocketIOPooledOutputStream();
+
+        final Object small = new SocketIOMessage.Emit("", "chat", SocketIOCorpus.event("small", SocketIOCorpus.Chat.class));
+        final Object large = new SocketIOMessage.Emit("", "book", SocketIOCorpus.event("large", SocketIOCorpus.Book.class));
+        final Object multiarg = new SocketIOMessage.ACK("", "7", new Object[] {
+                SocketIOCorpus.event("multiarg", SocketIOCorpus.Move.class), "run", 3, true, null });
+        if ("small".equals(frame)) {
+            mMessages = new Object[] { small };
+        } else if ("large".equals(frame)) {
+            mMessages = new Object[] { large };
+        } else if ("multiarg".equals(frame)) {
+            mMessages = new Object[] { multiarg };
+        } else {
+            mMessages = new Object[] { small, new SocketIOMessage.Heartbeat(), multiarg, small };
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%n%s %s: %d bytes%n", frame, codec, mSize);
+    }
+
+    @Benchmark
+    public int encode() throws IOException, WebSocketException {
+        if (mMessages.length == 1) {
+            mEncoder.encode(mMessages[0], mPayload);
+            mSize = mPayload.size();
+            mPayload.release();
+            return mSize;
+        }
+        for (Object message : mMessages) {
+            mEncoder.encode(message, mPayload);
+            mEncoder.appendFramed(mPayload.getByteArray(), mPayload.size(), mBatch);
+        }
+        mPayload.release();
+        mSize = mBatch.size();
+        mBatch.release();
+        return mSize;
+    }
+}
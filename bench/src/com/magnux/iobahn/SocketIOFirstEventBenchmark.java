@@ -0,0 +1,78 @@
+package com.magnux.iobahn;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.magnux.iobahn.SocketIO.EventHandler;
+
+/**
+ * Decoding of the first event of a subscription, on a core created and
+ * subscribed just before, with and without SocketIOOptions
+ * setWarmUpDecoders(). Without warm-up the first event resolves and builds
+ * the deserializer of its type, as every event did before subscriptions got
+ * a bound reader; with it, on() already did. Compare with the steady state of
+ * SocketIODecoderBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 50)
+@Measurement(iterations = 200)
+@Fork(3)
+public class SocketIOFirstEventBenchmark {
+
+    @Param({ "small", "large" })
+    public String frame;
+
+    @Param({ "false", "true" })
+    public boolean warmUp;
+
+    private byte[] mPayload;
+    private SocketIODecoder mDecoder;
+    private Blackhole mBlackhole;
+
+    @Setup(Level.Trial)
+    public void setUpTrial(Blackhole blackhole) throws IOException {
+        mPayload = SocketIOCorpus.frame(frame);
+        mBlackhole = blackhole;
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        // a new core has a new mapper, with no deserializer cached yet
+        final SocketIOCore core = new SocketIOCore(new SocketIOBenchTransport());
+        final SocketIOOptions options = new SocketIOOptions();
+        options.setWarmUpDecoders(warmUp);
+        core.configure(options);
+        final EventHandler ignore = new EventHandler() {
+            public void onEvent(Object event) {
+            }
+        };
+        core.of("").on("chat", SocketIOCorpus.Chat.class, ignore);
+        core.of("").on("book", SocketIOCorpus.Book.class, ignore);
+        mDecoder = new SocketIODecoder(core, options, new SocketIODecoder.Sink() {
+            public void deliver(Object message) {
+                mBlackhole.consume(message);
+            }
+        });
+    }
+
+    @Benchmark
+    public boolean firstEvent() throws IOException {
+        return mDecoder.decode(mPayload, mPayload.length, false);
+    }
+}
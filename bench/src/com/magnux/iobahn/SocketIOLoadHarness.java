@@ -0,0 +1,582 @@
+package com.magnux.iobahn;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load and soak harness: N connections to a SocketIOTestServer over loopback,
+ * driven with a mix of emits echoed back by the server, emits with acks, and
+ * events the server pushes, while faults are injected on a script. Prints
+ * throughput and p50/p99/p999 latencies every report period and at the end,
+ * with the thread count and resident memory of the process.
+ *
+ * <pre>
+ * mvn -B -Pbench test-compile exec:exec -Dbench.main=com.magnux.iobahn.SocketIOLoadHarness \
+ *     -Dbench.args="-connections 100 -rate 50 -mix emit=6,ack=3,push=1 -duration 60 \
+ *     -faults 20:drop,30:delay=200,35:delay=0,45:restart=2000"
+ * </pre>
+ *
+ * Options, with their defaults:
+ * <ul>
+ * <li>-connections 10: connections opened.</li>
+ * <li>-transport android: SocketIOConnection (android, on the looper fakes
+ * of tests/src), SocketIOConnection polling a server that offers
+ * xhr-polling alone (polling), or SocketIONioConnection (nio).</li>
+ * <li>-fast false: connect with SocketIOOptions.setFastConnect().</li>
+ * <li>-group false: android connections share a SocketIOConnectionGroup.</li>
+ * <li>-dispatcher callback: where handlers run, the callback thread
+ * (callback), virtual threads (virtual), or a pool of platform threads as
+ * large as the processor count (pool).</li>
+ * <li>-block 0: milliseconds each handler blocks, as blocking I/O would.</li>
+ * <li>-rate 50: operations per second and connection.</li>
+ * <li>-mix emit=6,ack=3,push=1: weights of emits echoed back, emits acked,
+ * and events pushed by the server, a push reaching every connection.</li>
+ * <li>-payload 64: bytes of padding in each event.</li>
+ * <li>-warmup 5, -duration 30, -report 5: seconds of warm up, of
+ * measurement, and between reports.</li>
+ * <li>-faults none: comma separated <code>second:fault</code> steps, in
+ * seconds from the end of the warm up, among drop (reset every connection),
+ * delay=ms (hold requests and received packets, 0 to stop) and
+ * restart=ms (go away that long).</li>
+ * <li>-uri none: connect to a server of another process, such as
+ * <code>-serve 8090</code> runs, so that thread counts and memory are the
+ * client's alone. Pushes and faults need the server in process.</li>
+ * </ul>
+ *
+ * Client threads are counted by name, leaving out those of the server and of
+ * the harness; AsyncTask threads are the platform's shared pool on Android.
+ *
+ * Latencies are measured from the emit, or the push, to the handler, on
+ * System.nanoTime() as the server runs in process, in microseconds. They are
+ * bounded by SocketIOHistogram buckets, so within a factor of two.
+ */
+public class SocketIOLoadHarness {
+
+    /**
+     * Event exchanged, stamped when emitted or pushed.
+     */
+    public static class Probe {
+        public long t;
+        public String pad;
+
+        public Probe() {
+        }
+
+        Probe(long t, String pad) {
+            this.t = t;
+            this.pad = pad;
+        }
+    }
+
+    // / Period of the driver, in milliseconds.
+    private static final int TICK = 10;
+
+    private static final int ACK_TIMEOUT = 10000;
+
+    private final Map<String, String> mArgs;
+    private final int mConnections;
+    private final int mRate;
+    private final int mBlock;
+    private final String mPad;
+    private final double mEmitShare;
+    private final double mAckShare;
+    private final double mPushShare;
+
+    // / The server in process, or null when connecting to another one.
+    private final SocketIOTestServer mServer;
+    private final String mUri;
+    private final List<SocketIO> mClients = new ArrayList<SocketIO>();
+    private SocketIOConnectionGroup mGroup;
+
+    private final SocketIOHistogram mEchoLatency = new SocketIOHistogram();
+    private final SocketIOHistogram mAckLatency = new SocketIOHistogram();
+    private final SocketIOHistogram mPushLatency = new SocketIOHistogram();
+
+    // / Frames and bytes on the wire, of all the clients.
+    private final SocketIOStats mStats = new SocketIOStats();
+
+    private final AtomicLong mEmitted = new AtomicLong();
+    private final AtomicLong mAsked = new AtomicLong();
+    private final AtomicLong mPushed = new AtomicLong();
+    private final AtomicLong mAckTimeouts = new AtomicLong();
+    private final AtomicLong mOpens = new AtomicLong();
+
+    private final ScheduledExecutorService mScheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "SocketIOLoadHarness");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    SocketIOLoadHarness(Map<String, String> args) throws IOException {
+        mArgs = args;
+        mConnections = intArg("connections", 10);
+        mRate = intArg("rate", 50);
+        mBlock = intArg("block", 0);
+        final char[] pad = new char[intArg("payload", 64)];
+        Arrays.fill(pad, 'x');
+        mPad = new String(pad);
+
+        final Map<String, Double> mix = new HashMap<String, Double>();
+        for (String weight : arg("mix", "emit=6,ack=3,push=1").split(",")) {
+            final String[] parts = weight.split("=");
+            mix.put(parts[0], Double.parseDouble(parts[1]));
+        }
+        final double total = value(mix, "emit") + value(mix, "ack") + value(mix, "push");
+        mEmitShare = value(mix, "emit") / total;
+        mAckShare = value(mix, "ack") / total;
+        mPushShare = value(mix, "push") / total;
+
+        if (mArgs.containsKey("uri")) {
+            if (mPushShare > 0 || mArgs.containsKey("faults") || arg("transport", "android").equals("polling")) {
+                throw new IllegalArgumentException("pushes, faults and polling need the server in process");
+            }
+            mServer = null;
+            mUri = mArgs.get("uri");
+        } else {
+            mServer = new SocketIOTestServer(intArg("port", 0));
+            mUri = mServer.getUri();
+        }
+    }
+
+    private static double value(Map<String, Double> mix, String key) {
+        final Double value = mix.get(key);
+        return value != null ? value : 0;
+    }
+
+    private String arg(String name, String defaultValue) {
+        final String value = mArgs.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private int intArg(String name, int defaultValue) {
+        return Integer.parseInt(arg(name, Integer.toString(defaultValue)));
+    }
+
+    public static void main(String[] argv) throws Exception {
+        final Map<String, String> args = new HashMap<String, String>();
+        for (int i = 0; i < argv.length; ++i) {
+            if (!argv[i].startsWith("-")) {
+                throw new IllegalArgumentException("unexpected argument " + argv[i]);
+            }
+            final String name = argv[i].substring(1);
+            if (i + 1 < argv.length && !argv[i + 1].startsWith("-")) {
+                args.put(name, argv[++i]);
+            } else {
+                args.put(name, "true");
+            }
+        }
+        if (args.containsKey("serve")) {
+            final SocketIOTestServer server = new SocketIOTestServer(Integer.parseInt(args.get("serve")));
+            System.out.println("# serving " + server.getUri());
+            Thread.sleep(Long.MAX_VALUE);
+        }
+        new SocketIOLoadHarness(args).run();
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        final long baseRss = rssKiB();
+        System.out.println("# " + mArgs);
+
+        connectAll();
+        System.out.println("# connected " + mConnections + ": rss " + baseRss / 1024 + " -> " + rssKiB() / 1024
+                + " MiB, " + clientThreads());
+        System.out.println("# " + connects());
+
+        mScheduler.scheduleAtFixedRate(new Runnable() {
+            final Random mRng = new Random();
+            double mDue;
+            double mPushDue;
+
+            public void run() {
+                mDue += (double) mRate * TICK / 1000 * (mEmitShare + mAckShare);
+                final int ops = (int) mDue;
+                mDue -= ops;
+                for (int i = 0; i < ops; ++i) {
+                    for (SocketIO client : mClients) {
+                        final double pick = mRng.nextDouble() * (mEmitShare + mAckShare);
+                        if (pick < mEmitShare) {
+                            emit(client);
+                        } else {
+                            ask(client);
+                        }
+                    }
+                }
+                mPushDue += (double) mRate * TICK / 1000 * mPushShare;
+                while (mPushDue >= 1) {
+                    mPushDue -= 1;
+                    push();
+                }
+            }
+        }, TICK, TICK, TimeUnit.MILLISECONDS);
+
+        Thread.sleep(intArg("warmup", 5) * 1000L);
+        reset();
+        scheduleFaults(arg("faults", ""));
+
+        final long startCpu = clientCpuNanos();
+        final long start = System.nanoTime();
+        final long duration = intArg("duration", 30) * 1000L;
+        final long period = intArg("report", 5) * 1000L;
+        long last = start;
+        long lastReceived = 0;
+        long lastSent = 0;
+        for (long elapsed = 0; elapsed < duration;) {
+            Thread.sleep(Math.min(period, duration - elapsed));
+            final long now = System.nanoTime();
+            elapsed = (now - start) / 1000000;
+            final long sent = mEmitted.get() + mAsked.get();
+            final long received = received();
+            final double seconds = (now - last) / 1e9;
+            System.out.println(String.format("t=%ds open=%d/%d sent/s=%.0f received/s=%.0f%s", elapsed / 1000,
+                    connected(), mConnections, (sent - lastSent) / seconds, (received - lastReceived) / seconds,
+                    latencies()));
+            last = now;
+            lastSent = sent;
+            lastReceived = received;
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final double cores = (clientCpuNanos() - startCpu) / 1e9 / seconds;
+
+        mScheduler.shutdownNow();
+        System.out.println("# summary over " + Math.round(seconds) + "s");
+        System.out.println(String.format("throughput: sent/s=%.0f received/s=%.0f", (mEmitted.get() + mAsked.get())
+                / seconds, received() / seconds));
+        System.out.println("echo latency us: " + mEchoLatency + " (emitted " + mEmitted.get() + ")");
+        System.out.println("ack latency us: " + mAckLatency + " (asked " + mAsked.get() + ", timed out "
+                + mAckTimeouts.get() + ")");
+        System.out.println("push latency us: " + mPushLatency + " (pushed " + mPushed.get() + ")");
+        System.out.println(frames());
+        System.out.println(connects());
+        System.out.println(String.format("client cpu: %.1f%% of a core, %.0f connections/core at %d ops/s each",
+                cores * 100, mConnections / Math.max(cores, 1e-6), mRate));
+        System.out.println("reconnects: " + (mOpens.get() - mConnections)
+                + (mServer != null ? ", server handshakes " + mServer.getHandshakeCount() + ", upgrades "
+                        + mServer.getUpgradeCount() : ""));
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.out.println("threads: " + threads.getThreadCount() + " (peak " + threads.getPeakThreadCount()
+                + "), rss " + rssKiB() / 1024 + " MiB, heap used " + heapUsedKiB() / 1024 + " MiB");
+        System.out.println(clientThreads());
+
+        for (SocketIO client : mClients) {
+            client.disconnect();
+        }
+        if (mServer != null) {
+            mServer.stop();
+        }
+    }
+
+    private void connectAll() throws InterruptedException {
+        final String transport = arg("transport", "android");
+        final String dispatcher = arg("dispatcher", "callback");
+        if (Boolean.parseBoolean(arg("group", "false"))) {
+            mGroup = new SocketIOConnectionGroup();
+        }
+        final SocketIOOptions options = new SocketIOOptions();
+        options.setReconnect(true);
+        options.setReconnectBaseDelay(100);
+        options.setReconnectMaxDelay(2000);
+        options.setFastConnect(Boolean.parseBoolean(arg("fast", "false")));
+        if (dispatcher.equals("virtual")) {
+            options.setDispatcher(SocketIOExecutors.virtualThreads());
+        } else if (dispatcher.equals("pool")) {
+            options.setDispatcher(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            final Thread thread = new Thread(r, "SocketIODispatch");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }));
+        } else if (!dispatcher.equals("callback")) {
+            throw new IllegalArgumentException("unknown dispatcher " + dispatcher);
+        }
+
+        if (transport.equals("polling")) {
+            mServer.setTransports("xhr-polling");
+        }
+
+        final CountDownLatch connected = new CountDownLatch(mConnections);
+        for (int i = 0; i < mConnections; ++i) {
+            final SocketIO client;
+            if (transport.equals("nio")) {
+                client = new SocketIONioConnection();
+            } else if (transport.equals("android") || transport.equals("polling")) {
+                client = new SocketIOConnection(mGroup);
+            } else {
+                throw new IllegalArgumentException("unknown transport " + transport);
+            }
+            subscribe(client);
+            client.setMetrics(mStats);
+            mClients.add(client);
+            client.connect(mUri, new SocketIO.ConnectionHandler() {
+                boolean mOpened;
+
+                public void onOpen() {
+                    mOpens.incrementAndGet();
+                    if (!mOpened) {
+                        mOpened = true;
+                        connected.countDown();
+                    }
+                }
+
+                public void onClose(int code, String reason) {
+                    // reconnects exhausted, or disconnected
+                }
+            }, options);
+        }
+        if (!connected.await(60, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("only " + (mConnections - connected.getCount()) + " of "
+                    + mConnections + " connected");
+        }
+    }
+
+    private void subscribe(SocketIO client) {
+        client.on("echo", Probe.class, new SocketIO.EventHandler() {
+            public void onEvent(Object event) {
+                mEchoLatency.record((System.nanoTime() - ((Probe) event).t) / 1000);
+                block();
+            }
+        });
+        client.on("push", Probe.class, new SocketIO.EventHandler() {
+            public void onEvent(Object event) {
+                mPushLatency.record((System.nanoTime() - ((Probe) event).t) / 1000);
+                block();
+            }
+        });
+    }
+
+    private void block() {
+        if (mBlock > 0) {
+            try {
+                Thread.sleep(mBlock);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void emit(SocketIO client) {
+        try {
+            client.emit("echo", new Probe(System.nanoTime(), mPad));
+            mEmitted.incrementAndGet();
+        } catch (IllegalStateException e) {
+            // outbound queue full
+        }
+    }
+
+    private void ask(SocketIO client) {
+        final long start = System.nanoTime();
+        try {
+            client.emit("ask", new Probe(start, mPad), new SocketIO.AckHandler() {
+                public void onAck(Object[] args) {
+                    mAckLatency.record((System.nanoTime() - start) / 1000);
+                }
+
+                public void onTimeout() {
+                    mAckTimeouts.incrementAndGet();
+                }
+            }, ACK_TIMEOUT);
+            mAsked.incrementAndGet();
+        } catch (IllegalStateException e) {
+            // outbound queue full
+        }
+    }
+
+    private void push() {
+        if (mServer == null) {
+            return;
+        }
+        final int sent = mServer.emit("push", "[{\"t\":" + System.nanoTime() + ",\"pad\":\"" + mPad + "\"}]");
+        mPushed.addAndGet(sent);
+    }
+
+    private void reset() {
+        mEchoLatency.reset();
+        mAckLatency.reset();
+        mPushLatency.reset();
+        mEmitted.set(0);
+        mAsked.set(0);
+        mPushed.set(0);
+        mAckTimeouts.set(0);
+        mStats.reset();
+    }
+
+    private int connected() {
+        int connected = 0;
+        for (SocketIO client : mClients) {
+            if (client.isConnected()) {
+                ++connected;
+            }
+        }
+        return connected;
+    }
+
+    private long received() {
+        return mEchoLatency.getCount() + mAckLatency.getCount() + mPushLatency.getCount();
+    }
+
+    private String latencies() {
+        return String.format(" echo=%d/%d/%d ack=%d/%d/%d push=%d/%d/%d (p50/p99/p999 us)",
+                mEchoLatency.getPercentile(50), mEchoLatency.getPercentile(99), mEchoLatency.getPercentile(99.9),
+                mAckLatency.getPercentile(50), mAckLatency.getPercentile(99), mAckLatency.getPercentile(99.9),
+                mPushLatency.getPercentile(50), mPushLatency.getPercentile(99), mPushLatency.getPercentile(99.9));
+    }
+
+    /**
+     * Frames and bytes sent and received, in total and per event received:
+     * echoes and pushes, which are not acked as the server asks for no ack.
+     */
+    private String frames() {
+        final long events = mEchoLatency.getCount() + mPushLatency.getCount();
+        final double per = Math.max(events, 1);
+        return String.format("frames: out %d (%.2f/event, %d bytes, %.1f/event) in %d (%.2f/event, %d bytes,"
+                + " %.1f/event), events in %d", mStats.getFramesSent(), mStats.getFramesSent() / per,
+                mStats.getBytesSent(), mStats.getBytesSent() / per, mStats.getFramesReceived(),
+                mStats.getFramesReceived() / per, mStats.getBytesReceived(), mStats.getBytesReceived() / per, events);
+    }
+
+    /**
+     * Time to open of the connects made, and of their phases, p50/p99 in
+     * microseconds. Phases a connect skipped, or a transport does not time,
+     * count for none.
+     */
+    private String connects() {
+        return String.format("connects: %d, p50/p99 us total %s, dns %s, tcp %s, handshake %s, upgrade %s",
+                mStats.getConnectNanos().getCount(), phase(mStats.getConnectNanos()), phase(mStats.getDnsNanos()),
+                phase(mStats.getTcpNanos()), phase(mStats.getHandshakeNanos()), phase(mStats.getUpgradeNanos()));
+    }
+
+    private static String phase(SocketIOHistogram nanos) {
+        if (nanos.getCount() == 0) {
+            return "-";
+        }
+        return nanos.getPercentile(50) / 1000 + "/" + nanos.getPercentile(99) / 1000;
+    }
+
+    /**
+     * Schedule the steps of a fault script, <code>second:fault</code>
+     * separated by commas.
+     */
+    private void scheduleFaults(String script) {
+        if (script.isEmpty()) {
+            return;
+        }
+        for (String step : script.split(",")) {
+            final int colon = step.indexOf(':');
+            final long at = Long.parseLong(step.substring(0, colon));
+            final String fault = step.substring(colon + 1);
+            final int equals = fault.indexOf('=');
+            final String name = equals < 0 ? fault : fault.substring(0, equals);
+            final int value = equals < 0 ? 0 : Integer.parseInt(fault.substring(equals + 1));
+            if (!name.equals("drop") && !name.equals("delay") && !name.equals("restart")) {
+                throw new IllegalArgumentException("unknown fault " + fault);
+            }
+            mScheduler.schedule(new Runnable() {
+                public void run() {
+                    System.out.println("# fault " + fault);
+                    if (name.equals("drop")) {
+                        mServer.dropConnections();
+                    } else if (name.equals("delay")) {
+                        mServer.setDelay(value);
+                    } else {
+                        try {
+                            mServer.restart(value);
+                        } catch (IOException e) {
+                            System.out.println("# restart failed: " + e);
+                        }
+                    }
+                }
+            }, at, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Whether a thread is one of the clients', not of the server, the driver
+     * or the JVM.
+     */
+    private static boolean isClientThread(Thread thread, String name) {
+        return !name.startsWith("SocketIOTestServer") && !name.startsWith("SocketIOLoadHarness")
+                && !name.equals("Common-Cleaner") && thread.getThreadGroup() != null
+                && !thread.getThreadGroup().getName().equals("system");
+    }
+
+    /**
+     * CPU time of the live client threads, the main thread aside, in
+     * nanoseconds.
+     */
+    static long clientCpuNanos() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread != Thread.currentThread() && isClientThread(thread, thread.getName())) {
+                total += Math.max(threads.getThreadCpuTime(thread.getId()), 0);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Live threads of the clients, by name without trailing digits.
+     */
+    static String clientThreads() {
+        final Map<String, Integer> byName = new TreeMap<String, Integer>();
+        int total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            final String name = thread.getName().replaceAll("[-#]?\\d+$", "");
+            if (!isClientThread(thread, name)) {
+                continue;
+            }
+            final Integer count = byName.get(name);
+            byName.put(name, count != null ? count + 1 : 1);
+            ++total;
+        }
+        return "client threads " + total + " " + byName;
+    }
+
+    /**
+     * Resident set size of the process, 0 where /proc is not available.
+     */
+    static long rssKiB() {
+        try {
+            final BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // not Linux
+        }
+        return 0;
+    }
+
+    static long heapUsedKiB() {
+        System.gc();
+        final Runtime runtime = Runtime.getRuntime();
+        return (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+    }
+}
@@ -1,8 +1,6 @@
 package com.magnux.iobahn;
 
-import org.codehaus.jackson.type.TypeReference;
-
-public interface SocketIO {
+public interface SocketIO extends SocketIONamespace {
 
     /**
      * Session handler for SocketIO sessions.
@@ -59,7 +57,7 @@ public interface SocketIO {
      * Disconnect from SocketIO endpoint.
      * 
      * @param endpoint
-     *            The URI or CURIE of the topic to unsubscribe from.
+     *            The endpoint to leave, like "/chat".
      */
     public void disconnect(String endpoint);
 
@@ -70,6 +68,33 @@ public interface SocketIO {
      */
     public boolean isConnected();
 
+    /**
+     * Register instrumentation on the connection, reporting frames, events,
+     * latencies and queue depth. Without it nothing is measured.
+     * 
+     * @param metrics
+     *            The metrics to report to, like a SocketIOStats, or null to
+     *            stop measuring.
+     */
+    public void setMetrics(SocketIOMetrics metrics);
+
+    /**
+     * Get the number of events skipped by subscriptions delivering only the
+     * latest event, as a newer one arrived before they were delivered.
+     * 
+     * @return The count since the connection was created.
+     */
+    public long getConflatedEventCount();
+
+    /**
+     * Get the number of events of subscriptions delivering only the latest
+     * event, dropped without being delivered because their subscription was
+     * removed, or they could not be decoded.
+     * 
+     * @return The count since the connection was created.
+     */
+    public long getDroppedEventCount();
+
     /**
      * Handler for PubSub events.
      */
@@ -88,39 +113,102 @@ public interface SocketIO {
     }
 
     /**
-     * Subscribe to an event. When already subscribed, overwrite the event
-     * handler.
-     * 
-     * @param name
-     *            The name of the event.
-     * @param eventType
-     *            The type that event get transformed into.
-     * @param eventHandler
-     *            The event handler.
+     * Acknowledgement of a received event, for the server's ack requests
+     * that expect data.
      */
-    public void on(String name, Class<?> eventType, EventHandler eventHandler);
+    public interface Ack {
+
+        /**
+         * Send the acknowledgement. Only the first call has an effect.
+         * 
+         * @param args
+         *            The acknowledgement data.
+         */
+        public void send(Object... args);
+    }
 
     /**
-     * Subscribe to an event. When already subscribed, overwrite the event
-     * handler.
-     * 
-     * @param name
-     *            The name of the event.
-     * @param eventType
-     *            The type that event get transformed into.
-     * @param eventHandler
-     *            The event handler.
+     * Handler for events that answer the server's ack requests with data.
+     */
+    public interface AckEventHandler {
+
+        /**
+         * Fired when an event is received.
+         * 
+         * @param event
+         *            The event, transformed into the type that was specified
+         *            when subscribing.
+         * @param ack
+         *            The acknowledgement to send, or null when the server did
+         *            not ask for data. Can be sent later, from any thread.
+         */
+        public void onEvent(Object event, Ack ack);
+    }
+
+    /**
+     * Handler for events carrying several arguments.
+     */
+    public interface MultiArgEventHandler {
+
+        /**
+         * Fired when an event is received.
+         * 
+         * @param args
+         *            The event arguments, each transformed into the type that
+         *            was specified for its position when subscribing. Missing
+         *            arguments are null, extra arguments are dropped.
+         */
+        public void onEvent(Object[] args);
+    }
+
+    /**
+     * Handler for events delivered undecoded.
+     */
+    public interface RawEventHandler {
+
+        /**
+         * Fired when an event is received.
+         * 
+         * @param event
+         *            The event arguments, decoded only on request. Stays
+         *            valid after this method returns.
+         */
+        public void onEvent(SocketIORawEvent event);
+    }
+
+    /**
+     * Handler for acknowledgements of emitted events.
      */
-    public void on(String name, TypeReference<?> eventType, EventHandler eventHandler);
+    public interface AckHandler {
+
+        /**
+         * Fired when the server acknowledged the event.
+         * 
+         * @param args
+         *            The acknowledgement data sent by the server, decoded into
+         *            plain maps, lists, strings and numbers. Empty when the
+         *            server sent none.
+         */
+        public void onAck(Object[] args);
+
+        /**
+         * Fired when no acknowledgement arrived within the timeout, or the
+         * connection closed before it did.
+         */
+        public void onTimeout();
+    }
 
     /**
-     * Emit an event.
+     * Get the view of an endpoint (namespace) of this connection. Subscribing
+     * and emitting through it is scoped to the endpoint, while all endpoints
+     * share this connection. The endpoint is joined right away when
+     * connected, and again on every reconnect.
      * 
-     * @param name
-     *            The name of the event.
-     * @param event
-     *            The event to be published.
+     * @param endpoint
+     *            The endpoint, like "/chat". An empty endpoint or "/" is the
+     *            connection itself.
+     * @return The endpoint view.
      */
-    public void emit(String name, Object event);
+    public SocketIONamespace of(String endpoint);
 
 }
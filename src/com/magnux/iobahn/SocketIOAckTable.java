@@ -0,0 +1,345 @@
+package com.magnux.iobahn;
+
+import java.util.ArrayList;
+
+import com.magnux.iobahn.SocketIO.AckHandler;
+
+/**
+ * Pending acknowledgements of emitted events, keyed by message id.
+ *
+ * Entries live in parallel arrays indexed by slot, found through an open
+ * addressing int-to-slot index, and are expired by a hashed timing wheel that
+ * links slots together. Adding and removing an entry does not allocate once
+ * the arrays have grown to the number of acks in flight.
+ */
+final class SocketIOAckTable {
+
+    // / Resolution of timeouts, in milliseconds.
+    static final long TICK_MILLIS = 100;
+
+    // / Number of wheel buckets, a power of two (~51 seconds per turn).
+    private static final int WHEEL_SIZE = 512;
+
+    private static final int NONE = -1;
+
+    // / Message id of each slot, 0 when the slot is free.
+    private int[] mIds;
+
+    // / Handler of each slot.
+    private AckHandler[] mHandlers;
+
+    // / Deadline tick of each slot, or Long.MAX_VALUE when it never expires.
+    private long[] mDeadlines;
+
+    // / Time each slot was added, in milliseconds.
+    private long[] mAddTimes;
+
+    // / Wheel bucket chaining, doubling as free list chaining (mNext only).
+    private int[] mNext;
+    private int[] mPrev;
+
+    // / Head of the free slot list.
+    private int mFree;
+
+    // / Head slot of each wheel bucket.
+    private final int[] mWheel;
+
+    // / Last tick processed by expire().
+    private long mTick;
+
+    // / Open addressing index, message id to slot, 0 keys are empty.
+    private int[] mIndexKeys;
+    private int[] mIndexSlots;
+
+    // / Number of pending acks.
+    private int mCount;
+
+    // / Number of pending acks with a timeout.
+    private int mTimedCount;
+
+    // / Next message id to hand out.
+    private int mNextId = 1;
+
+    SocketIOAckTable(long nowMillis) {
+        mWheel = new int[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; ++i) {
+            mWheel[i] = NONE;
+        }
+        mTick = nowMillis / TICK_MILLIS;
+        allocate(64);
+    }
+
+    /**
+     * Number of acks currently pending.
+     */
+    synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Number of acks currently pending with a timeout, the ones that need
+     * expire() to be called.
+     */
+    synchronized int timedSize() {
+        return mTimedCount;
+    }
+
+    /**
+     * Register a pending ack.
+     *
+     * @param handler
+     *            The handler to fire on ack or timeout.
+     * @param nowMillis
+     *            Current time.
+     * @param timeoutMillis
+     *            Timeout in milliseconds, 0 or less for none.
+     * @return The message id to send the event with.
+     */
+    synchronized int add(AckHandler handler, long nowMillis, long timeoutMillis) {
+
+        if (mFree == NONE) {
+            allocate(mIds.length * 2);
+        }
+
+        int id = mNextId;
+        while (findSlot(id) != NONE) {
+            id = id == Integer.MAX_VALUE ? 1 : id + 1;
+        }
+        mNextId = id == Integer.MAX_VALUE ? 1 : id + 1;
+
+        final int slot = mFree;
+        mFree = mNext[slot];
+
+        mIds[slot] = id;
+        mHandlers[slot] = handler;
+        mAddTimes[slot] = nowMillis;
+        if (timeoutMillis > 0) {
+            long deadline = (nowMillis + timeoutMillis + TICK_MILLIS - 1) / TICK_MILLIS;
+            mDeadlines[slot] = Math.max(deadline, mTick + 1);
+            link(slot);
+            ++mTimedCount;
+        } else {
+            mDeadlines[slot] = Long.MAX_VALUE;
+            mNext[slot] = mPrev[slot] = NONE;
+        }
+
+        putIndex(id, slot);
+        ++mCount;
+        return id;
+    }
+
+    /**
+     * Get the time a pending ack was added.
+     *
+     * @param id
+     *            The message id the event was sent with.
+     * @return The time given to add(), or -1 when unknown or expired.
+     */
+    synchronized long getAddTime(int id) {
+        final int slot = findSlot(id);
+        return slot == NONE ? -1 : mAddTimes[slot];
+    }
+
+    /**
+     * Remove a pending ack.
+     *
+     * @param id
+     *            The message id the event was sent with.
+     * @return The handler, or null when unknown or already expired.
+     */
+    synchronized AckHandler remove(int id) {
+        final int slot = findSlot(id);
+        if (slot == NONE) {
+            return null;
+        }
+        final AckHandler handler = mHandlers[slot];
+        removeIndex(id);
+        if (mDeadlines[slot] != Long.MAX_VALUE) {
+            unlink(slot);
+            --mTimedCount;
+        }
+        release(slot);
+        return handler;
+    }
+
+    /**
+     * Remove the acks whose timeout has passed.
+     *
+     * @param nowMillis
+     *            Current time.
+     * @param expired
+     *            Receives the handlers of the expired acks.
+     */
+    synchronized void expire(long nowMillis, ArrayList<AckHandler> expired) {
+        final long now = nowMillis / TICK_MILLIS;
+        if (now <= mTick) {
+            return;
+        }
+        // past one full turn every bucket is due for a look, once
+        final long from = now - mTick > WHEEL_SIZE ? now - WHEEL_SIZE + 1 : mTick + 1;
+        for (long tick = from; tick <= now; ++tick) {
+            int slot = mWheel[(int) (tick & (WHEEL_SIZE - 1))];
+            while (slot != NONE) {
+                final int next = mNext[slot];
+                if (mDeadlines[slot] <= now) {
+                    expired.add(mHandlers[slot]);
+                    removeIndex(mIds[slot]);
+                    unlink(slot);
+                    release(slot);
+                    --mTimedCount;
+                }
+                slot = next;
+            }
+        }
+        mTick = now;
+    }
+
+    /**
+     * Remove all pending acks.
+     *
+     * @param removed
+     *            Receives the handlers of the removed acks.
+     */
+    synchronized void clear(ArrayList<AckHandler> removed) {
+        for (int slot = 0; slot < mIds.length; ++slot) {
+            if (mIds[slot] != 0) {
+                removed.add(mHandlers[slot]);
+            }
+        }
+        for (int i = 0; i < WHEEL_SIZE; ++i) {
+            mWheel[i] = NONE;
+        }
+        mCount = 0;
+        mTimedCount = 0;
+        allocate(mIds.length);
+    }
+
+    /**
+     * (Re)create empty storage for <code>capacity</code> slots, keeping the
+     * current entries when growing.
+     */
+    private void allocate(int capacity) {
+
+        final int[] ids = new int[capacity];
+        final AckHandler[] handlers = new AckHandler[capacity];
+        final long[] deadlines = new long[capacity];
+        final long[] addTimes = new long[capacity];
+        final int[] next = new int[capacity];
+        final int[] prev = new int[capacity];
+
+        int used = 0;
+        if (mIds != null && mCount > 0) {
+            used = mIds.length;
+            System.arraycopy(mIds, 0, ids, 0, used);
+            System.arraycopy(mHandlers, 0, handlers, 0, used);
+            System.arraycopy(mDeadlines, 0, deadlines, 0, used);
+            System.arraycopy(mAddTimes, 0, addTimes, 0, used);
+            System.arraycopy(mNext, 0, next, 0, used);
+            System.arraycopy(mPrev, 0, prev, 0, used);
+        }
+
+        mIds = ids;
+        mHandlers = handlers;
+        mDeadlines = deadlines;
+        mAddTimes = addTimes;
+        mNext = next;
+        mPrev = prev;
+
+        // new slots form the free list, growing only happens when it is empty
+        mFree = NONE;
+        for (int slot = capacity - 1; slot >= used; --slot) {
+            mNext[slot] = mFree;
+            mFree = slot;
+        }
+
+        mIndexKeys = new int[capacity * 2];
+        mIndexSlots = new int[capacity * 2];
+        for (int slot = 0; slot < used; ++slot) {
+            if (mIds[slot] != 0) {
+                putIndex(mIds[slot], slot);
+            }
+        }
+    }
+
+    private void release(int slot) {
+        mIds[slot] = 0;
+        mHandlers[slot] = null;
+        mNext[slot] = mFree;
+        mFree = slot;
+        --mCount;
+    }
+
+    private void link(int slot) {
+        final int bucket = (int) (mDeadlines[slot] & (WHEEL_SIZE - 1));
+        final int head = mWheel[bucket];
+        mNext[slot] = head;
+        mPrev[slot] = NONE;
+        if (head != NONE) {
+            mPrev[head] = slot;
+        }
+        mWheel[bucket] = slot;
+    }
+
+    private void unlink(int slot) {
+        final int next = mNext[slot];
+        final int prev = mPrev[slot];
+        if (prev != NONE) {
+            mNext[prev] = next;
+        } else {
+            mWheel[(int) (mDeadlines[slot] & (WHEEL_SIZE - 1))] = next;
+        }
+        if (next != NONE) {
+            mPrev[next] = prev;
+        }
+    }
+
+    private static int hash(int id) {
+        final int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int findSlot(int id) {
+        final int mask = mIndexKeys.length - 1;
+        for (int i = hash(id) & mask;; i = (i + 1) & mask) {
+            final int key = mIndexKeys[i];
+            if (key == id) {
+                return mIndexSlots[i];
+            } else if (key == 0) {
+                return NONE;
+            }
+        }
+    }
+
+    private void putIndex(int id, int slot) {
+        final int mask = mIndexKeys.length - 1;
+        int i = hash(id) & mask;
+        while (mIndexKeys[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        mIndexKeys[i] = id;
+        mIndexSlots[i] = slot;
+    }
+
+    private void removeIndex(int id) {
+        final int mask = mIndexKeys.length - 1;
+        int i = hash(id) & mask;
+        while (mIndexKeys[i] != id) {
+            if (mIndexKeys[i] == 0) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        // backward shift deletion keeps probe sequences intact
+        int hole = i;
+        for (int j = (hole + 1) & mask; mIndexKeys[j] != 0; j = (j + 1) & mask) {
+            final int home = hash(mIndexKeys[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                mIndexKeys[hole] = mIndexKeys[j];
+                mIndexSlots[hole] = mIndexSlots[j];
+                hole = j;
+            }
+        }
+        mIndexKeys[hole] = 0;
+    }
+}
@@ -0,0 +1,166 @@
+package com.magnux.iobahn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.Version;
+import org.codehaus.jackson.map.DeserializationContext;
+import org.codehaus.jackson.map.JsonDeserializer;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.module.SimpleModule;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.jackson.node.POJONode;
+
+/**
+ * Binary attachments of Engine.IO events and acks. The JSON of such a packet
+ * holds a placeholder <code>{"_placeholder":true,"num":n}</code> where a
+ * binary value was, and the value itself follows in binary frame n.
+ *
+ * Received attachments are put in place of their placeholders as
+ * ByteBuffer slices of the frames they came in, which are not reused once
+ * sliced, and bound by the deserializers of {@link #module()}. Nothing is copied, unless
+ * a byte[] is asked for a slice not covering its whole frame.
+ */
+final class SocketIOBinary {
+
+    static final String PLACEHOLDER = "_placeholder";
+    static final String NUM = "num";
+
+    private SocketIOBinary() {
+    }
+
+    /**
+     * Get the module binding attachments to ByteBuffer and byte[] values,
+     * which keep being read from base64 strings as well.
+     */
+    static SimpleModule module() {
+        final SimpleModule module = new SimpleModule("IOBahnBinary", new Version(1, 0, 0, null));
+        module.addDeserializer(ByteBuffer.class, new ByteBufferDeserializer());
+        module.addDeserializer(byte[].class, new ByteArrayDeserializer());
+        return module;
+    }
+
+    /**
+     * Put attachments in place of their placeholders.
+     *
+     * @param node
+     *            The tree to fill, changed in place.
+     * @param attachments
+     *            The attachments, by number.
+     * @return The filled tree, a new node when the tree is a placeholder
+     *         itself.
+     */
+    static JsonNode fill(JsonNode node, ByteBuffer[] attachments) throws IOException {
+        if (node.isArray()) {
+            final ArrayNode array = (ArrayNode) node;
+            for (int i = 0; i < array.size(); ++i) {
+                final JsonNode element = array.get(i);
+                final JsonNode filled = fill(element, attachments);
+                if (filled != element) {
+                    array.set(i, filled);
+                }
+            }
+        } else if (node.isObject()) {
+            if (node.path(PLACEHOLDER).asBoolean() && node.has(NUM)) {
+                final int num = node.get(NUM).asInt();
+                if (num < 0 || num >= attachments.length) {
+                    throw new IOException("attachment " + num + " out of range");
+                }
+                // each placement gets its own position and limit
+                return new POJONode(attachments[num].duplicate());
+            }
+            final ObjectNode object = (ObjectNode) node;
+            final Iterator<Map.Entry<String, JsonNode>> fields = object.getFields();
+            while (fields.hasNext()) {
+                final Map.Entry<String, JsonNode> field = fields.next();
+                final JsonNode filled = fill(field.getValue(), attachments);
+                if (filled != field.getValue()) {
+                    field.setValue(filled);
+                }
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Create a parser over JSON, with the attachments in place of their
+     * placeholders.
+     *
+     * @param attachments
+     *            The attachments, or null when there are none, then the
+     *            parser streams the bytes.
+     */
+    static JsonParser createParser(ObjectMapper mapper, JsonFactory factory, byte[] buffer, int offset, int length,
+            ByteBuffer[] attachments) throws IOException {
+        final JsonParser parser = factory.createJsonParser(buffer, offset, length);
+        if (attachments == null) {
+            return parser;
+        }
+        final JsonNode tree;
+        try {
+            tree = mapper.readTree(parser);
+        } finally {
+            parser.close();
+        }
+        return mapper.treeAsTokens(fill(tree, attachments));
+    }
+
+    private static final class ByteBufferDeserializer extends JsonDeserializer<ByteBuffer> {
+
+        @Override
+        public ByteBuffer deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            if (parser.getCurrentToken() == JsonToken.VALUE_EMBEDDED_OBJECT) {
+                final Object value = parser.getEmbeddedObject();
+                if (value instanceof ByteBuffer) {
+                    return (ByteBuffer) value;
+                } else if (value instanceof byte[]) {
+                    return ByteBuffer.wrap((byte[]) value);
+                }
+            } else if (parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+                return ByteBuffer.wrap(parser.getBinaryValue());
+            }
+            throw context.mappingException(ByteBuffer.class);
+        }
+    }
+
+    private static final class ByteArrayDeserializer extends JsonDeserializer<byte[]> {
+
+        @Override
+        public byte[] deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            final JsonToken token = parser.getCurrentToken();
+            if (token == JsonToken.VALUE_EMBEDDED_OBJECT) {
+                final Object value = parser.getEmbeddedObject();
+                if (value instanceof byte[]) {
+                    return (byte[]) value;
+                } else if (value instanceof ByteBuffer) {
+                    final ByteBuffer buffer = (ByteBuffer) value;
+                    if (buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0
+                            && buffer.remaining() == buffer.array().length) {
+                        return buffer.array();
+                    }
+                    final byte[] bytes = new byte[buffer.remaining()];
+                    buffer.duplicate().get(bytes);
+                    return bytes;
+                }
+            } else if (token == JsonToken.VALUE_STRING) {
+                return parser.getBinaryValue();
+            } else if (token == JsonToken.START_ARRAY) {
+                // an array of numbers, as Jackson reads byte[] by default
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    bytes.write(parser.getIntValue());
+                }
+                return bytes.toByteArray();
+            }
+            throw context.mappingException(byte[].class);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.magnux.iobahn;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Process wide pool of byte arrays, for the frames, payloads and batches of
+ * every connection. Arrays come in power of two size classes, 1 KiB to 1 MiB,
+ * and each class keeps a bounded number of free ones; larger arrays are
+ * neither pooled nor kept.
+ *
+ * Arrays left free since the previous trim are dropped by the next one, run
+ * every half minute on the SocketIOScheduler while anything is pooled, so a
+ * burst of large messages does not pin its buffers for the life of the
+ * process.
+ *
+ * Android free, like SocketIOCore and SocketIODecoder.
+ */
+final class SocketIOBufferPool {
+
+    // / Smallest and largest size classes, as powers of two.
+    private static final int MIN_SHIFT = 10;
+    private static final int MAX_SHIFT = 20;
+
+    // / Bytes a size class keeps free at most, and the count it may keep
+    // / whatever the size.
+    private static final int CLASS_BYTES = 256 * 1024;
+    private static final int MIN_FREE = 2;
+    private static final int MAX_FREE = 32;
+
+    // / Trim period, in milliseconds.
+    private static final long TRIM_PERIOD = 30000;
+
+    // / Free arrays by size class, guarded by the class. Each tracks the
+    // / fewest it held since the last trim; that many sat idle all along.
+    private static final SizeClass[] sClasses = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+
+    // / The periodic trim, while anything is pooled, guarded by sClasses.
+    private static ScheduledFuture<?> sTrim;
+
+    private static final class SizeClass {
+        final int mSize;
+        final byte[][] mFree;
+        int mCount;
+        int mLow;
+
+        SizeClass(int size) {
+            mSize = size;
+            mFree = new byte[Math.max(MIN_FREE, Math.min(MAX_FREE, CLASS_BYTES / size))][];
+        }
+    }
+
+    static {
+        for (int i = 0; i < sClasses.length; ++i) {
+            sClasses[i] = new SizeClass(1 << (MIN_SHIFT + i));
+        }
+    }
+
+    private SocketIOBufferPool() {
+    }
+
+    /**
+     * Get the size class of a length, the smallest holding it.
+     *
+     * @return The class, or null when the length is beyond the largest.
+     */
+    private static SizeClass sizeClass(int length) {
+        if (length <= 1 << MIN_SHIFT) {
+            return sClasses[0];
+        }
+        final int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+        return shift <= MAX_SHIFT ? sClasses[shift - MIN_SHIFT] : null;
+    }
+
+    /**
+     * Take an array of at least a given length, pooled or new.
+     *
+     * @param length
+     *            The length needed.
+     * @return The array, as long as its size class when it has one, exactly
+     *         as long as asked otherwise. Its content is undefined.
+     */
+    static byte[] take(int length) {
+        final SizeClass sizeClass = sizeClass(length);
+        if (sizeClass == null) {
+            return new byte[length];
+        }
+        synchronized (sizeClass) {
+            if (sizeClass.mCount > 0) {
+                final byte[] array = sizeClass.mFree[--sizeClass.mCount];
+                sizeClass.mFree[sizeClass.mCount] = null;
+                if (sizeClass.mCount < sizeClass.mLow) {
+                    sizeClass.mLow = sizeClass.mCount;
+                }
+                return array;
+            }
+        }
+        return new byte[sizeClass.mSize];
+    }
+
+    /**
+     * Give an array back. Arrays not the size of a class, and arrays of a
+     * full class, are left to the garbage collector.
+     *
+     * @param array
+     *            The array, not to be used by the caller any more.
+     */
+    static void release(byte[] array) {
+        final SizeClass sizeClass = sizeClass(array.length);
+        if (sizeClass == null || sizeClass.mSize != array.length) {
+            return;
+        }
+        synchronized (sizeClass) {
+            if (sizeClass.mCount == sizeClass.mFree.length) {
+                return;
+            }
+            sizeClass.mFree[sizeClass.mCount++] = array;
+        }
+        scheduleTrim();
+    }
+
+    private static void scheduleTrim() {
+        synchronized (sClasses) {
+            if (sTrim == null) {
+                sTrim = SocketIOScheduler.scheduleAtFixedRate(new Runnable() {
+                    public void run() {
+                        trim();
+                    }
+                }, TRIM_PERIOD);
+            }
+        }
+    }
+
+    /**
+     * Drop the arrays no one took since the previous trim, and stop trimming
+     * once the pool is empty.
+     */
+    static void trim() {
+        boolean empty = true;
+        for (int i = 0; i < sClasses.length; ++i) {
+            final SizeClass sizeClass = sClasses[i];
+            synchronized (sizeClass) {
+                final int keep = sizeClass.mCount - sizeClass.mLow;
+                for (int j = keep; j < sizeClass.mCount; ++j) {
+                    sizeClass.mFree[j] = null;
+                }
+                sizeClass.mCount = keep;
+                sizeClass.mLow = keep;
+                empty &= keep == 0;
+            }
+        }
+        if (empty) {
+            synchronized (sClasses) {
+                // released meanwhile, the next run trims it
+                for (int i = 0; i < sClasses.length; ++i) {
+                    synchronized (sClasses[i]) {
+                        if (sClasses[i].mCount > 0) {
+                            return;
+                        }
+                    }
+                }
+                SocketIOScheduler.cancel(sTrim);
+                sTrim = null;
+            }
+        }
+    }
+}
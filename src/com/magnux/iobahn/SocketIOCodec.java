@@ -0,0 +1,30 @@
+package com.magnux.iobahn;
+
+import org.codehaus.jackson.JsonFactory;
+
+/**
+ * Encoding of the data carried by SocketIO messages, see
+ * {@link SocketIOOptions#setCodec(SocketIOCodec)}.
+ *
+ * Message headers like <code>5:1+::</code> stay ASCII, the codec decides the
+ * format of the event and ack data after them, and whether messages travel
+ * in text or binary WebSockets frames. Any Jackson format backend will do, so
+ * event types bind the same whatever the format.
+ */
+public interface SocketIOCodec {
+
+    /**
+     * Get the factory of the parsers and generators of message data.
+     * 
+     * @return The Jackson factory, shared by all connections using the codec.
+     */
+    public JsonFactory getJsonFactory();
+
+    /**
+     * Whether messages are sent in binary WebSockets frames. Multi-message
+     * payloads in binary frames count message lengths in bytes.
+     * 
+     * @return True for binary frames, false for text frames.
+     */
+    public boolean isBinary();
+}
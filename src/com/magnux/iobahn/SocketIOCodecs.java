@@ -0,0 +1,56 @@
+package com.magnux.iobahn;
+
+import org.codehaus.jackson.JsonFactory;
+
+/**
+ * Payload codecs, see {@link SocketIOOptions#setCodec(SocketIOCodec)}.
+ */
+public final class SocketIOCodecs {
+
+    // / Plain JSON in text frames, what SocketIO servers speak.
+    private static final SocketIOCodec JSON = new JacksonCodec(new JsonFactory(), false);
+
+    private SocketIOCodecs() {
+    }
+
+    /**
+     * Encode message data as JSON, in text frames.
+     * 
+     * @return The JSON codec.
+     */
+    public static SocketIOCodec json() {
+        return JSON;
+    }
+
+    /**
+     * Encode message data with a Jackson binary format backend, in binary
+     * frames. The server has to speak the same format, for example with
+     * <code>binary(new SmileFactory())</code> from the jackson-smile module.
+     * 
+     * @param factory
+     *            The Jackson factory of the format.
+     * @return The binary codec.
+     */
+    public static SocketIOCodec binary(JsonFactory factory) {
+        return new JacksonCodec(factory, true);
+    }
+
+    private static final class JacksonCodec implements SocketIOCodec {
+
+        private final JsonFactory mFactory;
+        private final boolean mBinary;
+
+        JacksonCodec(JsonFactory factory, boolean binary) {
+            mFactory = factory;
+            mBinary = binary;
+        }
+
+        public JsonFactory getJsonFactory() {
+            return mFactory;
+        }
+
+        public boolean isBinary() {
+            return mBinary;
+        }
+    }
+}
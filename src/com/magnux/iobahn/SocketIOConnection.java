@@ -4,19 +4,27 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
+import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.params.HttpConnectionParams;
 import org.codehaus.jackson.type.TypeReference;
 
 import android.net.http.AndroidHttpClient;
 import android.os.AsyncTask;
+import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import de.tavendo.autobahn.WebSocketConnection;
 import de.tavendo.autobahn.WebSocketConnectionHandler;
@@ -24,54 +32,152 @@ import de.tavendo.autobahn.WebSocketException;
 
 public class SocketIOConnection extends WebSocketConnection implements SocketIO {
 
-    private static final boolean DEBUG = true;
+    private static final boolean DEBUG = false;
     private static final String TAG = SocketIOConnection.class.getName();
 
     // / The message handler of the background writer.
     protected SocketIOWriter mWriterHandler;
 
-    // / RNG for IDs.
+    // / Endpoints, subscriptions, pending acks and queued emits, which
+    // / outlive sessions.
+    private final SocketIOCore mCore;
+
+    // / The root endpoint, holding the subscriptions made on the connection.
+    private final SocketIOCore.Namespace mRoot;
+
+    // / Heartbeat period in milliseconds, half the handshake's heartbeat timeout.
+    private volatile int mHeartbeat = 10000;
+
+    // / Close timeout of the handshake in milliseconds, bounds a poll.
+    private volatile int mCloseTimeout = 60000;
+
+    // / Pending heartbeat task on the shared scheduler, or null, guarded by
+    // / a lock rather than a monitor, as disconnect() may be called from
+    // / handlers on virtual threads, which a monitor pins to their carrier.
+    private ScheduledFuture<?> mHeartbeatTask;
+    private final ReentrantLock mHeartbeatLock = new ReentrantLock();
+
+    // / The session handler provided to connect().
+    private SocketIO.ConnectionHandler mSessionHandler;
+
+    // / The SocketIO options provided to connect().
+    private SocketIOOptions mSocketIOOptions;
+
+    // / The WebSockets URI provided to connect().
+    private String mSocketIOUri;
+
+    // / True once disconnect() was called, no reconnect is attempted then.
+    private boolean mDisconnecting;
+
+    // / Reconnect attempts made since the connection was last open.
+    private int mReconnectAttempts;
+
+    // / True while the next reconnect attempt waits out its backoff.
+    private boolean mReconnectPending;
+
+    // / RNG for reconnect delay jitter.
     private final Random mRng = new Random();
 
-    // / Set of chars to be used for IDs.
-    private static final char[] mBase64Chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
-            .toCharArray();
+    // / Handler on the main looper, runs reconnect attempts and callbacks
+    // / outside of a session.
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // / The group whose writer looper we share, or null for a writer thread
+    // / of our own.
+    private final SocketIOConnectionGroup mGroup;
+
+    // / The xhr-polling session, or null when on WebSockets.
+    private volatile SocketIOPolling mPolling;
+
+    // / True when the server offers xhr-polling and a WebSocket could not be
+    // / opened, so reconnects poll instead.
+    private boolean mPreferPolling;
+
+    // / True once the WebSocket of the current attempt opened.
+    private boolean mWebSocketOpened;
+
+    // / True once the Engine.IO session of the current attempt joined the
+    // / root endpoint.
+    private boolean mEngineJoined;
+
+    // / The handshake under way, or null.
+    private SocketIOConnector mConnector;
+
+    // / Connect phase timings of the current attempt, System.nanoTime()
+    // / based: its start, the phases done, and the start of the upgrade.
+    private long mConnectStart;
+    private long mDnsNanos;
+    private long mHandshakeNanos;
+    private long mUpgradeStart;
+
+    // / Handshake HTTP client, shared so handshakes reuse kept-alive
+    // / connections, and the connections holding it; the last to let go
+    // / closes it.
+    private static AndroidHttpClient sHttpClient;
+    private static int sHttpClientHolders;
+
+    // / Whether this connection holds the HTTP client, from connect() until
+    // / disconnect() or it stops reconnecting.
+    private boolean mHoldsHttpClient;
+
+    private final Runnable mReconnectTask = new Runnable() {
+        public void run() {
+            mReconnectPending = false;
+            if (!mDisconnecting) {
+                if (DEBUG) Log.d(TAG, "reconnect attempt " + mReconnectAttempts);
+                startConnector();
+            }
+        }
+    };
+
+    public SocketIOConnection() {
+        this(null);
+    }
 
-    
-    private static int mHeartbeat = 10000;
-    
     /**
-     * Event subscription metadata.
+     * Create a connection sharing the threads of a group.
+     *
+     * @param group
+     *            The group, or null for threads of its own.
      */
-    public static class EventMeta {
+    public SocketIOConnection(SocketIOConnectionGroup group) {
+        super();
 
-        EventMeta(EventHandler handler, Class<?> resultClass) {
-            this.mEventHandler = handler;
-            this.mEventClass = resultClass;
-            this.mEventTypeRef = null;
-        }
+        mGroup = group;
 
-        EventMeta(EventHandler handler, TypeReference<?> resultTypeReference) {
-            this.mEventHandler = handler;
-            this.mEventClass = null;
-            this.mEventTypeRef = resultTypeReference;
-        }
+        mCore = new SocketIOCore(new SocketIOCore.Transport() {
 
-        // / Event handler to be fired on.
-        public EventHandler mEventHandler;
+            public void send(Object message) {
+                final SocketIOPolling polling = mPolling;
+                if (polling != null) {
+                    polling.send(message);
+                } else {
+                    mWriter.forward(message);
+                }
+            }
 
-        // / Desired event type or null.
-        public Class<?> mEventClass;
+            public void post(Runnable task) {
+                // the master handler only exists once connect() was called
+                final Handler master = mMasterHandler;
+                (master != null ? master : mMainHandler).post(task);
+            }
 
-        // / Desired event type or null.
-        public TypeReference<?> mEventTypeRef;
-    }
+            public long now() {
+                return SystemClock.elapsedRealtime();
+            }
 
-    // / Metadata about active event subscriptions.
-    private final ConcurrentHashMap<String, EventMeta> mEvents = new ConcurrentHashMap<String, EventMeta>();
+            public boolean isCallbackThread() {
+                final Handler master = mMasterHandler;
+                final Looper looper = master != null ? master.getLooper() : Looper.getMainLooper();
+                return looper.getThread() == Thread.currentThread();
+            }
 
-    // / The session handler provided to connect().
-    private SocketIO.ConnectionHandler mSessionHandler;
+            public void disconnect() {
+                SocketIOConnection.this.disconnect();
+            }
+        });
+        mRoot = mCore.mRoot;
+    }
 
     /**
      * Create the connection transmitting leg writer.
@@ -79,8 +185,21 @@ public class SocketIOConnection extends WebSocketConnection implements SocketIO
     protected void createWriter() {
 
         mWriterThread = new HandlerThread("SocketIOWriter");
-        mWriterThread.start();
-        mWriter = new SocketIOWriter(mWriterThread.getLooper(), mMasterHandler, mTransportChannel, mOptions);
+        final Looper looper;
+        if (mGroup != null) {
+            // WebSocketConnection joins the writer thread on close; ours is
+            // never started so the join returns, the group's keeps running
+            looper = mGroup.getWriterLooper();
+        } else {
+            mWriterThread.start();
+            looper = mWriterThread.getLooper();
+        }
+        mWriter = mWriterHandler = new SocketIOWriter(looper, mMasterHandler, mTransportChannel, mSocketIOOptions,
+                mCore.mJsonMapper, mCore.mOutboundQueue, mGroup != null);
+        mWriterHandler.setMetrics(mCore.mMetrics);
+        if (mGroup != null) {
+            mGroup.watch(mWriterHandler);
+        }
 
         if (DEBUG)
             Log.d(TAG, "writer created and started");
@@ -90,7 +209,7 @@ public class SocketIOConnection extends WebSocketConnection implements SocketIO
      * Create the connection receiving leg reader.
      */
     protected void createReader() {
-        mReader = new SocketIOReader(mEvents, mMasterHandler, mTransportChannel, mOptions, "SocketIOReader");
+        mReader = new SocketIOReader(mCore, mMasterHandler, mTransportChannel, mSocketIOOptions, "SocketIOReader");
         mReader.start();
 
         if (DEBUG)
@@ -117,10 +236,31 @@ public class SocketIOConnection extends WebSocketConnection implements SocketIO
     @Override
     public void connect(String wsUri, SocketIO.ConnectionHandler sessionHandler, SocketIOOptions options) {
 
+       stopHeartbeat();
+       mMainHandler.removeCallbacks(mReconnectTask);
+       mReconnectPending = false;
+       mReconnectAttempts = 0;
+       mDisconnecting = false;
+       mPreferPolling = false;
        mSessionHandler = sessionHandler;
-       mEvents.clear();
-       
-       new SocketIOConnector(wsUri, sessionHandler, options).execute();
+       mSocketIOOptions = new SocketIOOptions(options);
+       // SocketIOReader decodes raw text only
+       mSocketIOOptions.setReceiveTextMessagesRaw(true);
+       mSocketIOUri = wsUri;
+
+       // subscriptions and endpoints are kept, they apply to the new session as well
+       mCore.configure(mSocketIOOptions);
+
+       holdHttpClient();
+       startConnector();
+    }
+
+    private void startConnector() {
+       if (mConnector != null) {
+          mConnector.abort();
+       }
+       mConnector = new SocketIOConnector(mSocketIOUri, mSessionHandler, mSocketIOOptions);
+       mConnector.execute();
     }
     
     
@@ -131,6 +271,13 @@ public class SocketIOConnection extends WebSocketConnection implements SocketIO
         String wsUri;
         SocketIO.ConnectionHandler sessionHandler;
         SocketIOOptions options;
+        // xhr-polling session URL, when the session is to poll
+        String pollingUri;
+        // the handshake request, aborted on cancel
+        volatile HttpPost post;
+        long startTime = System.nanoTime();
+        long dnsNanos;
+        long handshakeNanos;
 
         public SocketIOConnector(String wsUri, SocketIO.ConnectionHandler sessionHandler, SocketIOOptions options){
             super();
@@ -144,19 +291,58 @@ public class SocketIOConnection extends WebSocketConnection implements SocketIO
 
             Thread.currentThread().setName("SocketIOConnector");
 
+            // resolve once, the handshake and the WebSocket then find the
+            // address in the platform's cache, fast connects in ours
+            try {
+                final String host = new URI(wsUri).getHost();
+                if (!options.getFastConnect() || SocketIODns.cached(host) == null) {
+                    final long start = System.nanoTime();
+                    SocketIODns.resolve(host, false);
+                    dnsNanos = System.nanoTime() - start;
+                }
+            } catch (UnknownHostException e) {
+                return "cannot resolve host (" + e.getMessage() + ")";
+            } catch (Exception e) {
+                return e.getMessage();
+            }
+
+            final int protocol = options.getProtocol();
+            if (protocol != SocketIOOptions.PROTOCOL_0_9) {
+                // Engine.IO sessions start on WebSockets, without a handshake
+                wsUri = wsUri + "/socket.io/?EIO=" + protocol + "&transport=websocket";
+                return null;
+            }
+
             try {
-                HttpPost post = new HttpPost("http"+wsUri.substring(2) + "/socket.io/1/");
+                post = new HttpPost("http"+wsUri.substring(2) + "/socket.io/1/");
+                HttpConnectionParams.setConnectionTimeout(post.getParams(), options.getSocketConnectTimeout());
+                HttpConnectionParams.setSoTimeout(post.getParams(), options.getSocketConnectTimeout());
+                if (isCancelled()) {
+                    return "cancelled";
+                }
+                final long start = System.nanoTime();
                 String line = downloadUriAsString(post);
+                handshakeNanos = System.nanoTime() - start;
                 String[] parts = line.split(":");
                 String sessionId = parts[0];
                 String heartbeat = parts[1];
                 if (!"".equals(heartbeat))
                     mHeartbeat = Integer.parseInt(heartbeat) / 2 * 1000;
+                String closeTimeout = parts[2];
+                if (!"".equals(closeTimeout))
+                    mCloseTimeout = Integer.parseInt(closeTimeout) * 1000;
                 String transportsLine = parts[3];
                 String[] transports = transportsLine.split(",");
                 HashSet<String> set = new HashSet<String>(Arrays.asList(transports));
-                if (!set.contains("websocket"))
+                boolean polling = set.contains("xhr-polling");
+                if (!polling) {
+                    mPreferPolling = false;
+                }
+                if (polling && (mPreferPolling || !set.contains("websocket"))) {
+                    pollingUri = "http" + wsUri.substring(2) + "/socket.io/1/xhr-polling/" + sessionId;
+                } else if (!set.contains("websocket")) {
                     throw new Exception("websocket not supported");
+                }
 
                 wsUri = wsUri+"/socket.io/1/websocket/" + sessionId;
                 
@@ -166,10 +352,33 @@ public class SocketIOConnection extends WebSocketConnection implements SocketIO
             }
         }
 
+        /**
+         * Cancel the handshake, closing its connection if it is under way.
+         */
+        void abort() {
+            cancel(false);
+            final HttpPost request = post;
+            if (request != null) {
+                request.abort();
+            }
+        }
+
         @Override
         protected void onPostExecute(String reason) {
+            if (mConnector == this) {
+                mConnector = null;
+            }
+            mConnectStart = startTime;
+            mDnsNanos = dnsNanos;
+            mHandshakeNanos = handshakeNanos;
             if (reason != null) {
-                mSessionHandler.onClose(WebSocketConnectionHandler.CLOSE_CANNOT_CONNECT, reason);
+                if (!scheduleReconnect()) {
+                    mSessionHandler.onClose(WebSocketConnectionHandler.CLOSE_CANNOT_CONNECT, reason);
+                }
+            } else if (mDisconnecting) {
+                if (DEBUG) Log.d(TAG, "disconnected during handshake");
+            } else if (pollingUri != null) {
+                resumePolling(pollingUri);
             } else {
                 resumeConnect(wsUri, sessionHandler, options);
             }
@@ -177,14 +386,61 @@ public class SocketIOConnection extends WebSocketConnection implements SocketIO
 
     }
     
+    private void holdHttpClient() {
+        if (!mHoldsHttpClient) {
+            mHoldsHttpClient = true;
+            synchronized (SocketIOConnection.class) {
+                ++sHttpClientHolders;
+            }
+        }
+    }
+
+    private void releaseHttpClient() {
+        if (!mHoldsHttpClient) {
+            return;
+        }
+        mHoldsHttpClient = false;
+        final AndroidHttpClient client;
+        synchronized (SocketIOConnection.class) {
+            if (--sHttpClientHolders > 0) {
+                return;
+            }
+            client = sHttpClient;
+            sHttpClient = null;
+        }
+        if (client != null) {
+            if (DEBUG) Log.d(TAG, "closing handshake HTTP client");
+            client.close();
+        }
+    }
+
+    private static synchronized AndroidHttpClient httpClient() throws IOException {
+        if (sHttpClientHolders == 0) {
+            // the connection was disconnected during the handshake
+            throw new IOException("handshake HTTP client closed");
+        }
+        if (sHttpClient == null) {
+            sHttpClient = AndroidHttpClient.newInstance("IOBahn");
+        }
+        return sHttpClient;
+    }
+
+    /**
+     * Whether the shared handshake HTTP client is open, for tests.
+     */
+    static synchronized boolean isHttpClientOpen() {
+        return sHttpClient != null;
+    }
+
     private static String downloadUriAsString(final HttpUriRequest req) throws IOException {
-        AndroidHttpClient client = AndroidHttpClient.newInstance("IOBahn");
+        HttpResponse res = httpClient().execute(req);
+        InputStream content = res.getEntity().getContent();
         try {
-            HttpResponse res = client.execute(req);
-            return readToEnd(res.getEntity().getContent());
+            // reading to the end hands the connection back for reuse
+            return readToEnd(content);
         }
         finally {
-            client.close();
+            content.close();
         }
     }
     
@@ -206,11 +462,25 @@ public class SocketIOConnection extends WebSocketConnection implements SocketIO
     
     private void resumeConnect(String wsUri, SocketIO.ConnectionHandler sessionHandler, SocketIOOptions options){
         
+        mWebSocketOpened = false;
+        mEngineJoined = false;
+        mUpgradeStart = System.nanoTime();
+        final boolean engine = options.getProtocol() != SocketIOOptions.PROTOCOL_0_9;
         try {
-            connect(wsUri, new String[] {"socket.io"}, new WebSocketConnectionHandler() {
+            connect(wsUri, engine ? null : new String[] {"socket.io"}, new WebSocketConnectionHandler() {
 
                @Override
                public void onOpen() {
+                  mWebSocketOpened = true;
+                  mReconnectAttempts = 0;
+                  if (engine) {
+                     // open once the root endpoint is joined, emits sent
+                     // before would be dropped by the server
+                     return;
+                  }
+                  onConnected(true);
+                  // join the endpoints ahead of the emits queued for them
+                  mCore.onOpen(mWriterHandler);
                   if (mSessionHandler != null) {
                      mSessionHandler.onOpen();
                   } else {
@@ -220,6 +490,15 @@ public class SocketIOConnection extends WebSocketConnection implements SocketIO
 
                @Override
                public void onClose(int code, String reason) {
+                  mCore.onClose(true);
+                  stopHeartbeat();
+                  if (!mWebSocketOpened) {
+                     // WebSockets may be blocked on the way, poll on the next attempt
+                     mPreferPolling = true;
+                  }
+                  if (scheduleReconnect()) {
+                     return;
+                  }
                   if (mSessionHandler != null) {
                      mSessionHandler.onClose(code, reason);
                   } else {
@@ -231,6 +510,10 @@ public class SocketIOConnection extends WebSocketConnection implements SocketIO
 
          } catch (WebSocketException e) {
 
+            mPreferPolling = true;
+            if (scheduleReconnect()) {
+               return;
+            }
             if (mSessionHandler != null) {
                mSessionHandler.onClose(WebSocketConnectionHandler.CLOSE_CANNOT_CONNECT, "cannot connect (" + e.toString() + ")");
             } else {
@@ -238,6 +521,109 @@ public class SocketIOConnection extends WebSocketConnection implements SocketIO
             }
          }
     }
+
+    /**
+     * Open a session over xhr-polling, for servers not offering WebSockets,
+     * or when they could not be opened.
+     */
+    private void resumePolling(String pollingUri) {
+
+        if (DEBUG) Log.d(TAG, "polling " + pollingUri);
+
+        // a poll outlasts the server's polling duration, well below the close timeout
+        final SocketIOPolling polling = new SocketIOPolling(mCore, mSocketIOOptions, pollingUri, mCloseTimeout,
+                new SocketIOPolling.Listener() {
+
+            public void onMessage(final SocketIOPolling session, final Object message) {
+                mMainHandler.post(new Runnable() {
+                    public void run() {
+                        if (mPolling == session) {
+                            processAppMessage(message);
+                        }
+                    }
+                });
+            }
+
+            public void onClose(final SocketIOPolling session, final int code, final String reason) {
+                mMainHandler.post(new Runnable() {
+                    public void run() {
+                        if (mPolling != session) {
+                            return;
+                        }
+                        mPolling = null;
+                        mCore.onClose(true);
+                        if (scheduleReconnect()) {
+                            return;
+                        }
+                        if (mSessionHandler != null) {
+                            mSessionHandler.onClose(code, reason);
+                        } else {
+                            if (DEBUG) Log.d(TAG, "could not call onClose() .. handler already NULL");
+                        }
+                    }
+                });
+            }
+        });
+        mPolling = polling;
+        polling.start();
+        onConnected(false);
+
+        mReconnectAttempts = 0;
+        // join the endpoints ahead of the emits queued for them
+        mCore.onOpen(polling);
+        if (mSessionHandler != null) {
+            mSessionHandler.onOpen();
+        } else {
+            if (DEBUG) Log.d(TAG, "could not call onOpen() .. handler already NULL");
+        }
+    }
+
+    /**
+     * Report where the time to open went. TCP connects are not told apart,
+     * they count in the handshake and the upgrade.
+     *
+     * @param upgraded
+     *            True when the session was upgraded to WebSockets, false when
+     *            it polls.
+     */
+    private void onConnected(boolean upgraded) {
+        final SocketIOMetrics metrics = mCore.mMetrics;
+        if (metrics != null) {
+            final long now = System.nanoTime();
+            metrics.onConnected(now - mConnectStart, mDnsNanos, 0, mHandshakeNanos, upgraded ? now - mUpgradeStart : 0);
+        }
+    }
+
+    /**
+     * Schedule the next reconnect attempt when the reconnect policy allows
+     * it. The delay is drawn uniformly between 0 and the exponential backoff
+     * ceiling (full jitter), so that clients dropped together do not come
+     * back together.
+     * 
+     * @return True, iff an attempt was scheduled.
+     */
+    private boolean scheduleReconnect() {
+        final SocketIOOptions options = mSocketIOOptions;
+        if (mDisconnecting || options == null || !options.getReconnect()) {
+            releaseHttpClient();
+            return false;
+        }
+        final int maxAttempts = options.getMaxReconnectAttempts();
+        if (maxAttempts > 0 && mReconnectAttempts >= maxAttempts) {
+            if (DEBUG) Log.d(TAG, "giving up after " + mReconnectAttempts + " reconnect attempts");
+            releaseHttpClient();
+            return false;
+        }
+
+        final long ceiling = Math.min(options.getReconnectMaxDelay(),
+                (long) options.getReconnectBaseDelay() << Math.min(mReconnectAttempts, 30));
+        final long delay = (long) (mRng.nextDouble() * ceiling);
+        ++mReconnectAttempts;
+
+        mReconnectPending = true;
+        mMainHandler.postDelayed(mReconnectTask, delay);
+        return true;
+    }
     
     
     /**
@@ -245,26 +631,49 @@ public class SocketIOConnection extends WebSocketConnection implements SocketIO
      */
     protected void processAppMessage(Object message) {
 
-       if (message instanceof SocketIOMessage.Event) {
+       if (mCore.processMessage(message)) {
+
+          return;
 
-           SocketIOMessage.Event event = (SocketIOMessage.Event) message;
+       } else if (message instanceof SocketIOMessage.Open) {
+
+           // the Engine.IO handshake: v4 clients join the root endpoint
+           // themselves, v3 servers join them
+           mHeartbeat = ((SocketIOMessage.Open) message).mPingInterval;
+           if (mSocketIOOptions.getProtocol() == SocketIOOptions.PROTOCOL_ENGINE_IO_4) {
+              mWriter.forward(new SocketIOMessage.Connect("", ""));
+           }
 
-          if (mEvents.containsKey(event.mName)) {
-             EventMeta meta = mEvents.get(event.mName);
-             if (meta != null && meta.mEventHandler != null) {
-                meta.mEventHandler.onEvent(event.mEvent);
-                SocketIOMessage.ACK ack = new SocketIOMessage.ACK(event.mId,null);
-                mWriter.forward(ack);
-             }
-          }
        } else if (message instanceof SocketIOMessage.Connect) {
 
            SocketIOMessage.Connect connect = (SocketIOMessage.Connect) message;
-           startHertbeat();
+           final int protocol = mSocketIOOptions.getProtocol();
+           if (connect.mEndpoint.length() == 0 && protocol != SocketIOOptions.PROTOCOL_0_9 && !mEngineJoined) {
+              mEngineJoined = true;
+              onConnected(true);
+              // join the endpoints ahead of the emits queued for them
+              mCore.onOpen(mWriterHandler);
+              if (mSessionHandler != null) {
+                 mSessionHandler.onOpen();
+              }
+           }
+           // endpoint joins are confirmed with a connect of their own,
+           // polling clients and Engine.IO v4 ones leave heartbeats to the
+           // server
+           if (connect.mEndpoint.length() == 0 && mPolling == null
+                 && protocol != SocketIOOptions.PROTOCOL_ENGINE_IO_4) {
+              startHeartbeat();
+           }
            
           if (DEBUG) 
               Log.d(TAG, "Endpoint: " + connect.mEndpoint + " Params: " + connect.mParams);
 
+       } else if (message instanceof SocketIOMessage.Error) {
+
+          SocketIOMessage.Error error = (SocketIOMessage.Error) message;
+          if (DEBUG)
+              Log.d(TAG, "Error, endpoint: " + error.mEndpoint + " reason: " + error.mReason + " advice: " + error.mAdvice);
+
        } else {
 
           if (DEBUG) Log.d(TAG, "unknown SocketIO message in SocketIOConnection.processAppMessage");
@@ -273,52 +682,216 @@ public class SocketIOConnection extends WebSocketConnection implements SocketIO
     
     @Override
     public void disconnect() {
+        mDisconnecting = true;
+        mMainHandler.removeCallbacks(mReconnectTask);
+        // acks of the session, or of emits queued for the next one, will not
+        // be answered now
+        mCore.onClose(true);
+        stopHeartbeat();
+        releaseHttpClient();
     	SocketIOMessage.Disconnect dis = new SocketIOMessage.Disconnect(null);
-        mWriter.forward(dis);
+        final SocketIOPolling polling = mPolling;
+        if (polling != null) {
+            mPolling = null;
+            polling.send(dis);
+            polling.close();
+            if (mSessionHandler != null) {
+                mSessionHandler.onClose(WebSocketConnectionHandler.CLOSE_NORMAL, null);
+            }
+            return;
+        }
+        final SocketIOConnector connector = mConnector;
+        if (connector != null) {
+            // still shaking hands, there is no WebSocket to close yet
+            mConnector = null;
+            connector.abort();
+            if (mSessionHandler != null) {
+                mSessionHandler.onClose(WebSocketConnectionHandler.CLOSE_NORMAL, "disconnected");
+            }
+            return;
+        }
+        if (mReconnectPending) {
+            // waiting out the backoff, the WebSocket is already closed and
+            // the handler has not heard of it
+            mReconnectPending = false;
+            if (mSessionHandler != null) {
+                mSessionHandler.onClose(WebSocketConnectionHandler.CLOSE_NORMAL, "disconnected");
+            }
+            return;
+        }
+        if (mWriter != null) {
+            mWriter.forward(dis);
+        }
         super.disconnect();
     }
+
+    @Override
+    public boolean isConnected() {
+        final SocketIOPolling polling = mPolling;
+        return polling != null ? polling.isOpen() : super.isConnected();
+    }
     
     @Override
     public void disconnect(String endpoint) {
-    	SocketIOMessage.Disconnect dis = new SocketIOMessage.Disconnect(endpoint);
-        mWriter.forward(dis);
+        mCore.disconnect(endpoint);
     }
-    
-    private void on(String name, EventMeta meta) {
-        mEvents.put(name, meta);
+
+    @Override
+    public SocketIONamespace of(String endpoint) {
+        return mCore.of(endpoint);
+    }
+
+    @Override
+    public String getEndpoint() {
+        return mRoot.getEndpoint();
     }
-    
     
     @Override
     public void on(String name, Class<?> eventType, EventHandler eventHandler) {
-        on(name, new EventMeta(eventHandler, eventType));
+        mRoot.on(name, eventType, eventHandler);
     }
 
     @Override
     public void on(String name, TypeReference<?> eventType, EventHandler eventHandler) {
-        on(name, new EventMeta(eventHandler, eventType));
+        mRoot.on(name, eventType, eventHandler);
+    }
+
+    @Override
+    public void on(String name, Class<?> eventType, EventHandler eventHandler, Executor dispatcher) {
+        mRoot.on(name, eventType, eventHandler, dispatcher);
+    }
+
+    @Override
+    public void on(String name, TypeReference<?> eventType, EventHandler eventHandler, Executor dispatcher) {
+        mRoot.on(name, eventType, eventHandler, dispatcher);
+    }
+
+    @Override
+    public void on(String name, Class<?> eventType, EventHandler eventHandler, Executor dispatcher, int delivery) {
+        mRoot.on(name, eventType, eventHandler, dispatcher, delivery);
+    }
+
+    @Override
+    public void on(String name, TypeReference<?> eventType, EventHandler eventHandler, Executor dispatcher,
+            int delivery) {
+        mRoot.on(name, eventType, eventHandler, dispatcher, delivery);
+    }
+
+    @Override
+    public void on(String name, Class<?> eventType, AckEventHandler eventHandler) {
+        mRoot.on(name, eventType, eventHandler);
+    }
+
+    @Override
+    public void on(String name, TypeReference<?> eventType, AckEventHandler eventHandler) {
+        mRoot.on(name, eventType, eventHandler);
+    }
+
+    @Override
+    public void on(String name, Class<?>[] argTypes, MultiArgEventHandler eventHandler) {
+        mRoot.on(name, argTypes, eventHandler);
+    }
+
+    @Override
+    public void on(String name, TypeReference<?>[] argTypes, MultiArgEventHandler eventHandler) {
+        mRoot.on(name, argTypes, eventHandler);
+    }
+
+    @Override
+    public void on(String name, RawEventHandler eventHandler) {
+        mRoot.on(name, eventHandler);
+    }
+
+    @Override
+    public void on(String name, RawEventHandler eventHandler, Executor dispatcher) {
+        mRoot.on(name, eventHandler, dispatcher);
+    }
+
+    @Override
+    public void on(String name, RawEventHandler eventHandler, Executor dispatcher, int delivery) {
+        mRoot.on(name, eventHandler, dispatcher, delivery);
+    }
+
+    @Override
+    public void off(String name, Object eventHandler) {
+        mRoot.off(name, eventHandler);
+    }
+
+    @Override
+    public void setMetrics(SocketIOMetrics metrics) {
+        mCore.mMetrics = metrics;
+        final SocketIOWriter writer = mWriterHandler;
+        if (writer != null) {
+            writer.setMetrics(metrics);
+        }
+    }
+
+    @Override
+    public long getConflatedEventCount() {
+        return mCore.getConflatedEventCount();
+    }
+
+    @Override
+    public long getDroppedEventCount() {
+        return mCore.getDroppedEventCount();
     }
 
     @Override
     public void emit(String name, Object event) {
-        SocketIOMessage.Emit msg = new SocketIOMessage.Emit(name, event);
-        mWriter.forward(msg);
+        mRoot.emit(name, event);
+    }
+
+    /**
+     * Get the number of emitted events waiting to be written, including the
+     * ones emitted while disconnected.
+     * 
+     * @return The outbound queue depth.
+     */
+    public int getOutboundQueueSize() {
+        return mCore.mOutboundQueue.size();
     }
     
-    private void startHertbeat() {
-        new Thread() {
-            public void run() {
-                while (isConnected()) {
-                    try {
-                        Thread.sleep(mHeartbeat);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
+    @Override
+    public void emit(String name, Object event, AckHandler ackHandler, long timeout) {
+        mRoot.emit(name, event, ackHandler, timeout);
+    }
+
+    /**
+     * Schedule the heartbeats of this connection on the shared scheduler,
+     * replacing any previous schedule. A heartbeat is skipped when other
+     * outbound traffic already went out during the last period.
+     */
+    private void startHeartbeat() {
+        mHeartbeatLock.lock();
+        try {
+            SocketIOScheduler.cancel(mHeartbeatTask);
+
+            final int period = mHeartbeat;
+            final SocketIOWriter writer = mWriterHandler;
+            // Engine.IO servers only take pings as a sign of life
+            final boolean always = mSocketIOOptions.getProtocol() != SocketIOOptions.PROTOCOL_0_9;
+            mHeartbeatTask = SocketIOScheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    if (!isConnected()) {
+                        stopHeartbeat();
+                    } else if (always || SystemClock.elapsedRealtime() - writer.getLastSendTime() >= period) {
+                        writer.forward(new SocketIOMessage.Heartbeat());
                     }
-                    SocketIOMessage.Heartbeat hbeat = new SocketIOMessage.Heartbeat();
-                    mWriter.forward(hbeat);
                 }
-            };
-        }.start();
+            }, period);
+        } finally {
+            mHeartbeatLock.unlock();
+        }
+    }
+
+    private void stopHeartbeat() {
+        mHeartbeatLock.lock();
+        try {
+            SocketIOScheduler.cancel(mHeartbeatTask);
+            mHeartbeatTask = null;
+        } finally {
+            mHeartbeatLock.unlock();
+        }
     }
 
 }
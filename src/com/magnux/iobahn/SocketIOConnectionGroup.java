@@ -0,0 +1,132 @@
+package com.magnux.iobahn;
+
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Threads shared by the connections of an app keeping several of them open.
+ *
+ * <pre>
+ * SocketIOConnectionGroup group = new SocketIOConnectionGroup();
+ * SocketIO quotes = new SocketIOConnection(group);
+ * SocketIO chat = new SocketIOConnection(group);
+ * </pre>
+ *
+ * The group shares the writer side only: members write on one looper thread
+ * instead of a writer thread each, so ten members run eleven threads of
+ * their own rather than twenty. Each member still has its own reader thread,
+ * as reads block; on a JVM, SocketIONioConnection on a shared
+ * SocketIOEventLoop is the way to share reads too. Heartbeats and ack
+ * timeouts of every connection, grouped or not, run on a single process wide
+ * scheduler, reconnects on the main looper, and handshakes go through a
+ * shared HTTP client.
+ *
+ * <p>
+ * <b>Head-of-line blocking:</b> writes are blocking, and the members take
+ * turns on the one thread. A peer that stops reading fills its socket
+ * buffers, and the write to it then blocks every member's writes, heartbeats
+ * included, not only its own. A write taking longer than the write timeout
+ * (see {@link #setWriteTimeout(int)}, 10 seconds by default) closes that
+ * member's socket, so the others stall for at most that long and the member
+ * reconnects. Connections whose peers may stall for long should not share a
+ * group, or should use a write timeout close to the delay their neighbours
+ * can afford.
+ * </p>
+ */
+public class SocketIOConnectionGroup {
+
+    // / Default write timeout, in milliseconds.
+    public static final int DEFAULT_WRITE_TIMEOUT = 10000;
+
+    // / The writer looper thread of the members, started on first use.
+    private HandlerThread mWriterThread;
+
+    // / Longest a member may hold the writer thread, in milliseconds, 0 for
+    // / no limit.
+    private int mWriteTimeout = DEFAULT_WRITE_TIMEOUT;
+
+    // / Writers of the members, and the check of their writes, while any.
+    private final ArrayList<SocketIOWriter> mWriters = new ArrayList<SocketIOWriter>();
+    private ScheduledFuture<?> mWatchdog;
+
+    private final Runnable mWatchdogTask = new Runnable() {
+        public void run() {
+            checkWrites();
+        }
+    };
+
+    /**
+     * Get the looper members write on, starting its thread if needed.
+     */
+    synchronized Looper getWriterLooper() {
+        if (mWriterThread == null) {
+            mWriterThread = new HandlerThread("SocketIOGroupWriter");
+            mWriterThread.start();
+        }
+        return mWriterThread.getLooper();
+    }
+
+    /**
+     * Set the longest a member's write may block the writer thread before
+     * its socket is closed. Applies to the members already connected too.
+     *
+     * @param millis
+     *            The timeout in milliseconds, 0 to wait for ever.
+     */
+    public synchronized void setWriteTimeout(int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("write timeout must be >= 0");
+        }
+        mWriteTimeout = millis;
+        SocketIOScheduler.cancel(mWatchdog);
+        mWatchdog = null;
+        startWatchdog();
+    }
+
+    /**
+     * Watch the writes of a member's writer, until it quits.
+     */
+    synchronized void watch(SocketIOWriter writer) {
+        mWriters.add(writer);
+        startWatchdog();
+    }
+
+    private void startWatchdog() {
+        if (mWatchdog == null && mWriteTimeout > 0 && !mWriters.isEmpty()) {
+            // a stall is caught within a quarter of the timeout past it
+            mWatchdog = SocketIOScheduler.scheduleAtFixedRate(mWatchdogTask, Math.max(mWriteTimeout / 4, 10));
+        }
+    }
+
+    private synchronized void checkWrites() {
+        final long now = SystemClock.elapsedRealtime();
+        for (int i = mWriters.size() - 1; i >= 0; --i) {
+            final SocketIOWriter writer = mWriters.get(i);
+            if (writer.isQuit() || writer.abortStalledWrite(now, mWriteTimeout)) {
+                mWriters.remove(i);
+            }
+        }
+        if (mWriters.isEmpty()) {
+            SocketIOScheduler.cancel(mWatchdog);
+            mWatchdog = null;
+        }
+    }
+
+    /**
+     * Stop the writer thread. Members must be disconnected first, members
+     * connecting afterwards start a new one.
+     */
+    public synchronized void shutdown() {
+        if (mWriterThread != null) {
+            mWriterThread.quit();
+            mWriterThread = null;
+        }
+        mWriters.clear();
+        SocketIOScheduler.cancel(mWatchdog);
+        mWatchdog = null;
+    }
+}
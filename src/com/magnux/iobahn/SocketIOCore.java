@@ -0,0 +1,812 @@
+package com.magnux.iobahn;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.type.TypeReference;
+
+import com.magnux.iobahn.SocketIO.Ack;
+import com.magnux.iobahn.SocketIO.AckEventHandler;
+import com.magnux.iobahn.SocketIO.AckHandler;
+import com.magnux.iobahn.SocketIO.EventHandler;
+import com.magnux.iobahn.SocketIO.MultiArgEventHandler;
+import com.magnux.iobahn.SocketIO.RawEventHandler;
+
+/**
+ * Transport independent half of a SocketIO client: the endpoints and their
+ * event subscriptions, the acks pending for emitted events, the outbound
+ * queue and event dispatch. It outlives sessions, so subscriptions and
+ * queued emits carry over reconnects.
+ *
+ * Connections own a core and plug their transport in, see
+ * {@link SocketIOConnection} for Android and {@link SocketIONioConnection}
+ * for plain JVMs. Nothing here depends on Android.
+ */
+class SocketIOCore {
+
+    /**
+     * What the core needs from the transport of its connection.
+     */
+    interface Transport {
+
+        /**
+         * Send a SocketIO message on the current session.
+         */
+        void send(Object message);
+
+        /**
+         * Run a task on the thread connection callbacks run on.
+         */
+        void post(Runnable task);
+
+        /**
+         * Current time in milliseconds, on a monotonic clock.
+         */
+        long now();
+
+        /**
+         * Whether the calling thread is the one connection callbacks run on,
+         * which must never block.
+         */
+        boolean isCallbackThread();
+
+        /**
+         * Close the connection for good, as SocketIO.disconnect() does.
+         */
+        void disconnect();
+    }
+
+    // / Serial lanes of a wildcard subscription, striped by event name.
+    private static final int WILDCARD_LANES = 16;
+
+    // / Smallest document that makes a decoder resolve its deserializer.
+    private static final byte[] WARM_UP_DOCUMENT = { 'n', 'u', 'l', 'l' };
+
+    // / The transport of the owning connection.
+    private final Transport mTransport;
+
+    // / Jackson JSON-to-object mapper, shared by all event decoders.
+    final ObjectMapper mJsonMapper;
+
+    // / Emitted events waiting to be written.
+    final SocketIOOutboundQueue mOutboundQueue = new SocketIOOutboundQueue();
+
+    // / Acks pending for emitted events, by message id.
+    private final SocketIOAckTable mAcks;
+
+    // / Pending ack expiry task on the shared scheduler, or null, guarded by
+    // / a lock so emits from handlers on virtual threads do not pin them.
+    private ScheduledFuture<?> mAckTimeoutTask;
+    private final ReentrantLock mAckTimeoutLock = new ReentrantLock();
+
+    // / Handlers expired by the last ack expiry run, scheduler thread only.
+    private final ArrayList<AckHandler> mExpiredAcks = new ArrayList<AckHandler>();
+
+    /**
+     * Event subscription metadata.
+     */
+    public static class EventMeta {
+
+        EventMeta(EventHandler handler, Class<?> resultClass, ObjectReader eventReader) {
+            this.mEventHandler = handler;
+            this.mEventClass = resultClass;
+            this.mEventTypeRef = null;
+            this.mEventReader = eventReader;
+        }
+
+        EventMeta(EventHandler handler, TypeReference<?> resultTypeReference, ObjectReader eventReader) {
+            this.mEventHandler = handler;
+            this.mEventClass = null;
+            this.mEventTypeRef = resultTypeReference;
+            this.mEventReader = eventReader;
+        }
+
+        EventMeta(AckEventHandler handler, Class<?> resultClass, ObjectReader eventReader) {
+            this.mAckEventHandler = handler;
+            this.mEventClass = resultClass;
+            this.mEventReader = eventReader;
+        }
+
+        EventMeta(AckEventHandler handler, TypeReference<?> resultTypeReference, ObjectReader eventReader) {
+            this.mAckEventHandler = handler;
+            this.mEventTypeRef = resultTypeReference;
+            this.mEventReader = eventReader;
+        }
+
+        EventMeta(MultiArgEventHandler handler, ObjectReader[] argReaders) {
+            this.mMultiArgHandler = handler;
+            this.mArgReaders = argReaders;
+        }
+
+        EventMeta(RawEventHandler handler) {
+            this.mRawHandler = handler;
+        }
+
+        // / The name subscribed to, a prefix and '*' for wildcards.
+        public String mName;
+
+        // / Event handler to be fired on.
+        public EventHandler mEventHandler;
+
+        // / Event handler with ack data to be fired on.
+        public AckEventHandler mAckEventHandler;
+
+        // / Multi argument event handler to be fired on.
+        public MultiArgEventHandler mMultiArgHandler;
+
+        // / Raw event handler to be fired on, the event is not decoded.
+        public RawEventHandler mRawHandler;
+
+        // / Desired event type or null.
+        public Class<?> mEventClass;
+
+        // / Desired event type or null.
+        public TypeReference<?> mEventTypeRef;
+
+        // / Decoder bound to the desired event type.
+        public ObjectReader mEventReader;
+
+        // / Decoders bound to the desired argument types, or null.
+        public ObjectReader[] mArgReaders;
+
+        // / Dispatch target given on subscription, or null for the default
+        // / one of the options.
+        public Executor mDispatcher;
+
+        // / Single-slot mailbox when only the latest event is delivered, or
+        // / null to deliver every event.
+        SocketIOMailbox mMailbox;
+
+        // / Serial lanes on the dispatch target in use, and that target,
+        // / created by the reading thread on first use.
+        private volatile Executor[] mLanes;
+        private volatile Executor mLaneTarget;
+
+        /**
+         * Get the dispatch target of an event of the subscription.
+         *
+         * @param name
+         *            The name of the event.
+         * @param defaultDispatcher
+         *            The default target of the options, or null.
+         * @return The serial dispatch target, or null for the callback
+         *         thread.
+         */
+        Executor getDispatcher(String name, Executor defaultDispatcher) {
+            final Executor target = mDispatcher != null ? mDispatcher : defaultDispatcher;
+            if (target == null || SocketIOExecutors.isSerial(target)) {
+                return target;
+            }
+            Executor[] lanes = mLanes;
+            if (mLaneTarget != target) {
+                // the events of a conflating subscription go through its
+                // mailbox one at a time anyway
+                lanes = serialDispatchers(target,
+                        SocketIORoutes.isWildcard(mName) && mMailbox == null ? WILDCARD_LANES : 1);
+                mLanes = lanes;
+                mLaneTarget = target;
+            }
+            return lanes.length == 1 ? lanes[0] : lanes[(name.hashCode() & 0x7fffffff) % lanes.length];
+        }
+
+        Object getHandler() {
+            if (mEventHandler != null) {
+                return mEventHandler;
+            } else if (mAckEventHandler != null) {
+                return mAckEventHandler;
+            } else if (mMultiArgHandler != null) {
+                return mMultiArgHandler;
+            }
+            return mRawHandler;
+        }
+    }
+
+    /**
+     * An endpoint of the connection, with its own event subscriptions.
+     */
+    class Namespace implements SocketIONamespace {
+
+        // / The endpoint, like "/chat", or "" for the root.
+        final String mEndpoint;
+
+        // / Active event subscriptions in subscription order, guarded by this.
+        private final ArrayList<EventMeta> mSubscriptions = new ArrayList<EventMeta>();
+
+        // / Routing table compiled from mSubscriptions, replaced on every change
+        // / so the reader can use it without locking.
+        volatile SocketIORoutes mRoutes = SocketIORoutes.EMPTY;
+
+        Namespace(String endpoint) {
+            mEndpoint = endpoint;
+        }
+
+        @Override
+        public String getEndpoint() {
+            return mEndpoint;
+        }
+
+        @Override
+        public void disconnect() {
+            if (this == mRoot) {
+                mTransport.disconnect();
+            } else {
+                SocketIOCore.this.disconnect(mEndpoint);
+            }
+        }
+
+        private void on(String name, EventMeta meta) {
+            final SocketIOOptions options = mOptions;
+            if (options != null && options.getWarmUpDecoders()) {
+                if (meta.mArgReaders != null) {
+                    for (ObjectReader argReader : meta.mArgReaders) {
+                        warmUp(argReader);
+                    }
+                } else if (meta.mEventReader != null) {
+                    warmUp(meta.mEventReader);
+                }
+            }
+            meta.mName = name;
+
+            synchronized (this) {
+                // subscribing a handler again replaces its subscription
+                int i = indexOf(name, meta.getHandler());
+                if (i >= 0) {
+                    close(mSubscriptions.set(i, meta));
+                } else {
+                    mSubscriptions.add(meta);
+                }
+                mRoutes = new SocketIORoutes(mSubscriptions);
+            }
+        }
+
+        @Override
+        public synchronized void off(String name, Object handler) {
+            int i = indexOf(name, handler);
+            if (i >= 0) {
+                close(mSubscriptions.remove(i));
+                mRoutes = new SocketIORoutes(mSubscriptions);
+            }
+        }
+
+        synchronized void clear() {
+            for (EventMeta meta : mSubscriptions) {
+                close(meta);
+            }
+            mSubscriptions.clear();
+            mRoutes = SocketIORoutes.EMPTY;
+        }
+
+        private void close(EventMeta meta) {
+            if (meta.mMailbox != null) {
+                meta.mMailbox.close();
+            }
+        }
+
+        private int indexOf(String name, Object handler) {
+            for (int i = 0; i < mSubscriptions.size(); ++i) {
+                EventMeta meta = mSubscriptions.get(i);
+                if (meta.mName.equals(name) && meta.getHandler() == handler) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void on(String name, Class<?> eventType, EventHandler eventHandler) {
+            on(name, new EventMeta(eventHandler, eventType, mJsonMapper.reader(eventType)));
+        }
+
+        @Override
+        public void on(String name, TypeReference<?> eventType, EventHandler eventHandler) {
+            on(name, new EventMeta(eventHandler, eventType, mJsonMapper.reader(eventType)));
+        }
+
+        @Override
+        public void on(String name, Class<?> eventType, EventHandler eventHandler, Executor dispatcher) {
+            EventMeta meta = new EventMeta(eventHandler, eventType, mJsonMapper.reader(eventType));
+            meta.mDispatcher = dispatcher;
+            on(name, meta);
+        }
+
+        @Override
+        public void on(String name, TypeReference<?> eventType, EventHandler eventHandler, Executor dispatcher) {
+            EventMeta meta = new EventMeta(eventHandler, eventType, mJsonMapper.reader(eventType));
+            meta.mDispatcher = dispatcher;
+            on(name, meta);
+        }
+
+        @Override
+        public void on(String name, Class<?> eventType, EventHandler eventHandler, Executor dispatcher,
+                int delivery) {
+            EventMeta meta = new EventMeta(eventHandler, eventType, mJsonMapper.reader(eventType));
+            meta.mDispatcher = dispatcher;
+            meta.mMailbox = createMailbox(delivery);
+            on(name, meta);
+        }
+
+        @Override
+        public void on(String name, TypeReference<?> eventType, EventHandler eventHandler, Executor dispatcher,
+                int delivery) {
+            EventMeta meta = new EventMeta(eventHandler, eventType, mJsonMapper.reader(eventType));
+            meta.mDispatcher = dispatcher;
+            meta.mMailbox = createMailbox(delivery);
+            on(name, meta);
+        }
+
+        @Override
+        public void on(String name, Class<?> eventType, AckEventHandler eventHandler) {
+            on(name, new EventMeta(eventHandler, eventType, mJsonMapper.reader(eventType)));
+        }
+
+        @Override
+        public void on(String name, TypeReference<?> eventType, AckEventHandler eventHandler) {
+            on(name, new EventMeta(eventHandler, eventType, mJsonMapper.reader(eventType)));
+        }
+
+        @Override
+        public void on(String name, Class<?>[] argTypes, MultiArgEventHandler eventHandler) {
+            ObjectReader[] argReaders = new ObjectReader[argTypes.length];
+            for (int i = 0; i < argTypes.length; ++i) {
+                argReaders[i] = mJsonMapper.reader(argTypes[i]);
+            }
+            on(name, new EventMeta(eventHandler, argReaders));
+        }
+
+        @Override
+        public void on(String name, TypeReference<?>[] argTypes, MultiArgEventHandler eventHandler) {
+            ObjectReader[] argReaders = new ObjectReader[argTypes.length];
+            for (int i = 0; i < argTypes.length; ++i) {
+                argReaders[i] = mJsonMapper.reader(argTypes[i]);
+            }
+            on(name, new EventMeta(eventHandler, argReaders));
+        }
+
+        @Override
+        public void on(String name, RawEventHandler eventHandler) {
+            on(name, new EventMeta(eventHandler));
+        }
+
+        @Override
+        public void on(String name, RawEventHandler eventHandler, Executor dispatcher) {
+            EventMeta meta = new EventMeta(eventHandler);
+            meta.mDispatcher = dispatcher;
+            on(name, meta);
+        }
+
+        @Override
+        public void on(String name, RawEventHandler eventHandler, Executor dispatcher, int delivery) {
+            EventMeta meta = new EventMeta(eventHandler);
+            meta.mDispatcher = dispatcher;
+            meta.mMailbox = createMailbox(delivery);
+            on(name, meta);
+        }
+
+        @Override
+        public void emit(String name, Object event) {
+            SocketIOMessage.Emit msg = new SocketIOMessage.Emit(mEndpoint, name, event);
+            enqueue(msg);
+        }
+
+        @Override
+        public void emit(String name, Object event, AckHandler ackHandler, long timeout) {
+            int id = mAcks.add(ackHandler, mTransport.now(), timeout);
+            if (timeout > 0) {
+                startAckTimeouts();
+            }
+            SocketIOMessage.Emit msg = new SocketIOMessage.Emit(id, mEndpoint, name, event);
+            enqueue(msg);
+        }
+    }
+
+    // / Endpoints in use, the root endpoint being "".
+    final ConcurrentHashMap<String, Namespace> mNamespaces = new ConcurrentHashMap<String, Namespace>();
+
+    // / The root endpoint, holding the subscriptions made on the connection.
+    final Namespace mRoot;
+
+    // / True while a session is open, endpoints are joined on the spot then.
+    private volatile boolean mOpen;
+
+    // / The options given to the last connect(), or null.
+    private volatile SocketIOOptions mOptions;
+
+    // / Events of conflating subscriptions superseded by a newer one, and
+    // / events dropped with their subscription before being delivered.
+    private final AtomicLong mConflatedEvents = new AtomicLong();
+    private final AtomicLong mDroppedEvents = new AtomicLong();
+
+    // / Registered instrumentation, or null when nothing is measured.
+    volatile SocketIOMetrics mMetrics;
+
+    // / Time of the last server heartbeat of the session, or -1, used on
+    // / the callback thread only.
+    private long mLastHeartbeat = -1;
+
+    SocketIOCore(Transport transport) {
+        mTransport = transport;
+
+        mJsonMapper = new ObjectMapper();
+        mJsonMapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        // binds Engine.IO attachments to ByteBuffer and byte[] arguments
+        mJsonMapper.registerModule(SocketIOBinary.module());
+
+        mAcks = new SocketIOAckTable(transport.now());
+
+        mRoot = new Namespace("");
+        mNamespaces.put(mRoot.mEndpoint, mRoot);
+    }
+
+    /**
+     * Apply the options of a new connect(). Pending acks of the previous
+     * session are timed out, subscriptions and endpoints are kept, they apply
+     * to the new session as well.
+     */
+    void configure(SocketIOOptions options) {
+        mOptions = options;
+        mOutboundQueue.configure(options.getOutboundQueueSize(), options.getOutboundOverflowPolicy());
+        failPendingAcks();
+    }
+
+    /**
+     * A session opened: join the endpoints, then start writing the emits
+     * queued for them.
+     *
+     * @param consumer
+     *            What drains the outbound queue during the session.
+     */
+    void onOpen(SocketIOOutboundQueue.Consumer consumer) {
+        mLastHeartbeat = -1;
+        mOpen = true;
+        for (Namespace namespace : mNamespaces.values()) {
+            if (namespace != mRoot) {
+                mTransport.send(new SocketIOMessage.Connect(namespace.mEndpoint, ""));
+            }
+        }
+        mOutboundQueue.attach(consumer);
+    }
+
+    /**
+     * The session is gone, or going: emits wait for the next one, and
+     * pending acks can no longer be answered.
+     *
+     * @param failAcks
+     *            Whether to time out the pending acks now.
+     */
+    void onClose(boolean failAcks) {
+        mOpen = false;
+        mOutboundQueue.detach();
+        if (failAcks) {
+            failPendingAcks();
+        }
+    }
+
+    /**
+     * Whether a session is open.
+     */
+    boolean isOpen() {
+        return mOpen;
+    }
+
+    /**
+     * Handle a message the decoder delivered to the callback thread.
+     *
+     * @return True when handled, false for messages left to the transport
+     *         (connects, errors).
+     */
+    boolean processMessage(Object message) {
+
+        if (message instanceof SocketIOMessage.Event) {
+
+            dispatchEvent((SocketIOMessage.Event) message);
+            return true;
+
+        } else if (message instanceof SocketIOMessage.AckResult) {
+
+            SocketIOMessage.AckResult ack = (SocketIOMessage.AckResult) message;
+            final SocketIOMetrics metrics = mMetrics;
+            if (metrics != null) {
+                long added = mAcks.getAddTime(ack.mId);
+                if (added >= 0) {
+                    metrics.onAckRoundTrip(mTransport.now() - added);
+                }
+            }
+            // acks for unknown or expired message ids are dropped
+            AckHandler handler = mAcks.remove(ack.mId);
+            if (handler != null) {
+                handler.onAck(ack.mArgs);
+            }
+            return true;
+
+        } else if (message instanceof SocketIOMessage.Heartbeat) {
+
+            // answer server heartbeats right away, the server only clears its
+            // heartbeat timeout on a heartbeat packet
+            mTransport.send(new SocketIOMessage.Heartbeat());
+
+            final long now = mTransport.now();
+            final SocketIOMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.onHeartbeat(mLastHeartbeat < 0 ? -1 : now - mLastHeartbeat);
+            }
+            mLastHeartbeat = now;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Fire the handler of the subscription an event was routed to. Runs on
+     * the subscription's dispatch target, the callback thread by default.
+     */
+    void dispatchEvent(SocketIOMessage.Event event) {
+
+        final EventMeta meta = event.mMeta;
+
+        if (meta.mMailbox != null) {
+            // deliver whatever is the latest event by now
+            event = meta.mMailbox.take();
+            if (event == null) {
+                return;
+            }
+            if (meta.mMailbox.mLazy && meta.mRawHandler == null) {
+                try {
+                    event.mEvent = ((SocketIORawEvent) event.mEvent).read(meta.mEventReader);
+                } catch (IOException e) {
+                    // counted as dropped, there is nothing to deliver
+                    meta.mMailbox.dropped();
+                    return;
+                }
+            }
+        }
+
+        final SocketIOMetrics metrics = mMetrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
+
+        if (meta.mEventHandler != null) {
+            meta.mEventHandler.onEvent(event.mEvent);
+        } else if (meta.mAckEventHandler != null) {
+            meta.mAckEventHandler.onEvent(event.mEvent, event.mAck);
+        } else if (meta.mMultiArgHandler != null && event.mEvent instanceof Object[]) {
+            meta.mMultiArgHandler.onEvent((Object[]) event.mEvent);
+        } else if (meta.mRawHandler != null) {
+            meta.mRawHandler.onEvent((SocketIORawEvent) event.mEvent);
+        }
+
+        // events routed while metrics were off have no routing time
+        if (metrics != null && event.mRoutedNanos != 0) {
+            metrics.onEventDispatched(event.mEndpoint, event.mName, start - event.mRoutedNanos,
+                    System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Acknowledge a received event without data, called by the decoder.
+     */
+    void sendAck(String endpoint, String id) {
+        mTransport.send(new SocketIOMessage.ACK(endpoint, id, null));
+    }
+
+    /**
+     * Create the acknowledgement of a received event whose ack carries data,
+     * called by the decoder. It is shared by all subscriptions of the event,
+     * the first one to send it answers.
+     */
+    Ack createAck(String endpoint, String id) {
+        return new EventAck(endpoint, id);
+    }
+
+    /**
+     * Leave an endpoint, see SocketIO.disconnect(String).
+     */
+    void disconnect(String endpoint) {
+        final String key = endpointKey(endpoint);
+        if (key.length() == 0) {
+            mTransport.disconnect();
+            return;
+        }
+        Namespace namespace = mNamespaces.remove(key);
+        if (namespace != null) {
+            namespace.clear();
+        }
+        if (mOpen) {
+            mTransport.send(new SocketIOMessage.Disconnect(key));
+        }
+    }
+
+    /**
+     * Get the view of an endpoint, see SocketIO.of(String).
+     */
+    SocketIONamespace of(String endpoint) {
+        final String key = endpointKey(endpoint);
+        Namespace namespace = mNamespaces.get(key);
+        if (namespace == null) {
+            namespace = new Namespace(key);
+            Namespace existing = mNamespaces.putIfAbsent(key, namespace);
+            if (existing != null) {
+                return existing;
+            }
+            if (mOpen) {
+                mTransport.send(new SocketIOMessage.Connect(key, ""));
+            }
+        }
+        return namespace;
+    }
+
+    /**
+     * Endpoints go on the wire with a leading slash, the root one is empty.
+     */
+    private static String endpointKey(String endpoint) {
+        if (endpoint == null || endpoint.length() == 0 || "/".equals(endpoint)) {
+            return "";
+        }
+        return endpoint.charAt(0) == '/' ? endpoint : "/" + endpoint;
+    }
+
+    /**
+     * Each subscription gets serial lanes of its own on a shared executor, so
+     * events of one name are handled in order, and different names in
+     * parallel. Wildcard subscriptions, matching many names, get several
+     * lanes, the events of a name always taking the same one.
+     */
+    private static Executor[] serialDispatchers(Executor dispatcher, int count) {
+        final Executor[] lanes = new Executor[count];
+        for (int i = 0; i < count; ++i) {
+            lanes[i] = SocketIOExecutors.serial(dispatcher);
+        }
+        return lanes;
+    }
+
+    /**
+     * Create the mailbox of a subscription for its delivery mode.
+     *
+     * @return The mailbox, or null when every event is delivered.
+     */
+    private SocketIOMailbox createMailbox(int delivery) {
+        switch (delivery) {
+        case SocketIONamespace.DELIVER_LATEST:
+            return new SocketIOMailbox(false, mConflatedEvents, mDroppedEvents);
+        case SocketIONamespace.DELIVER_LATEST_LAZY:
+            return new SocketIOMailbox(true, mConflatedEvents, mDroppedEvents);
+        default:
+            return null;
+        }
+    }
+
+    long getConflatedEventCount() {
+        return mConflatedEvents.get();
+    }
+
+    long getDroppedEventCount() {
+        return mDroppedEvents.get();
+    }
+
+    /**
+     * Run a subscription decoder once, so that its deserializer gets created
+     * and cached before the first real event arrives. Decoders that cannot
+     * decode null are warmed up all the same.
+     */
+    private static void warmUp(ObjectReader eventReader) {
+        try {
+            eventReader.readValue(WARM_UP_DOCUMENT, 0, WARM_UP_DOCUMENT.length);
+        } catch (IOException e) {
+            // not warmed up, the first event resolves the deserializer then
+        }
+    }
+
+    /**
+     * Queue an emit, timing out the ack of an emit the outbound queue
+     * dropped.
+     */
+    private void enqueue(SocketIOMessage.Emit emit) {
+        onDropped(mOutboundQueue.offer(emit, !mTransport.isCallbackThread()));
+        final SocketIOMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onOutboundQueueDepth(mOutboundQueue.size());
+        }
+    }
+
+    private void onDropped(SocketIOMessage.Emit dropped) {
+        if (dropped == null || dropped.mId == 0) {
+            return;
+        }
+        final AckHandler handler = mAcks.remove(dropped.mId);
+        if (handler != null) {
+            mTransport.post(new Runnable() {
+                public void run() {
+                    handler.onTimeout();
+                }
+            });
+        }
+    }
+
+    /**
+     * Ack of a received event, sent with data by the application.
+     */
+    private class EventAck implements Ack {
+
+        private final String mEndpoint;
+        private final String mId;
+        private final AtomicBoolean mSent = new AtomicBoolean();
+
+        EventAck(String endpoint, String id) {
+            mEndpoint = endpoint;
+            mId = id;
+        }
+
+        public void send(Object... args) {
+            if (mSent.compareAndSet(false, true)) {
+                mTransport.send(new SocketIOMessage.ACK(mEndpoint, mId, args != null ? args : new Object[0]));
+            }
+        }
+    }
+
+    /**
+     * Expire timed out acks on the shared scheduler, for as long as acks with
+     * a timeout are pending. Timeouts are fired on the callback thread.
+     */
+    private void startAckTimeouts() {
+        mAckTimeoutLock.lock();
+        try {
+            if (mAckTimeoutTask != null) {
+                return;
+            }
+            mAckTimeoutTask = SocketIOScheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    mAcks.expire(mTransport.now(), mExpiredAcks);
+                    for (int i = 0; i < mExpiredAcks.size(); ++i) {
+                        final AckHandler handler = mExpiredAcks.get(i);
+                        mTransport.post(new Runnable() {
+                            public void run() {
+                                handler.onTimeout();
+                            }
+                        });
+                    }
+                    mExpiredAcks.clear();
+                    stopAckTimeoutsIfIdle();
+                }
+            }, SocketIOAckTable.TICK_MILLIS);
+        } finally {
+            mAckTimeoutLock.unlock();
+        }
+    }
+
+    private void stopAckTimeoutsIfIdle() {
+        mAckTimeoutLock.lock();
+        try {
+            if (mAcks.timedSize() == 0) {
+                SocketIOScheduler.cancel(mAckTimeoutTask);
+                mAckTimeoutTask = null;
+            }
+        } finally {
+            mAckTimeoutLock.unlock();
+        }
+    }
+
+    /**
+     * Time out every pending ack, they cannot be answered once the session is
+     * gone. Timeouts are fired on the callback thread, as other ack
+     * callbacks are, not within connect() or the close being handled.
+     */
+    void failPendingAcks() {
+        ArrayList<AckHandler> pending = new ArrayList<AckHandler>();
+        mAcks.clear(pending);
+        stopAckTimeoutsIfIdle();
+        for (final AckHandler handler : pending) {
+            mTransport.post(new Runnable() {
+                public void run() {
+                    handler.onTimeout();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,917 @@
+package com.magnux.iobahn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+
+import com.magnux.iobahn.SocketIO.Ack;
+import com.magnux.iobahn.SocketIOCore.EventMeta;
+import com.magnux.iobahn.SocketIOCore.Namespace;
+
+/**
+ * Decodes the SocketIO messages of received frames, and routes events to
+ * their subscriptions. Shared by the transports and free of Android
+ * dependencies, like {@link SocketIOEncoder}.
+ *
+ * Not thread safe, a decoder belongs to the thread reading its session.
+ */
+final class SocketIODecoder {
+
+    /**
+     * Where decoded messages go: the callback thread of the connection.
+     */
+    interface Sink {
+
+        /**
+         * Hand a message to the callback thread, to be processed by
+         * {@link SocketIOCore#processMessage(Object)}, or by the connection.
+         */
+        void deliver(Object message);
+    }
+
+    // / The core the events are routed and acknowledged through.
+    private final SocketIOCore mCore;
+
+    // / Where decoded messages go.
+    private final Sink mSink;
+
+    // / Jackson JSON-to-object mapper.
+    private final ObjectMapper mJsonMapper;
+
+    // / Jackson JSON factory from which we create parsers for text frames.
+    private final JsonFactory mJsonFactory;
+
+    // / Jackson factory of the codec, for binary frames, or null when the
+    // / codec uses text frames.
+    private final JsonFactory mBinaryFactory;
+
+    // / Dispatch target of the subscriptions made without one, or null.
+    private final Executor mDefaultDispatcher;
+
+    // / Factory of the frame being processed, and whether it is binary.
+    private JsonFactory mFrameFactory;
+    private boolean mBinaryFrame;
+
+    // / The protocol spoken, one of the SocketIOOptions.PROTOCOL_ constants.
+    private final int mProtocol;
+
+    // / Engine.IO binary packet waiting for its attachments: its type, id,
+    // / endpoint and the range of its JSON, and the attachments so far.
+    private int mPendingType;
+    private String mPendingId;
+    private String mPendingEndpoint;
+    private byte[] mPendingPayload;
+    private int mPendingFrom;
+    private int mPendingTo;
+    private ByteBuffer[] mAttachments;
+    private int mAttachmentCount;
+
+    // / True once views of the frame being decoded were handed out, or it
+    // / was kept for the attachments of its packet.
+    private boolean mRetained;
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    /**
+     * @param core
+     *            The core of the connection, holding the endpoint map.
+     * @param options
+     *            SocketIO options of the session, for the codec and the
+     *            protocol.
+     * @param sink
+     *            Where decoded messages go.
+     */
+    SocketIODecoder(SocketIOCore core, SocketIOOptions options, Sink sink) {
+        mCore = core;
+        mSink = sink;
+
+        mJsonMapper = core.mJsonMapper;
+        mJsonFactory = mJsonMapper.getJsonFactory();
+        mProtocol = options.getProtocol();
+        // Engine.IO binary frames are attachments, the codec is not used
+        mBinaryFactory = options.getCodec().isBinary() && mProtocol == SocketIOOptions.PROTOCOL_0_9
+                ? options.getCodec().getJsonFactory() : null;
+        mDefaultDispatcher = options.getDispatcher();
+    }
+
+    /**
+     * Whether binary frames are expected, as the codec is a binary one, or
+     * as Engine.IO attachments.
+     */
+    boolean isBinary() {
+        return mBinaryFactory != null || mProtocol != SocketIOOptions.PROTOCOL_0_9;
+    }
+
+    /**
+     * Decode a frame holding one message, or several in a multi-message
+     * payload. Views of the frame may outlive the call, raw events and
+     * attachments among them; the frame can only be reused when none was
+     * handed out.
+     * 
+     * @param payload
+     *            The frame payload.
+     * @param length
+     *            Length of the payload, from the start of the array.
+     * @param binary
+     *            Whether it came in a binary frame, which needs a binary
+     *            codec.
+     * @return True when views of the payload were kept, so it must not be
+     *         reused, even when an IOException was thrown.
+     * @throws IOException
+     *             When malformed. Messages decoded before that are
+     *             delivered.
+     */
+    boolean decode(byte[] payload, int length, boolean binary) throws IOException {
+
+        mRetained = false;
+
+        if (mProtocol != SocketIOOptions.PROTOCOL_0_9) {
+            decodeEngine(payload, length, binary);
+            return mRetained;
+        }
+        if (binary && mBinaryFactory == null) {
+            throw new IOException("received binary message");
+        }
+        mFrameFactory = binary ? mBinaryFactory : mJsonFactory;
+        mBinaryFrame = binary;
+
+        final SocketIOMetrics metrics = mCore.mMetrics;
+        if (metrics != null) {
+            metrics.onFrameReceived(length);
+        }
+
+        if (startsWithDelimiter(payload, 0, length)) {
+            processPayload(payload, 0, length);
+        } else {
+            processFrame(payload, 0, length);
+        }
+        return mRetained;
+    }
+
+    /**
+     * Whether views of the last frame decoded were kept, for callers seeing
+     * decode() throw.
+     */
+    boolean isRetained() {
+        return mRetained;
+    }
+
+    /**
+     * Splits a multi-message payload
+     * <code>\ufffd&lt;length&gt;\ufffd&lt;message&gt;...</code> in place and
+     * decodes each message. Lengths count UTF-16 code units, which are
+     * mapped back to octets while walking the UTF-8 bytes, or octets in
+     * binary frames.
+     */
+    private void processPayload(byte[] payload, int offset, int length) throws IOException {
+
+        final int end = offset + length;
+        final int delimiterLength = SocketIOMessage.PAYLOAD_DELIMITER.length;
+        int pos = offset;
+
+        while (pos < end) {
+            if (!startsWithDelimiter(payload, pos, end)) {
+                throw new IOException("malformed multi-message payload");
+            }
+            pos += delimiterLength;
+
+            int messageLength = 0;
+            while (pos < end && payload[pos] >= '0' && payload[pos] <= '9') {
+                messageLength = messageLength * 10 + (payload[pos] - '0');
+                ++pos;
+            }
+
+            if (!startsWithDelimiter(payload, pos, end)) {
+                throw new IOException("malformed multi-message payload");
+            }
+            pos += delimiterLength;
+
+            final int messageEnd = mBinaryFrame ? Math.min(pos + messageLength, end)
+                    : skipChars(payload, pos, end, messageLength);
+            processFrame(payload, pos, messageEnd - pos);
+            pos = messageEnd;
+        }
+    }
+
+    /**
+     * Decodes a single SocketIO message of the form
+     * <code>type:id:endpoint:data</code> directly from the raw frame bytes.
+     * The header is scanned in place, and the data part is handed to a
+     * Jackson parser over the same byte range, so no intermediate strings are
+     * created for the message or its arguments.
+     * 
+     * @param payload
+     *            The raw frame payload.
+     * @param offset
+     *            Start of the message within the payload.
+     * @param length
+     *            Length of the message in bytes.
+     */
+    private void processFrame(byte[] payload, int offset, int length) throws IOException {
+
+        final int end = offset + length;
+        final int typeEnd = indexOf(payload, offset, end, ':');
+        final int idEnd = indexOf(payload, typeEnd + 1, end, ':');
+        final int endpointEnd = indexOf(payload, idEnd + 1, end, ':');
+        final int dataStart = Math.min(endpointEnd + 1, end);
+
+        int msgType = parseType(payload, offset, typeEnd);
+
+        switch (msgType) {
+
+        case SocketIOMessage.MESSAGE_TYPE_CONNECT:
+            mSink.deliver(new SocketIOMessage.Connect(asciiString(payload, idEnd + 1, endpointEnd), ""));
+            break;
+        case SocketIOMessage.MESSAGE_TYPE_HEARTBEAT:
+            mSink.deliver(new SocketIOMessage.Heartbeat());
+            break;
+        case SocketIOMessage.MESSAGE_TYPE_TEXT_MESSAGE:
+        case SocketIOMessage.MESSAGE_TYPE_JSON_MESSAGE:
+            // plain messages are currently unsupported
+            break;
+        case SocketIOMessage.MESSAGE_TYPE_EVENT:
+            final String id = asciiString(payload, typeEnd + 1, idEnd);
+            final String endpoint = asciiString(payload, idEnd + 1, endpointEnd);
+            processEvent(id, endpoint, payload, dataStart, end - dataStart);
+            break;
+        case SocketIOMessage.MESSAGE_TYPE_ACK:
+            processAck(payload, dataStart, end);
+            break;
+        case SocketIOMessage.MESSAGE_TYPE_ERROR:
+            // the data is <reason>[+<advice>]
+            final int reasonEnd = indexOf(payload, dataStart, end, '+');
+            mSink.deliver(new SocketIOMessage.Error(asciiString(payload, idEnd + 1, endpointEnd),
+                    new String(payload, dataStart, reasonEnd - dataStart, "UTF8"),
+                    reasonEnd < end ? new String(payload, reasonEnd + 1, end - reasonEnd - 1, "UTF8") : ""));
+            break;
+        default:
+            // noops and unknown types
+            break;
+        }
+    }
+
+    /**
+     * Streams an event body <code>{"name":..,"args":[..]}</code> once,
+     * binding the arguments straight into the subscribed types. Events
+     * routed to several subscriptions are bound once per subscription, from
+     * the byte range of their arguments. Raw subscriptions get a view of
+     * that range, and so do lazy conflating ones, to decode on delivery.
+     */
+    private void processEvent(String id, String endpoint, byte[] payload, int offset, int length)
+            throws IOException {
+
+        final SocketIOMetrics metrics = mCore.mMetrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
+
+        final Namespace namespace = mCore.mNamespaces.get(endpoint);
+        if (namespace == null) {
+            if (metrics != null) {
+                metrics.onEventUnrouted(endpoint, null);
+            }
+            return;
+        }
+
+        JsonParser parser = mFrameFactory.createJsonParser(payload, offset, length);
+
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("event data is not an object", parser.getCurrentLocation());
+            }
+
+            String name = null;
+            EventMeta[] routes = null;
+            Object event = null;
+            boolean bound = false;
+
+            // byte range of the args array, for raw subscriptions, and to
+            // bind args arriving ahead of the name or routed to several
+            // subscriptions
+            byte[] argsBuffer = payload;
+            int argsStart = -1;
+            int argsEnd = -1;
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+
+                if ("name".equals(field)) {
+                    name = parser.getText();
+                    routes = namespace.mRoutes.match(name);
+                } else if ("args".equals(field)) {
+                    if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+                        throw new JsonParseException("event args is not an array", parser.getCurrentLocation());
+                    }
+                    if (routes != null && routes.length == 1 && !isUndecoded(routes[0])) {
+                        event = readArgs(parser, routes[0]);
+                        bound = true;
+                    } else if (mBinaryFrame) {
+                        // binary parsers do not tell byte offsets, the args
+                        // are copied out instead
+                        argsBuffer = copyArgs(parser);
+                        argsStart = 0;
+                        argsEnd = argsBuffer.length;
+                    } else {
+                        argsStart = lastByteOffset(parser);
+                        parser.skipChildren();
+                        argsEnd = lastByteOffset(parser) + 1;
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+
+            if (routes == null || routes.length == 0) {
+
+                if (metrics != null) {
+                    metrics.onEventUnrouted(endpoint, name);
+                }
+                return;
+            }
+
+            routeEvent(acknowledge(id, endpoint, routes), id, endpoint, name, routes, event, bound, argsBuffer,
+                    argsStart, argsEnd, argsBuffer != payload, null, start);
+
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Hands a parsed event to each subscription it was routed to: bound
+     * already when it has a single decoded subscription, bound from the
+     * byte range of its arguments otherwise, or as a view of that range.
+     */
+    private void routeEvent(Ack ack, String id, String endpoint, String name, EventMeta[] routes, Object event,
+            boolean bound, byte[] argsBuffer, int argsStart, int argsEnd, boolean copied, ByteBuffer[] attachments,
+            long start) throws IOException {
+
+        // measured when it was as the event started decoding
+        final SocketIOMetrics metrics = start != 0 ? mCore.mMetrics : null;
+
+        SocketIORawEvent raw = null;
+
+        // decoding time excludes handlers dispatched inline
+        long decodeNanos = 0;
+        long mark = start;
+
+        for (int i = 0; i < routes.length; ++i) {
+            final EventMeta meta = routes[i];
+            Object args = event;
+            if (isUndecoded(meta)) {
+                if (raw == null) {
+                    // a frame viewed is not reused, so the view outlives
+                    // the reader and can be handed to other threads
+                    raw = argsStart < 0 ? new SocketIORawEvent(mJsonMapper, endpoint, name)
+                            : new SocketIORawEvent(mJsonMapper, mFrameFactory, mBinaryFrame, endpoint, name,
+                                    argsBuffer, argsStart, argsEnd - argsStart, attachments);
+                    mRetained |= argsStart >= 0 && !copied;
+                }
+                args = raw;
+            } else if (!bound && argsStart >= 0) {
+                args = readArgs(argsBuffer, argsStart, argsEnd, meta, attachments);
+            }
+            final SocketIOMessage.Event message = new SocketIOMessage.Event(id, endpoint, name, args, meta,
+                    meta.mAckEventHandler != null ? ack : null);
+            if (metrics != null) {
+                message.mRoutedNanos = System.nanoTime();
+                decodeNanos += message.mRoutedNanos - mark;
+            }
+            // an event superseding a pending one goes with its delivery
+            if (meta.mMailbox == null || meta.mMailbox.offer(message)) {
+                dispatch(message);
+            }
+            if (metrics != null) {
+                mark = System.nanoTime();
+            }
+        }
+
+        if (metrics != null) {
+            metrics.onEventDecoded(endpoint, name, decodeNanos);
+        }
+    }
+
+    /**
+     * Hand a routed event to the dispatch target of its subscription.
+     */
+    private void dispatch(final SocketIOMessage.Event message) {
+        final Executor dispatcher = message.mMeta.getDispatcher(message.mName, mDefaultDispatcher);
+        if (dispatcher == null) {
+            mSink.deliver(message);
+        } else {
+            dispatcher.execute(new Runnable() {
+                public void run() {
+                    mCore.dispatchEvent(message);
+                }
+            });
+        }
+    }
+
+    /**
+     * Whether a subscription gets the event undecoded: raw subscriptions, and
+     * lazy conflating ones, which decode it only if it is delivered.
+     */
+    private static boolean isUndecoded(EventMeta meta) {
+        return meta.mRawHandler != null || (meta.mMailbox != null && meta.mMailbox.mLazy);
+    }
+
+    /**
+     * Answers the ack request of a routed event. An id asks for an ack, a
+     * '+' suffix asks for ack data, which the subscriptions taking an Ack
+     * send themselves. Other acks are sent right away, as the reference
+     * client does.
+     * 
+     * @return The ack to hand to the subscriptions, or null.
+     */
+    private Ack acknowledge(String id, String endpoint, EventMeta[] routes) {
+
+        if (id.length() == 0) {
+            return null;
+        }
+        if (id.charAt(id.length() - 1) == '+') {
+            final String ackId = id.substring(0, id.length() - 1);
+            for (int i = 0; i < routes.length; ++i) {
+                if (routes[i].mAckEventHandler != null) {
+                    return mCore.createAck(endpoint, ackId);
+                }
+            }
+            mCore.sendAck(endpoint, ackId);
+        } else {
+            mCore.sendAck(endpoint, id);
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the data of an ack <code>&lt;id&gt;[+&lt;args&gt;]</code>.
+     */
+    private void processAck(byte[] payload, int from, int to) throws IOException {
+
+        int id = 0;
+        int pos = from;
+        while (pos < to && payload[pos] >= '0' && payload[pos] <= '9') {
+            id = id * 10 + (payload[pos] - '0');
+            ++pos;
+        }
+        if (pos == from) {
+            // ack without message id
+            return;
+        }
+
+        Object[] args = NO_ARGS;
+        if (pos < to && payload[pos] == '+') {
+            ++pos;
+            JsonParser parser = mFrameFactory.createJsonParser(payload, pos, to - pos);
+            try {
+                // the mapper, binary factories come without a codec
+                Object[] decoded = mJsonMapper.readValue(parser, Object[].class);
+                if (decoded != null) {
+                    args = decoded;
+                }
+            } finally {
+                parser.close();
+            }
+        }
+
+        mSink.deliver(new SocketIOMessage.AckResult(id, args));
+    }
+
+    /**
+     * Binds the args array the parser is positioned on. Single argument
+     * subscriptions get the first element and skip the rest, multi argument
+     * subscriptions get an array with one element per declared type.
+     */
+    private Object readArgs(JsonParser parser, EventMeta meta) throws IOException {
+
+        if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+            throw new JsonParseException("event args is not an array", parser.getCurrentLocation());
+        }
+        return readElements(parser, meta);
+    }
+
+    /**
+     * Binds the array elements following the parser position, up to the end
+     * of the array, as {@link #readArgs(JsonParser, EventMeta)} does.
+     */
+    private Object readElements(JsonParser parser, EventMeta meta) throws IOException {
+
+        final ObjectReader[] argReaders = meta.mArgReaders;
+        final Object[] args = argReaders != null ? new Object[argReaders.length] : null;
+        Object event = null;
+
+        int i = 0;
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+            if (args != null && i < args.length) {
+                args[i] = argReaders[i].readValue(parser);
+            } else if (args == null && i == 0) {
+                event = meta.mEventReader.readValue(parser);
+            } else {
+                parser.skipChildren();
+            }
+            ++i;
+        }
+        return args != null ? args : event;
+    }
+
+    /**
+     * Same as {@link #readArgs(JsonParser, EventMeta)}, for args already
+     * skipped over, from their byte range.
+     */
+    private Object readArgs(byte[] payload, int from, int to, EventMeta meta, ByteBuffer[] attachments)
+            throws IOException {
+
+        JsonParser parser = SocketIOBinary.createParser(mJsonMapper, mFrameFactory, payload, from, to - from,
+                attachments);
+        try {
+            parser.nextToken();
+            return readArgs(parser, meta);
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Decodes an Engine.IO frame. Text frames hold a packet, binary frames
+     * the attachments of the last binary event or ack, as slices of the
+     * frame in Engine.IO v3, where they start with the packet type.
+     */
+    private void decodeEngine(byte[] payload, int length, boolean binary) throws IOException {
+
+        final SocketIOMetrics metrics = mCore.mMetrics;
+        if (metrics != null) {
+            metrics.onFrameReceived(length);
+        }
+
+        if (binary) {
+            if (mAttachments == null) {
+                throw new IOException("received attachment without packet");
+            }
+            final int offset = mProtocol == SocketIOOptions.PROTOCOL_ENGINE_IO_3 ? 1 : 0;
+            mAttachments[mAttachmentCount++] = ByteBuffer.wrap(payload, offset, length - offset).slice();
+            mRetained = true;
+            if (mAttachmentCount == mAttachments.length) {
+                final ByteBuffer[] attachments = mAttachments;
+                mAttachments = null;
+                processBinaryPacket(attachments);
+            }
+            return;
+        }
+
+        mFrameFactory = mJsonFactory;
+        mBinaryFrame = false;
+
+        if (length == 0) {
+            return;
+        }
+        switch (payload[0]) {
+        case SocketIOMessage.ENGINE_OPEN:
+            processOpen(payload, 1, length);
+            break;
+        case SocketIOMessage.ENGINE_PING:
+            // servers ping in Engine.IO v4, answered with a pong
+            mSink.deliver(new SocketIOMessage.Heartbeat());
+            break;
+        case SocketIOMessage.ENGINE_MESSAGE:
+            processPacket(payload, 1, length);
+            break;
+        default:
+            // pongs, noops, closes and upgrades
+            break;
+        }
+    }
+
+    /**
+     * Decodes the Engine.IO handshake <code>{"sid":..,"pingInterval":..,"pingTimeout":..}</code>.
+     */
+    private void processOpen(byte[] payload, int from, int to) throws IOException {
+
+        final JsonNode open = readTree(payload, from, to);
+        if (open == null || !open.isObject()) {
+            throw new IOException("malformed open packet");
+        }
+        mSink.deliver(new SocketIOMessage.Open(open.path("sid").asText(), open.path("pingInterval").asInt(25000),
+                open.path("pingTimeout").asInt(20000)));
+    }
+
+    /**
+     * Reads a JSON tree, closing its parser so its buffers are recycled for
+     * the next one, as Jackson does per thread.
+     */
+    private JsonNode readTree(byte[] payload, int from, int to) throws IOException {
+
+        final JsonParser parser = mJsonFactory.createJsonParser(payload, from, to - from);
+        try {
+            return mJsonMapper.readTree(parser);
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Decodes a SocketIO packet
+     * <code>&lt;type&gt;[&lt;attachments&gt;-][&lt;endpoint&gt;,][&lt;id&gt;][&lt;data&gt;]</code>.
+     * Binary packets wait for their attachments.
+     */
+    private void processPacket(byte[] payload, int from, int to) throws IOException {
+
+        if (from >= to) {
+            return;
+        }
+        final int type = payload[from] - '0';
+        int pos = from + 1;
+
+        int attachments = 0;
+        if (type == SocketIOMessage.PACKET_BINARY_EVENT || type == SocketIOMessage.PACKET_BINARY_ACK) {
+            final int dash = indexOf(payload, pos, to, '-');
+            attachments = parseType(payload, pos, dash);
+            if (dash == to || attachments < 0) {
+                throw new IOException("malformed binary packet");
+            }
+            pos = dash + 1;
+        }
+
+        String endpoint = "";
+        if (pos < to && payload[pos] == '/') {
+            final int comma = indexOf(payload, pos, to, ',');
+            endpoint = asciiString(payload, pos, comma);
+            pos = Math.min(comma + 1, to);
+        }
+
+        final int idStart = pos;
+        while (pos < to && payload[pos] >= '0' && payload[pos] <= '9') {
+            ++pos;
+        }
+        final String id = asciiString(payload, idStart, pos);
+
+        switch (type) {
+        case SocketIOMessage.PACKET_CONNECT:
+            mSink.deliver(new SocketIOMessage.Connect(endpoint, ""));
+            break;
+        case SocketIOMessage.PACKET_EVENT:
+            processEngineEvent(id, endpoint, payload, pos, to, null);
+            break;
+        case SocketIOMessage.PACKET_ACK:
+            processEngineAck(id, payload, pos, to, null);
+            break;
+        case SocketIOMessage.PACKET_ERROR:
+            // a string in v3, an object with a message in v4
+            final JsonNode error = pos < to ? readTree(payload, pos, to) : null;
+            mSink.deliver(new SocketIOMessage.Error(endpoint, error == null ? ""
+                    : error.isObject() ? error.path("message").asText() : error.asText(), ""));
+            break;
+        case SocketIOMessage.PACKET_BINARY_EVENT:
+        case SocketIOMessage.PACKET_BINARY_ACK:
+            mPendingType = type;
+            mPendingId = id;
+            mPendingEndpoint = endpoint;
+            mPendingPayload = payload;
+            mRetained = true;
+            mPendingFrom = pos;
+            mPendingTo = to;
+            mAttachments = new ByteBuffer[attachments];
+            mAttachmentCount = 0;
+            if (attachments == 0) {
+                mAttachments = null;
+                processBinaryPacket(new ByteBuffer[0]);
+            }
+            break;
+        default:
+            // disconnects and unknown types
+            break;
+        }
+    }
+
+    /**
+     * Decodes the binary packet whose attachments all came in.
+     */
+    private void processBinaryPacket(ByteBuffer[] attachments) throws IOException {
+
+        final byte[] payload = mPendingPayload;
+        mPendingPayload = null;
+        if (mPendingType == SocketIOMessage.PACKET_BINARY_EVENT) {
+            processEngineEvent(mPendingId, mPendingEndpoint, payload, mPendingFrom, mPendingTo, attachments);
+        } else {
+            processEngineAck(mPendingId, payload, mPendingFrom, mPendingTo, attachments);
+        }
+    }
+
+    /**
+     * Decodes an Engine.IO event <code>["name",args...]</code>. A single
+     * decoded subscription binds the arguments while streaming; others get
+     * them copied out into an array of their own, as they do not follow an
+     * opening bracket in the frame. Ids always ask for ack data.
+     */
+    private void processEngineEvent(String id, String endpoint, byte[] payload, int from, int to,
+            ByteBuffer[] attachments) throws IOException {
+
+        final SocketIOMetrics metrics = mCore.mMetrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
+
+        final Namespace namespace = mCore.mNamespaces.get(endpoint);
+        if (namespace == null) {
+            if (metrics != null) {
+                metrics.onEventUnrouted(endpoint, null);
+            }
+            return;
+        }
+
+        JsonParser parser = mJsonFactory.createJsonParser(payload, from, to - from);
+
+        try {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new JsonParseException("event data is not an array", parser.getCurrentLocation());
+            }
+            if (parser.nextToken() != JsonToken.VALUE_STRING) {
+                throw new JsonParseException("event name is not a string", parser.getCurrentLocation());
+            }
+            final String name = parser.getText();
+            final EventMeta[] routes = namespace.mRoutes.match(name);
+
+            if (routes == null || routes.length == 0) {
+                if (metrics != null) {
+                    metrics.onEventUnrouted(endpoint, name);
+                }
+                return;
+            }
+
+            final Ack ack = acknowledge(id.length() > 0 ? id + "+" : id, endpoint, routes);
+
+            if (attachments == null && routes.length == 1 && !isUndecoded(routes[0])) {
+                routeEvent(ack, id, endpoint, name, routes, readElements(parser, routes[0]), true, null, -1, -1,
+                        false, null, start);
+            } else {
+                final byte[] args = copyElements(parser);
+                routeEvent(ack, id, endpoint, name, routes, null, false, args, 0, args.length, true, attachments,
+                        start);
+            }
+
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Decodes the data of an Engine.IO ack, an array of arguments.
+     */
+    private void processEngineAck(String id, byte[] payload, int from, int to, ByteBuffer[] attachments)
+            throws IOException {
+
+        if (id.length() == 0) {
+            // ack without message id
+            return;
+        }
+        int ackId = 0;
+        for (int i = 0; i < id.length(); ++i) {
+            ackId = ackId * 10 + (id.charAt(i) - '0');
+        }
+
+        Object[] args = NO_ARGS;
+        if (from < to) {
+            JsonParser parser = SocketIOBinary.createParser(mJsonMapper, mJsonFactory, payload, from, to - from,
+                    attachments);
+            try {
+                // the mapper, binary factories come without a codec
+                Object[] decoded = mJsonMapper.readValue(parser, Object[].class);
+                if (decoded != null) {
+                    args = decoded;
+                }
+            } finally {
+                parser.close();
+            }
+        }
+
+        mSink.deliver(new SocketIOMessage.AckResult(ackId, args));
+    }
+
+    /**
+     * Copies the array elements following the parser position into an array
+     * of their own.
+     */
+    private byte[] copyElements(JsonParser parser) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator generator = mJsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+        generator.writeStartArray();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+            generator.copyCurrentStructure(parser);
+        }
+        generator.writeEndArray();
+        generator.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Copies the args array the parser is positioned on into a buffer of
+     * its own, in the format of the frame.
+     */
+    private byte[] copyArgs(JsonParser parser) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator generator = mFrameFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+        generator.copyCurrentStructure(parser);
+        generator.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Position of the last byte the parser consumed, within the whole
+     * payload. Jackson 1.9 byte parsers report it as the location's char
+     * offset.
+     */
+    private static int lastByteOffset(JsonParser parser) {
+        return (int) parser.getCurrentLocation().getCharOffset();
+    }
+
+    /**
+     * Position of the first <code>c</code> in <code>[from, to)</code>, or
+     * <code>to</code> when there is none.
+     */
+    private static int indexOf(byte[] buf, int from, int to, char c) {
+        for (int i = from; i < to; ++i) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static boolean startsWithDelimiter(byte[] buf, int from, int to) {
+        final byte[] delimiter = SocketIOMessage.PAYLOAD_DELIMITER;
+        if (to - from < delimiter.length) {
+            return false;
+        }
+        for (int i = 0; i < delimiter.length; ++i) {
+            if (buf[from + i] != delimiter[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Position after <code>chars</code> UTF-16 code units of UTF-8 encoded
+     * text starting at <code>from</code>, capped at <code>to</code>.
+     */
+    private static int skipChars(byte[] buf, int from, int to, int chars) {
+        int i = from;
+        while (chars > 0 && i < to) {
+            int b = buf[i] & 0xff;
+            if (b < 0x80) {
+                i += 1;
+                chars -= 1;
+            } else if (b < 0xe0) {
+                i += 2;
+                chars -= 1;
+            } else if (b < 0xf0) {
+                i += 3;
+                chars -= 1;
+            } else {
+                i += 4;
+                chars -= 2;
+            }
+        }
+        return Math.min(i, to);
+    }
+
+    /**
+     * Parses the decimal message type, -1 when malformed.
+     */
+    private static int parseType(byte[] buf, int from, int to) {
+        if (from >= to) {
+            return -1;
+        }
+        int type = 0;
+        for (int i = from; i < to; ++i) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            type = type * 10 + digit;
+        }
+        return type;
+    }
+
+    /**
+     * Header fields (ids, endpoints) are plain ASCII; the empty field, by far
+     * the most common, does not allocate.
+     */
+    @SuppressWarnings("deprecation")
+    private static String asciiString(byte[] buf, int from, int to) {
+        if (from >= to) {
+            return "";
+        }
+        return new String(buf, 0, from, to - from);
+    }
+}
@@ -0,0 +1,173 @@
+package com.magnux.iobahn;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Process wide resolver of server addresses. Lookups block, so they run on
+ * daemon threads of their own, never on a loop or a caller's thread, and
+ * their results are kept for fast connects.
+ *
+ * Android free, like SocketIOCore and SocketIODecoder.
+ */
+final class SocketIODns {
+
+    /**
+     * Result of an asynchronous lookup, delivered on the executor given.
+     */
+    interface Callback {
+
+        /**
+         * @param address
+         *            The address, or null when the host could not be
+         *            resolved.
+         * @param nanos
+         *            Time the lookup took, 0 when the address was cached.
+         */
+        void onResolved(InetAddress address, long nanos);
+    }
+
+    // / How long a resolved address is reused by fast connects, in
+    // / milliseconds.
+    private static final long TTL = 60000;
+
+    // / Resolved addresses and the time they were resolved at, by host.
+    private static final HashMap<String, Entry> sCache = new HashMap<String, Entry>();
+
+    // / The lookup threads, created on first use.
+    private static ExecutorService sResolver;
+
+    private static final class Entry {
+        final InetAddress mAddress;
+        final long mTime;
+
+        Entry(InetAddress address, long time) {
+            mAddress = address;
+            mTime = time;
+        }
+    }
+
+    private SocketIODns() {
+    }
+
+    private static synchronized ExecutorService resolver() {
+        if (sResolver == null) {
+            sResolver = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SocketIOResolver");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sResolver;
+    }
+
+    /**
+     * Get the cached address of a host.
+     *
+     * @return The address, or null when none was resolved in the last TTL.
+     */
+    static InetAddress cached(String host) {
+        synchronized (sCache) {
+            final Entry entry = sCache.get(host);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.mTime > TTL * 1000000L) {
+                sCache.remove(host);
+                return null;
+            }
+            return entry.mAddress;
+        }
+    }
+
+    /**
+     * Resolve a host on the calling thread, and cache its address.
+     *
+     * @param host
+     *            The host name or address literal.
+     * @param useCache
+     *            True to take a cached address when there is one.
+     * @return The address.
+     * @throws UnknownHostException
+     *             When the host could not be resolved.
+     */
+    static InetAddress resolve(String host, boolean useCache) throws UnknownHostException {
+        if (useCache) {
+            final InetAddress cached = cached(host);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final InetAddress address = InetAddress.getByName(host);
+        synchronized (sCache) {
+            sCache.put(host, new Entry(address, System.nanoTime()));
+        }
+        return address;
+    }
+
+    /**
+     * Resolve a host on a lookup thread, and cache its address. A cached
+     * address is handed to the callback right away, on the calling thread.
+     *
+     * @param host
+     *            The host name or address literal.
+     * @param useCache
+     *            True to take a cached address when there is one.
+     * @param executor
+     *            Where the callback runs after a lookup.
+     * @param callback
+     *            The callback.
+     */
+    static void resolve(final String host, boolean useCache, final Executor executor, final Callback callback) {
+        if (useCache) {
+            final InetAddress cached = cached(host);
+            if (cached != null) {
+                callback.onResolved(cached, 0);
+                return;
+            }
+        }
+        resolver().execute(new Runnable() {
+            public void run() {
+                final long start = System.nanoTime();
+                InetAddress resolved;
+                try {
+                    resolved = resolve(host, false);
+                } catch (UnknownHostException e) {
+                    resolved = null;
+                }
+                final InetAddress address = resolved;
+                final long nanos = System.nanoTime() - start;
+                executor.execute(new Runnable() {
+                    public void run() {
+                        callback.onResolved(address, nanos);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Forget the address of a host that could not be connected to, so the
+     * next connect resolves it again.
+     *
+     * @param host
+     *            The host name or address literal.
+     * @param address
+     *            The address that failed; a newer one is kept.
+     */
+    static void invalidate(String host, InetAddress address) {
+        synchronized (sCache) {
+            final Entry entry = sCache.get(host);
+            if (entry != null && entry.mAddress.equals(address)) {
+                sCache.remove(host);
+            }
+        }
+    }
+}
@@ -0,0 +1,582 @@
+package com.magnux.iobahn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.ObjectCodec;
+import org.codehaus.jackson.impl.JsonWriteContext;
+import org.codehaus.jackson.impl.Utf8Generator;
+import org.codehaus.jackson.io.IOContext;
+import org.codehaus.jackson.map.BeanProperty;
+import org.codehaus.jackson.map.JsonMappingException;
+import org.codehaus.jackson.map.JsonSerializer;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.map.SerializerProvider;
+import org.codehaus.jackson.map.ser.BeanSerializerFactory;
+import org.codehaus.jackson.type.JavaType;
+import org.codehaus.jackson.util.BufferRecycler;
+
+import de.tavendo.autobahn.NoCopyByteArrayOutputStream;
+import de.tavendo.autobahn.WebSocketException;
+
+/**
+ * Encodes outgoing SocketIO messages into their wire form. It does not
+ * depend on Android, so encoding runs, and can be measured, on a plain JVM;
+ * the writer drives it from its looper thread. Not thread safe.
+ */
+final class SocketIOEncoder {
+
+    /**
+     * Pre-encoded constant frames, and frame prefixes.
+     */
+    private static final byte[] HEARTBEAT_FRAME = { '2', ':', ':' };
+    private static final byte[] DISCONNECT_FRAME = { '0', ':', ':' };
+    private static final byte[] CONNECT_FRAME = { '1', ':', ':' };
+    private static final byte[] ACK_FRAME_PREFIX = { '6', ':', ':' };
+
+    /**
+     * This is the Jackson factory of the codec we use to create generators.
+     */
+    private final JsonFactory mJsonFactory;
+
+    /**
+     * This is the Jackson mapper we serialize event objects with.
+     */
+    private final ObjectMapper mJsonMapper;
+
+    /**
+     * True when multi-message lengths count bytes, in binary frames.
+     */
+    private final boolean mBinary;
+
+    /**
+     * The protocol spoken, one of the SocketIOOptions.PROTOCOL_ constants.
+     */
+    private final int mProtocol;
+
+    /**
+     * Binary values of the last Engine.IO message, sent in frames of their
+     * own after it.
+     */
+    private final ArrayList<ByteBuffer> mAttachments = new ArrayList<ByteBuffer>();
+
+    /**
+     * This is where the JSON of a message with attachments moves while its
+     * header is rewritten.
+     */
+    private SocketIOPooledOutputStream mScratch;
+
+    /**
+     * The JSON generator, reused from message to message, created with the
+     * first one. Binary codecs get a generator per message instead.
+     */
+    private ReusableGenerator mGenerator;
+
+    /**
+     * Where the reused generator writes, pointed at the stream of the
+     * message being encoded.
+     */
+    private final Sink mSink = new Sink();
+
+    /**
+     * @param codec
+     *            The codec payloads are encoded with, JSON for Engine.IO
+     *            whatever is given.
+     * @param jsonMapper
+     *            The Jackson mapper event objects are serialized with.
+     * @param protocol
+     *            The protocol spoken, one of the SocketIOOptions.PROTOCOL_
+     *            constants.
+     */
+    SocketIOEncoder(SocketIOCodec codec, ObjectMapper jsonMapper, int protocol) {
+        mProtocol = protocol;
+        if (protocol == SocketIOOptions.PROTOCOL_0_9) {
+            mJsonFactory = codec.getJsonFactory();
+            mJsonMapper = jsonMapper;
+            mBinary = codec.isBinary();
+        } else {
+            // a mapper of our own, whose binary values become attachments
+            mJsonMapper = new ObjectMapper();
+            mJsonMapper.setSerializerFactory(new AttachmentSerializerFactory());
+            mJsonFactory = mJsonMapper.getJsonFactory();
+            mBinary = false;
+        }
+    }
+
+    /**
+     * Whether messages go in binary frames.
+     */
+    boolean isBinary() {
+        return mBinary;
+    }
+
+    /**
+     * Get the number of attachments of the last message encoded, to be sent
+     * right after it.
+     */
+    int getAttachmentCount() {
+        return mAttachments.size();
+    }
+
+    /**
+     * Get an attachment of the last message encoded. It wraps the array
+     * given to emit() when there is one, it is not a copy.
+     *
+     * @param index
+     *            The attachment number.
+     * @return The attachment, backed by an array.
+     */
+    ByteBuffer getAttachment(int index) {
+        return mAttachments.get(index);
+    }
+
+    /**
+     * Whether attachment frames start with the Engine.IO message type, as
+     * in Engine.IO v3.
+     */
+    boolean isAttachmentPrefixed() {
+        return mProtocol == SocketIOOptions.PROTOCOL_ENGINE_IO_3;
+    }
+
+    /**
+     * Serialize a SocketIO message.
+     * 
+     * @param msg
+     *            The message, as forwarded to the writer.
+     * @param out
+     *            Where the message goes, reset first.
+     */
+    void encode(Object msg, NoCopyByteArrayOutputStream out) throws WebSocketException, IOException {
+
+        out.reset();
+
+        if (mProtocol != SocketIOOptions.PROTOCOL_0_9) {
+            encodeEngine(msg, out);
+            return;
+        }
+
+        // constant frames are copied from their templates, no JSON involved
+        if (msg instanceof SocketIOMessage.Heartbeat) {
+
+            out.write(HEARTBEAT_FRAME);
+            return;
+
+        } else if (msg instanceof SocketIOMessage.Disconnect) {
+
+            SocketIOMessage.Disconnect dis = (SocketIOMessage.Disconnect) msg;
+
+            out.write(DISCONNECT_FRAME);
+            if (dis.mEndpoint != null) {
+                writeAscii(out, dis.mEndpoint);
+            }
+            return;
+
+        } else if (msg instanceof SocketIOMessage.Connect) {
+
+            out.write(CONNECT_FRAME);
+            writeAscii(out, ((SocketIOMessage.Connect) msg).mEndpoint);
+            return;
+
+        } else if (msg instanceof SocketIOMessage.ACK && ((SocketIOMessage.ACK) msg).mArgs == null) {
+
+            SocketIOMessage.ACK ack = (SocketIOMessage.ACK) msg;
+
+            out.write(ACK_FRAME_PREFIX);
+            writeAscii(out, ack.mEndpoint);
+            out.write(':');
+            writeAscii(out, ack.mId);
+            return;
+        }
+
+        // the header is ASCII whatever the codec, and is written ahead of
+        // the generator, as binary generators do not support raw output
+        if (msg instanceof SocketIOMessage.Emit) {
+
+            SocketIOMessage.Emit emit = (SocketIOMessage.Emit) msg;
+
+            out.write('5');
+            out.write(':');
+            if (emit.mId != 0) {
+                writeDecimal(out, emit.mId);
+                out.write('+');
+            }
+            out.write(':');
+            writeAscii(out, emit.mEndpoint);
+            out.write(':');
+
+        } else if (msg instanceof SocketIOMessage.ACK) {
+
+            SocketIOMessage.ACK ack = (SocketIOMessage.ACK) msg;
+
+            out.write(ACK_FRAME_PREFIX);
+            writeAscii(out, ack.mEndpoint);
+            out.write(':');
+            writeAscii(out, ack.mId);
+            out.write('+');
+
+        } else {
+
+            // this should not happen, but to be sure
+            throw new WebSocketException("invalid message received by SocketIOWriter");
+        }
+
+        JsonGenerator generator = generator(out);
+
+        try {
+
+            if (msg instanceof SocketIOMessage.Emit) {
+
+                SocketIOMessage.Emit emit = (SocketIOMessage.Emit) msg;
+
+                generator.writeStartObject();
+                generator.writeFieldName("name");
+                generator.writeString(emit.mName);
+                generator.writeFieldName("args");
+                generator.writeStartArray();
+                generator.writeObject(emit.mEvent);
+                generator.writeEndArray();
+                generator.writeEndObject();
+
+            } else if (msg instanceof SocketIOMessage.ACK) {
+
+                SocketIOMessage.ACK ack = (SocketIOMessage.ACK) msg;
+
+                generator.writeStartArray();
+                for (Object arg : ack.mArgs) {
+                    generator.writeObject(arg);
+                }
+                generator.writeEndArray();
+            }
+        } catch (JsonGenerationException e) {
+
+            // this may happen, and we need to wrap the error
+            throw new WebSocketException("JSON serialization error (" + e.toString() + ")");
+
+        } catch (JsonMappingException e) {
+
+            // this may happen, and we need to wrap the error
+            throw new WebSocketException("JSON serialization error (" + e.toString() + ")");
+        }
+
+        release(generator);
+    }
+
+    /**
+     * Serialize a SocketIO message as an Engine.IO message packet,
+     * <code>4&lt;type&gt;[&lt;attachments&gt;-][&lt;endpoint&gt;,][&lt;id&gt;][&lt;data&gt;]</code>.
+     * Heartbeats are Engine.IO pings in v3, where clients ping, and pongs in
+     * v4, where servers do.
+     */
+    private void encodeEngine(Object msg, NoCopyByteArrayOutputStream out) throws WebSocketException, IOException {
+
+        mAttachments.clear();
+
+        if (msg instanceof SocketIOMessage.Heartbeat) {
+            out.write(mProtocol == SocketIOOptions.PROTOCOL_ENGINE_IO_3 ? SocketIOMessage.ENGINE_PING
+                    : SocketIOMessage.ENGINE_PONG);
+            return;
+        }
+
+        out.write(SocketIOMessage.ENGINE_MESSAGE);
+
+        if (msg instanceof SocketIOMessage.Disconnect) {
+
+            out.write('0' + SocketIOMessage.PACKET_DISCONNECT);
+            writeNamespace(out, ((SocketIOMessage.Disconnect) msg).mEndpoint);
+            return;
+
+        } else if (msg instanceof SocketIOMessage.Connect) {
+
+            out.write('0' + SocketIOMessage.PACKET_CONNECT);
+            writeNamespace(out, ((SocketIOMessage.Connect) msg).mEndpoint);
+            return;
+
+        } else if (msg instanceof SocketIOMessage.Emit) {
+
+            SocketIOMessage.Emit emit = (SocketIOMessage.Emit) msg;
+
+            out.write('0' + SocketIOMessage.PACKET_EVENT);
+            writeNamespace(out, emit.mEndpoint);
+            if (emit.mId != 0) {
+                writeDecimal(out, emit.mId);
+            }
+
+        } else if (msg instanceof SocketIOMessage.ACK) {
+
+            SocketIOMessage.ACK ack = (SocketIOMessage.ACK) msg;
+
+            out.write('0' + SocketIOMessage.PACKET_ACK);
+            writeNamespace(out, ack.mEndpoint);
+            writeAscii(out, ack.mId);
+
+        } else {
+
+            // this should not happen, but to be sure
+            throw new WebSocketException("invalid message received by SocketIOWriter");
+        }
+
+        JsonGenerator generator = generator(out);
+
+        try {
+
+            generator.writeStartArray();
+            if (msg instanceof SocketIOMessage.Emit) {
+
+                SocketIOMessage.Emit emit = (SocketIOMessage.Emit) msg;
+
+                generator.writeString(emit.mName);
+                generator.writeObject(emit.mEvent);
+
+            } else {
+
+                SocketIOMessage.ACK ack = (SocketIOMessage.ACK) msg;
+
+                if (ack.mArgs != null) {
+                    for (Object arg : ack.mArgs) {
+                        generator.writeObject(arg);
+                    }
+                }
+            }
+            generator.writeEndArray();
+
+        } catch (JsonGenerationException e) {
+
+            throw new WebSocketException("JSON serialization error (" + e.toString() + ")");
+
+        } catch (JsonMappingException e) {
+
+            throw new WebSocketException("JSON serialization error (" + e.toString() + ")");
+        }
+
+        release(generator);
+
+        if (mAttachments.isEmpty()) {
+            return;
+        }
+
+        // the attachment count goes ahead of the JSON it was found in: move
+        // the JSON aside and write the binary packet header
+        if (mScratch == null) {
+            mScratch = new SocketIOPooledOutputStream();
+        }
+        mScratch.write(out.getByteArray(), 2, out.size() - 2);
+        final int type = out.getByteArray()[1] - '0';
+        out.reset();
+        out.write(SocketIOMessage.ENGINE_MESSAGE);
+        out.write('0' + (type == SocketIOMessage.PACKET_EVENT ? SocketIOMessage.PACKET_BINARY_EVENT
+                : SocketIOMessage.PACKET_BINARY_ACK));
+        writeDecimal(out, mAttachments.size());
+        out.write('-');
+        out.write(mScratch.getByteArray(), 0, mScratch.size());
+        mScratch.release();
+    }
+
+    /**
+     * Get a generator writing to a message stream. Generators of text codecs
+     * are reused, so their buffers are; creating one per message is what
+     * Jackson suggests, but costs its buffers and contexts every time.
+     */
+    private JsonGenerator generator(OutputStream out) throws IOException {
+
+        if (mBinary) {
+            final JsonGenerator generator = mJsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+            generator.setCodec(mJsonMapper);
+            return generator;
+        }
+
+        if (mGenerator == null) {
+            int features = 0;
+            for (JsonGenerator.Feature feature : JsonGenerator.Feature.values()) {
+                if (mJsonFactory.isEnabled(feature)) {
+                    features |= feature.getMask();
+                }
+            }
+            // the buffers are the generator's own, for as long as we live
+            final IOContext context = new IOContext(new BufferRecycler(), mSink, false);
+            context.setEncoding(JsonEncoding.UTF8);
+            mGenerator = new ReusableGenerator(context, features, mJsonMapper, mSink);
+            if (mJsonFactory.getCharacterEscapes() != null) {
+                mGenerator.setCharacterEscapes(mJsonFactory.getCharacterEscapes());
+            }
+        }
+
+        mSink.mOut = out;
+        mGenerator.reset();
+        return mGenerator;
+    }
+
+    /**
+     * Flush a generator into its message stream, and close it unless it is
+     * reused.
+     */
+    private void release(JsonGenerator generator) throws IOException {
+
+        // make sure the JSON generator has spit out everything
+        generator.flush();
+
+        if (generator != mGenerator) {
+            // cleanup generators resources
+            generator.close();
+        }
+        mSink.mOut = null;
+    }
+
+    /**
+     * Writes a non-root endpoint with the comma ending it.
+     */
+    private static void writeNamespace(NoCopyByteArrayOutputStream out, String endpoint) {
+        if (endpoint != null && endpoint.length() > 0 && !"/".equals(endpoint)) {
+            writeAscii(out, endpoint);
+            out.write(',');
+        }
+    }
+
+    /**
+     * Serializes byte[] and ByteBuffer values as attachments. Jackson binds
+     * byte[] to its base64 serializer ahead of the ones modules add, hence a
+     * factory rather than a module.
+     */
+    private final class AttachmentSerializerFactory extends BeanSerializerFactory {
+
+        private final AttachmentSerializer mSerializer = new AttachmentSerializer();
+
+        AttachmentSerializerFactory() {
+            super(null);
+        }
+
+        @Override
+        public JsonSerializer<Object> createSerializer(SerializationConfig config, JavaType type, BeanProperty property)
+                throws JsonMappingException {
+            final Class<?> raw = type.getRawClass();
+            if (raw == byte[].class || ByteBuffer.class.isAssignableFrom(raw)) {
+                return mSerializer;
+            }
+            return super.createSerializer(config, type, property);
+        }
+    }
+
+    /**
+     * Writes a placeholder for a binary value, and keeps the value as an
+     * attachment. Arrays are wrapped, not copied; so are ByteBuffers backed
+     * by one, only direct buffers are copied out.
+     */
+    private final class AttachmentSerializer extends JsonSerializer<Object> {
+
+        @Override
+        public void serialize(Object value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+            generator.writeBooleanField(SocketIOBinary.PLACEHOLDER, true);
+            generator.writeNumberField(SocketIOBinary.NUM, mAttachments.size());
+            generator.writeEndObject();
+
+            if (value instanceof byte[]) {
+                mAttachments.add(ByteBuffer.wrap((byte[]) value));
+            } else {
+                final ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+                if (buffer.hasArray()) {
+                    mAttachments.add(buffer);
+                } else {
+                    final byte[] copy = new byte[buffer.remaining()];
+                    buffer.get(copy);
+                    mAttachments.add(ByteBuffer.wrap(copy));
+                }
+            }
+        }
+    }
+
+    /**
+     * Append an encoded message to a batch, framed as
+     * <code>\ufffd&lt;length&gt;\ufffd&lt;message&gt;</code>.
+     * 
+     * @param payload
+     *            The encoded message.
+     * @param size
+     *            The length of the encoded message.
+     * @param batch
+     *            The batch appended to.
+     * @return The length of the framing header written ahead of the message.
+     */
+    int appendFramed(byte[] payload, int size, NoCopyByteArrayOutputStream batch) throws IOException {
+        final int start = batch.size();
+        batch.write(SocketIOMessage.PAYLOAD_DELIMITER);
+        writeDecimal(batch, mBinary ? size : utf16Length(payload, 0, size));
+        batch.write(SocketIOMessage.PAYLOAD_DELIMITER);
+        final int header = batch.size() - start;
+        batch.write(payload, 0, size);
+        return header;
+    }
+
+    private static void writeAscii(NoCopyByteArrayOutputStream out, String value) {
+        for (int i = 0; i < value.length(); ++i) {
+            out.write(value.charAt(i));
+        }
+    }
+
+    /**
+     * Message lengths in the multi-message framing count UTF-16 code units,
+     * not octets.
+     */
+    private static int utf16Length(byte[] buf, int from, int to) {
+        int length = 0;
+        for (int i = from; i < to; ++i) {
+            int b = buf[i] & 0xff;
+            if ((b & 0xc0) != 0x80) {
+                length += b >= 0xf0 ? 2 : 1;
+            }
+        }
+        return length;
+    }
+
+    private static void writeDecimal(NoCopyByteArrayOutputStream out, int value) {
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.write('0' + value / divisor % 10);
+        }
+    }
+
+
+    /**
+     * UTF-8 generator started over for every message: a new root context,
+     * so no separator is written ahead of the next root value, and an empty
+     * buffer, dropping whatever a failed message left in it.
+     */
+    private static final class ReusableGenerator extends Utf8Generator {
+
+        ReusableGenerator(IOContext context, int features, ObjectCodec codec, OutputStream out) {
+            super(context, features, codec, out);
+        }
+
+        void reset() {
+            _writeContext = JsonWriteContext.createRootContext();
+            _outputTail = 0;
+        }
+    }
+
+    /**
+     * Stream forwarding to the message stream of the moment.
+     */
+    private static final class Sink extends OutputStream {
+
+        OutputStream mOut;
+
+        @Override
+        public void write(int b) throws IOException {
+            mOut.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mOut.write(b, off, len);
+        }
+    }
+}
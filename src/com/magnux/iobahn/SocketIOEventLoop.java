@@ -0,0 +1,303 @@
+package com.magnux.iobahn;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector thread multiplexing the sockets of many
+ * {@link SocketIONioConnection}s. Socket I/O, timers and the tasks given to
+ * it all run on its single thread, so connections sharing a loop need no
+ * locking, and the thread count does not grow with the connection count.
+ *
+ * A loop is also an executor, so it can be the dispatch target of event
+ * subscriptions. Handlers run on it must be quick, as they hold back every
+ * socket of the loop.
+ */
+public final class SocketIOEventLoop implements Executor {
+
+    /**
+     * Readiness callback of a channel registered on the loop.
+     */
+    interface Selectable {
+
+        /**
+         * The channel is ready for some of the operations it is interested
+         * in. Runs on the loop thread, and handles its own I/O errors.
+         */
+        void onReady(SelectionKey key);
+    }
+
+    /**
+     * A task scheduled on the loop, which can be cancelled until it runs.
+     */
+    public static final class Timer implements Comparable<Timer> {
+
+        private final Runnable mTask;
+        private final long mDeadline;
+        private volatile boolean mCancelled;
+
+        // / Scheduling order, set once queued on the loop thread.
+        private long mSequence;
+
+        private Timer(Runnable task, long deadline) {
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        /**
+         * Cancel the task, it does not run if it did not start yet.
+         */
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        public int compareTo(Timer other) {
+            if (mDeadline != other.mDeadline) {
+                return mDeadline < other.mDeadline ? -1 : 1;
+            }
+            // tasks due at the same time run in scheduling order
+            return mSequence < other.mSequence ? -1 : mSequence == other.mSequence ? 0 : 1;
+        }
+    }
+
+    // / Shared loops, one per processor, created on first use.
+    private static SocketIOEventLoop[] sShared;
+
+    // / Next shared loop handed out.
+    private static final AtomicInteger sNextShared = new AtomicInteger();
+
+    private final Selector mSelector;
+    private final Thread mThread;
+
+    // / Tasks given from any thread, run in order.
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+
+    // / Pending timers, loop thread only.
+    private final PriorityQueue<Timer> mTimers = new PriorityQueue<Timer>();
+    private long mTimerSequence;
+
+    // / True while a wakeup of the selector is pending, so a burst of tasks
+    // / wakes it up once.
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+
+    private volatile boolean mShutdown;
+
+    /**
+     * Create and start a loop on its own daemon thread.
+     *
+     * @param name
+     *            The thread name.
+     * @throws IOException
+     *             When no selector can be opened.
+     */
+    public SocketIOEventLoop(String name) throws IOException {
+        mSelector = Selector.open();
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Get one of the process wide loops, one per processor. Loops are handed
+     * out in turn, so connections spread evenly over them.
+     *
+     * @return A shared loop.
+     */
+    public static SocketIOEventLoop next() {
+        final SocketIOEventLoop[] shared = shared();
+        return shared[(sNextShared.getAndIncrement() & Integer.MAX_VALUE) % shared.length];
+    }
+
+    private static synchronized SocketIOEventLoop[] shared() {
+        if (sShared == null) {
+            final SocketIOEventLoop[] shared = new SocketIOEventLoop[Runtime.getRuntime().availableProcessors()];
+            for (int i = 0; i < shared.length; ++i) {
+                try {
+                    shared[i] = new SocketIOEventLoop("SocketIOEventLoop-" + i);
+                } catch (IOException e) {
+                    throw new IllegalStateException("could not open selector (" + e.toString() + ")");
+                }
+            }
+            sShared = shared;
+        }
+        return sShared;
+    }
+
+    /**
+     * Run a task on the loop thread, after the tasks given before it.
+     *
+     * @param task
+     *            The task to run.
+     */
+    public void execute(Runnable task) {
+        mTasks.add(task);
+        if (Thread.currentThread() != mThread && mWakeupPending.compareAndSet(false, true)) {
+            mSelector.wakeup();
+        }
+    }
+
+    /**
+     * Run a task on the loop thread once a delay has passed.
+     *
+     * @param task
+     *            The task to run.
+     * @param delayMillis
+     *            The delay in milliseconds.
+     * @return The handle to cancel the task with.
+     */
+    public Timer schedule(Runnable task, long delayMillis) {
+        final Timer timer = new Timer(task, System.nanoTime() + delayMillis * 1000000L);
+        if (inEventLoop()) {
+            addTimer(timer);
+        } else {
+            execute(new Runnable() {
+                public void run() {
+                    addTimer(timer);
+                }
+            });
+        }
+        return timer;
+    }
+
+    /**
+     * Whether the calling thread is the loop thread.
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Stop the loop once the tasks already given have run. Channels still
+     * registered are closed.
+     */
+    public void shutdown() {
+        execute(new Runnable() {
+            public void run() {
+                mShutdown = true;
+            }
+        });
+    }
+
+    /**
+     * Register a channel, on the loop thread only.
+     *
+     * @param channel
+     *            The non-blocking channel.
+     * @param ops
+     *            The operations it is interested in.
+     * @param selectable
+     *            The readiness callback, attached to the key.
+     * @return The selection key.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Selectable selectable) throws ClosedChannelException {
+        return channel.register(mSelector, ops, selectable);
+    }
+
+    private void addTimer(Timer timer) {
+        timer.mSequence = ++mTimerSequence;
+        mTimers.add(timer);
+    }
+
+    private void loop() {
+        while (!mShutdown) {
+            try {
+                final long timeout = runTimers();
+                if (!mTasks.isEmpty()) {
+                    mSelector.selectNow();
+                } else if (timeout > 0) {
+                    mSelector.select(timeout);
+                } else {
+                    mSelector.select();
+                }
+                mWakeupPending.set(false);
+
+                final Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        try {
+                            ((Selectable) key.attachment()).onReady(key);
+                        } catch (RuntimeException e) {
+                            // a failing connection must not take the others down
+                            e.printStackTrace();
+                        }
+                    }
+                }
+
+                runTasks();
+
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (SelectionKey key : mSelector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * Run the tasks given so far. Tasks given meanwhile run on the next
+     * round, after the sockets had their turn.
+     */
+    private void runTasks() {
+        for (int i = mTasks.size(); i > 0; --i) {
+            final Runnable task = mTasks.poll();
+            if (task == null) {
+                return;
+            }
+            run(task);
+        }
+    }
+
+    /**
+     * Run the timers that are due.
+     *
+     * @return Milliseconds until the next timer is due, at least 1, or 0
+     *         when none is pending.
+     */
+    private long runTimers() {
+        Timer timer;
+        while ((timer = mTimers.peek()) != null) {
+            final long remaining = timer.mDeadline - System.nanoTime();
+            if (remaining > 0) {
+                return Math.max(1, remaining / 1000000L);
+            }
+            mTimers.poll();
+            if (!timer.mCancelled) {
+                run(timer.mTask);
+            }
+        }
+        return 0;
+    }
+
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
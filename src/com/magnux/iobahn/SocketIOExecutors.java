@@ -0,0 +1,153 @@
+package com.magnux.iobahn;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Dispatch targets for event subscriptions, see
+ * {@link SocketIO#on(String, Class, SocketIO.EventHandler, Executor)}.
+ */
+public final class SocketIOExecutors {
+
+    // / Runs events right on the reader thread.
+    private static final Executor INLINE = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    // / Posts events to the main looper, created on first use.
+    private static HandlerExecutor sMainLooper;
+
+    // / Runs events on threads of their own, created on first use.
+    private static Executor sVirtualThreads;
+
+    private SocketIOExecutors() {
+    }
+
+    /**
+     * Run event handlers on the connection reader thread, as soon as the
+     * event is decoded. Handlers must be quick, as they hold back every
+     * event behind them.
+     * 
+     * @return The inline dispatch target.
+     */
+    public static Executor inline() {
+        return INLINE;
+    }
+
+    /**
+     * Run event handlers on the main looper.
+     * 
+     * @return The main looper dispatch target.
+     */
+    public static synchronized Executor mainLooper() {
+        if (sMainLooper == null) {
+            sMainLooper = new HandlerExecutor(new Handler(Looper.getMainLooper()));
+        }
+        return sMainLooper;
+    }
+
+    /**
+     * Run event handlers on virtual threads, one per event, so handlers may
+     * block on I/O without holding a platform thread. Found at run time on
+     * JDK 21 and later; elsewhere, as on Android, handlers run on a cached
+     * pool of daemon threads instead.
+     * 
+     * Only handler dispatch moves: reads, writes, heartbeats and handshakes
+     * stay on the threads, or the event loop, of the connection.
+     * 
+     * @return The virtual threads dispatch target.
+     */
+    public static synchronized Executor virtualThreads() {
+        if (sVirtualThreads == null) {
+            try {
+                sVirtualThreads = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception e) {
+                sVirtualThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "SocketIODispatch");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        }
+        return sVirtualThreads;
+    }
+
+    /**
+     * Run tasks on an executor one at a time, in submission order.
+     * 
+     * @param executor
+     *            The executor to run tasks on, typically a shared pool.
+     * @return A serial executor on top of the given one.
+     */
+    public static Executor serial(Executor executor) {
+        return new SerialExecutor(executor);
+    }
+
+    /**
+     * Whether tasks given to an executor already run one at a time, in order.
+     */
+    static boolean isSerial(Executor executor) {
+        return executor == INLINE || executor instanceof HandlerExecutor || executor instanceof SerialExecutor
+                || executor instanceof SocketIOEventLoop;
+    }
+
+    private static final class HandlerExecutor implements Executor {
+
+        private final Handler mHandler;
+
+        HandlerExecutor(Handler handler) {
+            mHandler = handler;
+        }
+
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    }
+
+    /**
+     * Serial lane on top of another executor. At most one task of the lane is
+     * submitted to the underlying executor at a time, so a lane never holds
+     * more than one of its threads.
+     */
+    private static final class SerialExecutor implements Executor {
+
+        private final Executor mExecutor;
+        private final LinkedList<Runnable> mTasks = new LinkedList<Runnable>();
+        private Runnable mActive;
+
+        SerialExecutor(Executor executor) {
+            mExecutor = executor;
+        }
+
+        public synchronized void execute(final Runnable command) {
+            mTasks.add(new Runnable() {
+                public void run() {
+                    try {
+                        command.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if (mActive == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            mActive = mTasks.poll();
+            if (mActive != null) {
+                mExecutor.execute(mActive);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.magnux.iobahn;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values, such as latencies.
+ *
+ * Values are counted in power of two buckets, so recording is a couple of
+ * atomic increments whatever the range, and percentiles are accurate to a
+ * factor of two. Count, sum and maximum are exact.
+ */
+public final class SocketIOHistogram {
+
+    // / Bucket i counts values v with 2^(i-1) <= v < 2^i, bucket 0 counts 0.
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Record a value, negative ones count as 0.
+     *
+     * @param value
+     *            The value.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Get the number of values recorded.
+     *
+     * @return The count.
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Get the sum of the values recorded.
+     *
+     * @return The sum.
+     */
+    public long getSum() {
+        return mSum.get();
+    }
+
+    /**
+     * Get the mean of the values recorded.
+     *
+     * @return The mean, or 0 when none was recorded.
+     */
+    public double getMean() {
+        final long count = mCount.get();
+        return count == 0 ? 0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * Get the largest value recorded.
+     *
+     * @return The maximum, or 0 when none was recorded.
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Get an upper bound of a percentile of the values recorded.
+     *
+     * @param percentile
+     *            The percentile, between 0 and 100.
+     * @return The upper bound of the bucket holding the percentile, at most
+     *         the maximum, or 0 when none was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = mBuckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                final long bound = i == 0 ? 0 : i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(bound, mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Forget the values recorded. Values recorded meanwhile may be partly
+     * kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " mean=" + (long) getMean() + " p50=" + getPercentile(50) + " p99="
+                + getPercentile(99) + " p999=" + getPercentile(99.9) + " max=" + getMax();
+    }
+}
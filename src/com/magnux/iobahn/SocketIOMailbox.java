@@ -0,0 +1,84 @@
+package com.magnux.iobahn;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-slot mailbox of a conflating subscription.
+ *
+ * The reader puts every routed event in the slot, and only schedules a
+ * delivery when the slot was empty. While that delivery is pending, newer
+ * events replace the one waiting, so the handler always gets the latest
+ * value and never falls behind the stream.
+ */
+final class SocketIOMailbox {
+
+    // / Whether events wait undecoded, and are only decoded when delivered.
+    final boolean mLazy;
+
+    // / The event waiting for delivery, or null, guarded by this.
+    private SocketIOMessage.Event mPending;
+
+    // / True once the subscription is gone, guarded by this.
+    private boolean mClosed;
+
+    // / Counters of the connection, for events superseded by a newer one
+    // / and for events dropped with their subscription.
+    private final AtomicLong mConflated;
+    private final AtomicLong mDropped;
+
+    SocketIOMailbox(boolean lazy, AtomicLong conflated, AtomicLong dropped) {
+        mLazy = lazy;
+        mConflated = conflated;
+        mDropped = dropped;
+    }
+
+    /**
+     * Put an event in the slot, replacing the one waiting.
+     *
+     * @param event
+     *            The event, undecoded when lazy.
+     * @return True when a delivery has to be scheduled, false when one is
+     *         already pending.
+     */
+    synchronized boolean offer(SocketIOMessage.Event event) {
+        if (mClosed) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        final boolean idle = mPending == null;
+        if (!idle) {
+            mConflated.incrementAndGet();
+        }
+        mPending = event;
+        return idle;
+    }
+
+    /**
+     * Take the event to deliver, called by the scheduled delivery.
+     *
+     * @return The latest event, or null when there is none anymore.
+     */
+    synchronized SocketIOMessage.Event take() {
+        final SocketIOMessage.Event event = mPending;
+        mPending = null;
+        return event;
+    }
+
+    /**
+     * Drop the waiting event, the subscription is gone.
+     */
+    synchronized void close() {
+        if (mPending != null) {
+            mDropped.incrementAndGet();
+            mPending = null;
+        }
+        mClosed = true;
+    }
+
+    /**
+     * Count an event taken but not delivered, as it could not be decoded.
+     */
+    void dropped() {
+        mDropped.incrementAndGet();
+    }
+}
@@ -1,5 +1,8 @@
 package com.magnux.iobahn;
 
+import com.magnux.iobahn.SocketIO.Ack;
+import com.magnux.iobahn.SocketIOCore.EventMeta;
+
 import de.tavendo.autobahn.WebSocketMessage;
 
 public class SocketIOMessage {
@@ -14,6 +17,29 @@ public class SocketIOMessage {
     public static final int MESSAGE_TYPE_ERROR = 7;
     public static final int MESSAGE_TYPE_NOOP = 8;
 
+    // / Engine.IO packet types, the first character of a text frame.
+    static final byte ENGINE_OPEN = '0';
+    static final byte ENGINE_CLOSE = '1';
+    static final byte ENGINE_PING = '2';
+    static final byte ENGINE_PONG = '3';
+    static final byte ENGINE_MESSAGE = '4';
+
+    // / Engine.IO v3 binary message type, the first byte of a binary frame.
+    static final byte ENGINE_BINARY_MESSAGE = 4;
+
+    // / SocketIO packet types, carried by Engine.IO message packets.
+    static final int PACKET_CONNECT = 0;
+    static final int PACKET_DISCONNECT = 1;
+    static final int PACKET_EVENT = 2;
+    static final int PACKET_ACK = 3;
+    static final int PACKET_ERROR = 4;
+    static final int PACKET_BINARY_EVENT = 5;
+    static final int PACKET_BINARY_ACK = 6;
+
+    // / UTF-8 encoding of U+FFFD, which delimits the messages of a
+    // / multi-message payload: \ufffd<length>\ufffd<message>...
+    static final byte[] PAYLOAD_DELIMITER = { (byte) 0xEF, (byte) 0xBF, (byte) 0xBD };
+
     // / Base message class.
     public static class Message extends WebSocketMessage.Message {
     }
@@ -87,24 +113,62 @@ public class SocketIOMessage {
         public String mName;
         public Object mEvent;
 
+        // / The subscription the event was routed to, and decoded for.
+        public EventMeta mMeta;
+
+        // / The acknowledgement to hand to the subscription, or null.
+        public Ack mAck;
+
+        // / System.nanoTime() the event was routed at, 0 when not measured.
+        public long mRoutedNanos;
+
         public Event(String id, String endpoint, String name, Object event) {
             mId = id;
             mEndpoint = endpoint;
             mName = name;
             mEvent = event;
         }
+
+        public Event(String id, String endpoint, String name, Object event, EventMeta meta, Ack ack) {
+            this(id, endpoint, name, event);
+            mMeta = meta;
+            mAck = ack;
+        }
     }
 
     /**
      * Define ACK. Server-to-client and client-to-server message.
      */
     public static class ACK extends Message {
+        public String mEndpoint;
         public String mId;
-        public String mData;
+        public Object[] mArgs;
+
+        /**
+         * @param endpoint
+         *            The endpoint of the acknowledged message.
+         * @param id
+         *            The id of the acknowledged message, without '+' suffix.
+         * @param args
+         *            Acknowledgement data, or null for a plain ack.
+         */
+        public ACK(String endpoint, String id, Object[] args) {
+            mEndpoint = endpoint;
+            mId = id;
+            mArgs = args;
+        }
+    }
 
-        public ACK(String id, String data) {
+    /**
+     * Define AckResult. Server-to-client acknowledgement of an emitted event.
+     */
+    public static class AckResult extends Message {
+        public int mId;
+        public Object[] mArgs;
+
+        public AckResult(int id, Object[] args) {
             mId = id;
-            mData = data;
+            mArgs = args;
         }
     }
 
@@ -123,6 +187,21 @@ public class SocketIOMessage {
         }
     }
 
+    /**
+     * Define Open, the Engine.IO handshake. Server-to-client message.
+     */
+    public static class Open extends Message {
+        public String mSid;
+        public int mPingInterval;
+        public int mPingTimeout;
+
+        public Open(String sid, int pingInterval, int pingTimeout) {
+            mSid = sid;
+            mPingInterval = pingInterval;
+            mPingTimeout = pingTimeout;
+        }
+    }
+
     /**
      * Define Noop. Server-to-client message.
      */
@@ -134,10 +213,18 @@ public class SocketIOMessage {
      * Define Event. Client-to-server message.
      */
     public static class Emit extends Message {
+        public int mId;
+        public String mEndpoint;
         public String mName;
         public Object mEvent;
 
-        public Emit(String name, Object event) {
+        public Emit(String endpoint, String name, Object event) {
+            this(0, endpoint, name, event);
+        }
+
+        public Emit(int id, String endpoint, String name, Object event) {
+            mId = id;
+            mEndpoint = endpoint;
             mName = name;
             mEvent = event;
         }
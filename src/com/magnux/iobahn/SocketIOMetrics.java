@@ -0,0 +1,138 @@
+package com.magnux.iobahn;
+
+/**
+ * Instrumentation callbacks of a connection, see
+ * {@link SocketIO#setMetrics(SocketIOMetrics)}.
+ *
+ * Callbacks are made inline from the reader, writer and dispatch threads,
+ * so implementations must be thread safe and return quickly: update
+ * counters, do not log or block. {@link SocketIOStats} is a ready-made
+ * lock-free implementation. When no metrics are registered, nothing is
+ * measured at all.
+ *
+ * Durations are in nanoseconds, from System.nanoTime(), unless stated
+ * otherwise. Lengths are in bytes, as sent or received on the wire.
+ */
+public interface SocketIOMetrics {
+
+    /**
+     * A WebSockets frame was received, before it is decoded. Called on the
+     * reader thread.
+     *
+     * @param length
+     *            The frame payload length.
+     */
+    public void onFrameReceived(int length);
+
+    /**
+     * An event was decoded and routed to its subscriptions. Called on the
+     * reader thread.
+     *
+     * @param endpoint
+     *            The endpoint, or an empty string for the root.
+     * @param name
+     *            The event name.
+     * @param nanos
+     *            Time spent parsing and binding the event for all its
+     *            subscriptions.
+     */
+    public void onEventDecoded(String endpoint, String name, long nanos);
+
+    /**
+     * An event was received that no subscription takes. Called on the reader
+     * thread.
+     *
+     * @param endpoint
+     *            The endpoint, or an empty string for the root.
+     * @param name
+     *            The event name, or null when the endpoint is not joined.
+     */
+    public void onEventUnrouted(String endpoint, String name);
+
+    /**
+     * An event handler returned. Called on the dispatch target of the
+     * subscription.
+     *
+     * @param endpoint
+     *            The endpoint, or an empty string for the root.
+     * @param name
+     *            The event name.
+     * @param queuedNanos
+     *            Time from the event being routed to its handler starting.
+     * @param handlerNanos
+     *            Time spent in the handler.
+     */
+    public void onEventDispatched(String endpoint, String name, long queuedNanos, long handlerNanos);
+
+    /**
+     * An emitted event was encoded. Called on the writer thread.
+     *
+     * @param endpoint
+     *            The endpoint, or an empty string for the root.
+     * @param name
+     *            The event name.
+     * @param length
+     *            The encoded message length.
+     * @param nanos
+     *            Time spent encoding.
+     */
+    public void onEventEncoded(String endpoint, String name, int length, long nanos);
+
+    /**
+     * A WebSockets frame was written to the socket. Called on the writer
+     * thread.
+     *
+     * @param length
+     *            The frame payload length.
+     * @param nanos
+     *            Time spent writing the frame.
+     */
+    public void onFrameSent(int length, long nanos);
+
+    /**
+     * An event was emitted. Called on the emitting thread.
+     *
+     * @param depth
+     *            Number of emits waiting in the outbound queue afterwards.
+     */
+    public void onOutboundQueueDepth(int depth);
+
+    /**
+     * The server acknowledged an emitted event. Called on the master thread.
+     *
+     * @param millis
+     *            Time from the emit call to the ack, outbound queueing
+     *            included, in milliseconds.
+     */
+    public void onAckRoundTrip(long millis);
+
+    /**
+     * A server heartbeat was received. Called on the master thread.
+     *
+     * @param intervalMillis
+     *            Time since the previous server heartbeat of the session, in
+     *            milliseconds, or -1 for the first one.
+     */
+    public void onHeartbeat(long intervalMillis);
+
+    /**
+     * A session opened, with where the time it took went. Phases a session
+     * went without, or that were not told apart from the next one, are 0.
+     * Called on the master thread.
+     *
+     * @param totalNanos
+     *            Time from the connect, or reconnect, attempt to the session
+     *            opening.
+     * @param dnsNanos
+     *            Time resolving the server address, 0 when it was cached.
+     * @param tcpNanos
+     *            Time connecting sockets, both when the upgrade did not
+     *            reuse the handshake's.
+     * @param handshakeNanos
+     *            Time from sending the SocketIO handshake to its response.
+     * @param upgradeNanos
+     *            Time from sending the WebSockets upgrade to the session
+     *            opening.
+     */
+    public void onConnected(long totalNanos, long dnsNanos, long tcpNanos, long handshakeNanos, long upgradeNanos);
+}
@@ -0,0 +1,305 @@
+package com.magnux.iobahn;
+
+import java.util.concurrent.Executor;
+
+import org.codehaus.jackson.type.TypeReference;
+
+/**
+ * Event subscription and emission on a SocketIO endpoint (namespace). The
+ * connection itself is the root endpoint, see {@link SocketIO#of(String)} for
+ * the others.
+ */
+public interface SocketIONamespace {
+
+    // / Deliver every event of the subscription.
+    public static final int DELIVER_ALL = 0;
+
+    // / Deliver only the latest event of the subscription, the ones
+    // / superseded while a delivery is pending are skipped.
+    public static final int DELIVER_LATEST = 1;
+
+    // / As DELIVER_LATEST, also skipping the decoding of superseded events:
+    // / events are decoded when delivered, on the dispatch target.
+    public static final int DELIVER_LATEST_LAZY = 2;
+
+    /**
+     * Get the endpoint this view is scoped to.
+     * 
+     * @return The endpoint, like "/chat", or an empty string for the root.
+     */
+    public String getEndpoint();
+
+    /**
+     * Leave the endpoint, its subscriptions are dropped. On the root
+     * endpoint, disconnect from the server.
+     */
+    public void disconnect();
+
+    /**
+     * Subscribe to an event, alongside its other handlers. Subscribing a
+     * handler again replaces its subscription.
+     * 
+     * @param name
+     *            The name of the event, or a prefix followed by '*' to
+     *            subscribe to every event starting with it.
+     * @param eventType
+     *            The type that event get transformed into.
+     * @param eventHandler
+     *            The event handler.
+     */
+    public void on(String name, Class<?> eventType, SocketIO.EventHandler eventHandler);
+
+    /**
+     * Subscribe to an event, alongside its other handlers. Subscribing a
+     * handler again replaces its subscription.
+     * 
+     * @param name
+     *            The name of the event, or a prefix followed by '*' to
+     *            subscribe to every event starting with it.
+     * @param eventType
+     *            The type that event get transformed into.
+     * @param eventHandler
+     *            The event handler.
+     */
+    public void on(String name, TypeReference<?> eventType, SocketIO.EventHandler eventHandler);
+
+    /**
+     * Subscribe to an event, running its handler on the given dispatch
+     * target. Events of this subscription are delivered in order, while
+     * other subscriptions sharing the same executor run in parallel; for a
+     * wildcard subscription, events of the same name are delivered in
+     * order, other names in parallel.
+     * Subscribing a handler again replaces its subscription.
+     * 
+     * @param name
+     *            The name of the event, or a prefix followed by '*' to
+     *            subscribe to every event starting with it.
+     * @param eventType
+     *            The type that event get transformed into.
+     * @param eventHandler
+     *            The event handler.
+     * @param dispatcher
+     *            Where the handler runs: SocketIOExecutors.inline(),
+     *            SocketIOExecutors.mainLooper() or any executor, or null for
+     *            the thread that called connect().
+     */
+    public void on(String name, Class<?> eventType, SocketIO.EventHandler eventHandler, Executor dispatcher);
+
+    /**
+     * Subscribe to an event, running its handler on the given dispatch
+     * target. Events of this subscription are delivered in order, while
+     * other subscriptions sharing the same executor run in parallel; for a
+     * wildcard subscription, events of the same name are delivered in
+     * order, other names in parallel.
+     * Subscribing a handler again replaces its subscription.
+     * 
+     * @param name
+     *            The name of the event, or a prefix followed by '*' to
+     *            subscribe to every event starting with it.
+     * @param eventType
+     *            The type that event get transformed into.
+     * @param eventHandler
+     *            The event handler.
+     * @param dispatcher
+     *            Where the handler runs: SocketIOExecutors.inline(),
+     *            SocketIOExecutors.mainLooper() or any executor, or null for
+     *            the thread that called connect().
+     */
+    public void on(String name, TypeReference<?> eventType, SocketIO.EventHandler eventHandler, Executor dispatcher);
+
+    /**
+     * Subscribe to an event, running its handler on the given dispatch
+     * target, with the given delivery mode. With DELIVER_LATEST and
+     * DELIVER_LATEST_LAZY, an event waiting for delivery is replaced by a
+     * newer one, so a slow handler only sees the latest value. Subscribing
+     * a handler again replaces its subscription.
+     * 
+     * @param name
+     *            The name of the event, or a prefix followed by '*' to
+     *            subscribe to every event starting with it.
+     * @param eventType
+     *            The type that event get transformed into.
+     * @param eventHandler
+     *            The event handler.
+     * @param dispatcher
+     *            Where the handler runs: SocketIOExecutors.inline(),
+     *            SocketIOExecutors.mainLooper() or any executor, or null for
+     *            the thread that called connect().
+     * @param delivery
+     *            One of DELIVER_ALL, DELIVER_LATEST and DELIVER_LATEST_LAZY.
+     */
+    public void on(String name, Class<?> eventType, SocketIO.EventHandler eventHandler, Executor dispatcher,
+            int delivery);
+
+    /**
+     * Subscribe to an event, running its handler on the given dispatch
+     * target, with the given delivery mode. With DELIVER_LATEST and
+     * DELIVER_LATEST_LAZY, an event waiting for delivery is replaced by a
+     * newer one, so a slow handler only sees the latest value. Subscribing
+     * a handler again replaces its subscription.
+     * 
+     * @param name
+     *            The name of the event, or a prefix followed by '*' to
+     *            subscribe to every event starting with it.
+     * @param eventType
+     *            The type that event get transformed into.
+     * @param eventHandler
+     *            The event handler.
+     * @param dispatcher
+     *            Where the handler runs: SocketIOExecutors.inline(),
+     *            SocketIOExecutors.mainLooper() or any executor, or null for
+     *            the thread that called connect().
+     * @param delivery
+     *            One of DELIVER_ALL, DELIVER_LATEST and DELIVER_LATEST_LAZY.
+     */
+    public void on(String name, TypeReference<?> eventType, SocketIO.EventHandler eventHandler, Executor dispatcher,
+            int delivery);
+
+    /**
+     * Subscribe to an event whose acks carry data, alongside its other
+     * handlers. Subscribing a handler again replaces its subscription. When
+     * several handlers get the ack, the first one to send it answers.
+     * 
+     * @param name
+     *            The name of the event, or a prefix followed by '*' to
+     *            subscribe to every event starting with it.
+     * @param eventType
+     *            The type that event get transformed into.
+     * @param eventHandler
+     *            The event handler.
+     */
+    public void on(String name, Class<?> eventType, SocketIO.AckEventHandler eventHandler);
+
+    /**
+     * Subscribe to an event whose acks carry data, alongside its other
+     * handlers. Subscribing a handler again replaces its subscription. When
+     * several handlers get the ack, the first one to send it answers.
+     * 
+     * @param name
+     *            The name of the event, or a prefix followed by '*' to
+     *            subscribe to every event starting with it.
+     * @param eventType
+     *            The type that event get transformed into.
+     * @param eventHandler
+     *            The event handler.
+     */
+    public void on(String name, TypeReference<?> eventType, SocketIO.AckEventHandler eventHandler);
+
+    /**
+     * Subscribe to an event with several arguments, alongside its other
+     * handlers. Subscribing a handler again replaces its subscription.
+     * 
+     * @param name
+     *            The name of the event, or a prefix followed by '*' to
+     *            subscribe to every event starting with it.
+     * @param argTypes
+     *            The types the event arguments get transformed into, one per
+     *            argument.
+     * @param eventHandler
+     *            The event handler.
+     */
+    public void on(String name, Class<?>[] argTypes, SocketIO.MultiArgEventHandler eventHandler);
+
+    /**
+     * Subscribe to an event with several arguments, alongside its other
+     * handlers. Subscribing a handler again replaces its subscription.
+     * 
+     * @param name
+     *            The name of the event, or a prefix followed by '*' to
+     *            subscribe to every event starting with it.
+     * @param argTypes
+     *            The types the event arguments get transformed into, one per
+     *            argument.
+     * @param eventHandler
+     *            The event handler.
+     */
+    public void on(String name, TypeReference<?>[] argTypes, SocketIO.MultiArgEventHandler eventHandler);
+
+    /**
+     * Subscribe to an event without decoding it, alongside its other
+     * handlers. The handler gets a view of the event arguments in the
+     * received frame, which it decodes only if needed. Subscribing a handler
+     * again replaces its subscription.
+     * 
+     * @param name
+     *            The name of the event, or a prefix followed by '*' to
+     *            subscribe to every event starting with it.
+     * @param eventHandler
+     *            The event handler.
+     */
+    public void on(String name, SocketIO.RawEventHandler eventHandler);
+
+    /**
+     * Subscribe to an event without decoding it, running its handler on the
+     * given dispatch target. Events of this subscription are delivered in
+     * order. Subscribing a handler again replaces its subscription.
+     * 
+     * @param name
+     *            The name of the event, or a prefix followed by '*' to
+     *            subscribe to every event starting with it.
+     * @param eventHandler
+     *            The event handler.
+     * @param dispatcher
+     *            Where the handler runs: SocketIOExecutors.inline(),
+     *            SocketIOExecutors.mainLooper() or any executor, or null for
+     *            the thread that called connect().
+     */
+    public void on(String name, SocketIO.RawEventHandler eventHandler, Executor dispatcher);
+
+    /**
+     * Subscribe to an event without decoding it, running its handler on the
+     * given dispatch target, with the given delivery mode. With
+     * DELIVER_LATEST, an event waiting for delivery is replaced by a newer
+     * one; DELIVER_LATEST_LAZY does the same, as there is nothing to
+     * decode. Subscribing a handler again replaces its subscription.
+     * 
+     * @param name
+     *            The name of the event, or a prefix followed by '*' to
+     *            subscribe to every event starting with it.
+     * @param eventHandler
+     *            The event handler.
+     * @param dispatcher
+     *            Where the handler runs: SocketIOExecutors.inline(),
+     *            SocketIOExecutors.mainLooper() or any executor, or null for
+     *            the thread that called connect().
+     * @param delivery
+     *            One of DELIVER_ALL, DELIVER_LATEST and DELIVER_LATEST_LAZY.
+     */
+    public void on(String name, SocketIO.RawEventHandler eventHandler, Executor dispatcher, int delivery);
+
+    /**
+     * Unsubscribe a handler from an event, whatever its kind.
+     * 
+     * @param name
+     *            The name the handler was subscribed with.
+     * @param eventHandler
+     *            The handler given to on(), compared by identity.
+     */
+    public void off(String name, Object eventHandler);
+
+    /**
+     * Emit an event.
+     * 
+     * @param name
+     *            The name of the event.
+     * @param event
+     *            The event to be published.
+     */
+    public void emit(String name, Object event);
+
+    /**
+     * Emit an event and ask the server to acknowledge it.
+     * 
+     * @param name
+     *            The name of the event.
+     * @param event
+     *            The event to be published.
+     * @param ackHandler
+     *            The handler fired on acknowledgement or timeout.
+     * @param timeout
+     *            Timeout in milliseconds, 0 to wait as long as the
+     *            connection lasts.
+     */
+    public void emit(String name, Object event, SocketIO.AckHandler ackHandler, long timeout);
+
+}
@@ -0,0 +1,1470 @@
+package com.magnux.iobahn;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import org.codehaus.jackson.type.TypeReference;
+
+import de.tavendo.autobahn.WebSocket;
+import de.tavendo.autobahn.WebSocketException;
+
+/**
+ * SocketIO connection for plain JVMs, without Android and without threads of
+ * its own. The handshake, the WebSockets framing, heartbeats, reconnects and,
+ * by default, event dispatch and connection callbacks all run on a
+ * {@link SocketIOEventLoop}, with non-blocking sockets, so a few loops serve
+ * thousands of connections.
+ *
+ * <pre>
+ * SocketIO connection = new SocketIONioConnection();
+ * connection.connect("ws://localhost:8080", handler);
+ * </pre>
+ *
+ * Only ws:// URIs are supported, there is no TLS.
+ */
+public class SocketIONioConnection implements SocketIO {
+
+    // / RFC 6455 key suffix of the Sec-WebSocket-Accept digest.
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+
+    // / Engine.IO v3 message type, ahead of attachment bytes.
+    private static final byte[] ATTACHMENT_PREFIX = { SocketIOMessage.ENGINE_BINARY_MESSAGE };
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+
+    // / WebSockets opcodes.
+    private static final int OPCODE_CONTINUATION = 0;
+    private static final int OPCODE_TEXT = 1;
+    private static final int OPCODE_BINARY = 2;
+    private static final int OPCODE_CLOSE = 8;
+    private static final int OPCODE_PING = 9;
+    private static final int OPCODE_PONG = 10;
+
+    // / Session phases: the HTTP handshake, the WebSockets upgrade, then
+    // / SocketIO messages.
+    private static final int PHASE_HANDSHAKE = 0;
+    private static final int PHASE_UPGRADE = 1;
+    private static final int PHASE_OPEN = 2;
+    private static final int PHASE_CLOSED = 3;
+
+    // / Emits pulled per drain round, so other connections of the loop get
+    // / their turn.
+    private static final int MAX_DRAIN = 64;
+
+    // / Pending output above which emits stay in the outbound queue, until
+    // / the socket takes more.
+    private static final int OUTPUT_HIGH_WATER = 64 * 1024;
+
+    // / The loop everything runs on.
+    private final SocketIOEventLoop mLoop;
+
+    // / Endpoints, subscriptions, pending acks and queued emits, which
+    // / outlive sessions.
+    private final SocketIOCore mCore;
+
+    // / The root endpoint, holding the subscriptions made on the connection.
+    private final SocketIOCore.Namespace mRoot;
+
+    // / The current session, or null, loop thread only.
+    private Session mSession;
+
+    // / The session handler provided to connect(), loop thread only.
+    private SocketIO.ConnectionHandler mSessionHandler;
+
+    // / The SocketIO options provided to connect(), loop thread only.
+    private SocketIOOptions mSocketIOOptions;
+
+    // / The WebSockets URI provided to connect(), loop thread only.
+    private URI mSocketIOUri;
+
+    // / True once disconnect() was called, no reconnect is attempted then.
+    private volatile boolean mDisconnecting;
+
+    // / Reconnect attempts made since the connection was last open.
+    private int mReconnectAttempts;
+
+    // / Pending reconnect attempt, or null.
+    private SocketIOEventLoop.Timer mReconnectTimer;
+
+    // / Heartbeat period in milliseconds, half the handshake's heartbeat
+    // / timeout, and the pending heartbeat check, or null.
+    private int mHeartbeat = 10000;
+    private SocketIOEventLoop.Timer mHeartbeatTimer;
+
+    // / RNG for reconnect delay jitter and frame masks.
+    private final Random mRng = new Random();
+
+    private final Runnable mReconnectTask = new Runnable() {
+        public void run() {
+            mReconnectTimer = null;
+            if (!mDisconnecting) {
+                startSession();
+            }
+        }
+    };
+
+    /**
+     * Create a connection on one of the shared loops.
+     */
+    public SocketIONioConnection() {
+        this(SocketIOEventLoop.next());
+    }
+
+    /**
+     * Create a connection on a given loop.
+     *
+     * @param loop
+     *            The loop its sockets, timers and callbacks run on.
+     */
+    public SocketIONioConnection(SocketIOEventLoop loop) {
+        mLoop = loop;
+        mCore = new SocketIOCore(new SocketIOCore.Transport() {
+
+            public void send(final Object message) {
+                if (mLoop.inEventLoop()) {
+                    write(message);
+                } else {
+                    mLoop.execute(new Runnable() {
+                        public void run() {
+                            write(message);
+                        }
+                    });
+                }
+            }
+
+            public void post(Runnable task) {
+                mLoop.execute(task);
+            }
+
+            public long now() {
+                return System.nanoTime() / 1000000L;
+            }
+
+            public boolean isCallbackThread() {
+                return mLoop.inEventLoop();
+            }
+
+            public void disconnect() {
+                SocketIONioConnection.this.disconnect();
+            }
+        });
+        mRoot = mCore.mRoot;
+    }
+
+    /**
+     * Get the loop this connection runs on, to dispatch events on it or share
+     * it with other work.
+     *
+     * @return The loop.
+     */
+    public SocketIOEventLoop getEventLoop() {
+        return mLoop;
+    }
+
+    @Override
+    public void connect(String wsUri, SocketIO.ConnectionHandler sessionHandler) {
+        SocketIOOptions options = new SocketIOOptions();
+        options.setReceiveTextMessagesRaw(true);
+        options.setMaxMessagePayloadSize(64 * 1024);
+        options.setMaxFramePayloadSize(64 * 1024);
+        options.setTcpNoDelay(true);
+
+        connect(wsUri, sessionHandler, options);
+    }
+
+    @Override
+    public void connect(final String wsUri, final SocketIO.ConnectionHandler sessionHandler, SocketIOOptions options) {
+
+        final SocketIOOptions copy = new SocketIOOptions(options);
+        mDisconnecting = false;
+
+        // subscriptions and endpoints are kept, they apply to the new session as well
+        mCore.configure(copy);
+
+        mLoop.execute(new Runnable() {
+            public void run() {
+                closeSession();
+                stopHeartbeat();
+                cancelReconnect();
+                mReconnectAttempts = 0;
+                mSessionHandler = sessionHandler;
+                mSocketIOOptions = copy;
+
+                try {
+                    mSocketIOUri = new URI(wsUri);
+                } catch (URISyntaxException e) {
+                    mSessionHandler.onClose(WebSocket.ConnectionHandler.CLOSE_CANNOT_CONNECT, "invalid URI (" + e.getMessage() + ")");
+                    return;
+                }
+                if (!"ws".equals(mSocketIOUri.getScheme())) {
+                    mSessionHandler.onClose(WebSocket.ConnectionHandler.CLOSE_CANNOT_CONNECT, "unsupported scheme " + mSocketIOUri.getScheme());
+                    return;
+                }
+
+                startSession();
+            }
+        });
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mCore.isOpen();
+    }
+
+    @Override
+    public void disconnect() {
+        mDisconnecting = true;
+        // acks of the session, or of emits queued for the next one, will not
+        // be answered now
+        mCore.onClose(true);
+        mLoop.execute(new Runnable() {
+            public void run() {
+                final boolean reconnecting = cancelReconnect();
+                stopHeartbeat();
+                final Session session = mSession;
+                if (session == null) {
+                    // waiting out the backoff, the handler has not heard of
+                    // the close yet
+                    if (reconnecting && mSessionHandler != null) {
+                        mSessionHandler.onClose(WebSocket.ConnectionHandler.CLOSE_NORMAL, "disconnected");
+                    }
+                    return;
+                }
+                if (session.mPhase == PHASE_OPEN) {
+                    session.writeMessage(new SocketIOMessage.Disconnect(null));
+                    session.writeFrame(OPCODE_CLOSE, new byte[] { 0x03, (byte) 0xe8 }, 0, 2);
+                    // closed once the output is flushed
+                    session.mClosing = true;
+                    session.flush();
+                } else {
+                    closeSession();
+                }
+                if (mSessionHandler != null) {
+                    mSessionHandler.onClose(WebSocket.ConnectionHandler.CLOSE_NORMAL, "disconnected");
+                }
+            }
+        });
+    }
+
+    @Override
+    public void disconnect(String endpoint) {
+        mCore.disconnect(endpoint);
+    }
+
+    @Override
+    public SocketIONamespace of(String endpoint) {
+        return mCore.of(endpoint);
+    }
+
+    @Override
+    public String getEndpoint() {
+        return mRoot.getEndpoint();
+    }
+
+    @Override
+    public void on(String name, Class<?> eventType, EventHandler eventHandler) {
+        mRoot.on(name, eventType, eventHandler);
+    }
+
+    @Override
+    public void on(String name, TypeReference<?> eventType, EventHandler eventHandler) {
+        mRoot.on(name, eventType, eventHandler);
+    }
+
+    @Override
+    public void on(String name, Class<?> eventType, EventHandler eventHandler, Executor dispatcher) {
+        mRoot.on(name, eventType, eventHandler, dispatcher);
+    }
+
+    @Override
+    public void on(String name, TypeReference<?> eventType, EventHandler eventHandler, Executor dispatcher) {
+        mRoot.on(name, eventType, eventHandler, dispatcher);
+    }
+
+    @Override
+    public void on(String name, Class<?> eventType, EventHandler eventHandler, Executor dispatcher, int delivery) {
+        mRoot.on(name, eventType, eventHandler, dispatcher, delivery);
+    }
+
+    @Override
+    public void on(String name, TypeReference<?> eventType, EventHandler eventHandler, Executor dispatcher,
+            int delivery) {
+        mRoot.on(name, eventType, eventHandler, dispatcher, delivery);
+    }
+
+    @Override
+    public void on(String name, Class<?> eventType, AckEventHandler eventHandler) {
+        mRoot.on(name, eventType, eventHandler);
+    }
+
+    @Override
+    public void on(String name, TypeReference<?> eventType, AckEventHandler eventHandler) {
+        mRoot.on(name, eventType, eventHandler);
+    }
+
+    @Override
+    public void on(String name, Class<?>[] argTypes, MultiArgEventHandler eventHandler) {
+        mRoot.on(name, argTypes, eventHandler);
+    }
+
+    @Override
+    public void on(String name, TypeReference<?>[] argTypes, MultiArgEventHandler eventHandler) {
+        mRoot.on(name, argTypes, eventHandler);
+    }
+
+    @Override
+    public void on(String name, RawEventHandler eventHandler) {
+        mRoot.on(name, eventHandler);
+    }
+
+    @Override
+    public void on(String name, RawEventHandler eventHandler, Executor dispatcher) {
+        mRoot.on(name, eventHandler, dispatcher);
+    }
+
+    @Override
+    public void on(String name, RawEventHandler eventHandler, Executor dispatcher, int delivery) {
+        mRoot.on(name, eventHandler, dispatcher, delivery);
+    }
+
+    @Override
+    public void off(String name, Object eventHandler) {
+        mRoot.off(name, eventHandler);
+    }
+
+    @Override
+    public void setMetrics(SocketIOMetrics metrics) {
+        mCore.mMetrics = metrics;
+    }
+
+    @Override
+    public long getConflatedEventCount() {
+        return mCore.getConflatedEventCount();
+    }
+
+    @Override
+    public long getDroppedEventCount() {
+        return mCore.getDroppedEventCount();
+    }
+
+    @Override
+    public void emit(String name, Object event) {
+        mRoot.emit(name, event);
+    }
+
+    @Override
+    public void emit(String name, Object event, AckHandler ackHandler, long timeout) {
+        mRoot.emit(name, event, ackHandler, timeout);
+    }
+
+    /**
+     * Get the number of emitted events waiting to be written, including the
+     * ones emitted while disconnected.
+     *
+     * @return The outbound queue depth.
+     */
+    public int getOutboundQueueSize() {
+        return mCore.mOutboundQueue.size();
+    }
+
+    /**
+     * Start a session: handshake, then upgrade. Runs on the loop.
+     */
+    private void startSession() {
+        final Session session = new Session(mSocketIOOptions);
+        mSession = session;
+        session.open();
+    }
+
+    private void closeSession() {
+        final Session session = mSession;
+        mSession = null;
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * Write a message of the core on the current session, dropped when no
+     * session is open. Runs on the loop.
+     */
+    private void write(Object message) {
+        final Session session = mSession;
+        if (session != null && session.mPhase == PHASE_OPEN && !session.mClosing) {
+            session.writeMessage(message);
+            session.flush();
+        }
+    }
+
+    /**
+     * A session failed or was closed by the server. Runs on the loop.
+     */
+    private void onSessionClosed(Session session, int code, String reason) {
+        if (session != mSession) {
+            return;
+        }
+        mSession = null;
+        final boolean wasOpen = session.mPhase == PHASE_OPEN;
+        session.close();
+        if (mDisconnecting) {
+            return;
+        }
+        if (wasOpen) {
+            mCore.onClose(true);
+            stopHeartbeat();
+        }
+        if (scheduleReconnect()) {
+            return;
+        }
+        if (mSessionHandler != null) {
+            mSessionHandler.onClose(wasOpen ? code : WebSocket.ConnectionHandler.CLOSE_CANNOT_CONNECT, reason);
+        }
+    }
+
+    /**
+     * Schedule the next reconnect attempt when the reconnect policy allows
+     * it. The delay is drawn uniformly between 0 and the exponential backoff
+     * ceiling (full jitter), so that clients dropped together do not come
+     * back together.
+     *
+     * @return True, iff an attempt was scheduled.
+     */
+    private boolean scheduleReconnect() {
+        final SocketIOOptions options = mSocketIOOptions;
+        if (mDisconnecting || options == null || !options.getReconnect()) {
+            return false;
+        }
+        final int maxAttempts = options.getMaxReconnectAttempts();
+        if (maxAttempts > 0 && mReconnectAttempts >= maxAttempts) {
+            return false;
+        }
+
+        final long ceiling = Math.min(options.getReconnectMaxDelay(),
+                (long) options.getReconnectBaseDelay() << Math.min(mReconnectAttempts, 30));
+        final long delay = (long) (mRng.nextDouble() * ceiling);
+        ++mReconnectAttempts;
+
+        mReconnectTimer = mLoop.schedule(mReconnectTask, delay);
+        return true;
+    }
+
+    /**
+     * Cancel the pending reconnect attempt, if any.
+     *
+     * @return True, iff an attempt was pending.
+     */
+    private boolean cancelReconnect() {
+        if (mReconnectTimer == null) {
+            return false;
+        }
+        mReconnectTimer.cancel();
+        mReconnectTimer = null;
+        return true;
+    }
+
+    /**
+     * Check the link every heartbeat period. A heartbeat is skipped when
+     * other outbound traffic already went out during the last period.
+     */
+    private void startHeartbeat() {
+        stopHeartbeat();
+        final int period = mHeartbeat;
+        final Session session = mSession;
+        mHeartbeatTimer = mLoop.schedule(new Runnable() {
+            public void run() {
+                if (session != mSession || session.mPhase != PHASE_OPEN) {
+                    return;
+                }
+                // Engine.IO servers only take pings as a sign of life
+                if (session.mOptions.getProtocol() != SocketIOOptions.PROTOCOL_0_9
+                        || System.nanoTime() - session.mLastSendTime >= period * 1000000L) {
+                    write(new SocketIOMessage.Heartbeat());
+                }
+                mHeartbeatTimer = mLoop.schedule(this, period);
+            }
+        }, period);
+    }
+
+    private void stopHeartbeat() {
+        if (mHeartbeatTimer != null) {
+            mHeartbeatTimer.cancel();
+            mHeartbeatTimer = null;
+        }
+    }
+
+    /**
+     * Process the SocketIO messages the decoder delivered, on the loop.
+     */
+    private void processAppMessage(Object message) {
+
+        if (mCore.processMessage(message)) {
+
+            return;
+
+        } else if (message instanceof SocketIOMessage.Open) {
+
+            // the Engine.IO handshake: v4 clients join the root endpoint
+            // themselves, v3 servers join them
+            mHeartbeat = ((SocketIOMessage.Open) message).mPingInterval;
+            if (mSession.mOptions.getProtocol() == SocketIOOptions.PROTOCOL_ENGINE_IO_4) {
+                write(new SocketIOMessage.Connect("", ""));
+            }
+
+        } else if (message instanceof SocketIOMessage.Connect) {
+
+            // endpoint joins are confirmed with a connect of their own
+            if (((SocketIOMessage.Connect) message).mEndpoint.length() == 0) {
+                final int protocol = mSession.mOptions.getProtocol();
+                if (protocol != SocketIOOptions.PROTOCOL_0_9) {
+                    mSession.onEngineJoined();
+                }
+                // Engine.IO v4 servers ping, not clients
+                if (protocol != SocketIOOptions.PROTOCOL_ENGINE_IO_4) {
+                    startHeartbeat();
+                }
+            }
+        }
+        // errors and unknown messages are dropped, there is no logging off Android
+    }
+
+    /**
+     * One attempt at a session: the handshake over a socket of its own, then
+     * the WebSockets session. Stale sessions are told apart from the current
+     * one by identity.
+     */
+    private class Session implements SocketIOEventLoop.Selectable, SocketIOOutboundQueue.Consumer {
+
+        private final SocketIOOptions mOptions;
+        private final SocketIOEncoder mEncoder;
+        private final SocketIODecoder mDecoder;
+
+        // / WebSockets opcode of the frames we send, text or binary.
+        private final int mOpcode;
+
+        private int mPhase = PHASE_HANDSHAKE;
+        private SocketChannel mChannel;
+        private SelectionKey mKey;
+
+        // / Received bytes not processed yet, in read mode between reads.
+        private ByteBuffer mIn;
+
+        // / Bytes waiting for the socket, in write mode.
+        private ByteBuffer mOut;
+
+        // / The buffers kept for mIn and mOut; larger ones come from the
+        // / buffer pool, and go back once emptied.
+        private final ByteBuffer mInHome = ByteBuffer.allocate(16 * 1024);
+        private final ByteBuffer mOutHome = ByteBuffer.allocate(16 * 1024);
+
+        // / Encoded message, and the batch of emits of a drain round.
+        private final SocketIOPooledOutputStream mPayload = new SocketIOPooledOutputStream();
+        private final SocketIOPooledOutputStream mBatch = new SocketIOPooledOutputStream();
+        private int mBatchCount;
+        private int mBatchFirstHeader;
+
+        // / Fragments of the message being received, and its opcode.
+        private SocketIOPooledOutputStream mFragments;
+        private int mFragmentsOpcode;
+
+        // / Key sent in the upgrade request.
+        private String mWebSocketKey;
+
+        // / Time of the last frame sent, System.nanoTime() based.
+        private long mLastSendTime;
+
+        // / True when the socket is to be closed once the output is flushed.
+        private boolean mClosing;
+
+        // / True when a drain stopped at the output high water mark, to be
+        // / resumed once the socket took the output.
+        private boolean mDrainBlocked;
+
+        // / Handshake and upgrade deadline, or null.
+        private SocketIOEventLoop.Timer mConnectTimer;
+
+        // / True once an Engine.IO session joined the root endpoint.
+        private boolean mEngineJoined;
+
+        // / The server address, resolved once per session.
+        private InetAddress mAddress;
+
+        // / True once the current socket is connected.
+        private boolean mSocketConnected;
+
+        // / Connect phase timings, System.nanoTime() based: the session start,
+        // / the start of the phase under way, and the phases done.
+        private long mStartTime;
+        private long mPhaseStart;
+        private long mDnsNanos;
+        private long mTcpNanos;
+        private long mHandshakeNanos;
+
+        private final Runnable mDrainTask = new Runnable() {
+            public void run() {
+                drain();
+            }
+        };
+
+        Session(SocketIOOptions options) {
+            mOptions = options;
+            mEncoder = new SocketIOEncoder(options.getCodec(), mCore.mJsonMapper, options.getProtocol());
+            mOpcode = mEncoder.isBinary() ? OPCODE_BINARY : OPCODE_TEXT;
+            mDecoder = new SocketIODecoder(mCore, options, new SocketIODecoder.Sink() {
+                public void deliver(Object message) {
+                    // decoding runs on the loop, so do callbacks
+                    if (mSession == Session.this) {
+                        processAppMessage(message);
+                    }
+                }
+            });
+            mIn = mInHome;
+            mIn.flip();
+            mOut = mOutHome;
+        }
+
+        /**
+         * Resolve the server address, then connect the handshake socket.
+         */
+        void open() {
+            mStartTime = System.nanoTime();
+            final int timeout = mOptions.getSocketConnectTimeout();
+            if (timeout > 0) {
+                mConnectTimer = mLoop.schedule(new Runnable() {
+                    public void run() {
+                        if (mPhase < PHASE_OPEN) {
+                            if (!mSocketConnected && mAddress != null) {
+                                // the cached address may be gone
+                                SocketIODns.invalidate(mSocketIOUri.getHost(), mAddress);
+                            }
+                            onSessionClosed(Session.this, WebSocket.ConnectionHandler.CLOSE_CANNOT_CONNECT,
+                                    "connect timed out");
+                        }
+                    }
+                }, timeout);
+            }
+
+            // lookups block, so they are made off the loop
+            final String host = mSocketIOUri.getHost();
+            SocketIODns.resolve(host, mOptions.getFastConnect(), mLoop, new SocketIODns.Callback() {
+                public void onResolved(InetAddress address, long nanos) {
+                    if (mPhase == PHASE_CLOSED) {
+                        // disconnected or timed out meanwhile
+                        return;
+                    }
+                    if (address == null) {
+                        fail("cannot resolve " + host);
+                        return;
+                    }
+                    mAddress = address;
+                    mDnsNanos = nanos;
+                    sendFirstRequest();
+                }
+            });
+        }
+
+        private void sendFirstRequest() {
+            final int protocol = mOptions.getProtocol();
+            if (protocol != SocketIOOptions.PROTOCOL_0_9) {
+                // Engine.IO sessions start on WebSockets, without a handshake
+                mPhase = PHASE_UPGRADE;
+                connectSocket(upgradeRequest(path() + "/socket.io/?EIO=" + protocol + "&transport=websocket"));
+                return;
+            }
+
+            // fast connects keep the connection alive, to upgrade it next
+            final StringBuilder request = new StringBuilder();
+            request.append("POST ").append(path()).append("/socket.io/1/ HTTP/1.")
+                    .append(mOptions.getFastConnect() ? "1\r\n" : "0\r\n");
+            request.append("Host: ").append(host()).append("\r\n");
+            request.append("User-Agent: IOBahn\r\n");
+            if (mOptions.getFastConnect()) {
+                request.append("Connection: keep-alive\r\n");
+            }
+            request.append("Content-Length: 0\r\n\r\n");
+            connectSocket(request.toString());
+        }
+
+        /**
+         * Open a socket to the resolved address, and send an HTTP request
+         * once connected.
+         */
+        private void connectSocket(String request) {
+            try {
+                final int port = mSocketIOUri.getPort() > 0 ? mSocketIOUri.getPort() : 80;
+                mChannel = SocketChannel.open();
+                mChannel.configureBlocking(false);
+                mChannel.socket().setTcpNoDelay(mOptions.getTcpNoDelay());
+                mSocketConnected = false;
+
+                mOut.clear();
+                mOut.put(request.getBytes("US-ASCII"));
+
+                mPhaseStart = System.nanoTime();
+                if (mChannel.connect(new InetSocketAddress(mAddress, port))) {
+                    mKey = mLoop.register(mChannel, SelectionKey.OP_READ, this);
+                    onSocketConnected();
+                } else {
+                    mKey = mLoop.register(mChannel, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException e) {
+                SocketIODns.invalidate(mSocketIOUri.getHost(), mAddress);
+                fail("cannot connect (" + e.toString() + ")");
+            }
+        }
+
+        /**
+         * The socket connected, send the request waiting in the output.
+         */
+        private void onSocketConnected() {
+            final long now = System.nanoTime();
+            mSocketConnected = true;
+            mTcpNanos += now - mPhaseStart;
+            mPhaseStart = now;
+            flush();
+        }
+
+        /**
+         * Send the upgrade request on the connected socket, the one of the
+         * handshake.
+         */
+        private void sendUpgradeRequest(String request) throws IOException {
+            mOut.clear();
+            mOut.put(request.getBytes("US-ASCII"));
+            mPhaseStart = System.nanoTime();
+            flush();
+        }
+
+        public void onReady(SelectionKey key) {
+            if (key != mKey) {
+                // the handshake socket, closed already
+                return;
+            }
+            try {
+                if (key.isConnectable()) {
+                    try {
+                        mChannel.finishConnect();
+                    } catch (IOException e) {
+                        SocketIODns.invalidate(mSocketIOUri.getHost(), mAddress);
+                        throw e;
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                    onSocketConnected();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                    if (mDrainBlocked && mOut.position() < OUTPUT_HIGH_WATER) {
+                        mDrainBlocked = false;
+                        drain();
+                    }
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+            } catch (WebSocketException e) {
+                fail(e.getMessage(), WebSocket.ConnectionHandler.CLOSE_PROTOCOL_ERROR);
+            } catch (IOException e) {
+                fail("connection lost (" + e.toString() + ")");
+            }
+        }
+
+        private void read() throws IOException, WebSocketException {
+            mIn.compact();
+            if (!mIn.hasRemaining()) {
+                // a frame larger than the buffer is pending
+                final int limit = mPhase == PHASE_OPEN ? mOptions.getMaxFramePayloadSize() + 14 : 64 * 1024;
+                if (mIn.capacity() >= limit) {
+                    throw new WebSocketException("frame exceeds payload limit");
+                }
+                final ByteBuffer grown = ByteBuffer.wrap(SocketIOBufferPool.take(Math.min(limit, mIn.capacity() * 2)));
+                mIn.flip();
+                grown.put(mIn);
+                if (mIn != mInHome) {
+                    SocketIOBufferPool.release(mIn.array());
+                }
+                mIn = grown;
+            }
+            final int read = mChannel.read(mIn);
+            mIn.flip();
+
+            if (mPhase == PHASE_HANDSHAKE) {
+                onHandshakeResponse(read < 0);
+                return;
+            }
+            if (read < 0) {
+                fail("connection closed by peer");
+                return;
+            }
+            if (mPhase == PHASE_UPGRADE) {
+                onUpgradeResponse();
+            }
+            if (mPhase == PHASE_OPEN) {
+                processFrames();
+                if (!mIn.hasRemaining() && mIn != mInHome) {
+                    // the large frame is processed, the buffer goes back
+                    SocketIOBufferPool.release(mIn.array());
+                    mIn = mInHome;
+                    mIn.clear();
+                    mIn.flip();
+                }
+            }
+        }
+
+        /**
+         * Parse <code>sid:heartbeat:close:transports</code> once the
+         * handshake response is complete, then upgrade on the same socket
+         * when it is kept alive, or on a new one.
+         *
+         * @param eof
+         *            True when the server closed the connection.
+         */
+        private void onHandshakeResponse(boolean eof) throws IOException, WebSocketException {
+            final int headerEnd = indexOf(mIn, HEADER_END);
+            if (headerEnd < 0) {
+                if (eof) {
+                    throw new WebSocketException("malformed handshake response");
+                }
+                return;
+            }
+            final String[] lines = ascii(mIn, headerEnd).split("\r\n");
+            if (!lines[0].startsWith("HTTP/1.") || lines[0].indexOf(' ') < 0) {
+                throw new WebSocketException("malformed handshake response");
+            }
+            final String status = lines[0].substring(lines[0].indexOf(' ') + 1);
+            if (!status.startsWith("200")) {
+                throw new WebSocketException("handshake failed (" + status + ")");
+            }
+            int contentLength = -1;
+            boolean chunked = false;
+            boolean keepAlive = lines[0].startsWith("HTTP/1.1");
+            for (int i = 1; i < lines.length; ++i) {
+                final int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                final String name = lines[i].substring(0, colon).trim();
+                final String value = lines[i].substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Integer.parseInt(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    keepAlive = value.equalsIgnoreCase("keep-alive");
+                }
+            }
+
+            // the body ends with its length, its last chunk, or the stream
+            final int bodyStart = mIn.position() + headerEnd + HEADER_END.length;
+            final String body;
+            if (chunked) {
+                body = dechunk(mIn, bodyStart);
+            } else if (contentLength >= 0) {
+                body = mIn.limit() - bodyStart < contentLength ? null : ascii(mIn, bodyStart, contentLength);
+            } else {
+                keepAlive = false;
+                body = eof ? ascii(mIn, bodyStart, mIn.limit() - bodyStart) : null;
+            }
+            if (body == null) {
+                if (eof) {
+                    throw new WebSocketException("malformed handshake response");
+                }
+                return;
+            }
+            mHandshakeNanos = System.nanoTime() - mPhaseStart;
+
+            final String[] parts = body.trim().split(":");
+            if (parts.length < 4) {
+                throw new WebSocketException("malformed handshake response");
+            }
+            final String sessionId = parts[0];
+            if (parts[1].length() > 0) {
+                mHeartbeat = Integer.parseInt(parts[1]) / 2 * 1000;
+            }
+            final HashSet<String> transports = new HashSet<String>(Arrays.asList(parts[3].split(",")));
+            if (!transports.contains("websocket")) {
+                throw new WebSocketException("websocket not supported");
+            }
+
+            mIn.clear();
+            mIn.flip();
+            mPhase = PHASE_UPGRADE;
+            final String request = upgradeRequest(path() + "/socket.io/1/websocket/" + sessionId);
+            if (mOptions.getFastConnect() && keepAlive && !eof) {
+                sendUpgradeRequest(request);
+                return;
+            }
+
+            mKey.cancel();
+            mChannel.close();
+            mKey = null;
+            connectSocket(request);
+        }
+
+        /**
+         * Build the WebSockets upgrade request of a resource.
+         */
+        private String upgradeRequest(String resource) {
+            final byte[] nonce = new byte[16];
+            mRng.nextBytes(nonce);
+            mWebSocketKey = base64(nonce, nonce.length);
+
+            final StringBuilder request = new StringBuilder();
+            request.append("GET ").append(resource).append(" HTTP/1.1\r\n");
+            request.append("Host: ").append(host()).append("\r\n");
+            request.append("Upgrade: websocket\r\n");
+            request.append("Connection: Upgrade\r\n");
+            request.append("Sec-WebSocket-Key: ").append(mWebSocketKey).append("\r\n");
+            if (mOptions.getProtocol() == SocketIOOptions.PROTOCOL_0_9) {
+                request.append("Sec-WebSocket-Protocol: socket.io\r\n");
+            }
+            request.append("Sec-WebSocket-Version: 13\r\n\r\n");
+            return request.toString();
+        }
+
+        /**
+         * Check the upgrade response once its headers are in. Bytes after
+         * them are the first frames.
+         */
+        private void onUpgradeResponse() throws IOException, WebSocketException {
+            final int end = indexOf(mIn, HEADER_END);
+            if (end < 0) {
+                return;
+            }
+            final String response = ascii(mIn, end);
+            mIn.position(mIn.position() + end + HEADER_END.length);
+
+            final String[] lines = response.split("\r\n");
+            if (lines[0].indexOf(" 101") < 0) {
+                throw new WebSocketException("upgrade failed (" + lines[0] + ")");
+            }
+            String accept = null;
+            for (int i = 1; i < lines.length; ++i) {
+                final int colon = lines[i].indexOf(':');
+                if (colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Accept")) {
+                    accept = lines[i].substring(colon + 1).trim();
+                }
+            }
+            if (!expectedAccept(mWebSocketKey).equals(accept)) {
+                throw new WebSocketException("invalid Sec-WebSocket-Accept");
+            }
+
+            if (mConnectTimer != null) {
+                mConnectTimer.cancel();
+                mConnectTimer = null;
+            }
+            mPhase = PHASE_OPEN;
+            mReconnectAttempts = 0;
+            mLastSendTime = System.nanoTime();
+
+            if (mOptions.getProtocol() != SocketIOOptions.PROTOCOL_0_9) {
+                // open once the root endpoint is joined, emits sent before
+                // would be dropped by the server
+                return;
+            }
+            onConnected();
+            // join the endpoints ahead of the emits queued for them
+            mCore.onOpen(this);
+            if (mSessionHandler != null) {
+                mSessionHandler.onOpen();
+            }
+        }
+
+        /**
+         * The Engine.IO session joined the root endpoint, and is open.
+         */
+        void onEngineJoined() {
+            if (mEngineJoined) {
+                return;
+            }
+            mEngineJoined = true;
+            onConnected();
+            mCore.onOpen(this);
+            if (mSessionHandler != null) {
+                mSessionHandler.onOpen();
+            }
+        }
+
+        /**
+         * Report where the time to open went.
+         */
+        private void onConnected() {
+            final SocketIOMetrics metrics = mCore.mMetrics;
+            if (metrics != null) {
+                final long now = System.nanoTime();
+                metrics.onConnected(now - mStartTime, mDnsNanos, mTcpNanos, mHandshakeNanos, now - mPhaseStart);
+            }
+        }
+
+        /**
+         * Process the complete frames received so far.
+         */
+        private void processFrames() throws IOException, WebSocketException {
+            while (mSession == this && mPhase == PHASE_OPEN) {
+                final int start = mIn.position();
+                final int available = mIn.remaining();
+                if (available < 2) {
+                    return;
+                }
+                final int b0 = mIn.get(start) & 0xff;
+                final int b1 = mIn.get(start + 1) & 0xff;
+                final boolean fin = (b0 & 0x80) != 0;
+                final int opcode = b0 & 0x0f;
+                final boolean masked = (b1 & 0x80) != 0;
+
+                int header = 2;
+                long length = b1 & 0x7f;
+                if (length == 126) {
+                    header = 4;
+                    if (available < header) {
+                        return;
+                    }
+                    length = mIn.getShort(start + 2) & 0xffff;
+                } else if (length == 127) {
+                    header = 10;
+                    if (available < header) {
+                        return;
+                    }
+                    length = mIn.getLong(start + 2);
+                }
+                if (length < 0 || length > mOptions.getMaxFramePayloadSize()) {
+                    throw new WebSocketException("frame exceeds payload limit");
+                }
+                final int maskStart = start + header;
+                if (masked) {
+                    header += 4;
+                }
+                if (available < header + length) {
+                    // wait for the rest, the buffer grows when full
+                    return;
+                }
+
+                // frames go back to the pool unless views of them were
+                // handed out, which may outlive us
+                final byte[] payload = SocketIOBufferPool.take((int) length);
+                mIn.position(start + header);
+                mIn.get(payload, 0, (int) length);
+                if (masked) {
+                    for (int i = 0; i < length; ++i) {
+                        payload[i] ^= mIn.get(maskStart + (i & 3));
+                    }
+                }
+
+                if (!onFrame(fin, opcode, payload, (int) length)) {
+                    SocketIOBufferPool.release(payload);
+                }
+            }
+        }
+
+        /**
+         * @return True when views of the payload were kept.
+         */
+        private boolean onFrame(boolean fin, int opcode, byte[] payload, int length) throws IOException,
+                WebSocketException {
+            switch (opcode) {
+            case OPCODE_CONTINUATION:
+                if (mFragments == null) {
+                    throw new WebSocketException("continuation frame without message");
+                }
+                mFragments.write(payload, 0, length);
+                if (mFragments.size() > mOptions.getMaxMessagePayloadSize()) {
+                    throw new WebSocketException("message exceeds payload limit");
+                }
+                if (fin) {
+                    // decoded in place, the message is not copied out
+                    final SocketIOPooledOutputStream fragments = mFragments;
+                    final boolean binary = mFragmentsOpcode == OPCODE_BINARY;
+                    mFragments = null;
+                    if (decode(fragments.getByteArray(), fragments.size(), binary)) {
+                        fragments.detach();
+                    } else {
+                        fragments.release();
+                    }
+                }
+                return false;
+            case OPCODE_TEXT:
+            case OPCODE_BINARY:
+                if (fin) {
+                    return decode(payload, length, opcode == OPCODE_BINARY);
+                }
+                mFragments = new SocketIOPooledOutputStream();
+                mFragmentsOpcode = opcode;
+                mFragments.write(payload, 0, length);
+                return false;
+            case OPCODE_PING:
+                writeFrame(OPCODE_PONG, payload, 0, length);
+                flush();
+                return false;
+            case OPCODE_PONG:
+                return false;
+            case OPCODE_CLOSE:
+                if (!mClosing) {
+                    writeFrame(OPCODE_CLOSE, payload, 0, Math.min(length, 2));
+                    flush();
+                }
+                onSessionClosed(this, WebSocket.ConnectionHandler.CLOSE_NORMAL, "closed by server");
+                return false;
+            default:
+                throw new WebSocketException("unknown opcode " + opcode);
+            }
+        }
+
+        /**
+         * @return True when views of the payload were kept.
+         */
+        private boolean decode(byte[] payload, int length, boolean binary) {
+            try {
+                return mDecoder.decode(payload, length, binary);
+            } catch (IOException e) {
+                // malformed messages are dropped, the session goes on
+                return mDecoder.isRetained();
+            }
+        }
+
+        /**
+         * Encode and frame a SocketIO message into the output.
+         */
+        void writeMessage(Object message) {
+            final SocketIOMetrics metrics = mCore.mMetrics;
+            final long start = metrics != null ? System.nanoTime() : 0;
+            try {
+                mEncoder.encode(message, mPayload);
+            } catch (IOException e) {
+                // unencodable events are dropped, as the writer does
+                return;
+            } catch (WebSocketException e) {
+                return;
+            }
+            if (metrics != null && message instanceof SocketIOMessage.Emit) {
+                final SocketIOMessage.Emit emit = (SocketIOMessage.Emit) message;
+                metrics.onEventEncoded(emit.mEndpoint, emit.mName, mPayload.size(), System.nanoTime() - start);
+            }
+            writeFrame(mOpcode, mPayload.getByteArray(), 0, mPayload.size());
+            mPayload.release();
+
+            // attachments are masked straight from the arrays given to emit()
+            for (int i = 0; i < mEncoder.getAttachmentCount(); ++i) {
+                final ByteBuffer attachment = mEncoder.getAttachment(i);
+                final byte[] array = attachment.array();
+                final int offset = attachment.arrayOffset() + attachment.position();
+                if (mEncoder.isAttachmentPrefixed()) {
+                    // the Engine.IO v3 type byte goes in a fragment of its own
+                    writeFrame(OPCODE_BINARY, false, ATTACHMENT_PREFIX, 0, 1);
+                    writeFrame(OPCODE_CONTINUATION, true, array, offset, attachment.remaining());
+                } else {
+                    writeFrame(OPCODE_BINARY, array, offset, attachment.remaining());
+                }
+            }
+        }
+
+        /**
+         * Append a masked client frame to the output.
+         */
+        void writeFrame(int opcode, byte[] payload, int offset, int length) {
+            writeFrame(opcode, true, payload, offset, length);
+        }
+
+        /**
+         * Append a masked client frame, or fragment, to the output.
+         */
+        void writeFrame(int opcode, boolean fin, byte[] payload, int offset, int length) {
+            final SocketIOMetrics metrics = mCore.mMetrics;
+            final long start = metrics != null ? System.nanoTime() : 0;
+
+            ensureOutput(length + 14);
+            mOut.put((byte) ((fin ? 0x80 : 0) | opcode));
+            if (length < 126) {
+                mOut.put((byte) (0x80 | length));
+            } else if (length < 65536) {
+                mOut.put((byte) (0x80 | 126));
+                mOut.putShort((short) length);
+            } else {
+                mOut.put((byte) (0x80 | 127));
+                mOut.putLong(length);
+            }
+            final int mask = mRng.nextInt();
+            mOut.putInt(mask);
+            for (int i = 0; i < length; ++i) {
+                mOut.put((byte) (payload[offset + i] ^ (mask >>> (24 - 8 * (i & 3)))));
+            }
+            mLastSendTime = System.nanoTime();
+
+            if (metrics != null && opcode < OPCODE_CLOSE) {
+                metrics.onFrameSent(length, mLastSendTime - start);
+            }
+        }
+
+        private void ensureOutput(int length) {
+            if (mOut.remaining() < length) {
+                final ByteBuffer grown = ByteBuffer.wrap(SocketIOBufferPool.take(Math.max(mOut.capacity() * 2,
+                        mOut.position() + length)));
+                mOut.flip();
+                grown.put(mOut);
+                if (mOut != mOutHome) {
+                    SocketIOBufferPool.release(mOut.array());
+                }
+                mOut = grown;
+            }
+        }
+
+        /**
+         * Write as much output as the socket takes, and wait for it to take
+         * the rest.
+         */
+        void flush() {
+            if (mKey == null || !mKey.isValid() || (mKey.interestOps() & SelectionKey.OP_CONNECT) != 0) {
+                return;
+            }
+            try {
+                mOut.flip();
+                mChannel.write(mOut);
+                final boolean pending = mOut.hasRemaining();
+                mOut.compact();
+
+                if (pending) {
+                    mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                mKey.interestOps(SelectionKey.OP_READ);
+                if (mOut != mOutHome) {
+                    // the socket took a large output, the buffer goes back
+                    SocketIOBufferPool.release(mOut.array());
+                    mOut = mOutHome;
+                    mOut.clear();
+                }
+                if (mClosing) {
+                    close();
+                }
+            } catch (IOException e) {
+                fail("connection lost (" + e.toString() + ")");
+            }
+        }
+
+        public void requestDrain() {
+            // the queue asks once until a drain polls it empty
+            mLoop.execute(mDrainTask);
+        }
+
+        /**
+         * Write the emits waiting in the outbound queue while the output is
+         * below its high water mark, batched in one frame when enabled.
+         */
+        private void drain() {
+            if (mSession != this || mPhase != PHASE_OPEN || mClosing) {
+                return;
+            }
+            // the multi-message framing batches are sent in is SocketIO 0.9's
+            final boolean batching = mOptions.getBatchingEnabled()
+                    && mOptions.getProtocol() == SocketIOOptions.PROTOCOL_0_9;
+            boolean more = true;
+            for (int i = 0; i < MAX_DRAIN && mOut.position() < OUTPUT_HIGH_WATER; ++i) {
+                final SocketIOMessage.Emit emit = mCore.mOutboundQueue.poll(this);
+                if (emit == null) {
+                    more = false;
+                    break;
+                }
+                if (batching) {
+                    appendToBatch(emit);
+                } else {
+                    writeMessage(emit);
+                }
+            }
+            flushBatch();
+            flush();
+            if (more) {
+                if (mOut.position() < OUTPUT_HIGH_WATER) {
+                    // the round is over, the queue may hold more
+                    mLoop.execute(mDrainTask);
+                } else {
+                    mDrainBlocked = true;
+                }
+            }
+        }
+
+        private void appendToBatch(SocketIOMessage.Emit emit) {
+            try {
+                mEncoder.encode(emit, mPayload);
+                if (mBatchCount > 0 && mBatch.size() + mPayload.size() + 16 > mOptions.getMaxBatchSize()) {
+                    flushBatch();
+                }
+                final int header = mEncoder.appendFramed(mPayload.getByteArray(), mPayload.size(), mBatch);
+                mPayload.release();
+                if (mBatchCount == 0) {
+                    mBatchFirstHeader = header;
+                }
+                ++mBatchCount;
+            } catch (IOException e) {
+                // unencodable events are dropped, as the writer does
+            } catch (WebSocketException e) {
+                // as above
+            }
+        }
+
+        /**
+         * Frame the pending batch. A batch of one message goes out without
+         * the multi-message framing.
+         */
+        private void flushBatch() {
+            if (mBatchCount == 1) {
+                writeFrame(mOpcode, mBatch.getByteArray(), mBatchFirstHeader, mBatch.size() - mBatchFirstHeader);
+            } else if (mBatchCount > 1) {
+                writeFrame(mOpcode, mBatch.getByteArray(), 0, mBatch.size());
+            }
+            mBatch.release();
+            mBatchCount = 0;
+        }
+
+        private void fail(String reason) {
+            fail(reason, WebSocket.ConnectionHandler.CLOSE_CONNECTION_LOST);
+        }
+
+        private void fail(String reason, int code) {
+            onSessionClosed(this, code, reason);
+        }
+
+        void close() {
+            mPhase = PHASE_CLOSED;
+            if (mConnectTimer != null) {
+                mConnectTimer.cancel();
+                mConnectTimer = null;
+            }
+            if (mKey != null) {
+                mKey.cancel();
+            }
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+        }
+
+        private String path() {
+            final String path = mSocketIOUri.getRawPath();
+            return path == null || "/".equals(path) ? "" : path;
+        }
+
+        private String host() {
+            return mSocketIOUri.getPort() > 0 ? mSocketIOUri.getHost() + ":" + mSocketIOUri.getPort() : mSocketIOUri
+                    .getHost();
+        }
+    }
+
+    /**
+     * Position of a byte sequence within the remaining bytes of a buffer,
+     * relative to its position, or -1.
+     */
+    private static int indexOf(ByteBuffer buffer, byte[] sequence) {
+        final int start = buffer.position();
+        final int end = buffer.limit() - sequence.length;
+        outer: for (int i = start; i <= end; ++i) {
+            for (int j = 0; j < sequence.length; ++j) {
+                if (buffer.get(i + j) != sequence[j]) {
+                    continue outer;
+                }
+            }
+            return i - start;
+        }
+        return -1;
+    }
+
+    /**
+     * HTTP headers are ASCII.
+     */
+    private static String ascii(ByteBuffer buffer, int length) throws UnsupportedEncodingException {
+        return ascii(buffer, buffer.position(), length);
+    }
+
+    private static String ascii(ByteBuffer buffer, int index, int length) throws UnsupportedEncodingException {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = buffer.get(index + i);
+        }
+        return new String(bytes, "US-ASCII");
+    }
+
+    /**
+     * Decode a chunked HTTP body.
+     *
+     * @param buffer
+     *            The buffer holding the body, up to its limit.
+     * @param index
+     *            The body start.
+     * @return The body, or null when its last chunk is not in yet.
+     * @throws WebSocketException
+     *             When a chunk size is malformed.
+     */
+    private static String dechunk(ByteBuffer buffer, int index) throws UnsupportedEncodingException,
+            WebSocketException {
+        final StringBuilder body = new StringBuilder();
+        while (true) {
+            int lineEnd = index;
+            while (lineEnd + 1 < buffer.limit() && (buffer.get(lineEnd) != '\r' || buffer.get(lineEnd + 1) != '\n')) {
+                ++lineEnd;
+            }
+            if (lineEnd + 1 >= buffer.limit()) {
+                return null;
+            }
+            String size = ascii(buffer, index, lineEnd - index);
+            if (size.indexOf(';') >= 0) {
+                size = size.substring(0, size.indexOf(';'));
+            }
+            final int length;
+            try {
+                length = Integer.parseInt(size.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new WebSocketException("malformed chunk size");
+            }
+            index = lineEnd + 2;
+            // a chunk, or the last one and the end of the trailers
+            if (buffer.limit() - index < length + 2) {
+                return null;
+            }
+            if (length == 0) {
+                return body.toString();
+            }
+            body.append(ascii(buffer, index, length));
+            index += length + 2;
+        }
+    }
+
+    private static String expectedAccept(String key) {
+        try {
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            final byte[] digest = sha1.digest((key + WEBSOCKET_GUID).getBytes("US-ASCII"));
+            return base64(digest, digest.length);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.toString());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    private static String base64(byte[] data, int length) {
+        final StringBuilder out = new StringBuilder((length + 2) / 3 * 4);
+        for (int i = 0; i < length; i += 3) {
+            final int b = (data[i] & 0xff) << 16 | (i + 1 < length ? (data[i + 1] & 0xff) << 8 : 0)
+                    | (i + 2 < length ? data[i + 2] & 0xff : 0);
+            out.append(BASE64[b >>> 18 & 63]);
+            out.append(BASE64[b >>> 12 & 63]);
+            out.append(i + 1 < length ? BASE64[b >>> 6 & 63] : '=');
+            out.append(i + 2 < length ? BASE64[b & 63] : '=');
+        }
+        return out.toString();
+    }
+}
@@ -1,7 +1,447 @@
 package com.magnux.iobahn;
 
+import java.util.concurrent.Executor;
+
 import de.tavendo.autobahn.WebSocketOptions;
 
+/**
+ * SocketIO connection options. Extends the WebSockets options with the
+ * settings of the SocketIO layer.
+ */
 public class SocketIOOptions extends WebSocketOptions {
 
+    // / Outbound overflow policy: wait in emit() until there is room, never
+    // / on the callback thread of the connection, where emit() throws.
+    public static final int OVERFLOW_BLOCK = 0;
+
+    // / Outbound overflow policy: throw IllegalStateException from emit().
+    public static final int OVERFLOW_FAIL = 1;
+
+    // / Outbound overflow policy: drop the oldest pending emit.
+    public static final int OVERFLOW_DROP_OLDEST = 2;
+
+    // / Outbound overflow policy: keep only the latest pending emit per event
+    // / name, dropping the oldest emit when still full.
+    public static final int OVERFLOW_CONFLATE = 3;
+
+    // / Protocol: SocketIO 0.9, the /socket.io/1/ handshake then WebSockets.
+    public static final int PROTOCOL_0_9 = 0;
+
+    // / Protocol: SocketIO 1.x and 2.x over Engine.IO v3 WebSockets.
+    public static final int PROTOCOL_ENGINE_IO_3 = 3;
+
+    // / Protocol: SocketIO 3.x and 4.x over Engine.IO v4 WebSockets.
+    public static final int PROTOCOL_ENGINE_IO_4 = 4;
+
+    private boolean mWarmUpDecoders;
+    private boolean mBatchingEnabled;
+    private int mMaxBatchSize;
+    private long mMaxBatchLingerMicros;
+    private boolean mReconnect;
+    private int mReconnectBaseDelay;
+    private int mReconnectMaxDelay;
+    private int mMaxReconnectAttempts;
+    private int mOutboundQueueSize;
+    private int mOutboundOverflowPolicy;
+    private SocketIOCodec mCodec;
+    private Executor mDispatcher;
+    private int mProtocol;
+    private boolean mFastConnect;
+
+    /**
+     * Construct default options.
+     */
+    public SocketIOOptions() {
+        super();
+
+        mWarmUpDecoders = false;
+        mBatchingEnabled = false;
+        mMaxBatchSize = 16 * 1024;
+        mMaxBatchLingerMicros = 0;
+        mReconnect = false;
+        mReconnectBaseDelay = 500;
+        mReconnectMaxDelay = 30000;
+        mMaxReconnectAttempts = 10;
+        mOutboundQueueSize = 0;
+        mOutboundOverflowPolicy = OVERFLOW_FAIL;
+        mCodec = SocketIOCodecs.json();
+        mDispatcher = null;
+        mProtocol = PROTOCOL_0_9;
+        mFastConnect = false;
+    }
+
+    /**
+     * Construct options as copy from other options object.
+     * 
+     * @param other
+     *            Options to copy.
+     */
+    public SocketIOOptions(SocketIOOptions other) {
+        super(other);
+
+        mWarmUpDecoders = other.mWarmUpDecoders;
+        mBatchingEnabled = other.mBatchingEnabled;
+        mMaxBatchSize = other.mMaxBatchSize;
+        mMaxBatchLingerMicros = other.mMaxBatchLingerMicros;
+        mReconnect = other.mReconnect;
+        mReconnectBaseDelay = other.mReconnectBaseDelay;
+        mReconnectMaxDelay = other.mReconnectMaxDelay;
+        mMaxReconnectAttempts = other.mMaxReconnectAttempts;
+        mOutboundQueueSize = other.mOutboundQueueSize;
+        mOutboundOverflowPolicy = other.mOutboundOverflowPolicy;
+        mCodec = other.mCodec;
+        mDispatcher = other.mDispatcher;
+        mProtocol = other.mProtocol;
+        mFastConnect = other.mFastConnect;
+    }
+
+    /**
+     * Warm up event decoders eagerly. When enabled, the decoder built by on()
+     * for an event type is exercised right away, so the first event received
+     * does not pay for resolving the type and creating its deserializer. The
+     * cost is paid by the thread calling on() instead.
+     * 
+     * DEFAULT: false
+     * 
+     * @param enabled
+     *            True to warm up decoders on subscription.
+     */
+    public void setWarmUpDecoders(boolean enabled) {
+        mWarmUpDecoders = enabled;
+    }
+
+    /**
+     * Get warm up event decoders option.
+     * 
+     * @return True, iff decoders are warmed up on subscription.
+     */
+    public boolean getWarmUpDecoders() {
+        return mWarmUpDecoders;
+    }
+
+    /**
+     * Batch outbound messages. When enabled, messages queued to the writer
+     * are drained and sent together in one WebSockets frame, using the
+     * SocketIO multi-message payload framing.
+     * 
+     * DEFAULT: false
+     * 
+     * @param enabled
+     *            True to enable outbound batching.
+     */
+    public void setBatchingEnabled(boolean enabled) {
+        mBatchingEnabled = enabled;
+    }
+
+    /**
+     * Get outbound batching option.
+     * 
+     * @return True, iff outbound batching is enabled.
+     */
+    public boolean getBatchingEnabled() {
+        return mBatchingEnabled;
+    }
+
+    /**
+     * Set maximum size of a batch. A batch reaching this size is sent right
+     * away. A single message larger than this is sent on its own. Must not
+     * exceed the maximum frame payload size.
+     * 
+     * DEFAULT: 16k
+     * 
+     * @param size
+     *            Maximum size in octets of a batch.
+     */
+    public void setMaxBatchSize(int size) {
+        if (size > 0) {
+            mMaxBatchSize = size;
+        }
+    }
+
+    /**
+     * Get maximum batch size.
+     * 
+     * @return Maximum size in octets of a batch.
+     */
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    /**
+     * Set maximum time a batch waits for more messages once the writer queue
+     * is drained. With 0, a batch is sent as soon as the queue is empty. The
+     * writer looper schedules in milliseconds, so non-zero values are
+     * rounded up to the next millisecond.
+     * 
+     * DEFAULT: 0
+     * 
+     * @param micros
+     *            Maximum linger time in microseconds.
+     */
+    public void setMaxBatchLingerMicros(long micros) {
+        if (micros >= 0) {
+            mMaxBatchLingerMicros = micros;
+        }
+    }
+
+    /**
+     * Get maximum batch linger time.
+     * 
+     * @return Maximum linger time in microseconds.
+     */
+    public long getMaxBatchLingerMicros() {
+        return mMaxBatchLingerMicros;
+    }
+
+    /**
+     * Reconnect automatically when the connection is lost or cannot be
+     * established. Each attempt does a new handshake, after a random delay
+     * between 0 and min(max delay, base delay * 2^attempt). The session
+     * handler's onClose() is only fired once the attempts are exhausted, and
+     * onOpen() is fired again on every successful reconnect. Subscriptions
+     * are kept across reconnects.
+     * 
+     * DEFAULT: false
+     * 
+     * @param enabled
+     *            True to reconnect automatically.
+     */
+    public void setReconnect(boolean enabled) {
+        mReconnect = enabled;
+    }
+
+    /**
+     * Get automatic reconnect option.
+     * 
+     * @return True, iff automatic reconnect is enabled.
+     */
+    public boolean getReconnect() {
+        return mReconnect;
+    }
+
+    /**
+     * Set base delay of the reconnect backoff.
+     * 
+     * DEFAULT: 500ms
+     * 
+     * @param delay
+     *            Base delay in milliseconds.
+     */
+    public void setReconnectBaseDelay(int delay) {
+        if (delay > 0) {
+            mReconnectBaseDelay = delay;
+        }
+    }
+
+    /**
+     * Get base delay of the reconnect backoff.
+     * 
+     * @return Base delay in milliseconds.
+     */
+    public int getReconnectBaseDelay() {
+        return mReconnectBaseDelay;
+    }
+
+    /**
+     * Set maximum delay of the reconnect backoff.
+     * 
+     * DEFAULT: 30s
+     * 
+     * @param delay
+     *            Maximum delay in milliseconds.
+     */
+    public void setReconnectMaxDelay(int delay) {
+        if (delay > 0) {
+            mReconnectMaxDelay = delay;
+        }
+    }
+
+    /**
+     * Get maximum delay of the reconnect backoff.
+     * 
+     * @return Maximum delay in milliseconds.
+     */
+    public int getReconnectMaxDelay() {
+        return mReconnectMaxDelay;
+    }
+
+    /**
+     * Set maximum number of consecutive reconnect attempts. 0 means no limit.
+     * 
+     * DEFAULT: 10
+     * 
+     * @param attempts
+     *            Maximum number of attempts.
+     */
+    public void setMaxReconnectAttempts(int attempts) {
+        if (attempts >= 0) {
+            mMaxReconnectAttempts = attempts;
+        }
+    }
+
+    /**
+     * Get maximum number of consecutive reconnect attempts.
+     * 
+     * @return Maximum number of attempts, 0 for no limit.
+     */
+    public int getMaxReconnectAttempts() {
+        return mMaxReconnectAttempts;
+    }
+
+    /**
+     * Set maximum number of emitted events waiting to be written, including
+     * the ones emitted while disconnected. 0 means no limit.
+     * 
+     * DEFAULT: 0
+     * 
+     * @param size
+     *            Maximum number of pending emits.
+     */
+    public void setOutboundQueueSize(int size) {
+        if (size >= 0) {
+            mOutboundQueueSize = size;
+        }
+    }
+
+    /**
+     * Get maximum number of emitted events waiting to be written.
+     * 
+     * @return Maximum number of pending emits, 0 for no limit.
+     */
+    public int getOutboundQueueSize() {
+        return mOutboundQueueSize;
+    }
+
+    /**
+     * Set what emit() does when the outbound queue is full, one of
+     * OVERFLOW_BLOCK, OVERFLOW_FAIL, OVERFLOW_DROP_OLDEST and
+     * OVERFLOW_CONFLATE. Emits with an ack are never conflated, and when
+     * dropped their ack handler times out. Note OVERFLOW_BLOCK blocks the
+     * emitting thread, possibly for as long as the connection is down; on
+     * the thread connection callbacks run on, the main looper by default,
+     * it throws IllegalStateException instead, as OVERFLOW_FAIL does.
+     * 
+     * DEFAULT: OVERFLOW_FAIL
+     * 
+     * @param policy
+     *            The overflow policy.
+     */
+    public void setOutboundOverflowPolicy(int policy) {
+        if (policy >= OVERFLOW_BLOCK && policy <= OVERFLOW_CONFLATE) {
+            mOutboundOverflowPolicy = policy;
+        }
+    }
+
+    /**
+     * Get what emit() does when the outbound queue is full.
+     * 
+     * @return The overflow policy.
+     */
+    public int getOutboundOverflowPolicy() {
+        return mOutboundOverflowPolicy;
+    }
+
+    /**
+     * Set the encoding of event and ack data, and the WebSockets frame type
+     * it travels in. Received frames are decoded by their type: text frames
+     * as JSON, binary frames with the codec.
+     * 
+     * DEFAULT: SocketIOCodecs.json()
+     * 
+     * @param codec
+     *            The payload codec.
+     */
+    public void setCodec(SocketIOCodec codec) {
+        if (codec != null) {
+            mCodec = codec;
+        }
+    }
+
+    /**
+     * Get the encoding of event and ack data.
+     * 
+     * @return The payload codec.
+     */
+    public SocketIOCodec getCodec() {
+        return mCodec;
+    }
+
+    /**
+     * Set the dispatch target of the subscriptions made without one. Each
+     * subscription gets its own serial lane on it, as with an explicit
+     * target, and wildcard subscriptions several, the events of a name
+     * always taking the same one. With SocketIOExecutors.virtualThreads(), handlers may block
+     * without holding back the connection; the connection's own reads, writes and
+     * heartbeats stay where they are.
+     * 
+     * DEFAULT: null, handlers run on the connection's callback thread
+     * 
+     * @param dispatcher
+     *            The default dispatch target, or null.
+     */
+    public void setDispatcher(Executor dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * Get the dispatch target of the subscriptions made without one.
+     * 
+     * @return The default dispatch target, or null.
+     */
+    public Executor getDispatcher() {
+        return mDispatcher;
+    }
+
+    /**
+     * Set the protocol spoken with the server, one of PROTOCOL_0_9,
+     * PROTOCOL_ENGINE_IO_3 and PROTOCOL_ENGINE_IO_4. Engine.IO sessions
+     * connect with WebSockets right away, without polling first, and send
+     * byte[] and ByteBuffer values in binary frames of their own, as
+     * attachments. Binary frames only carry attachments then, so the codec
+     * is not used, events are JSON.
+     * 
+     * DEFAULT: PROTOCOL_0_9
+     * 
+     * @param protocol
+     *            The protocol.
+     */
+    public void setProtocol(int protocol) {
+        if (protocol == PROTOCOL_0_9 || protocol == PROTOCOL_ENGINE_IO_3 || protocol == PROTOCOL_ENGINE_IO_4) {
+            mProtocol = protocol;
+        }
+    }
+
+    /**
+     * Get the protocol spoken with the server.
+     * 
+     * @return The protocol.
+     */
+    public int getProtocol() {
+        return mProtocol;
+    }
+
+    /**
+     * Connect faster: server addresses are resolved once and reused by
+     * connects and reconnects for a minute, or until they cannot be
+     * connected to. SocketIONioConnection also keeps the handshake's
+     * connection alive, and upgrades it to WebSockets when the server agrees,
+     * saving a TCP connect.
+     * 
+     * DEFAULT: false
+     * 
+     * @param enabled
+     *            True to enable.
+     */
+    public void setFastConnect(boolean enabled) {
+        mFastConnect = enabled;
+    }
+
+    /**
+     * Is fast connect enabled?
+     * 
+     * @return True, iff fast connect is enabled.
+     */
+    public boolean getFastConnect() {
+        return mFastConnect;
+    }
 }
@@ -0,0 +1,284 @@
+package com.magnux.iobahn;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of emitted events in front of the writer.
+ *
+ * Emits wait here until the writer pulls them, so the queue depth is the real
+ * backlog, pending events can still be conflated, and emits made while
+ * disconnected are kept until the next session is open.
+ *
+ * Guarded by a lock rather than a monitor, so emitters waiting for room on
+ * virtual threads do not pin their carrier thread.
+ */
+final class SocketIOOutboundQueue {
+
+    /**
+     * What drains the queue during a session, the writer of the transport.
+     */
+    interface Consumer {
+
+        /**
+         * Schedule a drain on the writing thread, which polls the queue until
+         * it gets null.
+         */
+        void requestDrain();
+    }
+
+    // / Guards everything below, signalled when room is made.
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mRoom = mLock.newCondition();
+
+    // / Pending emits, a ring buffer grown on demand.
+    private SocketIOMessage.Emit[] mRing;
+    private int mHead;
+    private int mCount;
+
+    // / Maximum number of pending emits, 0 for no limit.
+    private int mCapacity;
+
+    // / What to do with an emit when the queue is full.
+    private int mOverflowPolicy;
+
+    // / Latest pending emit without ack per endpoint and event name, when
+    // / conflating.
+    private HashMap<String, SocketIOMessage.Emit> mConflated;
+
+    // / The writer draining us while a session is open, or null.
+    private Consumer mWriter;
+
+    // / True while a drain request is queued on the writer.
+    private boolean mDrainPending;
+
+    SocketIOOutboundQueue() {
+        mRing = new SocketIOMessage.Emit[16];
+        configure(0, SocketIOOptions.OVERFLOW_FAIL);
+    }
+
+    /**
+     * Apply new limits to the emits offered from now on. Pending emits are
+     * kept, even beyond the new capacity.
+     *
+     * @param capacity
+     *            Maximum number of pending emits, 0 for no limit.
+     * @param overflowPolicy
+     *            One of the SocketIOOptions.OVERFLOW_* policies.
+     */
+    void configure(int capacity, int overflowPolicy) {
+        mLock.lock();
+        try {
+            mCapacity = capacity;
+            mOverflowPolicy = overflowPolicy;
+            if (overflowPolicy != SocketIOOptions.OVERFLOW_CONFLATE) {
+                mConflated = null;
+            } else if (mConflated == null) {
+                mConflated = new HashMap<String, SocketIOMessage.Emit>();
+            }
+            mRoom.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Number of emits waiting to be written.
+     */
+    int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Queue an emit according to the overflow policy.
+     *
+     * @param emit
+     *            The emit to queue.
+     * @param mayBlock
+     *            Whether the calling thread may wait for room. The callback
+     *            thread may not, as room may only come once it ran a
+     *            reconnect.
+     * @return The emit dropped to make room, or null.
+     * @throws IllegalStateException
+     *             When full and the policy is to fail, or to block a thread
+     *             that may not.
+     */
+    SocketIOMessage.Emit offer(SocketIOMessage.Emit emit, boolean mayBlock) {
+        mLock.lock();
+        try {
+
+            if (mConflated != null && emit.mId == 0) {
+                SocketIOMessage.Emit pending = mConflated.get(conflationKey(emit));
+                if (pending != null) {
+                    // keep the queue position, send the latest value
+                    pending.mEvent = emit.mEvent;
+                    return null;
+                }
+            }
+
+            SocketIOMessage.Emit dropped = null;
+
+            if (mCapacity > 0 && mCount >= mCapacity) {
+                switch (mOverflowPolicy) {
+                case SocketIOOptions.OVERFLOW_BLOCK:
+                    if (!mayBlock) {
+                        throw new IllegalStateException("outbound queue full (" + mCapacity
+                                + "), emit() may not block the connection callback thread");
+                    }
+                    while (mCapacity > 0 && mCount >= mCapacity) {
+                        try {
+                            mRoom.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IllegalStateException("interrupted while waiting for outbound queue space");
+                        }
+                    }
+                    break;
+                case SocketIOOptions.OVERFLOW_FAIL:
+                    throw new IllegalStateException("outbound queue full (" + mCapacity + ")");
+                default:
+                    dropped = removeFirst();
+                }
+            }
+            if (mCount == mRing.length) {
+                grow();
+            }
+
+            mRing[(mHead + mCount) % mRing.length] = emit;
+            ++mCount;
+            if (mConflated != null && emit.mId == 0) {
+                mConflated.put(conflationKey(emit), emit);
+            }
+
+            requestDrain();
+            return dropped;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Take the next emit, called by the writer while draining. Returning null
+     * ends the drain. Writers of past sessions get nothing.
+     */
+    SocketIOMessage.Emit poll(Consumer writer) {
+        mLock.lock();
+        try {
+            if (writer != mWriter) {
+                return null;
+            }
+            if (mCount == 0) {
+                mDrainPending = false;
+                return null;
+            }
+            return removeFirst();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Put emits taken by a write that failed back in front of the queue, in
+     * their order, whatever the capacity. An emit without ack superseded by a
+     * conflated one offered meanwhile is dropped.
+     *
+     * @param emits
+     *            The emits, in the order they were taken.
+     */
+    void requeue(List<SocketIOMessage.Emit> emits) {
+        mLock.lock();
+        try {
+            for (int i = emits.size() - 1; i >= 0; --i) {
+                final SocketIOMessage.Emit emit = emits.get(i);
+                if (mConflated != null && emit.mId == 0) {
+                    final String key = conflationKey(emit);
+                    if (mConflated.containsKey(key)) {
+                        continue;
+                    }
+                    mConflated.put(key, emit);
+                }
+                if (mCount == mRing.length) {
+                    grow();
+                }
+                mHead = (mHead + mRing.length - 1) % mRing.length;
+                mRing[mHead] = emit;
+                ++mCount;
+            }
+            requestDrain();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Start draining into the writer of a newly opened session.
+     */
+    void attach(Consumer writer) {
+        mLock.lock();
+        try {
+            mWriter = writer;
+            mDrainPending = false;
+            requestDrain();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Stop draining, the session is gone. Pending emits are kept.
+     */
+    void detach() {
+        mLock.lock();
+        try {
+            mWriter = null;
+            mDrainPending = false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void requestDrain() {
+        if (mWriter != null && !mDrainPending && mCount > 0) {
+            mDrainPending = true;
+            mWriter.requestDrain();
+        }
+    }
+
+    private SocketIOMessage.Emit removeFirst() {
+        final SocketIOMessage.Emit emit = mRing[mHead];
+        mRing[mHead] = null;
+        mHead = (mHead + 1) % mRing.length;
+        --mCount;
+        if (mConflated != null) {
+            final String key = conflationKey(emit);
+            if (mConflated.get(key) == emit) {
+                mConflated.remove(key);
+            }
+        }
+        mRoom.signalAll();
+        return emit;
+    }
+
+    /**
+     * Events of the same name on different endpoints are not conflated.
+     */
+    private static String conflationKey(SocketIOMessage.Emit emit) {
+        return emit.mEndpoint.length() == 0 ? emit.mName : emit.mEndpoint + ':' + emit.mName;
+    }
+
+    private void grow() {
+        final SocketIOMessage.Emit[] ring = new SocketIOMessage.Emit[mRing.length * 2];
+        for (int i = 0; i < mCount; ++i) {
+            ring[i] = mRing[(mHead + i) % mRing.length];
+        }
+        mRing = ring;
+        mHead = 0;
+    }
+}
@@ -0,0 +1,393 @@
+package com.magnux.iobahn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.tavendo.autobahn.WebSocket;
+import de.tavendo.autobahn.WebSocketException;
+
+/**
+ * Session over the xhr-polling transport, for servers and networks that do
+ * not let WebSockets through. One request is always out polling for incoming
+ * messages, while at most one other posts outgoing ones; both run on threads
+ * of their own, over kept-alive HTTP connections.
+ *
+ * Everything queued when a post starts goes in it, as one multi-message
+ * payload, so a backlog costs one round trip instead of one per message.
+ *
+ * Android free, like SocketIOCore and SocketIODecoder.
+ */
+final class SocketIOPolling implements SocketIOOutboundQueue.Consumer {
+
+    /**
+     * Callbacks of the session, made on its threads.
+     */
+    interface Listener {
+
+        /**
+         * A message decoded from a poll, as the decoder delivers it.
+         */
+        void onMessage(SocketIOPolling session, Object message);
+
+        /**
+         * The session failed. Called once, and not after close().
+         */
+        void onClose(SocketIOPolling session, int code, String reason);
+    }
+
+    // / Read timeout of a post, a poll gets the one given to us.
+    private static final int POST_TIMEOUT = 30000;
+
+    private final SocketIOCore mCore;
+    private final SocketIOOptions mOptions;
+    private final Listener mListener;
+
+    // / Session URL, /socket.io/1/xhr-polling/&lt;sid&gt; on the server.
+    private final String mUrl;
+
+    // / Read timeout of a poll, longer than the server holds one.
+    private final int mPollTimeout;
+
+    private final SocketIODecoder mDecoder;
+
+    // / Polling sends text, so messages are always encoded as JSON.
+    private final SocketIOEncoder mEncoder;
+
+    // / Encoded message, and the payload of the post being built.
+    private final SocketIOPooledOutputStream mPayload = new SocketIOPooledOutputStream();
+    private final SocketIOPooledOutputStream mBatch = new SocketIOPooledOutputStream();
+
+    // / Response bodies of polls and of posts, each read on its thread.
+    private final SocketIOPooledOutputStream mPollResponse = new SocketIOPooledOutputStream();
+    private final SocketIOPooledOutputStream mPostResponse = new SocketIOPooledOutputStream();
+
+    // / Control messages (connects, heartbeats, acks...) waiting for the next
+    // / post, guarded by this.
+    private final ArrayList<Object> mPending = new ArrayList<Object>();
+
+    // / True when the outbound queue asked for a drain, guarded by this.
+    private boolean mDrainRequested;
+
+    private volatile boolean mOpen = true;
+
+    // / Set once closed or failed, so the listener hears of a failure once.
+    private final AtomicBoolean mClosed = new AtomicBoolean();
+
+    // / Set once failed, nothing is posted anymore then.
+    private volatile boolean mFailed;
+
+    // / The poll in flight, aborted on close.
+    private volatile HttpURLConnection mPoll;
+
+    private final Thread mPoller;
+    private final Thread mPoster;
+
+    /**
+     * @param core
+     *            The core of the connection.
+     * @param options
+     *            SocketIO options of the session.
+     * @param url
+     *            The session URL.
+     * @param pollTimeout
+     *            Read timeout of a poll in milliseconds.
+     * @param listener
+     *            Where decoded messages and failures go.
+     */
+    SocketIOPolling(SocketIOCore core, SocketIOOptions options, String url, int pollTimeout, Listener listener) {
+        mCore = core;
+        mOptions = options;
+        mUrl = url;
+        mPollTimeout = pollTimeout;
+        mListener = listener;
+
+        mDecoder = new SocketIODecoder(core, options, new SocketIODecoder.Sink() {
+            public void deliver(Object message) {
+                mListener.onMessage(SocketIOPolling.this, message);
+            }
+        });
+        mEncoder = new SocketIOEncoder(SocketIOCodecs.json(), core.mJsonMapper, SocketIOOptions.PROTOCOL_0_9);
+
+        mPoller = new Thread(new Runnable() {
+            public void run() {
+                poll();
+            }
+        }, "SocketIOPoller");
+        mPoller.setDaemon(true);
+        mPoster = new Thread(new Runnable() {
+            public void run() {
+                post();
+            }
+        }, "SocketIOPoster");
+        mPoster.setDaemon(true);
+    }
+
+    /**
+     * Start polling and posting.
+     */
+    void start() {
+        mPoller.start();
+        mPoster.start();
+    }
+
+    /**
+     * Whether the session neither failed nor was closed.
+     */
+    boolean isOpen() {
+        return mOpen;
+    }
+
+    /**
+     * Queue a message for the next post.
+     */
+    void send(Object message) {
+        synchronized (this) {
+            mPending.add(message);
+            notifyAll();
+        }
+    }
+
+    public void requestDrain() {
+        synchronized (this) {
+            mDrainRequested = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stop polling. Messages sent before are still posted, emits left in the
+     * outbound queue, or in a post that failed, wait for the next session.
+     */
+    void close() {
+        if (mClosed.compareAndSet(false, true)) {
+            stop();
+        }
+    }
+
+    private void fail(String reason) {
+        if (mClosed.compareAndSet(false, true)) {
+            mFailed = true;
+            stop();
+            mListener.onClose(this, WebSocket.ConnectionHandler.CLOSE_CONNECTION_LOST, reason);
+        }
+    }
+
+    private void stop() {
+        synchronized (this) {
+            mOpen = false;
+            notifyAll();
+        }
+        final HttpURLConnection poll = mPoll;
+        if (poll != null) {
+            poll.disconnect();
+        }
+    }
+
+    /**
+     * Poller thread: poll until closed. The server holds a poll until it has
+     * something for us, or answers a no-op after its polling duration.
+     */
+    private void poll() {
+        while (mOpen) {
+            try {
+                request(mUrl + "?t=" + System.currentTimeMillis(), null, 0, 0, mPollTimeout, mPollResponse);
+            } catch (IOException e) {
+                fail("connection lost (" + e.toString() + ")");
+                return;
+            }
+            if (!mOpen) {
+                return;
+            }
+            boolean retained = false;
+            if (mPollResponse.size() > 0) {
+                try {
+                    retained = mDecoder.decode(mPollResponse.getByteArray(), mPollResponse.size(), false);
+                } catch (IOException e) {
+                    // malformed messages are dropped, the session goes on
+                    retained = mDecoder.isRetained();
+                }
+            }
+            if (retained) {
+                mPollResponse.detach();
+            } else {
+                mPollResponse.release();
+            }
+        }
+    }
+
+    /**
+     * Poster thread: post whatever is pending, until closed and nothing is
+     * left, or until the session failed, as the control messages pending
+     * belong to it.
+     */
+    private void post() {
+        final ArrayList<Object> pending = new ArrayList<Object>();
+        // emits taken from the outbound queue into the post being built
+        final ArrayList<SocketIOMessage.Emit> taken = new ArrayList<SocketIOMessage.Emit>();
+        while (true) {
+            boolean drain;
+            synchronized (this) {
+                while (mOpen && mPending.isEmpty() && !mDrainRequested) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mFailed || mPending.isEmpty() && !mOpen) {
+                    return;
+                }
+                pending.addAll(mPending);
+                mPending.clear();
+                // once closed, emits stay queued for the next session
+                drain = mDrainRequested && mOpen;
+                mDrainRequested = false;
+            }
+
+            int count = 0;
+            int firstHeader = 0;
+            for (int i = 0; i < pending.size(); ++i) {
+                final int header = append(pending.get(i));
+                if (header >= 0 && count++ == 0) {
+                    firstHeader = header;
+                }
+            }
+            pending.clear();
+
+            while (drain && mBatch.size() < mOptions.getMaxBatchSize()) {
+                final SocketIOMessage.Emit emit = mCore.mOutboundQueue.poll(this);
+                if (emit == null) {
+                    drain = false;
+                    break;
+                }
+                final int header = append(emit);
+                if (header >= 0) {
+                    taken.add(emit);
+                    if (count++ == 0) {
+                        firstHeader = header;
+                    }
+                }
+            }
+            if (drain) {
+                // the batch is full, and the queue asks once until polled empty
+                synchronized (this) {
+                    mDrainRequested = true;
+                }
+            }
+
+            if (count > 0) {
+                // a single message goes out without the multi-message framing
+                final int offset = count == 1 ? firstHeader : 0;
+                final SocketIOMetrics metrics = mCore.mMetrics;
+                final long start = metrics != null ? System.nanoTime() : 0;
+                try {
+                    request(mUrl, mBatch.getByteArray(), offset, mBatch.size() - offset, POST_TIMEOUT,
+                            mPostResponse);
+                } catch (IOException e) {
+                    // the emits wait for the next session, which resends any
+                    // the server got before the post failed
+                    mCore.mOutboundQueue.requeue(taken);
+                    mBatch.release();
+                    fail("connection lost (" + e.toString() + ")");
+                    return;
+                }
+                if (metrics != null) {
+                    metrics.onFrameSent(mBatch.size() - offset, System.nanoTime() - start);
+                }
+            }
+            taken.clear();
+            mBatch.release();
+        }
+    }
+
+    /**
+     * Encode a message and append it, framed, to the batch.
+     *
+     * @return The length of the framing header, or -1 when the message could
+     *         not be encoded and was dropped.
+     */
+    private int append(Object message) {
+        final SocketIOMetrics metrics = mCore.mMetrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            mEncoder.encode(message, mPayload);
+            if (metrics != null && message instanceof SocketIOMessage.Emit) {
+                final SocketIOMessage.Emit emit = (SocketIOMessage.Emit) message;
+                metrics.onEventEncoded(emit.mEndpoint, emit.mName, mPayload.size(), System.nanoTime() - start);
+            }
+            final int header = mEncoder.appendFramed(mPayload.getByteArray(), mPayload.size(), mBatch);
+            mPayload.release();
+            return header;
+        } catch (IOException e) {
+            // unencodable events are dropped, as the writer does
+            return -1;
+        } catch (WebSocketException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Make a request, a GET without a body, a POST with one.
+     *
+     * @param response
+     *            Where the response body goes, emptied first.
+     * @throws IOException
+     *             When it failed, or was not answered 200.
+     */
+    private void request(String url, byte[] body, int offset, int length, int readTimeout,
+            SocketIOPooledOutputStream response) throws IOException {
+        response.release();
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(mOptions.getSocketConnectTimeout());
+        connection.setReadTimeout(readTimeout);
+        connection.setUseCaches(false);
+        if (body == null) {
+            mPoll = connection;
+            if (!mOpen) {
+                // closed before the poll could be aborted
+                throw new IOException("closed");
+            }
+        } else {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(length);
+            connection.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+            final OutputStream out = connection.getOutputStream();
+            out.write(body, offset, length);
+            out.close();
+        }
+        try {
+            final int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + status);
+            }
+            final InputStream in = connection.getInputStream();
+            try {
+                // reading to the end hands the connection back for reuse
+                readToEnd(in, response);
+            } finally {
+                in.close();
+            }
+        } finally {
+            if (body == null) {
+                mPoll = null;
+            }
+        }
+    }
+
+    private static void readToEnd(InputStream in, SocketIOPooledOutputStream out) throws IOException {
+        final byte[] buf = SocketIOBufferPool.take(4096);
+        try {
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+        } finally {
+            SocketIOBufferPool.release(buf);
+        }
+    }
+}
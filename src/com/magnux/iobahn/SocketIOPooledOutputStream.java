@@ -0,0 +1,78 @@
+package com.magnux.iobahn;
+
+import de.tavendo.autobahn.NoCopyByteArrayOutputStream;
+
+/**
+ * Byte array stream growing through the SocketIOBufferPool. It keeps a small
+ * array of its own for the common message, and gives larger ones back to the
+ * pool on {@link #release()}, so a stream does not stay as large as the
+ * largest message it ever held. Not thread safe, unlike its parent.
+ */
+final class SocketIOPooledOutputStream extends NoCopyByteArrayOutputStream {
+
+    // / Size of the array a stream keeps, enough for most messages.
+    private static final int HOME_SIZE = 4 * 1024;
+
+    // / The array kept, buf when nothing larger was needed.
+    private byte[] mHome;
+
+    SocketIOPooledOutputStream() {
+        super(HOME_SIZE);
+        mHome = buf;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    private void ensureCapacity(int length) {
+        if (length <= buf.length) {
+            return;
+        }
+        if (length < 0) {
+            throw new OutOfMemoryError();
+        }
+        final byte[] grown = SocketIOBufferPool.take(Math.max(length, buf.length << 1));
+        System.arraycopy(buf, 0, grown, 0, count);
+        if (buf != mHome) {
+            SocketIOBufferPool.release(buf);
+        }
+        buf = grown;
+    }
+
+    /**
+     * Empty the stream, and give a pooled array back. The content must not
+     * be used any more.
+     */
+    void release() {
+        count = 0;
+        if (buf != mHome) {
+            SocketIOBufferPool.release(buf);
+            buf = mHome;
+        }
+    }
+
+    /**
+     * Empty the stream, leaving its array to whoever holds on to the
+     * content, say views of a received frame.
+     */
+    void detach() {
+        count = 0;
+        if (buf == mHome) {
+            mHome = new byte[HOME_SIZE];
+        }
+        buf = mHome;
+    }
+}
@@ -0,0 +1,244 @@
+package com.magnux.iobahn;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.type.TypeReference;
+
+/**
+ * Undecoded event, delivered to raw event handlers. It is a view of the
+ * array of the event arguments, within the frame it was received in, and is
+ * only decoded when asked to. The array is UTF-8 encoded JSON, or in the
+ * format of the codec for events received in binary frames.
+ *
+ * A frame viewed is never reused, so the view stays valid after the handler
+ * returns, and can be kept or handed to other threads. Keeping it keeps the
+ * whole frame in memory, though; decode what is needed of a large frame
+ * instead.
+ */
+public class SocketIORawEvent {
+
+    private static final byte[] NO_ARGS = { '[', ']' };
+
+    private final ObjectMapper mJsonMapper;
+    private final JsonFactory mFactory;
+    private final boolean mBinary;
+    private final String mEndpoint;
+    private final String mName;
+    private final byte[] mBuffer;
+    private final int mOffset;
+    private final int mLength;
+
+    // / Engine.IO attachments, or null.
+    private final ByteBuffer[] mAttachments;
+
+    SocketIORawEvent(ObjectMapper jsonMapper, JsonFactory factory, boolean binary, String endpoint, String name,
+            byte[] buffer, int offset, int length, ByteBuffer[] attachments) {
+        mJsonMapper = jsonMapper;
+        mFactory = factory;
+        mBinary = binary;
+        mEndpoint = endpoint;
+        mName = name;
+        mBuffer = buffer;
+        mOffset = offset;
+        mLength = length;
+        mAttachments = attachments;
+    }
+
+    /**
+     * Create the view of an event without arguments.
+     */
+    SocketIORawEvent(ObjectMapper jsonMapper, String endpoint, String name) {
+        this(jsonMapper, jsonMapper.getJsonFactory(), false, endpoint, name, NO_ARGS, 0, NO_ARGS.length, null);
+    }
+
+    /**
+     * Get the endpoint the event was received on.
+     *
+     * @return The endpoint, or an empty string for the root.
+     */
+    public String getEndpoint() {
+        return mEndpoint;
+    }
+
+    /**
+     * Get the name of the event.
+     *
+     * @return The event name.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Whether the arguments are in the binary format of the codec, rather
+     * than JSON.
+     *
+     * @return True for events received in binary frames.
+     */
+    public boolean isBinary() {
+        return mBinary;
+    }
+
+    /**
+     * Get the buffer holding the arguments, to be read from getOffset() for
+     * getLength() bytes only.
+     *
+     * @return The buffer, not to be modified.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Get the start of the arguments in the buffer.
+     *
+     * @return The offset where the arguments array starts.
+     */
+    public int getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Get the length of the arguments.
+     *
+     * @return The length of the arguments array, in bytes.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Get the binary attachments of an Engine.IO event. The buffer holds
+     * placeholders <code>{"_placeholder":true,"num":n}</code> where they
+     * were, which the parsers and decoders of this view replace with
+     * attachment n.
+     *
+     * @return Slices of the frames the attachments came in, which stay
+     *         valid, or null for events without attachments.
+     */
+    public ByteBuffer[] getAttachments() {
+        return mAttachments;
+    }
+
+    /**
+     * Create a parser over the arguments, to pick out parts of them
+     * without decoding the rest. It is positioned before the opening
+     * bracket of the arguments array. Attachments come as embedded
+     * ByteBuffer objects, the arguments having been decoded into a tree for
+     * that.
+     *
+     * @return A new parser, to be closed by the caller.
+     */
+    public JsonParser createParser() throws IOException {
+        return SocketIOBinary.createParser(mJsonMapper, mFactory, mBuffer, mOffset, mLength, mAttachments);
+    }
+
+    /**
+     * Decode the arguments into a tree.
+     *
+     * @return The array node of the arguments.
+     */
+    public JsonNode readTree() throws IOException {
+        final JsonParser parser = createParser();
+        try {
+            return mJsonMapper.readTree(parser);
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Decode the first argument, as a subscription with this type would.
+     *
+     * @param type
+     *            The type the argument gets transformed into.
+     * @return The argument, or null when there is none.
+     */
+    public <T> T read(Class<T> type) throws IOException {
+        final JsonParser parser = firstArg();
+        try {
+            return parser != null ? mJsonMapper.readValue(parser, type) : null;
+        } finally {
+            close(parser);
+        }
+    }
+
+    /**
+     * Decode the first argument, as a subscription with this type would.
+     *
+     * @param type
+     *            The type the argument gets transformed into.
+     * @return The argument, or null when there is none.
+     */
+    public <T> T read(TypeReference<T> type) throws IOException {
+        final JsonParser parser = firstArg();
+        try {
+            return parser != null ? mJsonMapper.<T> readValue(parser, type) : null;
+        } finally {
+            close(parser);
+        }
+    }
+
+    /**
+     * Decode the first argument with a subscription decoder.
+     *
+     * @param reader
+     *            The decoder bound to the type of the subscription.
+     * @return The argument, or null when there is none.
+     */
+    Object read(ObjectReader reader) throws IOException {
+        final JsonParser parser = firstArg();
+        try {
+            return parser != null ? reader.readValue(parser) : null;
+        } finally {
+            close(parser);
+        }
+    }
+
+    /**
+     * Get the arguments as JSON text.
+     */
+    @Override
+    public String toString() {
+        try {
+            return mBinary ? readTree().toString() : new String(mBuffer, mOffset, mLength, "UTF8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.toString());
+        } catch (IOException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    /**
+     * Create a parser positioned on the first argument, or null when there
+     * is none.
+     */
+    private JsonParser firstArg() throws IOException {
+        final JsonParser parser = createParser();
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+            parser.close();
+            throw new JsonParseException("event args is not an array", parser.getCurrentLocation());
+        }
+        final JsonToken token = parser.nextToken();
+        if (token == null || token == JsonToken.END_ARRAY) {
+            parser.close();
+            return null;
+        }
+        return parser;
+    }
+
+    private static void close(JsonParser parser) throws IOException {
+        if (parser != null) {
+            parser.close();
+        }
+    }
+}
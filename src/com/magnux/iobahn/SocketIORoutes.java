@@ -0,0 +1,170 @@
+package com.magnux.iobahn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import com.magnux.iobahn.SocketIOCore.EventMeta;
+
+/**
+ * Event routing table compiled from the subscriptions of an endpoint.
+ *
+ * Tables are immutable: every subscribe or unsubscribe compiles a new one,
+ * so the reader thread looks events up without locking. Names subscribed
+ * exactly are found with a single hash lookup, with the matching wildcard
+ * subscriptions already merged in. Other names walk a prefix trie of the
+ * wildcard subscriptions, one node per character, whatever the number of
+ * subscriptions.
+ */
+final class SocketIORoutes {
+
+    // / Subscription name suffix that matches any rest of an event name.
+    static final char WILDCARD = '*';
+
+    static final EventMeta[] NO_ROUTES = new EventMeta[0];
+
+    static final SocketIORoutes EMPTY = new SocketIORoutes(new ArrayList<EventMeta>());
+
+    // / Subscriptions per exactly subscribed name, wildcard ones included.
+    private final HashMap<String, EventMeta[]> mExact;
+
+    // / Root of the wildcard prefix trie, or null when there are none.
+    private final Node mPrefixes;
+
+    /**
+     * Trie node, holding the wildcard subscriptions of its prefix and of all
+     * shorter prefixes on its path.
+     */
+    private static final class Node {
+
+        // / Sorted child keys, and the children in the same order.
+        char[] mKeys = new char[0];
+        Node[] mChildren = new Node[0];
+
+        // / Subscriptions matching any name through this node.
+        EventMeta[] mMatches = NO_ROUTES;
+
+        Node child(char key) {
+            final int i = Arrays.binarySearch(mKeys, key);
+            return i >= 0 ? mChildren[i] : null;
+        }
+
+        Node addChild(char key) {
+            int i = Arrays.binarySearch(mKeys, key);
+            if (i >= 0) {
+                return mChildren[i];
+            }
+            i = -i - 1;
+            final char[] keys = new char[mKeys.length + 1];
+            final Node[] children = new Node[mKeys.length + 1];
+            System.arraycopy(mKeys, 0, keys, 0, i);
+            System.arraycopy(mChildren, 0, children, 0, i);
+            System.arraycopy(mKeys, i, keys, i + 1, mKeys.length - i);
+            System.arraycopy(mChildren, i, children, i + 1, mKeys.length - i);
+            keys[i] = key;
+            children[i] = new Node();
+            mKeys = keys;
+            mChildren = children;
+            return children[i];
+        }
+    }
+
+    /**
+     * Compile the subscriptions of an endpoint. Handlers of an event are
+     * fired in subscription order.
+     *
+     * @param subscriptions
+     *            The subscriptions, not kept.
+     */
+    SocketIORoutes(List<EventMeta> subscriptions) {
+
+        final ArrayList<EventMeta> wildcards = new ArrayList<EventMeta>();
+        for (EventMeta meta : subscriptions) {
+            if (isWildcard(meta.mName)) {
+                wildcards.add(meta);
+            }
+        }
+
+        mExact = new HashMap<String, EventMeta[]>();
+        for (EventMeta meta : subscriptions) {
+            if (!isWildcard(meta.mName) && !mExact.containsKey(meta.mName)) {
+                mExact.put(meta.mName, collect(subscriptions, meta.mName));
+            }
+        }
+
+        if (wildcards.isEmpty()) {
+            mPrefixes = null;
+            return;
+        }
+
+        mPrefixes = new Node();
+        for (EventMeta meta : wildcards) {
+            Node node = mPrefixes;
+            final String prefix = prefix(meta.mName);
+            for (int i = 0; i < prefix.length(); ++i) {
+                node = node.addChild(prefix.charAt(i));
+            }
+        }
+        compile(mPrefixes, "", wildcards);
+    }
+
+    /**
+     * Get the subscriptions an event is routed to.
+     *
+     * @param name
+     *            The event name.
+     * @return The subscriptions, in subscription order, possibly none.
+     */
+    EventMeta[] match(String name) {
+        final EventMeta[] exact = mExact.get(name);
+        if (exact != null) {
+            return exact;
+        }
+        Node node = mPrefixes;
+        if (node == null) {
+            return NO_ROUTES;
+        }
+        for (int i = 0; i < name.length(); ++i) {
+            final Node child = node.child(name.charAt(i));
+            if (child == null) {
+                break;
+            }
+            node = child;
+        }
+        return node.mMatches;
+    }
+
+    private static void compile(Node node, String path, List<EventMeta> wildcards) {
+        final ArrayList<EventMeta> matches = new ArrayList<EventMeta>();
+        for (EventMeta meta : wildcards) {
+            if (path.startsWith(prefix(meta.mName))) {
+                matches.add(meta);
+            }
+        }
+        if (!matches.isEmpty()) {
+            node.mMatches = matches.toArray(new EventMeta[matches.size()]);
+        }
+        for (int i = 0; i < node.mKeys.length; ++i) {
+            compile(node.mChildren[i], path + node.mKeys[i], wildcards);
+        }
+    }
+
+    private static EventMeta[] collect(List<EventMeta> subscriptions, String name) {
+        final ArrayList<EventMeta> matches = new ArrayList<EventMeta>();
+        for (EventMeta meta : subscriptions) {
+            if (isWildcard(meta.mName) ? name.startsWith(prefix(meta.mName)) : name.equals(meta.mName)) {
+                matches.add(meta);
+            }
+        }
+        return matches.toArray(new EventMeta[matches.size()]);
+    }
+
+    static boolean isWildcard(String name) {
+        return name.length() > 0 && name.charAt(name.length() - 1) == WILDCARD;
+    }
+
+    private static String prefix(String wildcard) {
+        return wildcard.substring(0, wildcard.length() - 1);
+    }
+}
@@ -0,0 +1,60 @@
+package com.magnux.iobahn;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process wide scheduler for the periodic work of SocketIO connections. A
+ * single daemon thread serves every connection, so threads and wakeups do not
+ * grow with the number of connections.
+ */
+final class SocketIOScheduler {
+
+    // / The shared executor, created on first use.
+    private static ScheduledThreadPoolExecutor sExecutor;
+
+    private SocketIOScheduler() {
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor executor() {
+        if (sExecutor == null) {
+            sExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SocketIOScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Run a task periodically, first run after one period.
+     * 
+     * @param task
+     *            The task to run.
+     * @param periodMillis
+     *            The period in milliseconds.
+     * @return The handle to cancel the task with.
+     */
+    static ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long periodMillis) {
+        return executor().scheduleAtFixedRate(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancel a task and drop it from the queue right away, rather than at its
+     * next due time.
+     * 
+     * @param future
+     *            The handle returned when scheduling, may be null.
+     */
+    static void cancel(ScheduledFuture<?> future) {
+        if (future != null) {
+            future.cancel(false);
+            executor().purge();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.magnux.iobahn;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ready-made metrics, keeping lock-free counters, latency histograms and
+ * per event name counts, to be read from any thread.
+ *
+ * <pre>
+ * SocketIOStats stats = new SocketIOStats();
+ * mConnection.setMetrics(stats);
+ * ...
+ * Log.i(TAG, "decode " + stats.getDecodeNanos() + " rate " + stats.getReceivedRate("ticker"));
+ * </pre>
+ */
+public class SocketIOStats implements SocketIOMetrics {
+
+    private final AtomicLong mFramesReceived = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mFramesSent = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mEventsUnrouted = new AtomicLong();
+    private final AtomicLong mHeartbeats = new AtomicLong();
+
+    // / Outbound queue depth after the latest emit, and the largest seen.
+    private final AtomicInteger mOutboundQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxOutboundQueueDepth = new AtomicInteger();
+
+    private final SocketIOHistogram mDecodeNanos = new SocketIOHistogram();
+    private final SocketIOHistogram mQueuedNanos = new SocketIOHistogram();
+    private final SocketIOHistogram mDispatchNanos = new SocketIOHistogram();
+    private final SocketIOHistogram mEncodeNanos = new SocketIOHistogram();
+    private final SocketIOHistogram mSendNanos = new SocketIOHistogram();
+    private final SocketIOHistogram mAckRoundTripMillis = new SocketIOHistogram();
+    private final SocketIOHistogram mHeartbeatIntervalMillis = new SocketIOHistogram();
+
+    // / Time to open a session, and its phases; phases a session went
+    // / without are not recorded.
+    private final SocketIOHistogram mConnectNanos = new SocketIOHistogram();
+    private final SocketIOHistogram mDnsNanos = new SocketIOHistogram();
+    private final SocketIOHistogram mTcpNanos = new SocketIOHistogram();
+    private final SocketIOHistogram mHandshakeNanos = new SocketIOHistogram();
+    private final SocketIOHistogram mUpgradeNanos = new SocketIOHistogram();
+
+    // / Events received and emitted per name, "endpoint:name" off the root.
+    private final ConcurrentHashMap<String, AtomicLong> mReceived = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, AtomicLong> mEmitted = new ConcurrentHashMap<String, AtomicLong>();
+
+    // / Time counting started, System.nanoTime() based, so stats work off
+    // / Android too.
+    private volatile long mStartTime = System.nanoTime();
+
+    @Override
+    public void onFrameReceived(int length) {
+        mFramesReceived.incrementAndGet();
+        mBytesReceived.addAndGet(length);
+    }
+
+    @Override
+    public void onEventDecoded(String endpoint, String name, long nanos) {
+        mDecodeNanos.record(nanos);
+        increment(mReceived, key(endpoint, name));
+    }
+
+    @Override
+    public void onEventUnrouted(String endpoint, String name) {
+        mEventsUnrouted.incrementAndGet();
+    }
+
+    @Override
+    public void onEventDispatched(String endpoint, String name, long queuedNanos, long handlerNanos) {
+        mQueuedNanos.record(queuedNanos);
+        mDispatchNanos.record(handlerNanos);
+    }
+
+    @Override
+    public void onEventEncoded(String endpoint, String name, int length, long nanos) {
+        mEncodeNanos.record(nanos);
+        increment(mEmitted, key(endpoint, name));
+    }
+
+    @Override
+    public void onFrameSent(int length, long nanos) {
+        mFramesSent.incrementAndGet();
+        mBytesSent.addAndGet(length);
+        mSendNanos.record(nanos);
+    }
+
+    @Override
+    public void onOutboundQueueDepth(int depth) {
+        mOutboundQueueDepth.set(depth);
+        int max = mMaxOutboundQueueDepth.get();
+        while (depth > max && !mMaxOutboundQueueDepth.compareAndSet(max, depth)) {
+            max = mMaxOutboundQueueDepth.get();
+        }
+    }
+
+    @Override
+    public void onAckRoundTrip(long millis) {
+        mAckRoundTripMillis.record(millis);
+    }
+
+    @Override
+    public void onHeartbeat(long intervalMillis) {
+        mHeartbeats.incrementAndGet();
+        if (intervalMillis >= 0) {
+            mHeartbeatIntervalMillis.record(intervalMillis);
+        }
+    }
+
+    @Override
+    public void onConnected(long totalNanos, long dnsNanos, long tcpNanos, long handshakeNanos, long upgradeNanos) {
+        mConnectNanos.record(totalNanos);
+        recordPhase(mDnsNanos, dnsNanos);
+        recordPhase(mTcpNanos, tcpNanos);
+        recordPhase(mHandshakeNanos, handshakeNanos);
+        recordPhase(mUpgradeNanos, upgradeNanos);
+    }
+
+    public long getFramesReceived() {
+        return mFramesReceived.get();
+    }
+
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    public long getFramesSent() {
+        return mFramesSent.get();
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    public long getEventsUnrouted() {
+        return mEventsUnrouted.get();
+    }
+
+    public long getHeartbeats() {
+        return mHeartbeats.get();
+    }
+
+    public int getOutboundQueueDepth() {
+        return mOutboundQueueDepth.get();
+    }
+
+    public int getMaxOutboundQueueDepth() {
+        return mMaxOutboundQueueDepth.get();
+    }
+
+    public SocketIOHistogram getDecodeNanos() {
+        return mDecodeNanos;
+    }
+
+    public SocketIOHistogram getQueuedNanos() {
+        return mQueuedNanos;
+    }
+
+    public SocketIOHistogram getDispatchNanos() {
+        return mDispatchNanos;
+    }
+
+    public SocketIOHistogram getEncodeNanos() {
+        return mEncodeNanos;
+    }
+
+    public SocketIOHistogram getSendNanos() {
+        return mSendNanos;
+    }
+
+    public SocketIOHistogram getAckRoundTripMillis() {
+        return mAckRoundTripMillis;
+    }
+
+    public SocketIOHistogram getHeartbeatIntervalMillis() {
+        return mHeartbeatIntervalMillis;
+    }
+
+    public SocketIOHistogram getConnectNanos() {
+        return mConnectNanos;
+    }
+
+    public SocketIOHistogram getDnsNanos() {
+        return mDnsNanos;
+    }
+
+    public SocketIOHistogram getTcpNanos() {
+        return mTcpNanos;
+    }
+
+    public SocketIOHistogram getHandshakeNanos() {
+        return mHandshakeNanos;
+    }
+
+    public SocketIOHistogram getUpgradeNanos() {
+        return mUpgradeNanos;
+    }
+
+    /**
+     * Get the number of events received per name.
+     *
+     * @return A snapshot, keyed by name, or by "endpoint:name" for events
+     *         received off the root endpoint.
+     */
+    public Map<String, Long> getReceivedCounts() {
+        return snapshot(mReceived);
+    }
+
+    /**
+     * Get the number of events emitted per name.
+     *
+     * @return A snapshot, keyed by name, or by "endpoint:name" for events
+     *         emitted off the root endpoint.
+     */
+    public Map<String, Long> getEmittedCounts() {
+        return snapshot(mEmitted);
+    }
+
+    /**
+     * Get the average rate an event was received at since counting started.
+     *
+     * @param name
+     *            The event name, or "endpoint:name" off the root endpoint.
+     * @return Events per second.
+     */
+    public double getReceivedRate(String name) {
+        return rate(mReceived.get(name));
+    }
+
+    /**
+     * Get the average rate an event was emitted at since counting started.
+     *
+     * @param name
+     *            The event name, or "endpoint:name" off the root endpoint.
+     * @return Events per second.
+     */
+    public double getEmittedRate(String name) {
+        return rate(mEmitted.get(name));
+    }
+
+    /**
+     * Restart counting. Values recorded meanwhile may be partly kept.
+     */
+    public void reset() {
+        mFramesReceived.set(0);
+        mBytesReceived.set(0);
+        mFramesSent.set(0);
+        mBytesSent.set(0);
+        mEventsUnrouted.set(0);
+        mHeartbeats.set(0);
+        mMaxOutboundQueueDepth.set(0);
+        mDecodeNanos.reset();
+        mQueuedNanos.reset();
+        mDispatchNanos.reset();
+        mEncodeNanos.reset();
+        mSendNanos.reset();
+        mAckRoundTripMillis.reset();
+        mHeartbeatIntervalMillis.reset();
+        mConnectNanos.reset();
+        mDnsNanos.reset();
+        mTcpNanos.reset();
+        mHandshakeNanos.reset();
+        mUpgradeNanos.reset();
+        mReceived.clear();
+        mEmitted.clear();
+        mStartTime = System.nanoTime();
+    }
+
+    private double rate(AtomicLong count) {
+        final long elapsed = System.nanoTime() - mStartTime;
+        if (count == null || elapsed <= 0) {
+            return 0;
+        }
+        return count.get() * 1e9 / elapsed;
+    }
+
+    private static void recordPhase(SocketIOHistogram histogram, long nanos) {
+        if (nanos > 0) {
+            histogram.record(nanos);
+        }
+    }
+
+    private static String key(String endpoint, String name) {
+        return endpoint.length() == 0 ? name : endpoint + ':' + name;
+    }
+
+    private static void increment(ConcurrentHashMap<String, AtomicLong> counts, String key) {
+        AtomicLong count = counts.get(key);
+        if (count == null) {
+            final AtomicLong created = new AtomicLong();
+            count = counts.putIfAbsent(key, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private static Map<String, Long> snapshot(ConcurrentHashMap<String, AtomicLong> counts) {
+        final HashMap<String, Long> snapshot = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : counts.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+}
@@ -1,36 +1,132 @@
 package com.magnux.iobahn;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
-import org.codehaus.jackson.JsonFactory;
-import org.codehaus.jackson.JsonGenerationException;
-import org.codehaus.jackson.JsonGenerator;
-import org.codehaus.jackson.map.JsonMappingException;
-import org.codehaus.jackson.map.MappingJsonFactory;
+import org.codehaus.jackson.map.ObjectMapper;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
-import de.tavendo.autobahn.NoCopyByteArrayOutputStream;
 import de.tavendo.autobahn.WebSocketException;
-import de.tavendo.autobahn.WebSocketOptions;
+import de.tavendo.autobahn.WebSocketMessage;
 import de.tavendo.autobahn.WebSocketWriter;
 
-public class SocketIOWriter extends WebSocketWriter {
+public class SocketIOWriter extends WebSocketWriter implements SocketIOOutboundQueue.Consumer {
 
-    private static final boolean DEBUG = true;
+    private static final boolean DEBUG = false;
     private static final String TAG = SocketIOWriter.class.getName();
 
     /**
-     * This is the Jackson JSON factory we use to create JSON generators.
+     * This is what we serialize SocketIO messages with.
      */
-    private final JsonFactory mJsonFactory;
+    private final SocketIOEncoder mEncoder;
 
     /**
-     * This is where we buffer the JSON serialization of SocketIO messages.
+     * WebSockets opcode of the frames we send, text or binary.
      */
-    private final NoCopyByteArrayOutputStream mPayload;
+    private final int mOpcode;
+
+    /**
+     * This is where we buffer the JSON serialization of SocketIO messages,
+     * in arrays of the buffer pool once larger than the common message.
+     */
+    private final SocketIOPooledOutputStream mPayload;
+
+    /**
+     * Message "what" of the delayed batch flush, kept apart from the messages
+     * forwarded to us (which all have "what" 0) so the queue can be checked
+     * for pending messages.
+     */
+    private static final int MSG_FLUSH_BATCH = 1;
+
+    /**
+     * Marker object posted to ourselves to flush the pending batch.
+     */
+    private static final Object FLUSH_BATCH = new Object();
+
+    /**
+     * Marker object forwarded to us to pull emits from the outbound queue.
+     */
+    static final Object DRAIN_OUTBOUND_QUEUE = new Object();
+
+    /**
+     * Engine.IO v3 message type, ahead of attachment bytes.
+     */
+    private static final byte[] ATTACHMENT_PREFIX = { SocketIOMessage.ENGINE_BINARY_MESSAGE };
+
+    /**
+     * Emits pulled per drain request, so control messages queued meanwhile
+     * (heartbeats, acks) are not held back by a long backlog.
+     */
+    private static final int MAX_DRAIN = 64;
+
+    /**
+     * The outbound queue emits are pulled from.
+     */
+    private final SocketIOOutboundQueue mOutboundQueue;
+
+    /**
+     * SocketIO options, for the batching settings.
+     */
+    private final SocketIOOptions mOptions;
+
+    /**
+     * This is where we accumulate framed messages while batching.
+     */
+    private final SocketIOPooledOutputStream mBatch;
+
+    /**
+     * Number of messages in the pending batch.
+     */
+    private int mBatchCount;
+
+    /**
+     * Length of the multi-message header of the first message in the batch,
+     * skipped when the batch holds a single message.
+     */
+    private int mBatchFirstHeader;
+
+    /**
+     * True while a delayed flush is queued.
+     */
+    private boolean mFlushScheduled;
+
+    /**
+     * Time of the last frame sent, SystemClock.elapsedRealtime() based.
+     */
+    private volatile long mLastSendTime;
+
+    /**
+     * Instrumentation of the connection, or null when nothing is measured.
+     */
+    private volatile SocketIOMetrics mMetrics;
+
+    /**
+     * True when the looper is shared with the other connections of a
+     * SocketIOConnectionGroup, so only this writer ends on quit.
+     */
+    private final boolean mSharedLooper;
+
+    /**
+     * True once this writer quit a shared looper, messages still coming are
+     * dropped.
+     */
+    private volatile boolean mQuit;
+
+    /**
+     * The TCP socket, closed to abort a stalled write.
+     */
+    private final SocketChannel mSocket;
+
+    /**
+     * Time the message being handled started, SystemClock.elapsedRealtime()
+     * based, or -1 between messages.
+     */
+    private volatile long mHandlingSince = -1;
 
     /**
      * A writer object is created in SocketIOConnection.
@@ -44,98 +140,283 @@ public class SocketIOWriter extends WebSocketWriter {
      * @param socket
      *            The TCP socket (channel) the WebSocket connection runs over.
      * @param options
-     *            WebSockets options for the underlying WebSockets connection.
+     *            SocketIO options for the connection.
+     * @param jsonMapper
+     *            The Jackson mapper event objects are serialized with.
+     * @param outboundQueue
+     *            The queue emitted events are pulled from.
+     * @param sharedLooper
+     *            Whether the looper serves other writers as well.
      */
-    public SocketIOWriter(Looper looper, Handler master, SocketChannel socket, WebSocketOptions options) {
+    SocketIOWriter(Looper looper, Handler master, SocketChannel socket, SocketIOOptions options,
+            ObjectMapper jsonMapper, SocketIOOutboundQueue outboundQueue, boolean sharedLooper) {
 
         super(looper, master, socket, options);
 
-        mJsonFactory = new MappingJsonFactory();
-        mPayload = new NoCopyByteArrayOutputStream();
+        mEncoder = new SocketIOEncoder(options.getCodec(), jsonMapper, options.getProtocol());
+        mOpcode = mEncoder.isBinary() ? 2 : 1;
+        mPayload = new SocketIOPooledOutputStream();
+        mOptions = options;
+        mBatch = new SocketIOPooledOutputStream();
+        mOutboundQueue = outboundQueue;
+        mSharedLooper = sharedLooper;
+        mSocket = socket;
 
         if (DEBUG)
             Log.d(TAG, "created");
     }
 
+    @Override
+    public void requestDrain() {
+        forward(DRAIN_OUTBOUND_QUEUE);
+    }
+
+    /**
+     * Get the time of the last frame sent, which tells whether the link was
+     * recently proven alive.
+     * 
+     * @return The SystemClock.elapsedRealtime() of the last frame sent.
+     */
+    public long getLastSendTime() {
+        return mLastSendTime;
+    }
+
+    /**
+     * Set the instrumentation to report to.
+     * 
+     * @param metrics
+     *            The metrics, or null to stop measuring.
+     */
+    void setMetrics(SocketIOMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Time each message, serialization and socket writes included, so a
+     * write stalled on a peer that stopped reading can be told apart.
+     */
+    @Override
+    public void handleMessage(Message msg) {
+        mHandlingSince = SystemClock.elapsedRealtime();
+        try {
+            super.handleMessage(msg);
+        } finally {
+            mHandlingSince = -1;
+        }
+    }
+
+    /**
+     * Close the socket when the message being handled has taken longer than
+     * a timeout, which fails the blocked write and closes the connection.
+     * Called from another thread.
+     *
+     * @param now
+     *            The SystemClock.elapsedRealtime() to measure against.
+     * @param timeout
+     *            The timeout in milliseconds.
+     * @return True, iff the socket was closed.
+     */
+    boolean abortStalledWrite(long now, long timeout) {
+        final long since = mHandlingSince;
+        if (since < 0 || now - since < timeout) {
+            return false;
+        }
+        if (DEBUG)
+            Log.d(TAG, "write stalled for " + (now - since) + " ms, closing");
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // closed anyway
+        }
+        return true;
+    }
+
+    /**
+     * Whether this writer quit its shared looper, its connection is closed.
+     */
+    boolean isQuit() {
+        return mQuit;
+    }
+
+    /**
+     * Called by WebSocketWriter and ourselves for every frame sent.
+     */
+    protected void sendFrame(int opcode, boolean fin, byte[] payload, int offset, int length) throws IOException {
+        final SocketIOMetrics metrics = mMetrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
+        super.sendFrame(opcode, fin, payload, offset, length);
+        mLastSendTime = SystemClock.elapsedRealtime();
+        if (metrics != null) {
+            metrics.onFrameSent(length, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Called from WebSocketWriter for every message in it's message loop. The
+     * pending batch is flushed ahead of any WebSockets level message (close,
+     * ping, quit...), so that ordering is kept. Drain requests add to it,
+     * as the emits they pull are SocketIO messages too.
+     */
+    protected void processMessage(Object msg) throws IOException, WebSocketException {
+
+        if (mQuit) {
+            return;
+        }
+        if (mSharedLooper && msg instanceof WebSocketMessage.Quit) {
+            // the looper goes on for the rest of the group, only we end
+            mQuit = true;
+            removeCallbacksAndMessages(null);
+            if (DEBUG)
+                Log.d(TAG, "ended");
+            return;
+        }
+
+        if (mBatchCount > 0 && !(msg instanceof SocketIOMessage.Message) && msg != FLUSH_BATCH
+                && msg != DRAIN_OUTBOUND_QUEUE) {
+            flushBatch();
+        }
+        super.processMessage(msg);
+    }
+
     /**
      * Called from WebSocketWriter when it receives a message in it's message
      * loop it does not recognize.
      */
     protected void processAppMessage(Object msg) throws WebSocketException, IOException {
 
-        mPayload.reset();
+        if (msg == FLUSH_BATCH) {
+            mFlushScheduled = false;
+            flushBatch();
+            return;
+        }
+
+        if (msg == DRAIN_OUTBOUND_QUEUE) {
+            drainOutboundQueue();
+            return;
+        }
 
-        // creating a JSON generator is supposed to be a light-weight operation
-        JsonGenerator generator = mJsonFactory.createJsonGenerator(mPayload);
+        writeMessage(msg);
+    }
 
-        try {
+    /**
+     * Write the emits waiting in the outbound queue, and ask for another
+     * round when some are left.
+     */
+    private void drainOutboundQueue() throws WebSocketException, IOException {
 
-            if (msg instanceof SocketIOMessage.Disconnect) {
+        for (int i = 0; i < MAX_DRAIN; ++i) {
+            SocketIOMessage.Emit emit = mOutboundQueue.poll(this);
+            if (emit == null) {
+                return;
+            }
+            writeMessage(emit);
+        }
 
-                generator.writeNumber(SocketIOMessage.MESSAGE_TYPE_DISCONNECT);
-                SocketIOMessage.Disconnect dis = (SocketIOMessage.Disconnect) msg;
-                
-                if (dis.mEndpoint != null){
-                	generator.writeRaw("::/");
-                	generator.writeRaw(dis.mEndpoint);
-                }
+        forward(DRAIN_OUTBOUND_QUEUE);
+    }
 
-            } else if (msg instanceof SocketIOMessage.Heartbeat) {
+    /**
+     * Send a SocketIO message, or add it to the pending batch.
+     */
+    private void writeMessage(Object msg) throws WebSocketException, IOException {
 
-                generator.writeNumber(SocketIOMessage.MESSAGE_TYPE_HEARTBEAT);
-                generator.writeRaw(":::");
+        final SocketIOMetrics metrics = mMetrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
 
-            } else if (msg instanceof SocketIOMessage.Emit) {
+        mEncoder.encode(msg, mPayload);
 
-                SocketIOMessage.Emit emit = (SocketIOMessage.Emit) msg;
-                
-                generator.writeNumber(SocketIOMessage.MESSAGE_TYPE_EVENT);
-                generator.writeRaw(":::");
-                generator.writeStartObject();
-                generator.writeFieldName("name");
-                generator.writeString(emit.mName);
-                generator.writeFieldName("args");
-                generator.writeStartArray();
-                generator.writeObject(emit.mEvent);
-                generator.writeEndArray();
-                generator.writeEndObject();
+        if (metrics != null && msg instanceof SocketIOMessage.Emit) {
+            SocketIOMessage.Emit emit = (SocketIOMessage.Emit) msg;
+            metrics.onEventEncoded(emit.mEndpoint, emit.mName, mPayload.size(), System.nanoTime() - start);
+        }
 
-            } else if (msg instanceof SocketIOMessage.ACK) {
+        // the multi-message framing batches are sent in is SocketIO 0.9's
+        if (!mOptions.getBatchingEnabled() || mOptions.getProtocol() != SocketIOOptions.PROTOCOL_0_9) {
 
-                SocketIOMessage.ACK ack = (SocketIOMessage.ACK) msg;
+            // Jackson's generators produce the encoded payload directly, so
+            // we send the frame using the raw sendFrame() method
+            sendFrame(mOpcode, true, mPayload.getByteArray(), 0, mPayload.size());
+            mPayload.release();
+            sendAttachments();
+            return;
+        }
 
-                generator.writeNumber(SocketIOMessage.MESSAGE_TYPE_ACK);
-                generator.writeRaw(":::");
-                generator.writeRaw(ack.mId);
+        appendToBatch();
+    }
 
+    /**
+     * Send the Engine.IO attachments of the message just sent, in binary
+     * frames masked straight from the arrays given to emit().
+     */
+    private void sendAttachments() throws IOException {
+
+        for (int i = 0; i < mEncoder.getAttachmentCount(); ++i) {
+            final ByteBuffer attachment = mEncoder.getAttachment(i);
+            final byte[] array = attachment.array();
+            final int offset = attachment.arrayOffset() + attachment.position();
+            if (mEncoder.isAttachmentPrefixed()) {
+                // the Engine.IO v3 type byte goes in a fragment of its own
+                sendFrame(2, false, ATTACHMENT_PREFIX, 0, 1);
+                sendFrame(0, true, array, offset, attachment.remaining());
             } else {
-
-                // this should not happen, but to be sure
-                throw new WebSocketException("invalid message received by SocketIOWriter");
+                sendFrame(2, true, array, offset, attachment.remaining());
             }
-        } catch (JsonGenerationException e) {
+        }
+    }
 
-            // this may happen, and we need to wrap the error
-            throw new WebSocketException("JSON serialization error (" + e.toString() + ")");
+    /**
+     * Add the message in mPayload to the pending batch, framed as
+     * <code>\ufffd&lt;length&gt;\ufffd&lt;message&gt;</code>. The batch is sent
+     * when full, or once no more forwarded messages are queued and the linger
+     * time has passed.
+     */
+    private void appendToBatch() throws IOException {
 
-        } catch (JsonMappingException e) {
+        final byte[] payload = mPayload.getByteArray();
+        final int size = mPayload.size();
+        final int maxBatchSize = mOptions.getMaxBatchSize();
 
-            // this may happen, and we need to wrap the error
-            throw new WebSocketException("JSON serialization error (" + e.toString() + ")");
+        if (mBatchCount > 0 && mBatch.size() + size + 16 > maxBatchSize) {
+            flushBatch();
         }
 
-        // make sure the JSON generator has spit out everything
-        generator.flush();
-
-        if (DEBUG)
-            Log.d(TAG, new String(mPayload.getByteArray(), "UTF8"));
+        final int header = mEncoder.appendFramed(payload, size, mBatch);
+        mPayload.release();
+        if (mBatchCount == 0) {
+            mBatchFirstHeader = header;
+        }
+        ++mBatchCount;
 
-        // Jackson's JSON generator produces UTF-8 directly, so we send
-        // a text message frame using the raw sendFrame() method
-        sendFrame(1, true, mPayload.getByteArray(), 0, mPayload.size());
+        // more is coming when messages are queued on us or on the outbound queue
+        final boolean more = hasMessages(0) || mOutboundQueue.size() > 0;
 
-        // cleanup generators resources
-        generator.close();
+        if (mBatch.size() >= maxBatchSize || !more && mOptions.getMaxBatchLingerMicros() == 0) {
+            flushBatch();
+        } else if (!more && !mFlushScheduled) {
+            Message flush = obtainMessage(MSG_FLUSH_BATCH, FLUSH_BATCH);
+            sendMessageDelayed(flush, (mOptions.getMaxBatchLingerMicros() + 999) / 1000);
+            mFlushScheduled = true;
+        }
     }
 
+    /**
+     * Send the pending batch as a single WebSockets frame. A batch of one
+     * message goes out without the multi-message framing.
+     */
+    private void flushBatch() throws IOException {
+
+        if (mFlushScheduled) {
+            removeMessages(MSG_FLUSH_BATCH);
+            mFlushScheduled = false;
+        }
+
+        if (mBatchCount == 1) {
+            sendFrame(mOpcode, true, mBatch.getByteArray(), mBatchFirstHeader, mBatch.size() - mBatchFirstHeader);
+        } else if (mBatchCount > 1) {
+            sendFrame(mOpcode, true, mBatch.getByteArray(), 0, mBatch.size());
+        }
+
+        mBatch.release();
+        mBatchCount = 0;
+    }
 }
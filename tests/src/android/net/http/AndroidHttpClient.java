@@ -0,0 +1,90 @@
+package android.net.http;
+
+import java.io.IOException;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Test double of the Android HTTP client, a thread safe Apache client
+ * keeping connections alive, as the real one does.
+ */
+public final class AndroidHttpClient implements HttpClient {
+
+    private final HttpClient mDelegate;
+
+    private AndroidHttpClient(HttpClient delegate) {
+        mDelegate = delegate;
+    }
+
+    public static AndroidHttpClient newInstance(String userAgent) {
+        final HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setUserAgent(params, userAgent);
+        final SchemeRegistry schemes = new SchemeRegistry();
+        schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        return new AndroidHttpClient(new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemes), params));
+    }
+
+    public void close() {
+        mDelegate.getConnectionManager().shutdown();
+    }
+
+    public HttpParams getParams() {
+        return mDelegate.getParams();
+    }
+
+    public ClientConnectionManager getConnectionManager() {
+        return mDelegate.getConnectionManager();
+    }
+
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        return mDelegate.execute(request);
+    }
+
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        return mDelegate.execute(request, context);
+    }
+
+    public HttpResponse execute(HttpHost target, HttpRequest request) throws IOException {
+        return mDelegate.execute(target, request);
+    }
+
+    public HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+        return mDelegate.execute(target, request, context);
+    }
+
+    public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler) throws IOException,
+            ClientProtocolException {
+        return mDelegate.execute(request, handler);
+    }
+
+    public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler, HttpContext context)
+            throws IOException, ClientProtocolException {
+        return mDelegate.execute(request, handler, context);
+    }
+
+    public <T> T execute(HttpHost target, HttpRequest request, ResponseHandler<? extends T> handler)
+            throws IOException, ClientProtocolException {
+        return mDelegate.execute(target, request, handler);
+    }
+
+    public <T> T execute(HttpHost target, HttpRequest request, ResponseHandler<? extends T> handler,
+            HttpContext context) throws IOException, ClientProtocolException {
+        return mDelegate.execute(target, request, handler, context);
+    }
+}
@@ -0,0 +1,74 @@
+package android.os;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Test double of the Android async task: the background part runs on a
+ * cached pool of daemon threads, the result is delivered on the main looper.
+ */
+public abstract class AsyncTask<Params, Progress, Result> {
+
+    private static final Executor sExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "AsyncTask");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static Handler sHandler;
+
+    private volatile boolean mCancelled;
+
+    private static synchronized Handler handler() {
+        if (sHandler == null) {
+            sHandler = new Handler(Looper.getMainLooper());
+        }
+        return sHandler;
+    }
+
+    protected abstract Result doInBackground(Params... params);
+
+    protected void onPreExecute() {
+    }
+
+    protected void onPostExecute(Result result) {
+    }
+
+    protected void onCancelled(Result result) {
+        onCancelled();
+    }
+
+    protected void onCancelled() {
+    }
+
+    public final boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public final boolean cancel(boolean mayInterruptIfRunning) {
+        mCancelled = true;
+        return true;
+    }
+
+    public final AsyncTask<Params, Progress, Result> execute(final Params... params) {
+        onPreExecute();
+        sExecutor.execute(new Runnable() {
+            public void run() {
+                final Result result = doInBackground(params);
+                handler().post(new Runnable() {
+                    public void run() {
+                        if (mCancelled) {
+                            onCancelled(result);
+                        } else {
+                            onPostExecute(result);
+                        }
+                    }
+                });
+            }
+        });
+        return this;
+    }
+}
@@ -0,0 +1,142 @@
+package android.os;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Test double of the Android looper: a message queue ordered by due time,
+ * run by the thread that prepared it. The main looper is a daemon thread of
+ * its own, started on first use.
+ */
+public class Looper {
+
+    private static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<Looper>();
+    private static Looper sMainLooper;
+
+    private final Thread mThread;
+
+    // / Pending messages, guarded by this.
+    private final PriorityQueue<Message> mQueue = new PriorityQueue<Message>(16,
+            new java.util.Comparator<Message>() {
+                public int compare(Message a, Message b) {
+                    if (a.when != b.when) {
+                        return a.when < b.when ? -1 : 1;
+                    }
+                    return a.seq < b.seq ? -1 : a.seq == b.seq ? 0 : 1;
+                }
+            });
+    private long mSeq;
+    private boolean mQuit;
+
+    private Looper() {
+        mThread = Thread.currentThread();
+    }
+
+    public static void prepare() {
+        if (sThreadLocal.get() != null) {
+            throw new RuntimeException("Only one Looper may be created per thread");
+        }
+        sThreadLocal.set(new Looper());
+    }
+
+    public static synchronized void prepareMainLooper() {
+        prepare();
+        sMainLooper = myLooper();
+    }
+
+    public static synchronized Looper getMainLooper() {
+        if (sMainLooper == null) {
+            final HandlerThread main = new HandlerThread("main");
+            main.setDaemon(true);
+            main.start();
+            sMainLooper = main.getLooper();
+        }
+        return sMainLooper;
+    }
+
+    public static Looper myLooper() {
+        return sThreadLocal.get();
+    }
+
+    public static void loop() {
+        final Looper looper = myLooper();
+        if (looper == null) {
+            throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+        }
+        while (true) {
+            final Message msg = looper.next();
+            if (msg == null) {
+                return;
+            }
+            msg.target.dispatchMessage(msg);
+        }
+    }
+
+    public void quit() {
+        synchronized (this) {
+            mQuit = true;
+            mQueue.clear();
+            notifyAll();
+        }
+    }
+
+    public Thread getThread() {
+        return mThread;
+    }
+
+    private synchronized Message next() {
+        while (true) {
+            if (mQuit) {
+                return null;
+            }
+            final Message head = mQueue.peek();
+            final long now = SystemClock.uptimeMillis();
+            if (head != null && head.when <= now) {
+                return mQueue.poll();
+            }
+            try {
+                if (head == null) {
+                    wait();
+                } else {
+                    wait(head.when - now);
+                }
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+    }
+
+    synchronized boolean enqueue(Message msg, long when) {
+        if (mQuit) {
+            return false;
+        }
+        msg.when = when;
+        msg.seq = mSeq++;
+        mQueue.add(msg);
+        notifyAll();
+        return true;
+    }
+
+    synchronized boolean has(Handler h, int what, Object obj, boolean anyWhat) {
+        for (Message m : mQueue) {
+            if (m.target == h && m.callback == null && (anyWhat || m.what == what) && (obj == null || m.obj == obj)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void remove(Handler h, int what, Runnable callback, Object obj, int mode) {
+        final Iterator<Message> it = mQueue.iterator();
+        while (it.hasNext()) {
+            final Message m = it.next();
+            if (m.target != h || (obj != null && m.obj != obj)) {
+                continue;
+            }
+            if (mode == 0 && m.callback == null && m.what == what || mode == 1 && m.callback == callback
+                    || mode == 2) {
+                it.remove();
+            }
+        }
+    }
+}
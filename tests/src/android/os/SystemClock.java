@@ -0,0 +1,18 @@
+package android.os;
+
+/**
+ * Test double of the Android clock, on System.nanoTime().
+ */
+public final class SystemClock {
+
+    private SystemClock() {
+    }
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000L;
+    }
+}
@@ -0,0 +1,28 @@
+package android.util;
+
+/**
+ * Test double of the Android Base64 utility, on java.util.Base64.
+ */
+public final class Base64 {
+
+    public static final int DEFAULT = 0;
+    public static final int NO_PADDING = 1;
+    public static final int NO_WRAP = 2;
+
+    private Base64() {
+    }
+
+    public static String encodeToString(byte[] input, int flags) {
+        java.util.Base64.Encoder encoder = (flags & NO_WRAP) != 0 ? java.util.Base64.getEncoder()
+                : java.util.Base64.getMimeEncoder();
+        if ((flags & NO_PADDING) != 0) {
+            encoder = encoder.withoutPadding();
+        }
+        final String encoded = encoder.encodeToString(input);
+        return (flags & NO_WRAP) != 0 ? encoded : encoded + "\n";
+    }
+
+    public static byte[] decode(String str, int flags) {
+        return java.util.Base64.getMimeDecoder().decode(str);
+    }
+}
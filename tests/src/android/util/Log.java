@@ -0,0 +1,54 @@
+package android.util;
+
+/**
+ * Test double of the Android log, quiet unless -Diobahn.log=true.
+ */
+public final class Log {
+
+    private static final boolean ENABLED = Boolean.getBoolean("iobahn.log");
+
+    private Log() {
+    }
+
+    private static int println(String level, String tag, String msg, Throwable tr) {
+        if (ENABLED) {
+            System.err.println(level + "/" + tag + ": " + msg);
+            if (tr != null) {
+                tr.printStackTrace();
+            }
+        }
+        return 0;
+    }
+
+    public static int v(String tag, String msg) {
+        return println("V", tag, msg, null);
+    }
+
+    public static int d(String tag, String msg) {
+        return println("D", tag, msg, null);
+    }
+
+    public static int d(String tag, String msg, Throwable tr) {
+        return println("D", tag, msg, tr);
+    }
+
+    public static int i(String tag, String msg) {
+        return println("I", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg) {
+        return println("W", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println("W", tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println("E", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println("E", tag, msg, tr);
+    }
+}
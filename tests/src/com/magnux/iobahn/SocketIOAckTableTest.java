@@ -0,0 +1,142 @@
+package com.magnux.iobahn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.magnux.iobahn.SocketIO.AckHandler;
+
+public class SocketIOAckTableTest {
+
+    private static AckHandler handler() {
+        return new AckHandler() {
+            public void onAck(Object[] args) {
+            }
+
+            public void onTimeout() {
+            }
+        };
+    }
+
+    @Test
+    public void addsAndRemovesById() {
+        final SocketIOAckTable table = new SocketIOAckTable(1000);
+        final AckHandler first = handler();
+        final AckHandler second = handler();
+
+        final int firstId = table.add(first, 1000, 0);
+        final int secondId = table.add(second, 1010, 5000);
+
+        assertNotEquals(firstId, secondId);
+        assertEquals(2, table.size());
+        assertEquals(1, table.timedSize());
+        assertEquals(1010, table.getAddTime(secondId));
+
+        assertSame(second, table.remove(secondId));
+        assertNull(table.remove(secondId));
+        assertEquals(-1, table.getAddTime(secondId));
+        assertEquals(0, table.timedSize());
+        assertSame(first, table.remove(firstId));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        final SocketIOAckTable table = new SocketIOAckTable(0);
+        final AckHandler[] handlers = new AckHandler[1000];
+        final int[] ids = new int[handlers.length];
+        final Set<Integer> unique = new HashSet<Integer>();
+        for (int i = 0; i < handlers.length; ++i) {
+            handlers[i] = handler();
+            ids[i] = table.add(handlers[i], 0, i % 2 == 0 ? 0 : 1000);
+            unique.add(ids[i]);
+        }
+
+        assertEquals(handlers.length, unique.size());
+        assertEquals(handlers.length, table.size());
+        assertEquals(handlers.length / 2, table.timedSize());
+        for (int i = handlers.length - 1; i >= 0; --i) {
+            assertSame(handlers[i], table.remove(ids[i]));
+        }
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void expiresOnTheWheel() {
+        final SocketIOAckTable table = new SocketIOAckTable(0);
+        final AckHandler soon = handler();
+        final AckHandler later = handler();
+        final AckHandler never = handler();
+        table.add(soon, 0, 250);
+        final int laterId = table.add(later, 0, 1000);
+        table.add(never, 0, 0);
+        final ArrayList<AckHandler> expired = new ArrayList<AckHandler>();
+
+        // deadlines are rounded up to the tick
+        table.expire(200, expired);
+        assertTrue(expired.isEmpty());
+        table.expire(300, expired);
+        assertEquals(1, expired.size());
+        assertSame(soon, expired.get(0));
+
+        expired.clear();
+        table.expire(999, expired);
+        assertTrue(expired.isEmpty());
+        assertEquals(0, table.getAddTime(laterId));
+        table.expire(1000, expired);
+        assertSame(later, expired.get(0));
+        assertNull(table.remove(laterId));
+
+        assertEquals(1, table.size());
+        assertEquals(0, table.timedSize());
+    }
+
+    @Test
+    public void expiresTimeoutsLongerThanATurn() {
+        final SocketIOAckTable table = new SocketIOAckTable(0);
+        final AckHandler longer = handler();
+        final AckHandler shorter = handler();
+        // two wheel turns, and the same bucket one turn earlier
+        final long turn = 512 * SocketIOAckTable.TICK_MILLIS;
+        table.add(longer, 0, 2 * turn + 100);
+        table.add(shorter, 0, turn + 100);
+        final ArrayList<AckHandler> expired = new ArrayList<AckHandler>();
+
+        table.expire(turn + 100, expired);
+        assertEquals(1, expired.size());
+        assertSame(shorter, expired.get(0));
+
+        expired.clear();
+        table.expire(2 * turn, expired);
+        assertTrue(expired.isEmpty());
+        // a late run, far past the deadline, still finds it
+        table.expire(5 * turn, expired);
+        assertEquals(1, expired.size());
+        assertSame(longer, expired.get(0));
+    }
+
+    @Test
+    public void clearsEverything() {
+        final SocketIOAckTable table = new SocketIOAckTable(0);
+        table.add(handler(), 0, 0);
+        table.add(handler(), 0, 500);
+        final ArrayList<AckHandler> removed = new ArrayList<AckHandler>();
+
+        table.clear(removed);
+
+        assertEquals(2, removed.size());
+        assertEquals(0, table.size());
+        assertEquals(0, table.timedSize());
+        final ArrayList<AckHandler> expired = new ArrayList<AckHandler>();
+        table.expire(1000, expired);
+        assertTrue(expired.isEmpty());
+    }
+}
@@ -0,0 +1,136 @@
+package com.magnux.iobahn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * SocketIOBufferPool, and the SocketIOPooledOutputStream growing through it.
+ * The pool is process wide, so each test starts by emptying it.
+ */
+public class SocketIOBufferPoolTest {
+
+    private static final int MAX_CLASS = 1 << 20;
+
+    @Before
+    public void setUp() {
+        // the first trim drops what sat idle, the second whatever is left
+        SocketIOBufferPool.trim();
+        SocketIOBufferPool.trim();
+    }
+
+    @Test
+    public void takesTheSizeOfTheClass() {
+        assertEquals(1024, SocketIOBufferPool.take(0).length);
+        assertEquals(1024, SocketIOBufferPool.take(1024).length);
+        assertEquals(2048, SocketIOBufferPool.take(1025).length);
+        assertEquals(MAX_CLASS, SocketIOBufferPool.take(MAX_CLASS).length);
+        // beyond the largest class, exactly the length
+        assertEquals(MAX_CLASS + 1, SocketIOBufferPool.take(MAX_CLASS + 1).length);
+    }
+
+    @Test
+    public void reusesReleasedArrays() {
+        final byte[] array = SocketIOBufferPool.take(3000);
+        SocketIOBufferPool.release(array);
+
+        assertSame(array, SocketIOBufferPool.take(4096));
+        assertNotSame(array, SocketIOBufferPool.take(4096));
+    }
+
+    @Test
+    public void ignoresArraysNotTheSizeOfAClass() {
+        final byte[] odd = new byte[3000];
+        final byte[] large = new byte[MAX_CLASS << 1];
+        SocketIOBufferPool.release(odd);
+        SocketIOBufferPool.release(large);
+
+        assertNotSame(odd, SocketIOBufferPool.take(3000));
+        assertNotSame(large, SocketIOBufferPool.take(large.length));
+    }
+
+    @Test
+    public void keepsABoundedNumberPerClass() {
+        // the largest class keeps the fewest, two
+        final byte[] first = SocketIOBufferPool.take(MAX_CLASS);
+        final byte[] second = SocketIOBufferPool.take(MAX_CLASS);
+        final byte[] third = SocketIOBufferPool.take(MAX_CLASS);
+        SocketIOBufferPool.release(first);
+        SocketIOBufferPool.release(second);
+        SocketIOBufferPool.release(third);
+
+        assertSame(second, SocketIOBufferPool.take(MAX_CLASS));
+        assertSame(first, SocketIOBufferPool.take(MAX_CLASS));
+        final byte[] fresh = SocketIOBufferPool.take(MAX_CLASS);
+        assertNotSame(third, fresh);
+        assertNotSame(first, fresh);
+        assertNotSame(second, fresh);
+    }
+
+    @Test
+    public void trimDropsArraysLeftIdleForAPeriod() {
+        final byte[] first = SocketIOBufferPool.take(8192);
+        final byte[] second = SocketIOBufferPool.take(8192);
+        SocketIOBufferPool.release(first);
+        SocketIOBufferPool.release(second);
+
+        // released since the last trim, kept
+        SocketIOBufferPool.trim();
+        final byte[] taken = SocketIOBufferPool.take(8192);
+        SocketIOBufferPool.release(taken);
+
+        // one was taken meanwhile, one sat idle
+        SocketIOBufferPool.trim();
+        final byte[] kept = SocketIOBufferPool.take(8192);
+        assertEquals(true, kept == first || kept == second);
+        final byte[] fresh = SocketIOBufferPool.take(8192);
+        assertNotSame(first, fresh);
+        assertNotSame(second, fresh);
+    }
+
+    @Test
+    public void streamReleasesWhatItGrewInto() {
+        final SocketIOPooledOutputStream out = new SocketIOPooledOutputStream();
+        final byte[] home = out.getByteArray();
+        out.write(new byte[10000], 0, 10000);
+        final byte[] grown = out.getByteArray();
+        assertEquals(16384, grown.length);
+
+        out.release();
+        assertEquals(0, out.size());
+        assertSame(home, out.getByteArray());
+        assertSame(grown, SocketIOBufferPool.take(16384));
+    }
+
+    @Test
+    public void streamKeepsItsOwnArray() {
+        final SocketIOPooledOutputStream out = new SocketIOPooledOutputStream();
+        final byte[] home = out.getByteArray();
+        out.write(7);
+        out.release();
+
+        assertSame(home, out.getByteArray());
+        assertNotSame(home, SocketIOBufferPool.take(home.length));
+    }
+
+    @Test
+    public void detachedStreamLeavesItsArrayToTheHolder() {
+        final SocketIOPooledOutputStream out = new SocketIOPooledOutputStream();
+        final byte[] home = out.getByteArray();
+        out.write(new byte[] { 1, 2, 3 }, 0, 3);
+        out.detach();
+
+        assertEquals(0, out.size());
+        assertNotSame(home, out.getByteArray());
+        assertEquals(home.length, out.getByteArray().length);
+        assertEquals(3, home[2]);
+
+        out.write(new byte[10000], 0, 10000);
+        final byte[] grown = out.getByteArray();
+        out.detach();
+        assertNotSame(grown, SocketIOBufferPool.take(grown.length));
+    }
+}
@@ -0,0 +1,160 @@
+package com.magnux.iobahn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.codehaus.jackson.smile.SmileFactory;
+import org.junit.Test;
+
+import de.tavendo.autobahn.WebSocketException;
+
+/**
+ * Round trips through SocketIOEncoder and SocketIODecoder, for the JSON codec
+ * in text frames and a binary one in binary frames.
+ */
+public class SocketIOCodecTest {
+
+    public static class Quote {
+        public String symbol;
+        public double bid;
+        public List<String> flags;
+        public byte[] blob;
+    }
+
+    private static SocketIO.EventHandler ignore() {
+        return new SocketIO.EventHandler() {
+            public void onEvent(Object event) {
+            }
+        };
+    }
+
+    private SocketIOCore mCore;
+    private SocketIOEncoder mEncoder;
+    private SocketIODecoder mDecoder;
+    private boolean mBinary;
+    private final List<Object> mDelivered = new ArrayList<Object>();
+
+    private void setUp(SocketIOCodec codec) {
+        mCore = new SocketIOCore(new TestTransport());
+        final SocketIOOptions options = new SocketIOOptions();
+        options.setCodec(codec);
+        mCore.configure(options);
+        mBinary = codec.isBinary();
+        mEncoder = new SocketIOEncoder(codec, mCore.mJsonMapper, SocketIOOptions.PROTOCOL_0_9);
+        mDecoder = new SocketIODecoder(mCore, options, new SocketIODecoder.Sink() {
+            public void deliver(Object message) {
+                mDelivered.add(message);
+            }
+        });
+    }
+
+    private void roundTrip(Object message) throws IOException, WebSocketException {
+        final SocketIOPooledOutputStream out = new SocketIOPooledOutputStream();
+        mEncoder.encode(message, out);
+        // a copy, the encoder buffer is reused
+        final byte[] frame = Arrays.copyOf(out.getByteArray(), out.size());
+        out.release();
+        mDecoder.decode(frame, frame.length, mBinary);
+    }
+
+    private static Quote quote() {
+        final Quote quote = new Quote();
+        quote.symbol = "ACME ☃";
+        quote.bid = 101.25;
+        quote.flags = Arrays.asList("open", "liquid");
+        quote.blob = new byte[] { 0, 1, (byte) 0xff, 0x7f };
+        return quote;
+    }
+
+    private void assertQuote(Object decoded) {
+        final Quote quote = (Quote) decoded;
+        assertEquals("ACME ☃", quote.symbol);
+        assertEquals(101.25, quote.bid, 0);
+        assertEquals(Arrays.asList("open", "liquid"), quote.flags);
+        assertArrayEquals(new byte[] { 0, 1, (byte) 0xff, 0x7f }, quote.blob);
+    }
+
+    private void eventsRoundTrip() throws IOException, WebSocketException {
+        mCore.of("").on("quote", Quote.class, ignore());
+        mCore.of("/room").on("quote", Quote.class, ignore());
+
+        roundTrip(new SocketIOMessage.Emit("", "quote", quote()));
+        roundTrip(new SocketIOMessage.Emit(7, "/room", "quote", quote()));
+
+        assertEquals(2, mDelivered.size());
+        assertQuote(((SocketIOMessage.Event) mDelivered.get(0)).mEvent);
+        final SocketIOMessage.Event second = (SocketIOMessage.Event) mDelivered.get(1);
+        assertEquals("/room", second.mEndpoint);
+        assertEquals("7+", second.mId);
+        assertQuote(second.mEvent);
+    }
+
+    private void sharedEventsRoundTrip() throws IOException, WebSocketException {
+        // two subscriptions and a raw one, each binding from the args range
+        mCore.of("").on("quote", Quote.class, ignore());
+        mCore.of("").on("quote", Object.class, ignore());
+        mCore.of("").on("quote", new SocketIO.RawEventHandler() {
+            public void onEvent(SocketIORawEvent event) {
+            }
+        });
+
+        roundTrip(new SocketIOMessage.Emit("", "quote", quote()));
+
+        assertEquals(3, mDelivered.size());
+        assertQuote(((SocketIOMessage.Event) mDelivered.get(0)).mEvent);
+        assertTrue(((SocketIOMessage.Event) mDelivered.get(1)).mEvent instanceof java.util.Map);
+        final SocketIORawEvent raw = (SocketIORawEvent) ((SocketIOMessage.Event) mDelivered.get(2)).mEvent;
+        assertEquals(mBinary, raw.isBinary());
+        assertQuote(raw.read(Quote.class));
+    }
+
+    private void ackDataRoundTrips() throws IOException, WebSocketException {
+        roundTrip(new SocketIOMessage.ACK("", "12", new Object[] { "ok", 2, null, true }));
+
+        final SocketIOMessage.AckResult result = (SocketIOMessage.AckResult) mDelivered.get(0);
+        assertEquals(12, result.mId);
+        assertArrayEquals(new Object[] { "ok", 2, null, true }, result.mArgs);
+    }
+
+    @Test
+    public void jsonEventsRoundTrip() throws IOException, WebSocketException {
+        setUp(SocketIOCodecs.json());
+        eventsRoundTrip();
+    }
+
+    @Test
+    public void jsonSharedEventsRoundTrip() throws IOException, WebSocketException {
+        setUp(SocketIOCodecs.json());
+        sharedEventsRoundTrip();
+    }
+
+    @Test
+    public void jsonAckDataRoundTrips() throws IOException, WebSocketException {
+        setUp(SocketIOCodecs.json());
+        ackDataRoundTrips();
+    }
+
+    @Test
+    public void smileEventsRoundTrip() throws IOException, WebSocketException {
+        setUp(SocketIOCodecs.binary(new SmileFactory()));
+        eventsRoundTrip();
+    }
+
+    @Test
+    public void smileSharedEventsRoundTrip() throws IOException, WebSocketException {
+        setUp(SocketIOCodecs.binary(new SmileFactory()));
+        sharedEventsRoundTrip();
+    }
+
+    @Test
+    public void smileAckDataRoundTrips() throws IOException, WebSocketException {
+        setUp(SocketIOCodecs.binary(new SmileFactory()));
+        ackDataRoundTrips();
+    }
+}
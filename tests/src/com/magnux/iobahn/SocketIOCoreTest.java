@@ -0,0 +1,117 @@
+package com.magnux.iobahn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.magnux.iobahn.SocketIO.AckHandler;
+
+public class SocketIOCoreTest {
+
+    private TestTransport mTransport;
+    private SocketIOCore mCore;
+    private List<String> mCalls;
+
+    @Before
+    public void setUp() {
+        mTransport = new TestTransport();
+        mCore = new SocketIOCore(mTransport);
+        mCore.configure(new SocketIOOptions());
+        mCalls = new ArrayList<String>();
+        mCore.onOpen(mWriter);
+    }
+
+    private AckHandler recorder(final String name) {
+        return new AckHandler() {
+            public void onAck(Object[] args) {
+                mCalls.add(name + ".ack" + args.length);
+            }
+
+            public void onTimeout() {
+                mCalls.add(name + ".timeout");
+            }
+        };
+    }
+
+    private final SocketIOOutboundQueue.Consumer mWriter = new SocketIOOutboundQueue.Consumer() {
+        public void requestDrain() {
+        }
+    };
+
+    @Test
+    public void firesAckOfEmit() {
+        mCore.of("").emit("chat", "hi", recorder("a"), 0);
+        final SocketIOMessage.Emit emit = mCore.mOutboundQueue.poll(mWriter);
+
+        mCore.processMessage(new SocketIOMessage.AckResult(emit.mId, new Object[] { "ok", 1 }));
+        // a second ack of the same id is dropped
+        mCore.processMessage(new SocketIOMessage.AckResult(emit.mId, new Object[0]));
+
+        assertEquals("[a.ack2]", mCalls.toString());
+    }
+
+    @Test
+    public void postsTimeoutsOfPendingAcksOnConfigure() {
+        mCore.of("").emit("chat", "hi", recorder("a"), 0);
+        mCore.of("/room").emit("chat", "hi", recorder("b"), 60000);
+        mTransport.mDeferPosts = true;
+
+        mCore.configure(new SocketIOOptions());
+
+        // not fired from within configure()
+        assertEquals(0, mCalls.size());
+        mTransport.runPosted();
+        mCalls.sort(null);
+        assertArrayEquals(new Object[] { "a.timeout", "b.timeout" }, mCalls.toArray());
+    }
+
+    @Test
+    public void postsTimeoutsOfPendingAcksOnClose() {
+        mCore.of("").emit("chat", "hi", recorder("a"), 0);
+        mTransport.mDeferPosts = true;
+
+        mCore.onClose(false);
+        mTransport.runPosted();
+        assertEquals(0, mCalls.size());
+
+        mCore.onClose(true);
+        assertEquals(0, mCalls.size());
+        mTransport.runPosted();
+        assertEquals("[a.timeout]", mCalls.toString());
+    }
+
+    @Test
+    public void unsubscribesAnyKindOfHandler() {
+        final SocketIO.EventHandler event = new SocketIO.EventHandler() {
+            public void onEvent(Object event) {
+            }
+        };
+        final SocketIO.RawEventHandler raw = new SocketIO.RawEventHandler() {
+            public void onEvent(SocketIORawEvent event) {
+            }
+        };
+        final SocketIO.MultiArgEventHandler multi = new SocketIO.MultiArgEventHandler() {
+            public void onEvent(Object[] args) {
+            }
+        };
+        final SocketIONamespace root = mCore.of("");
+        root.on("a", String.class, event);
+        root.on("a", raw);
+        root.on("a*", new Class<?>[] { String.class }, multi);
+        assertEquals(3, mCore.mRoot.mRoutes.match("a").length);
+
+        // by name and identity only
+        root.off("a", multi);
+        root.off("b", event);
+        assertEquals(3, mCore.mRoot.mRoutes.match("a").length);
+        root.off("a", event);
+        root.off("a", raw);
+        root.off("a*", multi);
+        assertEquals(0, mCore.mRoot.mRoutes.match("a").length);
+    }
+}
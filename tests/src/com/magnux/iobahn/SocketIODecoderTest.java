@@ -0,0 +1,415 @@
+package com.magnux.iobahn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.type.TypeReference;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SocketIODecoderTest {
+
+    public static class Chat {
+        public String user;
+        public String text;
+    }
+
+    public static class Upload {
+        public String name;
+        public ByteBuffer data;
+        public byte[] thumb;
+    }
+
+    private static final SocketIO.EventHandler IGNORE = new SocketIO.EventHandler() {
+        public void onEvent(Object event) {
+        }
+    };
+
+    private TestTransport mTransport;
+    private SocketIOCore mCore;
+    private SocketIOOptions mOptions;
+    private List<Object> mDelivered;
+    private SocketIODecoder mDecoder;
+
+    @Before
+    public void setUp() {
+        mTransport = new TestTransport();
+        mCore = new SocketIOCore(mTransport);
+        mOptions = new SocketIOOptions();
+        mCore.configure(mOptions);
+        mDelivered = new ArrayList<Object>();
+        mDecoder = new SocketIODecoder(mCore, mOptions, new SocketIODecoder.Sink() {
+            public void deliver(Object message) {
+                mDelivered.add(message);
+            }
+        });
+    }
+
+    private void decode(String frame) throws IOException {
+        final byte[] payload = frame.getBytes(StandardCharsets.UTF_8);
+        // a longer array, the decoder must keep to the length it is given
+        final byte[] padded = new byte[payload.length + 8];
+        System.arraycopy(payload, 0, padded, 0, payload.length);
+        padded[payload.length] = '}';
+        mDecoder.decode(padded, payload.length, false);
+    }
+
+    /**
+     * Speak Engine.IO from now on.
+     */
+    private void useProtocol(int protocol) {
+        mOptions.setProtocol(protocol);
+        mCore.configure(mOptions);
+        mDecoder = new SocketIODecoder(mCore, mOptions, new SocketIODecoder.Sink() {
+            public void deliver(Object message) {
+                mDelivered.add(message);
+            }
+        });
+    }
+
+    /**
+     * Decode a binary frame, an Engine.IO attachment.
+     *
+     * @return Whether the decoder kept views of it.
+     */
+    private boolean decodeBinary(byte... frame) throws IOException {
+        return mDecoder.decode(frame, frame.length, true);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private SocketIOMessage.Event event(int index) {
+        return (SocketIOMessage.Event) mDelivered.get(index);
+    }
+
+    @Test
+    public void bindsEventToSubscribedType() throws IOException {
+        mCore.of("").on("chat", Chat.class, IGNORE);
+
+        decode("5:::{\"name\":\"chat\",\"args\":[{\"user\":\"ana\",\"text\":\"café ☃\"},\"extra\"]}");
+
+        assertEquals(1, mDelivered.size());
+        assertEquals("chat", event(0).mName);
+        assertEquals("", event(0).mEndpoint);
+        final Chat chat = (Chat) event(0).mEvent;
+        assertEquals("ana", chat.user);
+        assertEquals("café ☃", chat.text);
+    }
+
+    @Test
+    public void bindsArgsAheadOfName() throws IOException {
+        mCore.of("").on("chat", Chat.class, IGNORE);
+
+        decode("5:::{\"args\":[{\"user\":\"bo\"}],\"other\":{\"a\":[1,2]},\"name\":\"chat\"}");
+
+        assertEquals(1, mDelivered.size());
+        assertEquals("bo", ((Chat) event(0).mEvent).user);
+    }
+
+    @Test
+    public void bindsEventToTypeReference() throws IOException {
+        mCore.of("").on("chats", new TypeReference<List<Chat>>() {
+        }, IGNORE);
+
+        decode("5:::{\"name\":\"chats\",\"args\":[[{\"user\":\"a\"},{\"user\":\"b\"}]]}");
+
+        @SuppressWarnings("unchecked")
+        final List<Chat> chats = (List<Chat>) event(0).mEvent;
+        assertEquals(2, chats.size());
+        assertEquals("b", chats.get(1).user);
+    }
+
+    @Test
+    public void warmsUpDecodersOnSubscribe() throws IOException {
+        mOptions.setWarmUpDecoders(true);
+        mCore.configure(mOptions);
+
+        mCore.of("").on("chat", Chat.class, IGNORE);
+        // not decodable from any document, the warm-up failure is ignored
+        mCore.of("").on("task", Runnable.class, IGNORE);
+        decode("5:::{\"name\":\"chat\",\"args\":[{\"user\":\"dee\"}]}");
+
+        assertEquals("dee", ((Chat) event(0).mEvent).user);
+    }
+
+    @Test
+    public void routesByEndpointAndAcksIds() throws IOException {
+        mCore.of("/room").on("chat", Chat.class, IGNORE);
+
+        decode("5:12:/room:{\"name\":\"chat\",\"args\":[{\"user\":\"cy\"}]}");
+
+        assertEquals(1, mDelivered.size());
+        assertEquals("/room", event(0).mEndpoint);
+        assertEquals("12", event(0).mId);
+        assertEquals(1, mTransport.mSent.size());
+        final SocketIOMessage.ACK ack = (SocketIOMessage.ACK) mTransport.mSent.get(0);
+        assertEquals("/room", ack.mEndpoint);
+        assertEquals("12", ack.mId);
+        assertNull(ack.mArgs);
+    }
+
+    @Test
+    public void doesNotAckEventsWithoutId() throws IOException {
+        mCore.of("").on("chat", Chat.class, IGNORE);
+
+        decode("5:::{\"name\":\"chat\",\"args\":[{}]}");
+
+        assertEquals(1, mDelivered.size());
+        assertTrue(mTransport.mSent.isEmpty());
+    }
+
+    @Test
+    public void acksRightAwayWhenNoSubscriptionSendsData() throws IOException {
+        mCore.of("").on("chat", Chat.class, IGNORE);
+
+        decode("5:4+::{\"name\":\"chat\",\"args\":[{}]}");
+
+        assertNull(event(0).mAck);
+        final SocketIOMessage.ACK ack = (SocketIOMessage.ACK) mTransport.mSent.get(0);
+        assertEquals("4", ack.mId);
+        assertNull(ack.mArgs);
+    }
+
+    @Test
+    public void leavesAckDataToTheSubscription() throws IOException {
+        mCore.of("").on("chat", Chat.class, new SocketIO.AckEventHandler() {
+            public void onEvent(Object event, SocketIO.Ack ack) {
+            }
+        });
+
+        decode("5:4+::{\"name\":\"chat\",\"args\":[{}]}");
+
+        assertTrue(mTransport.mSent.isEmpty());
+        event(0).mAck.send("done", 1);
+        // only the first send answers
+        event(0).mAck.send("again");
+        assertEquals(1, mTransport.mSent.size());
+        final SocketIOMessage.ACK ack = (SocketIOMessage.ACK) mTransport.mSent.get(0);
+        assertEquals("4", ack.mId);
+        assertArrayEquals(new Object[] { "done", 1 }, ack.mArgs);
+    }
+
+    @Test
+    public void keepsFramesViewedByRawEvents() throws IOException {
+        mCore.of("").on("chat", Chat.class, IGNORE);
+        mCore.of("").on("raw", new SocketIO.RawEventHandler() {
+            public void onEvent(SocketIORawEvent event) {
+            }
+        });
+
+        final byte[] typed = "5:::{\"name\":\"chat\",\"args\":[{}]}".getBytes(StandardCharsets.UTF_8);
+        final byte[] raw = "5:::{\"name\":\"raw\",\"args\":[{\"a\":1}]}".getBytes(StandardCharsets.UTF_8);
+
+        // a frame only bound to types may be reused, one viewed may not
+        assertEquals(false, mDecoder.decode(typed, typed.length, false));
+        assertEquals(true, mDecoder.decode(raw, raw.length, false));
+        assertEquals("[{\"a\":1}]", event(1).mEvent.toString());
+        assertEquals(1, ((SocketIORawEvent) event(1).mEvent).readTree().get(0).get("a").asInt());
+    }
+
+    @Test
+    public void dropsUnroutedEvents() throws IOException {
+        mCore.of("").on("chat", Chat.class, IGNORE);
+
+        decode("5:::{\"name\":\"other\",\"args\":[1]}");
+        decode("5::/nowhere:{\"name\":\"chat\",\"args\":[1]}");
+
+        assertTrue(mDelivered.isEmpty());
+    }
+
+    @Test
+    public void decodesHeaderOnlyMessages() throws IOException {
+        decode("1::/news");
+        decode("2::");
+        decode("6:::7+[\"ok\",2]");
+        decode("6:::8");
+        decode("7::/news:unauthorized+reconnect");
+
+        assertEquals(5, mDelivered.size());
+        assertEquals("/news", ((SocketIOMessage.Connect) mDelivered.get(0)).mEndpoint);
+        assertTrue(mDelivered.get(1) instanceof SocketIOMessage.Heartbeat);
+        final SocketIOMessage.AckResult result = (SocketIOMessage.AckResult) mDelivered.get(2);
+        assertEquals(7, result.mId);
+        assertArrayEquals(new Object[] { "ok", 2 }, result.mArgs);
+        assertEquals(8, ((SocketIOMessage.AckResult) mDelivered.get(3)).mId);
+        assertEquals(0, ((SocketIOMessage.AckResult) mDelivered.get(3)).mArgs.length);
+        final SocketIOMessage.Error error = (SocketIOMessage.Error) mDelivered.get(4);
+        assertEquals("/news", error.mEndpoint);
+        assertEquals("unauthorized", error.mReason);
+        assertEquals("reconnect", error.mAdvice);
+    }
+
+    @Test
+    public void ignoresUnknownAndMalformedTypes() throws IOException {
+        decode("8::");
+        decode("x:::{}");
+        decode("");
+        decode("3:::plain text");
+
+        assertTrue(mDelivered.isEmpty());
+    }
+
+    /**
+     * Frame messages as servers do, lengths in UTF-16 code units.
+     */
+    private static String framed(String... messages) {
+        final StringBuilder payload = new StringBuilder();
+        for (String message : messages) {
+            payload.append('\ufffd').append(message.length()).append('\ufffd').append(message);
+        }
+        return payload.toString();
+    }
+
+    @Test
+    public void splitsMultiMessagePayloads() throws IOException {
+        mCore.of("").on("chat", Chat.class, IGNORE);
+
+        // multi-byte characters, and one outside the BMP, two code units
+        decode(framed("5:::{\"name\":\"chat\",\"args\":[{\"user\":\"zoë\",\"text\":\"☃ \ud83d\ude00\"}]}", "2::",
+                "5:::{\"name\":\"chat\",\"args\":[{\"user\":\"ed\"}]}"));
+
+        assertEquals(3, mDelivered.size());
+        assertEquals("zoë", ((Chat) event(0).mEvent).user);
+        assertEquals("☃ \ud83d\ude00", ((Chat) event(0).mEvent).text);
+        assertTrue(mDelivered.get(1) instanceof SocketIOMessage.Heartbeat);
+        assertEquals("ed", ((Chat) event(2).mEvent).user);
+    }
+
+    @Test
+    public void deliversMessagesAheadOfMalformedFraming() throws IOException {
+        try {
+            decode(framed("2::") + "\ufffd3x2::");
+        } catch (IOException e) {
+            assertEquals(1, mDelivered.size());
+            return;
+        }
+        throw new AssertionError("malformed payload accepted");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEventDataThatIsNotAnObject() throws IOException {
+        mCore.of("").on("chat", Chat.class, IGNORE);
+
+        decode("5:::[\"chat\"]");
+    }
+
+    @Test
+    public void decodesEngineOpenAndV4Pings() throws IOException {
+        useProtocol(SocketIOOptions.PROTOCOL_ENGINE_IO_4);
+
+        decode("0{\"sid\":\"abc\",\"upgrades\":[],\"pingInterval\":25000,\"pingTimeout\":5000}");
+        decode("40{\"sid\":\"def\"}");
+        // v4 servers ping, each one answered; pongs and noops are dropped
+        decode("2");
+        decode("3");
+        decode("6");
+        decode("2");
+
+        assertEquals(4, mDelivered.size());
+        final SocketIOMessage.Open open = (SocketIOMessage.Open) mDelivered.get(0);
+        assertEquals("abc", open.mSid);
+        assertEquals(25000, open.mPingInterval);
+        assertEquals(5000, open.mPingTimeout);
+        assertEquals("", ((SocketIOMessage.Connect) mDelivered.get(1)).mEndpoint);
+        assertTrue(mDelivered.get(2) instanceof SocketIOMessage.Heartbeat);
+        assertTrue(mDelivered.get(3) instanceof SocketIOMessage.Heartbeat);
+    }
+
+    @Test
+    public void decodesEngineEventsAndAcks() throws IOException {
+        useProtocol(SocketIOOptions.PROTOCOL_ENGINE_IO_4);
+        mCore.of("/room").on("chat", Chat.class, IGNORE);
+
+        decode("42/room,7[\"chat\",{\"user\":\"fay\"}]");
+        decode("4312[\"ok\",3]");
+
+        assertEquals(2, mDelivered.size());
+        assertEquals("/room", event(0).mEndpoint);
+        assertEquals("fay", ((Chat) event(0).mEvent).user);
+        final SocketIOMessage.ACK ack = (SocketIOMessage.ACK) mTransport.mSent.get(0);
+        assertEquals("/room", ack.mEndpoint);
+        assertEquals("7", ack.mId);
+        final SocketIOMessage.AckResult result = (SocketIOMessage.AckResult) mDelivered.get(1);
+        assertEquals(12, result.mId);
+        assertArrayEquals(new Object[] { "ok", 3 }, result.mArgs);
+    }
+
+    @Test
+    public void reassemblesAttachmentsSplitAcrossFrames() throws IOException {
+        useProtocol(SocketIOOptions.PROTOCOL_ENGINE_IO_4);
+        mCore.of("").on("upload", Upload.class, IGNORE);
+
+        decode("452-[\"upload\",{\"name\":\"a.png\",\"thumb\":{\"_placeholder\":true,\"num\":1},"
+                + "\"data\":{\"_placeholder\":true,\"num\":0}}]");
+        assertTrue(mDelivered.isEmpty());
+        assertTrue(decodeBinary((byte) 1, (byte) 2, (byte) 3));
+        assertTrue(mDelivered.isEmpty());
+        assertTrue(decodeBinary((byte) 9));
+
+        assertEquals(1, mDelivered.size());
+        final Upload upload = (Upload) event(0).mEvent;
+        assertEquals("a.png", upload.name);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, bytes(upload.data));
+        assertArrayEquals(new byte[] { 9 }, upload.thumb);
+
+        // the next text frame starts a packet of its own
+        decode("2");
+        assertEquals(2, mDelivered.size());
+    }
+
+    @Test
+    public void stripsTypeOfV3Attachments() throws IOException {
+        useProtocol(SocketIOOptions.PROTOCOL_ENGINE_IO_3);
+        mCore.of("").on("blob", byte[].class, IGNORE);
+
+        decode("451-[\"blob\",{\"_placeholder\":true,\"num\":0}]");
+        decodeBinary(SocketIOMessage.ENGINE_BINARY_MESSAGE, (byte) 7, (byte) 8);
+
+        assertEquals(1, mDelivered.size());
+        assertArrayEquals(new byte[] { 7, 8 }, (byte[]) event(0).mEvent);
+    }
+
+    @Test
+    public void placesAttachmentsOfBinaryAcks() throws IOException {
+        useProtocol(SocketIOOptions.PROTOCOL_ENGINE_IO_4);
+
+        decode("461-5[\"done\",{\"_placeholder\":true,\"num\":0}]");
+        decodeBinary((byte) 4, (byte) 2);
+
+        final SocketIOMessage.AckResult result = (SocketIOMessage.AckResult) mDelivered.get(0);
+        assertEquals(5, result.mId);
+        assertEquals("done", result.mArgs[0]);
+        assertArrayEquals(new byte[] { 4, 2 }, bytes((ByteBuffer) result.mArgs[1]));
+    }
+
+    @Test
+    public void ignoresV3Pongs() throws IOException {
+        useProtocol(SocketIOOptions.PROTOCOL_ENGINE_IO_3);
+
+        // v3 clients ping, servers answer with pongs
+        decode("3");
+
+        assertTrue(mDelivered.isEmpty());
+        assertFalse(mDecoder.decode(new byte[] { '3' }, 1, false));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAttachmentWithoutPacket() throws IOException {
+        useProtocol(SocketIOOptions.PROTOCOL_ENGINE_IO_4);
+
+        decodeBinary((byte) 1);
+    }
+}
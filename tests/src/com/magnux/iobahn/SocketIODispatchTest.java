@@ -0,0 +1,162 @@
+package com.magnux.iobahn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SocketIODispatchTest {
+
+    private ExecutorService mPool;
+    private SocketIOCore mCore;
+    private SocketIOOptions mOptions;
+    private SocketIODecoder mDecoder;
+
+    @Before
+    public void setUp() {
+        mPool = Executors.newFixedThreadPool(4);
+        mCore = new SocketIOCore(new TestTransport());
+        mOptions = new SocketIOOptions();
+        mCore.configure(mOptions);
+    }
+
+    @After
+    public void tearDown() {
+        mPool.shutdownNow();
+    }
+
+    private void decode(String name, int value) throws IOException {
+        if (mDecoder == null) {
+            mDecoder = new SocketIODecoder(mCore, mOptions, new SocketIODecoder.Sink() {
+                public void deliver(Object message) {
+                    mCore.processMessage(message);
+                }
+            });
+        }
+        final byte[] frame = ("5:::{\"name\":\"" + name + "\",\"args\":[" + value + "]}").getBytes(StandardCharsets.UTF_8);
+        mDecoder.decode(frame, frame.length, false);
+    }
+
+    @Test
+    public void runsWildcardEventsOfOtherNamesInParallel() throws Exception {
+        final CountDownLatch otherRan = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        mCore.of("").on("tick.*", Integer.class, new SocketIO.EventHandler() {
+            public void onEvent(Object event) {
+                try {
+                    if ((Integer) event == 1) {
+                        // holds its lane until the other name got through
+                        assertTrue(otherRan.await(2, TimeUnit.SECONDS));
+                    } else {
+                        otherRan.countDown();
+                    }
+                    done.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, mPool);
+
+        decode("tick.a", 1);
+        decode("tick.b", 2);
+
+        assertTrue(done.await(3, TimeUnit.SECONDS));
+        assertEquals(0, otherRan.getCount());
+    }
+
+    @Test
+    public void keepsWildcardEventsOfOneNameInOrder() throws Exception {
+        final List<Integer> seen = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(300);
+        mOptions.setDispatcher(mPool);
+        mCore.of("").on("tick.*", Integer.class, new SocketIO.EventHandler() {
+            public void onEvent(Object event) {
+                seen.add((Integer) event);
+                done.countDown();
+            }
+        });
+
+        for (int i = 0; i < 100; ++i) {
+            decode("tick.a", i);
+            decode("tick.b", 1000 + i);
+            decode("tick.c", 2000 + i);
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        final int[] last = { -1, 999, 1999 };
+        synchronized (seen) {
+            for (int value : seen) {
+                final int name = value / 1000;
+                assertEquals(last[name] + 1, value);
+                last[name] = value;
+            }
+        }
+    }
+
+    @Test
+    public void slowSubscriptionDoesNotDelayOthers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch slowRan = new CountDownLatch(1);
+        final CountDownLatch fastDone = new CountDownLatch(100);
+        mOptions.setDispatcher(mPool);
+        mCore.of("").on("slow", Integer.class, new SocketIO.EventHandler() {
+            public void onEvent(Object event) {
+                try {
+                    // blocks its lane until the others got through
+                    release.await(5, TimeUnit.SECONDS);
+                    slowRan.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        mCore.of("").on("fast", Integer.class, new SocketIO.EventHandler() {
+            public void onEvent(Object event) {
+                fastDone.countDown();
+            }
+        });
+
+        decode("slow", 0);
+        for (int i = 0; i < 100; ++i) {
+            decode("fast", i);
+        }
+
+        assertTrue(fastDone.await(2, TimeUnit.SECONDS));
+        assertEquals(1, slowRan.getCount());
+        release.countDown();
+        assertTrue(slowRan.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void keepsExactSubscriptionsInOrder() throws Exception {
+        final List<Integer> seen = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(200);
+        mCore.of("").on("tick", Integer.class, new SocketIO.EventHandler() {
+            public void onEvent(Object event) {
+                seen.add((Integer) event);
+                done.countDown();
+            }
+        }, mPool);
+
+        for (int i = 0; i < 200; ++i) {
+            decode("tick", i);
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 200; ++i) {
+            assertEquals(i, (int) seen.get(i));
+        }
+    }
+}
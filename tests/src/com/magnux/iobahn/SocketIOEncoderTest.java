@@ -0,0 +1,107 @@
+package com.magnux.iobahn;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.tavendo.autobahn.WebSocketException;
+
+public class SocketIOEncoderTest {
+
+    private SocketIOEncoder mEncoder;
+    private SocketIOPooledOutputStream mPayload;
+    private SocketIOPooledOutputStream mBatch;
+
+    @Before
+    public void setUp() {
+        mEncoder = new SocketIOEncoder(SocketIOCodecs.json(), new ObjectMapper(), SocketIOOptions.PROTOCOL_0_9);
+        mPayload = new SocketIOPooledOutputStream();
+        mBatch = new SocketIOPooledOutputStream();
+    }
+
+    private String encode(Object message) throws IOException, WebSocketException {
+        mEncoder.encode(message, mPayload);
+        return new String(mPayload.getByteArray(), 0, mPayload.size(), StandardCharsets.UTF_8);
+    }
+
+    private int append(Object message) throws IOException, WebSocketException {
+        mEncoder.encode(message, mPayload);
+        return mEncoder.appendFramed(mPayload.getByteArray(), mPayload.size(), mBatch);
+    }
+
+    private String batch() {
+        return new String(mBatch.getByteArray(), 0, mBatch.size(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void encodesPlainAcksWithoutData() throws IOException, WebSocketException {
+        assertEquals("6:::12", encode(new SocketIOMessage.ACK("", "12", null)));
+        assertEquals("6::/room:3", encode(new SocketIOMessage.ACK("/room", "3", null)));
+    }
+
+    @Test
+    public void encodesAckData() throws IOException, WebSocketException {
+        assertEquals("6:::12+[\"ok\",2,null]", encode(new SocketIOMessage.ACK("", "12", new Object[] { "ok", 2, null })));
+        assertEquals("6::/room:3+[]", encode(new SocketIOMessage.ACK("/room", "3", new Object[0])));
+    }
+
+    @Test
+    public void encodesEmitsAskingForAckData() throws IOException, WebSocketException {
+        assertEquals("5:::{\"name\":\"chat\",\"args\":[\"hi\"]}", encode(new SocketIOMessage.Emit("", "chat", "hi")));
+        assertEquals("5:42+:/room:{\"name\":\"chat\",\"args\":[1]}",
+                encode(new SocketIOMessage.Emit(42, "/room", "chat", 1)));
+    }
+
+    @Test
+    public void encodesConstantFrames() throws IOException, WebSocketException {
+        assertEquals("2::", encode(new SocketIOMessage.Heartbeat()));
+        assertEquals("0::/room", encode(new SocketIOMessage.Disconnect("/room")));
+        assertEquals("1::/room", encode(new SocketIOMessage.Connect("/room", "")));
+    }
+
+    @Test
+    public void framesBatchesInUtf16Units() throws IOException, WebSocketException {
+        final String snowman = encode(new SocketIOMessage.Emit("", "chat", "☃ 😀 zoë"));
+        final String heartbeat = encode(new SocketIOMessage.Heartbeat());
+
+        final int first = append(new SocketIOMessage.Emit("", "chat", "☃ 😀 zoë"));
+        final int second = append(new SocketIOMessage.Heartbeat());
+
+        assertEquals("�" + snowman.length() + "�" + snowman + "�3�" + heartbeat, batch());
+        assertEquals(3 + String.valueOf(snowman.length()).length() + 3, first);
+        assertEquals(7, second);
+    }
+
+    @Test
+    public void framedBatchesDecodeBack() throws IOException, WebSocketException {
+        final TestTransport transport = new TestTransport();
+        final SocketIOCore core = new SocketIOCore(transport);
+        final SocketIOOptions options = new SocketIOOptions();
+        core.configure(options);
+        final List<Object> delivered = new ArrayList<Object>();
+        core.of("").on("chat", String.class, new SocketIO.EventHandler() {
+            public void onEvent(Object event) {
+            }
+        });
+        final SocketIODecoder decoder = new SocketIODecoder(core, options, new SocketIODecoder.Sink() {
+            public void deliver(Object message) {
+                delivered.add(message);
+            }
+        });
+
+        append(new SocketIOMessage.Emit("", "chat", "😀 first"));
+        append(new SocketIOMessage.Emit("", "chat", "second ☃"));
+        decoder.decode(mBatch.getByteArray(), mBatch.size(), false);
+
+        assertEquals(2, delivered.size());
+        assertEquals("😀 first", ((SocketIOMessage.Event) delivered.get(0)).mEvent);
+        assertEquals("second ☃", ((SocketIOMessage.Event) delivered.get(1)).mEvent);
+    }
+}
@@ -0,0 +1,402 @@
+package com.magnux.iobahn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * SocketIOConnection and SocketIONioConnection end to end, against the
+ * loopback SocketIOTestServer: events both ways, over xhr-polling too, acks,
+ * fast connects, and reconnects after dropped connections and a server
+ * restart, acks failed by disconnect(), heartbeats held back by traffic, and
+ * a crowd of clients recovering from a mass disconnect.
+ */
+public class SocketIOLoopbackTest {
+
+    // / Clients of the mass disconnect, and the spread of their reconnects.
+    private static final int CROWD = 50;
+    private static final int CROWD_MAX_DELAY = 1000;
+
+    private SocketIOTestServer mServer;
+    private SocketIO mConnection;
+    private final List<SocketIO> mCrowd = new ArrayList<SocketIO>();
+
+    // / Released on every onOpen() and onClose(), and the events received.
+    private final Semaphore mOpened = new Semaphore(0);
+    private final Semaphore mClosed = new Semaphore(0);
+    private final BlockingQueue<Object> mEvents = new LinkedBlockingQueue<Object>();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new SocketIOTestServer();
+    }
+
+    @After
+    public void tearDown() {
+        if (mConnection != null) {
+            mConnection.disconnect();
+        }
+        for (SocketIO connection : mCrowd) {
+            connection.disconnect();
+        }
+        mServer.stop();
+    }
+
+    private void connect(SocketIO connection) throws InterruptedException {
+        connect(connection, false);
+    }
+
+    private void connect(SocketIO connection, boolean fastConnect) throws InterruptedException {
+        mConnection = connection;
+        connection.on("echo", List.class, new SocketIO.EventHandler() {
+            public void onEvent(Object event) {
+                mEvents.add(event);
+            }
+        });
+        final SocketIOOptions options = new SocketIOOptions();
+        options.setReconnect(true);
+        options.setReconnectBaseDelay(50);
+        options.setReconnectMaxDelay(200);
+        options.setFastConnect(fastConnect);
+        connection.connect(mServer.getUri(), new SocketIO.ConnectionHandler() {
+            public void onOpen() {
+                mOpened.release();
+            }
+
+            public void onClose(int code, String reason) {
+                mClosed.release();
+            }
+        }, options);
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+    }
+
+    private void assertEchoed(String value) throws InterruptedException {
+        mConnection.emit("echo", Arrays.asList(value));
+        assertEquals(Arrays.asList(value), mEvents.poll(5, TimeUnit.SECONDS));
+    }
+
+    private void assertAcked() throws InterruptedException {
+        final BlockingQueue<Object[]> acks = new LinkedBlockingQueue<Object[]>();
+        mConnection.emit("ask", "question", new SocketIO.AckHandler() {
+            public void onAck(Object[] args) {
+                acks.add(args);
+            }
+
+            public void onTimeout() {
+            }
+        }, 5000);
+        assertArrayEquals(new Object[] { "question" }, acks.poll(5, TimeUnit.SECONDS));
+    }
+
+    private void assertPushed() throws InterruptedException {
+        assertEquals(1, mServer.emit("echo", "[[\"pushed\"]]"));
+        assertEquals(Arrays.asList("pushed"), mEvents.poll(5, TimeUnit.SECONDS));
+    }
+
+    private void assertReconnects() throws InterruptedException, IOException {
+        mServer.dropConnections();
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        assertEchoed("after drop");
+
+        mServer.restart(300);
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        assertEchoed("after restart");
+    }
+
+    private void assertDisconnectFailsAcks() throws InterruptedException {
+        // reconnecting to a server gone for good, the emit waits for a
+        // session that never comes
+        mServer.stop();
+        final CountDownLatch timedOut = new CountDownLatch(1);
+        mConnection.emit("ask", "question", new SocketIO.AckHandler() {
+            public void onAck(Object[] args) {
+            }
+
+            public void onTimeout() {
+                timedOut.countDown();
+            }
+        }, 0);
+        mConnection.disconnect();
+        assertTrue(timedOut.await(5, TimeUnit.SECONDS));
+    }
+
+    private void assertDisconnectNotifiesWhileReconnecting() throws InterruptedException {
+        // attempts are refused at once, the connection spends its time
+        // waiting out the backoff
+        mServer.stop();
+        Thread.sleep(500);
+        assertEquals(0, mClosed.availablePermits());
+        mConnection.disconnect();
+        assertTrue(mClosed.tryAcquire(5, TimeUnit.SECONDS));
+    }
+
+    private void assertHeartbeatsOnlyWhenIdle() throws InterruptedException {
+        // a heartbeat period of a second, emits every 100 ms prove the link
+        // alive in every one of them
+        for (int i = 0; i < 25; ++i) {
+            mConnection.emit("tick", Arrays.asList(i));
+            Thread.sleep(100);
+        }
+        assertEquals(0, mServer.getHeartbeatCount());
+
+        Thread.sleep(2500);
+        assertTrue(mServer.getHeartbeatCount() >= 1);
+    }
+
+    /**
+     * Connect, then reconnect after a drop, and check the TCP connections
+     * each connect took and the lookups made, timing the phases.
+     *
+     * @param connectionsPerConnect
+     *            Connections the handshake and the upgrade take together.
+     */
+    private void assertConnects(SocketIO connection, boolean fastConnect, int connectionsPerConnect)
+            throws InterruptedException {
+        final SocketIOStats stats = new SocketIOStats();
+        connection.setMetrics(stats);
+        connect(connection, fastConnect);
+        assertEchoed("hello");
+        assertEquals(connectionsPerConnect, mServer.getConnectionCount());
+        assertEquals(1, mServer.getUpgradeCount());
+        final long lookups = stats.getDnsNanos().getCount();
+
+        mServer.dropConnections();
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        assertEchoed("after drop");
+        assertEquals(2 * connectionsPerConnect, mServer.getConnectionCount());
+        assertEquals(2, stats.getConnectNanos().getCount());
+        if (fastConnect) {
+            // the address resolved first is reused
+            assertEquals(lookups, stats.getDnsNanos().getCount());
+        } else {
+            assertEquals(lookups + 1, stats.getDnsNanos().getCount());
+        }
+        System.out.println(String.format("%s%s: connect p50 %d us, handshake %d us, upgrade %d us",
+                connection instanceof SocketIONioConnection ? "nio" : "android", fastConnect ? " fast" : "",
+                stats.getConnectNanos().getPercentile(50) / 1000, stats.getHandshakeNanos().getPercentile(50) / 1000,
+                stats.getUpgradeNanos().getPercentile(50) / 1000));
+    }
+
+    /**
+     * Drop every one of a crowd of connections at once, and measure the time
+     * until all of them are open again and the rate of handshakes meanwhile.
+     * Reconnects are jittered over the backoff, and each client shakes hands
+     * once.
+     */
+    private void assertRecoversFromMassDisconnect(boolean nio) throws InterruptedException {
+        final SocketIOOptions options = new SocketIOOptions();
+        options.setReconnect(true);
+        options.setReconnectBaseDelay(CROWD_MAX_DELAY);
+        options.setReconnectMaxDelay(CROWD_MAX_DELAY);
+        final Semaphore opened = new Semaphore(0);
+        for (int i = 0; i < CROWD; ++i) {
+            final SocketIO connection = nio ? new SocketIONioConnection() : new SocketIOConnection();
+            mCrowd.add(connection);
+            connection.connect(mServer.getUri(), new SocketIO.ConnectionHandler() {
+                public void onOpen() {
+                    opened.release();
+                }
+
+                public void onClose(int code, String reason) {
+                }
+            }, options);
+        }
+        assertTrue(opened.tryAcquire(CROWD, 30, TimeUnit.SECONDS));
+
+        final long handshakes = mServer.getHandshakeCount();
+        final long start = System.nanoTime();
+        mServer.dropConnections();
+        assertTrue(opened.tryAcquire(CROWD, 30, TimeUnit.SECONDS));
+        final long recoverMillis = (System.nanoTime() - start) / 1000000;
+        final long rehandshakes = mServer.getHandshakeCount() - handshakes;
+        System.out.println(String.format("%s: %d clients recovered in %d ms, %d handshakes, %.0f/s",
+                nio ? "nio" : "android", CROWD, recoverMillis, rehandshakes, rehandshakes * 1000.0
+                        / Math.max(recoverMillis, 1)));
+
+        assertEquals(CROWD, rehandshakes);
+        // full jitter spreads the crowd over the backoff instead of a burst
+        assertTrue(recoverMillis >= CROWD_MAX_DELAY / 2);
+        assertTrue(recoverMillis < CROWD_MAX_DELAY + 10000);
+    }
+
+    @Test
+    public void exchangesEvents() throws InterruptedException {
+        connect(new SocketIOConnection());
+        assertEchoed("hello");
+        assertAcked();
+        assertPushed();
+    }
+
+    @Test
+    public void exchangesEventsOverPolling() throws InterruptedException {
+        mServer.setTransports("xhr-polling");
+        connect(new SocketIOConnection());
+        assertEchoed("hello");
+        assertAcked();
+        assertPushed();
+    }
+
+    @Test
+    public void reconnects() throws InterruptedException, IOException {
+        connect(new SocketIOConnection());
+        assertReconnects();
+    }
+
+    @Test
+    public void disconnectFailsPendingAcks() throws InterruptedException {
+        connect(new SocketIOConnection());
+        assertDisconnectFailsAcks();
+    }
+
+    @Test
+    public void disconnectNotifiesWhileReconnecting() throws InterruptedException {
+        connect(new SocketIOConnection());
+        assertDisconnectNotifiesWhileReconnecting();
+    }
+
+    @Test
+    public void heartbeatsOnlyWhenIdle() throws InterruptedException {
+        mServer.setHeartbeatTimeout(2);
+        connect(new SocketIOConnection());
+        assertHeartbeatsOnlyWhenIdle();
+    }
+
+    @Test
+    public void closesHttpClientWithLastConnection() throws InterruptedException {
+        connect(new SocketIOConnection());
+        final SocketIO other = new SocketIOConnection();
+        mCrowd.add(other);
+        other.connect(mServer.getUri(), new SocketIO.ConnectionHandler() {
+            public void onOpen() {
+                mOpened.release();
+            }
+
+            public void onClose(int code, String reason) {
+            }
+        });
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        assertTrue(SocketIOConnection.isHttpClientOpen());
+
+        mConnection.disconnect();
+        assertTrue(SocketIOConnection.isHttpClientOpen());
+        other.disconnect();
+        assertFalse(SocketIOConnection.isHttpClientOpen());
+    }
+
+    @Test
+    public void groupWritesOutliveStalledPeer() throws Exception {
+        final SocketIOConnectionGroup group = new SocketIOConnectionGroup();
+        group.setWriteTimeout(1000);
+        final SocketIOTestServer stalling = new SocketIOTestServer();
+        try {
+            final SocketIO stalled = new SocketIOConnection(group);
+            mCrowd.add(stalled);
+            final Semaphore stalledOpened = new Semaphore(0);
+            stalled.connect(stalling.getUri(), new SocketIO.ConnectionHandler() {
+                public void onOpen() {
+                    stalledOpened.release();
+                }
+
+                public void onClose(int code, String reason) {
+                }
+            });
+            assertTrue(stalledOpened.tryAcquire(5, TimeUnit.SECONDS));
+            connect(new SocketIOConnection(group));
+
+            // the peer reads one packet, then stops reading; the emits fill
+            // the socket buffers and the group writer blocks on them
+            stalling.setDelay(30000);
+            final char[] chunk = new char[64 * 1024];
+            Arrays.fill(chunk, 'x');
+            final String payload = new String(chunk);
+            for (int i = 0; i < 400; ++i) {
+                stalled.emit("bulk", Arrays.asList(payload));
+            }
+            Thread.sleep(300);
+
+            final long start = System.nanoTime();
+            assertEchoed("through");
+            final long millis = (System.nanoTime() - start) / 1000000;
+            assertTrue("took " + millis + " ms", millis < 4000);
+        } finally {
+            stalling.stop();
+            group.shutdown();
+        }
+    }
+
+    @Test
+    public void fastConnects() throws InterruptedException {
+        // the handshake client and Autobahn connect apart, only the lookup
+        // is saved
+        assertConnects(new SocketIOConnection(), true, 2);
+    }
+
+    @Test
+    public void recoversFromMassDisconnect() throws InterruptedException {
+        assertRecoversFromMassDisconnect(false);
+    }
+
+    @Test
+    public void exchangesEventsOverNio() throws InterruptedException {
+        connect(new SocketIONioConnection());
+        assertEchoed("hello");
+        assertAcked();
+        assertPushed();
+    }
+
+    @Test
+    public void reconnectsOverNio() throws InterruptedException, IOException {
+        connect(new SocketIONioConnection());
+        assertReconnects();
+    }
+
+    @Test
+    public void disconnectFailsPendingAcksOverNio() throws InterruptedException {
+        connect(new SocketIONioConnection());
+        assertDisconnectFailsAcks();
+    }
+
+    @Test
+    public void disconnectNotifiesWhileReconnectingOverNio() throws InterruptedException {
+        connect(new SocketIONioConnection());
+        assertDisconnectNotifiesWhileReconnecting();
+    }
+
+    @Test
+    public void heartbeatsOnlyWhenIdleOverNio() throws InterruptedException {
+        mServer.setHeartbeatTimeout(2);
+        connect(new SocketIONioConnection());
+        assertHeartbeatsOnlyWhenIdle();
+    }
+
+    @Test
+    public void connectsOverNio() throws InterruptedException {
+        assertConnects(new SocketIONioConnection(), false, 2);
+    }
+
+    @Test
+    public void fastConnectsOverNio() throws InterruptedException {
+        // the upgrade goes out on the kept-alive handshake connection
+        assertConnects(new SocketIONioConnection(), true, 1);
+    }
+
+    @Test
+    public void recoversFromMassDisconnectOverNio() throws InterruptedException {
+        assertRecoversFromMassDisconnect(true);
+    }
+}
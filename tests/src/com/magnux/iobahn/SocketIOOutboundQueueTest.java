@@ -0,0 +1,245 @@
+package com.magnux.iobahn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SocketIOOutboundQueueTest {
+
+    private final SocketIOOutboundQueue.Consumer mWriter = new SocketIOOutboundQueue.Consumer() {
+        public void requestDrain() {
+        }
+    };
+
+    private static SocketIOMessage.Emit emit(String name) {
+        return new SocketIOMessage.Emit("", name, null);
+    }
+
+    @Test
+    public void failsWhenFullByDefault() {
+        final SocketIOOutboundQueue queue = new SocketIOOutboundQueue();
+        queue.configure(1, new SocketIOOptions().getOutboundOverflowPolicy());
+        queue.offer(emit("a"), true);
+
+        try {
+            queue.offer(emit("b"), true);
+            fail("offered beyond capacity");
+        } catch (IllegalStateException e) {
+            assertEquals(1, queue.size());
+        }
+    }
+
+    @Test
+    public void refusesToBlockTheCallbackThread() {
+        final SocketIOOutboundQueue queue = new SocketIOOutboundQueue();
+        queue.configure(1, SocketIOOptions.OVERFLOW_BLOCK);
+        queue.offer(emit("a"), false);
+
+        try {
+            queue.offer(emit("b"), false);
+            fail("blocked or offered beyond capacity");
+        } catch (IllegalStateException e) {
+            assertEquals(1, queue.size());
+        }
+    }
+
+    @Test
+    public void blocksOtherThreadsUntilThereIsRoom() throws InterruptedException {
+        final SocketIOOutboundQueue queue = new SocketIOOutboundQueue();
+        queue.configure(1, SocketIOOptions.OVERFLOW_BLOCK);
+        queue.attach(mWriter);
+        final SocketIOMessage.Emit first = emit("a");
+        queue.offer(first, true);
+
+        final CountDownLatch offered = new CountDownLatch(1);
+        final Thread emitter = new Thread(new Runnable() {
+            public void run() {
+                queue.offer(emit("b"), true);
+                offered.countDown();
+            }
+        });
+        emitter.start();
+
+        assertEquals(false, offered.await(100, TimeUnit.MILLISECONDS));
+        assertSame(first, queue.poll(mWriter));
+        assertEquals(true, offered.await(2, TimeUnit.SECONDS));
+        assertEquals("b", queue.poll(mWriter).mName);
+    }
+
+    @Test
+    public void dropsOldest() {
+        final SocketIOOutboundQueue queue = new SocketIOOutboundQueue();
+        queue.configure(2, SocketIOOptions.OVERFLOW_DROP_OLDEST);
+        queue.attach(mWriter);
+        final SocketIOMessage.Emit first = emit("a");
+        queue.offer(first, false);
+        assertNull(queue.offer(emit("b"), false));
+
+        assertSame(first, queue.offer(emit("c"), false));
+        assertEquals("b", queue.poll(mWriter).mName);
+        assertEquals("c", queue.poll(mWriter).mName);
+        assertNull(queue.poll(mWriter));
+    }
+
+    @Test
+    public void conflatesByEventName() {
+        final SocketIOOutboundQueue queue = new SocketIOOutboundQueue();
+        queue.configure(0, SocketIOOptions.OVERFLOW_CONFLATE);
+        queue.attach(mWriter);
+        queue.offer(new SocketIOMessage.Emit("", "pos", 1), false);
+        queue.offer(new SocketIOMessage.Emit("", "other", 2), false);
+        queue.offer(new SocketIOMessage.Emit("", "pos", 3), false);
+        // emits with an ack are never conflated
+        queue.offer(new SocketIOMessage.Emit(9, "", "pos", 4), false);
+
+        assertEquals(3, queue.size());
+        assertEquals(3, queue.poll(mWriter).mEvent);
+        assertEquals(2, queue.poll(mWriter).mEvent);
+        assertEquals(4, queue.poll(mWriter).mEvent);
+    }
+
+    private SocketIOOutboundQueue conflating() {
+        final SocketIOOutboundQueue queue = new SocketIOOutboundQueue();
+        queue.configure(0, SocketIOOptions.OVERFLOW_CONFLATE);
+        queue.attach(mWriter);
+        return queue;
+    }
+
+    @Test
+    public void conflatesInPlace() {
+        final SocketIOOutboundQueue queue = conflating();
+        final SocketIOMessage.Emit first = new SocketIOMessage.Emit("", "pos", 1);
+        queue.offer(first, false);
+        queue.offer(emit("other"), false);
+        assertNull(queue.offer(new SocketIOMessage.Emit("", "pos", 2), false));
+
+        // the pending emit keeps its place, and carries the latest value
+        assertEquals(2, queue.size());
+        assertSame(first, queue.poll(mWriter));
+        assertEquals(2, first.mEvent);
+        assertEquals("other", queue.poll(mWriter).mName);
+
+        // once taken by the writer, an emit no longer absorbs later ones
+        final SocketIOMessage.Emit next = new SocketIOMessage.Emit("", "pos", 3);
+        queue.offer(next, false);
+        assertEquals(2, first.mEvent);
+        assertSame(next, queue.poll(mWriter));
+    }
+
+    @Test
+    public void conflatesEndpointsApart() {
+        final SocketIOOutboundQueue queue = conflating();
+        queue.offer(new SocketIOMessage.Emit("/a", "pos", 1), false);
+        queue.offer(new SocketIOMessage.Emit("/b", "pos", 2), false);
+        queue.offer(new SocketIOMessage.Emit("", "pos", 3), false);
+        queue.offer(new SocketIOMessage.Emit("/a", "pos", 4), false);
+        queue.offer(new SocketIOMessage.Emit("/b", "pos", 5), false);
+
+        assertEquals(3, queue.size());
+        final SocketIOMessage.Emit a = queue.poll(mWriter);
+        assertEquals("/a", a.mEndpoint);
+        assertEquals(4, a.mEvent);
+        final SocketIOMessage.Emit b = queue.poll(mWriter);
+        assertEquals("/b", b.mEndpoint);
+        assertEquals(5, b.mEvent);
+        final SocketIOMessage.Emit root = queue.poll(mWriter);
+        assertEquals("", root.mEndpoint);
+        assertEquals(3, root.mEvent);
+    }
+
+    @Test
+    public void neverConflatesAckedEmits() {
+        final SocketIOOutboundQueue queue = conflating();
+        // neither absorbs a later emit, nor is absorbed by an earlier one
+        queue.offer(new SocketIOMessage.Emit(7, "", "pos", 1), false);
+        queue.offer(new SocketIOMessage.Emit("", "pos", 2), false);
+        queue.offer(new SocketIOMessage.Emit(8, "", "pos", 3), false);
+        queue.offer(new SocketIOMessage.Emit("", "pos", 4), false);
+
+        assertEquals(3, queue.size());
+        assertEquals(1, queue.poll(mWriter).mEvent);
+        assertEquals(4, queue.poll(mWriter).mEvent);
+        final SocketIOMessage.Emit acked = queue.poll(mWriter);
+        assertEquals(8, acked.mId);
+        assertEquals(3, acked.mEvent);
+        assertNull(queue.poll(mWriter));
+    }
+
+    @Test
+    public void requeueDropsSupersededEmits() {
+        final SocketIOOutboundQueue queue = conflating();
+        queue.offer(new SocketIOMessage.Emit("", "pos", 1), false);
+        final SocketIOMessage.Emit failed = queue.poll(mWriter);
+        final SocketIOMessage.Emit newer = new SocketIOMessage.Emit("", "pos", 2);
+        queue.offer(newer, false);
+        final SocketIOMessage.Emit acked = new SocketIOMessage.Emit(7, "", "pos", 0);
+
+        queue.requeue(Arrays.asList(failed, acked));
+
+        // the acked emit is never superseded, and goes first
+        assertEquals(2, queue.size());
+        assertSame(acked, queue.poll(mWriter));
+        assertSame(newer, queue.poll(mWriter));
+        assertEquals(2, newer.mEvent);
+    }
+
+    @Test
+    public void requeuedEmitsAbsorbLaterOnes() {
+        final SocketIOOutboundQueue queue = conflating();
+        queue.offer(new SocketIOMessage.Emit("", "pos", 1), false);
+        final SocketIOMessage.Emit failed = queue.poll(mWriter);
+        queue.requeue(Arrays.asList(failed));
+
+        assertNull(queue.offer(new SocketIOMessage.Emit("", "pos", 2), false));
+
+        assertEquals(1, queue.size());
+        assertSame(failed, queue.poll(mWriter));
+        assertEquals(2, failed.mEvent);
+    }
+
+    @Test
+    public void requeuesAheadOfLaterEmits() {
+        final SocketIOOutboundQueue queue = new SocketIOOutboundQueue();
+        queue.configure(2, SocketIOOptions.OVERFLOW_CONFLATE);
+        queue.attach(mWriter);
+        queue.offer(new SocketIOMessage.Emit("", "pos", 1), false);
+        queue.offer(new SocketIOMessage.Emit("", "other", 2), false);
+        final SocketIOMessage.Emit pos = queue.poll(mWriter);
+        final SocketIOMessage.Emit other = queue.poll(mWriter);
+        queue.offer(new SocketIOMessage.Emit("", "pos", 3), false);
+
+        // beyond capacity, the newer pos supersedes the requeued one
+        queue.requeue(Arrays.asList(pos, other, emit("last")));
+
+        assertEquals(3, queue.size());
+        assertSame(other, queue.poll(mWriter));
+        assertEquals("last", queue.poll(mWriter).mName);
+        assertEquals(3, queue.poll(mWriter).mEvent);
+    }
+
+    @Test
+    public void emitOnTheCallbackThreadDoesNotBlock() {
+        final TestTransport transport = new TestTransport();
+        transport.mCallbackThread = Thread.currentThread();
+        final SocketIOCore core = new SocketIOCore(transport);
+        final SocketIOOptions options = new SocketIOOptions();
+        options.setOutboundQueueSize(1);
+        options.setOutboundOverflowPolicy(SocketIOOptions.OVERFLOW_BLOCK);
+        core.configure(options);
+        core.of("").emit("a", 1);
+
+        try {
+            core.of("").emit("b", 2);
+            fail("emitted beyond capacity");
+        } catch (IllegalStateException e) {
+            assertEquals(1, core.mOutboundQueue.size());
+        }
+    }
+}
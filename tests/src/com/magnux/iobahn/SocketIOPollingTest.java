@@ -0,0 +1,212 @@
+package com.magnux.iobahn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * SocketIOPolling against a loopback HTTP server holding polls, and
+ * recording the bodies posted to it.
+ */
+public class SocketIOPollingTest {
+
+    private static final String SESSION = "/socket.io/1/xhr-polling/sid";
+
+    private HttpServer mServer;
+
+    // / Bodies posted, posts made, failed ones included, and how many posts
+    // / to fail first.
+    private final BlockingQueue<String> mPosts = new LinkedBlockingQueue<String>();
+    private final AtomicInteger mPostCount = new AtomicInteger();
+    private final AtomicInteger mFailPosts = new AtomicInteger();
+
+    // / Released to answer the held polls.
+    private final CountDownLatch mStop = new CountDownLatch(1);
+
+    private SocketIOCore mCore;
+    private final List<SocketIOPolling> mSessions = new ArrayList<SocketIOPolling>();
+    private final CountDownLatch mClosed = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext(SESSION, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                final String body = read(exchange.getRequestBody());
+                if ("GET".equals(exchange.getRequestMethod())) {
+                    try {
+                        mStop.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    respond(exchange, 200, "8::");
+                    return;
+                }
+                mPostCount.incrementAndGet();
+                if (mFailPosts.getAndDecrement() > 0) {
+                    respond(exchange, 500, "");
+                } else {
+                    mPosts.add(body);
+                    respond(exchange, 200, "1");
+                }
+            }
+        });
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+
+        mCore = new SocketIOCore(new TestTransport());
+    }
+
+    @After
+    public void tearDown() {
+        for (SocketIOPolling session : mSessions) {
+            session.close();
+        }
+        mStop.countDown();
+        mServer.stop(0);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            out.write(buf, 0, read);
+        }
+        in.close();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        final OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private SocketIOPolling open() {
+        final String url = "http://127.0.0.1:" + mServer.getAddress().getPort() + SESSION;
+        final SocketIOPolling session = new SocketIOPolling(mCore, new SocketIOOptions(), url, 10000,
+                new SocketIOPolling.Listener() {
+                    public void onMessage(SocketIOPolling session, Object message) {
+                    }
+
+                    public void onClose(SocketIOPolling session, int code, String reason) {
+                        mClosed.countDown();
+                    }
+                });
+        mSessions.add(session);
+        session.start();
+        mCore.onOpen(session);
+        return session;
+    }
+
+    private static String framed(String... messages) {
+        final StringBuilder payload = new StringBuilder();
+        for (String message : messages) {
+            payload.append('\ufffd').append(message.length()).append('\ufffd').append(message);
+        }
+        return payload.toString();
+    }
+
+    private void emit(String... names) {
+        for (String name : names) {
+            mCore.of("").emit(name, Arrays.asList(name));
+        }
+    }
+
+    @Test
+    public void postsQueuedEmitsAsOnePayload() throws InterruptedException {
+        emit("a", "b", "c");
+        open();
+
+        assertEquals(framed("5:::{\"name\":\"a\",\"args\":[[\"a\"]]}", "5:::{\"name\":\"b\",\"args\":[[\"b\"]]}",
+                "5:::{\"name\":\"c\",\"args\":[[\"c\"]]}"), mPosts.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, mCore.mOutboundQueue.size());
+    }
+
+    @Test
+    public void postsALoneEmitUnframed() throws InterruptedException {
+        open();
+        emit("a");
+
+        assertEquals("5:::{\"name\":\"a\",\"args\":[[\"a\"]]}", mPosts.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void stopsPostingOnceAPostFailed() throws InterruptedException {
+        final SocketIOStats stats = new SocketIOStats();
+        mCore.mMetrics = stats;
+        mFailPosts.set(1);
+        emit("a");
+        final SocketIOPolling failed = open();
+
+        assertTrue(mClosed.await(5, TimeUnit.SECONDS));
+        // a control message of the failed session goes nowhere
+        failed.send(new SocketIOMessage.Heartbeat());
+        Thread.sleep(300);
+
+        assertEquals(1, mPostCount.get());
+        assertEquals(0, stats.getFramesSent());
+        assertEquals(0, stats.getBytesSent());
+    }
+
+    @Test
+    public void countsPostsSent() throws InterruptedException {
+        final SocketIOStats stats = new SocketIOStats();
+        mCore.mMetrics = stats;
+        open();
+        emit("a");
+
+        final String posted = mPosts.poll(5, TimeUnit.SECONDS);
+        assertEquals("5:::{\"name\":\"a\",\"args\":[[\"a\"]]}", posted);
+        // counted once the response is in
+        for (int i = 0; i < 50 && stats.getFramesSent() == 0; ++i) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, stats.getFramesSent());
+        assertEquals(posted.length(), stats.getBytesSent());
+    }
+
+    @Test
+    public void requeuesEmitsOfAFailedPost() throws InterruptedException {
+        mFailPosts.set(1);
+        emit("a", "b");
+        final SocketIOPolling failed = open();
+
+        assertTrue(mClosed.await(5, TimeUnit.SECONDS));
+        assertTrue(!failed.isOpen());
+        mCore.onClose(false);
+        assertEquals(2, mCore.mOutboundQueue.size());
+
+        // ahead of what was emitted since
+        emit("c");
+        open();
+        assertEquals(framed("5:::{\"name\":\"a\",\"args\":[[\"a\"]]}", "5:::{\"name\":\"b\",\"args\":[[\"b\"]]}",
+                "5:::{\"name\":\"c\",\"args\":[[\"c\"]]}"), mPosts.poll(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,742 @@
+package com.magnux.iobahn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Socket.IO 0.9 server on loopback, for tests and the load harness. It
+ * answers the <code>/socket.io/1/</code> handshake, with or without keep
+ * alive, and speaks the websocket transport, multi-message payloads
+ * included, on a thread per connection. With {@link #setTransports} it
+ * offers xhr-polling instead, holding each poll until it has packets to
+ * answer with.
+ *
+ * Endpoint joins are confirmed. Events asking for an ack are acked with their
+ * args, other events are echoed to their sender, and {@link #emit} pushes an
+ * event to every session.
+ *
+ * Faults are injected with {@link #setDelay}, {@link #dropConnections} and
+ * {@link #restart}.
+ */
+public class SocketIOTestServer {
+
+    // / RFC 6455 key suffix of the Sec-WebSocket-Accept digest.
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    // / Close timeout announced by the handshake, in seconds.
+    private static final int CLOSE_TIMEOUT = 60;
+
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+
+    // / Longest a poll is held without packets to answer, in milliseconds.
+    private static final int POLLING_DURATION = 20000;
+
+    private final ObjectMapper mMapper = new ObjectMapper();
+
+    // / The port, kept across restarts.
+    private int mPort;
+
+    // / The listening socket while started, guarded by this.
+    private ServerSocket mServerSocket;
+
+    // / Connections, HTTP and upgraded alike, and sessions issued by a
+    // / handshake and not yet upgraded.
+    private final Set<Socket> mSockets = ConcurrentHashMap.newKeySet();
+    private final Set<Session> mSessions = ConcurrentHashMap.newKeySet();
+    private final Set<String> mIssued = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong mNextSessionId = new AtomicLong(1);
+
+    // / Milliseconds each request and each received packet is held.
+    private volatile int mDelay;
+
+    // / Heartbeat timeout announced by the handshake, in seconds.
+    private volatile int mHeartbeatTimeout = 60;
+
+    // / Transports offered by the handshake, and the xhr-polling sessions
+    // / by id.
+    private volatile String mTransports = "websocket";
+    private final Map<String, Session> mPolling = new ConcurrentHashMap<String, Session>();
+
+    private final AtomicLong mAccepts = new AtomicLong();
+    private final AtomicLong mHandshakes = new AtomicLong();
+    private final AtomicLong mUpgrades = new AtomicLong();
+    private final AtomicLong mEvents = new AtomicLong();
+    private final AtomicLong mHeartbeats = new AtomicLong();
+
+    /**
+     * A websocket or an xhr-polling session.
+     */
+    public final class Session {
+
+        // / The websocket connection, or null when polling.
+        private final Socket mSocket;
+        private final OutputStream mOut;
+
+        // / Packets waiting for the next poll, or null over websocket.
+        private final LinkedBlockingQueue<String> mOutbox;
+
+        Session(Socket socket) throws IOException {
+            mSocket = socket;
+            mOut = socket.getOutputStream();
+            mOutbox = null;
+        }
+
+        Session() {
+            mSocket = null;
+            mOut = null;
+            mOutbox = new LinkedBlockingQueue<String>();
+        }
+
+        /**
+         * Send a packet in a text frame, or queue it for the next poll.
+         */
+        public void send(String packet) throws IOException {
+            if (mOutbox != null) {
+                mOutbox.add(packet);
+            } else {
+                sendFrame(0x1, packet.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        /**
+         * Wait for the packets of a poll, and take them all.
+         *
+         * @return Them as a payload, or a noop when none came in time.
+         */
+        String poll() throws IOException {
+            final List<String> packets = new ArrayList<String>();
+            try {
+                final String first = mOutbox.poll(POLLING_DURATION, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    return "8::";
+                }
+                packets.add(first);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+            mOutbox.drainTo(packets);
+            if (packets.size() == 1) {
+                return packets.get(0);
+            }
+            final StringBuilder payload = new StringBuilder();
+            for (String packet : packets) {
+                payload.append('\ufffd').append(packet.length()).append('\ufffd').append(packet);
+            }
+            return payload.toString();
+        }
+
+        synchronized void sendFrame(int opcode, byte[] payload) throws IOException {
+            final ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 10);
+            frame.write(0x80 | opcode);
+            if (payload.length < 126) {
+                frame.write(payload.length);
+            } else if (payload.length < 65536) {
+                frame.write(126);
+                frame.write(payload.length >>> 8);
+                frame.write(payload.length);
+            } else {
+                frame.write(127);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    frame.write((int) ((long) payload.length >>> shift));
+                }
+            }
+            frame.write(payload, 0, payload.length);
+            mOut.write(frame.toByteArray());
+            mOut.flush();
+        }
+    }
+
+    /**
+     * Start on an ephemeral loopback port.
+     */
+    public SocketIOTestServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Start on a loopback port.
+     *
+     * @param port
+     *            The port, 0 for an ephemeral one.
+     */
+    public SocketIOTestServer(int port) throws IOException {
+        mPort = port;
+        start();
+    }
+
+    /**
+     * The port, the same across restarts.
+     */
+    public int getPort() {
+        return mPort;
+    }
+
+    /**
+     * The WebSockets URI clients connect to.
+     */
+    public String getUri() {
+        return "ws://127.0.0.1:" + mPort;
+    }
+
+    /**
+     * Number of TCP connections accepted.
+     */
+    public long getConnectionCount() {
+        return mAccepts.get();
+    }
+
+    public long getHandshakeCount() {
+        return mHandshakes.get();
+    }
+
+    public long getUpgradeCount() {
+        return mUpgrades.get();
+    }
+
+    public long getEventCount() {
+        return mEvents.get();
+    }
+
+    public long getHeartbeatCount() {
+        return mHeartbeats.get();
+    }
+
+    /**
+     * Number of open websocket sessions.
+     */
+    public int getSessionCount() {
+        return mSessions.size();
+    }
+
+    /**
+     * Hold each request and each received packet from now on.
+     *
+     * @param delay
+     *            The delay in milliseconds, 0 for none.
+     */
+    public void setDelay(int delay) {
+        mDelay = delay;
+    }
+
+    /**
+     * Announce a heartbeat timeout in the handshakes from now on. Clients
+     * send heartbeats every half of it.
+     *
+     * @param seconds
+     *            The timeout in seconds, 60 by default.
+     */
+    public void setHeartbeatTimeout(int seconds) {
+        mHeartbeatTimeout = seconds;
+    }
+
+    /**
+     * Offer other transports in the handshakes from now on, xhr-polling for
+     * clients to poll.
+     *
+     * @param transports
+     *            Comma separated transport names, "websocket" by default.
+     */
+    public void setTransports(String transports) {
+        mTransports = transports;
+    }
+
+    /**
+     * Push an event to every session.
+     *
+     * @param name
+     *            The event name.
+     * @param args
+     *            The JSON array of its args.
+     * @return The number of sessions it was sent to.
+     */
+    public int emit(String name, String args) {
+        final String packet = "5:::{\"name\":" + quote(name) + ",\"args\":" + args + "}";
+        int sent = 0;
+        for (Session session : mSessions) {
+            try {
+                session.send(packet);
+                ++sent;
+            } catch (IOException e) {
+                close(session.mSocket);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Reset every connection, without a close frame, as a lost network does.
+     */
+    public void dropConnections() {
+        for (Socket socket : mSockets) {
+            reset(socket);
+        }
+        // polling sessions are lost with their connections
+        for (Session session : mPolling.values()) {
+            mSessions.remove(session);
+        }
+        mPolling.clear();
+    }
+
+    /**
+     * Go away for a while: stop listening, reset every connection, and
+     * listen again on the same port.
+     *
+     * @param downtime
+     *            Milliseconds to stay away.
+     */
+    public void restart(long downtime) throws IOException {
+        synchronized (this) {
+            close(mServerSocket);
+            mServerSocket = null;
+        }
+        dropConnections();
+        mIssued.clear();
+        try {
+            Thread.sleep(downtime);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        start();
+    }
+
+    /**
+     * Stop listening and close every connection.
+     */
+    public void stop() {
+        synchronized (this) {
+            close(mServerSocket);
+            mServerSocket = null;
+        }
+        for (Socket socket : mSockets) {
+            close(socket);
+        }
+    }
+
+    private synchronized void start() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), mPort), 1024);
+        mPort = serverSocket.getLocalPort();
+        mServerSocket = serverSocket;
+
+        final Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept(serverSocket);
+            }
+        }, "SocketIOTestServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                // closed by stop() or restart()
+                return;
+            }
+            mSockets.add(socket);
+            mAccepts.incrementAndGet();
+            final Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException e) {
+                        // dropped, by either side
+                    } finally {
+                        close(socket);
+                        mSockets.remove(socket);
+                    }
+                }
+            }, "SocketIOTestServerConnection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Answer HTTP requests until the connection is upgraded or closed.
+     */
+    private void serve(Socket socket) throws IOException {
+        final InputStream in = socket.getInputStream();
+        final OutputStream out = socket.getOutputStream();
+        while (true) {
+            final String head = readHead(in);
+            if (head == null) {
+                return;
+            }
+            final String[] lines = head.split("\r\n");
+            final String[] requestLine = lines[0].split(" ");
+            if (requestLine.length < 3) {
+                respond(out, "400 Bad Request", "", false);
+                return;
+            }
+            final Map<String, String> headers = new HashMap<String, String>();
+            for (int i = 1; i < lines.length; ++i) {
+                final int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US),
+                            lines[i].substring(colon + 1).trim());
+                }
+            }
+            final String length = headers.get("content-length");
+            final byte[] body = new byte[length != null ? Integer.parseInt(length) : 0];
+            readFully(in, body, body.length);
+            hold();
+
+            final String path = requestLine[1];
+            final boolean http11 = requestLine[2].equals("HTTP/1.1");
+            final String connection = headers.get("connection");
+            final boolean keepAlive = connection == null ? http11 : connection.equalsIgnoreCase("keep-alive");
+
+            if (path.startsWith("/socket.io/1/websocket/")) {
+                final String sessionId = path.substring("/socket.io/1/websocket/".length());
+                final String key = headers.get("sec-websocket-key");
+                if (!"websocket".equalsIgnoreCase(headers.get("upgrade")) || key == null) {
+                    respond(out, "400 Bad Request", "", false);
+                    return;
+                }
+                if (!mIssued.remove(sessionId)) {
+                    respond(out, "403 Forbidden", "", false);
+                    return;
+                }
+                upgrade(socket, key, headers.get("sec-websocket-protocol"));
+                return;
+            } else if (path.startsWith("/socket.io/1/xhr-polling/")) {
+                final int query = path.indexOf('?');
+                final String sessionId = path.substring("/socket.io/1/xhr-polling/".length(),
+                        query < 0 ? path.length() : query);
+                if (!poll(out, sessionId, requestLine[0].equals("POST") ? body : null, keepAlive)) {
+                    return;
+                }
+            } else if (path.equals("/socket.io/1/") || path.startsWith("/socket.io/1/?")) {
+                final String sessionId = Long.toString(mNextSessionId.getAndIncrement());
+                mIssued.add(sessionId);
+                mHandshakes.incrementAndGet();
+                respond(out, "200 OK", sessionId + ":" + mHeartbeatTimeout + ":" + CLOSE_TIMEOUT + ":" + mTransports,
+                        keepAlive);
+            } else {
+                respond(out, "404 Not Found", "", false);
+                return;
+            }
+            if (!keepAlive) {
+                return;
+            }
+        }
+    }
+
+    private void upgrade(Socket socket, String key, String protocol) throws IOException {
+        final StringBuilder response = new StringBuilder();
+        response.append("HTTP/1.1 101 Switching Protocols\r\n");
+        response.append("Upgrade: websocket\r\n");
+        response.append("Connection: Upgrade\r\n");
+        response.append("Sec-WebSocket-Accept: ").append(accept(key)).append("\r\n");
+        if (protocol != null) {
+            response.append("Sec-WebSocket-Protocol: ").append(protocol).append("\r\n");
+        }
+        response.append("\r\n");
+        socket.getOutputStream().write(response.toString().getBytes(StandardCharsets.US_ASCII));
+
+        final Session session = new Session(socket);
+        mSessions.add(session);
+        mUpgrades.incrementAndGet();
+        try {
+            session.send("1::");
+            receive(session, socket.getInputStream());
+        } finally {
+            mSessions.remove(session);
+        }
+    }
+
+    /**
+     * Answer a request of an xhr-polling session: the first poll opens it,
+     * later ones wait for packets, posts carry packets in.
+     *
+     * @param body
+     *            The body of a post, null for a poll.
+     * @return False when the connection is to close.
+     */
+    private boolean poll(OutputStream out, String sessionId, byte[] body, boolean keepAlive) throws IOException {
+        Session session = mPolling.get(sessionId);
+        if (session == null) {
+            if (body != null || !mIssued.remove(sessionId)) {
+                respond(out, "404 Not Found", "", false);
+                return false;
+            }
+            session = new Session();
+            mPolling.put(sessionId, session);
+            mSessions.add(session);
+            mUpgrades.incrementAndGet();
+            respond(out, "200 OK", "1::", keepAlive);
+            return keepAlive;
+        }
+        if (body == null) {
+            respond(out, "200 OK", session.poll(), keepAlive);
+            return keepAlive;
+        }
+        for (String packet : split(new String(body, StandardCharsets.UTF_8))) {
+            if (!onPacket(session, packet)) {
+                mPolling.remove(sessionId);
+                mSessions.remove(session);
+                break;
+            }
+        }
+        respond(out, "200 OK", "1", keepAlive);
+        return keepAlive;
+    }
+
+    /**
+     * Read frames until the session closes.
+     */
+    private void receive(Session session, InputStream in) throws IOException {
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        boolean binary = false;
+        while (true) {
+            final int b0 = in.read();
+            if (b0 < 0) {
+                return;
+            }
+            final boolean fin = (b0 & 0x80) != 0;
+            final int opcode = b0 & 0x0f;
+            final int b1 = readByte(in);
+            long length = b1 & 0x7f;
+            if (length == 126) {
+                length = (readByte(in) << 8) | readByte(in);
+            } else if (length == 127) {
+                length = 0;
+                for (int i = 0; i < 8; ++i) {
+                    length = (length << 8) | readByte(in);
+                }
+            }
+            final byte[] mask = new byte[4];
+            if ((b1 & 0x80) != 0) {
+                readFully(in, mask, 4);
+            }
+            final byte[] payload = new byte[(int) length];
+            readFully(in, payload, payload.length);
+            for (int i = 0; i < payload.length; ++i) {
+                payload[i] ^= mask[i & 3];
+            }
+
+            switch (opcode) {
+            case 0x1:
+            case 0x2:
+                binary = opcode == 0x2;
+                // fall through
+            case 0x0:
+                message.write(payload, 0, payload.length);
+                if (!fin) {
+                    break;
+                }
+                final String text = new String(message.toByteArray(), StandardCharsets.UTF_8);
+                message.reset();
+                if (binary) {
+                    // binary codecs are not spoken here
+                    break;
+                }
+                hold();
+                for (String packet : split(text)) {
+                    if (!onPacket(session, packet)) {
+                        return;
+                    }
+                }
+                break;
+            case 0x8:
+                session.sendFrame(0x8, payload);
+                return;
+            case 0x9:
+                session.sendFrame(0xA, payload);
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * Handle a packet <code>type:id:endpoint[:data]</code>.
+     *
+     * @return False when the session is to close.
+     */
+    private boolean onPacket(Session session, String packet) throws IOException {
+        final String[] parts = packet.split(":", 4);
+        if (parts.length < 3) {
+            return true;
+        }
+        final String id = parts[1];
+        final String endpoint = parts[2];
+        final String data = parts.length > 3 ? parts[3] : "";
+        switch (parts[0]) {
+        case "0":
+            return endpoint.length() > 0;
+        case "1":
+            session.send("1::" + endpoint);
+            break;
+        case "2":
+            mHeartbeats.incrementAndGet();
+            break;
+        case "5":
+            mEvents.incrementAndGet();
+            if (id.endsWith("+")) {
+                final JsonNode args = mMapper.readTree(data).get("args");
+                session.send("6:::" + id.substring(0, id.length() - 1) + "+" + (args != null ? args : "[]"));
+            } else if (id.length() > 0) {
+                session.send("6:::" + id);
+            } else {
+                session.send("5::" + endpoint + ":" + data);
+            }
+            break;
+        default:
+            break;
+        }
+        return true;
+    }
+
+    /**
+     * Split a multi-message payload, <code>\ufffd&lt;length&gt;\ufffd&lt;packet&gt;</code>
+     * repeated, lengths in UTF-16 units.
+     */
+    static List<String> split(String payload) {
+        final List<String> packets = new ArrayList<String>();
+        if (payload.isEmpty() || payload.charAt(0) != '\ufffd') {
+            packets.add(payload);
+            return packets;
+        }
+        int pos = 0;
+        while (pos < payload.length() && payload.charAt(pos) == '\ufffd') {
+            final int end = payload.indexOf('\ufffd', pos + 1);
+            final int length = Integer.parseInt(payload.substring(pos + 1, end));
+            packets.add(payload.substring(end + 1, end + 1 + length));
+            pos = end + 1 + length;
+        }
+        return packets;
+    }
+
+    private void hold() {
+        final int delay = mDelay;
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static String accept(String key) {
+        try {
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(
+                    sha1.digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void respond(OutputStream out, String status, String body, boolean keepAlive)
+            throws IOException {
+        final byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        final String head = "HTTP/1.1 " + status + "\r\nContent-Type: text/plain\r\nContent-Length: "
+                + content.length + "\r\nConnection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(head.getBytes(StandardCharsets.US_ASCII));
+        response.write(content);
+        out.write(response.toByteArray());
+        out.flush();
+    }
+
+    /**
+     * Read a request head up to its blank line.
+     *
+     * @return The head, or null at the end of the stream.
+     */
+    private static String readHead(InputStream in) throws IOException {
+        final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            final int b = in.read();
+            if (b < 0) {
+                return null;
+            }
+            head.write(b);
+            if (head.size() > MAX_HEADER_SIZE) {
+                throw new IOException("request head too large");
+            }
+            matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : b == '\r' ? 1 : 0;
+        }
+        return new String(head.toByteArray(), 0, head.size() - 4, StandardCharsets.US_ASCII);
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        final int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            final int n = in.read(buffer, read, length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static void reset(Socket socket) {
+        try {
+            socket.setSoLinger(true, 0);
+        } catch (SocketException e) {
+            // closed already
+        }
+        close(socket);
+    }
+
+    private static void close(java.io.Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.magnux.iobahn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+public class SocketIOWriterTest {
+
+    private ServerSocketChannel mServer;
+    private SocketChannel mClient;
+    private SocketChannel mPeer;
+    private HandlerThread mWriterThread;
+    private HandlerThread mMasterThread;
+    private SocketIOOutboundQueue mQueue;
+    private SocketIOWriter mWriter;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        mClient = SocketChannel.open(mServer.socket().getLocalSocketAddress());
+        mPeer = mServer.accept();
+        mPeer.socket().setSoTimeout(2000);
+
+        mWriterThread = new HandlerThread("SocketIOWriter");
+        mWriterThread.start();
+        mMasterThread = new HandlerThread("SocketIOMaster");
+        mMasterThread.start();
+        mQueue = new SocketIOOutboundQueue();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mWriterThread.quit();
+        mMasterThread.quit();
+        mClient.close();
+        mPeer.close();
+        mServer.close();
+    }
+
+    private void startWriter(SocketIOOptions options) {
+        mWriter = new SocketIOWriter(mWriterThread.getLooper(), new Handler(mMasterThread.getLooper()), mClient,
+                options, new ObjectMapper(), mQueue, false);
+        mQueue.attach(mWriter);
+    }
+
+    private static SocketIOOptions batching(long lingerMicros) {
+        final SocketIOOptions options = new SocketIOOptions();
+        options.setBatchingEnabled(true);
+        options.setMaxBatchLingerMicros(lingerMicros);
+        return options;
+    }
+
+    /**
+     * Read the payload of the next masked client frame.
+     */
+    private String readFrame() throws IOException {
+        final InputStream in = mPeer.socket().getInputStream();
+        final byte[] head = readFully(in, 2);
+        long length = head[1] & 0x7f;
+        if (length == 126) {
+            final byte[] ext = readFully(in, 2);
+            length = (ext[0] & 0xff) << 8 | ext[1] & 0xff;
+        } else if (length == 127) {
+            length = ByteBuffer.wrap(readFully(in, 8)).getLong();
+        }
+        final byte[] mask = readFully(in, 4);
+        final byte[] payload = readFully(in, (int) length);
+        for (int i = 0; i < payload.length; ++i) {
+            payload[i] ^= mask[i & 3];
+        }
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        final byte[] buf = new byte[length];
+        int read = 0;
+        while (read < length) {
+            final int n = in.read(buf, read, length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+        return buf;
+    }
+
+    private String readFrameOrNull() throws IOException {
+        try {
+            return readFrame();
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+    }
+
+    @Test
+    public void batchesEmitsWithinLingerTime() throws IOException {
+        startWriter(batching(200000));
+
+        mQueue.offer(new SocketIOMessage.Emit("", "a", 1), true);
+        // lets the first drain run ahead of the second emit
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mQueue.offer(new SocketIOMessage.Emit("", "b", 2), true);
+
+        final String a = "5:::{\"name\":\"a\",\"args\":[1]}";
+        final String b = "5:::{\"name\":\"b\",\"args\":[2]}";
+        assertEquals("�" + a.length() + "�" + a + "�" + b.length() + "�" + b, readFrame());
+        mPeer.socket().setSoTimeout(300);
+        assertNull(readFrameOrNull());
+    }
+
+    @Test
+    public void batchesForwardedMessagesWithEmits() throws IOException {
+        startWriter(batching(200000));
+
+        mQueue.offer(new SocketIOMessage.Emit("", "a", 1), true);
+        mWriter.forward(new SocketIOMessage.Heartbeat());
+
+        final String a = "5:::{\"name\":\"a\",\"args\":[1]}";
+        assertEquals("�" + a.length() + "�" + a + "�3�2::", readFrame());
+    }
+
+    @Test
+    public void sendsLoneEmitUnframed() throws IOException {
+        startWriter(batching(1000));
+
+        mQueue.offer(new SocketIOMessage.Emit("", "a", 1), true);
+
+        assertEquals("5:::{\"name\":\"a\",\"args\":[1]}", readFrame());
+    }
+}
@@ -0,0 +1,65 @@
+package com.magnux.iobahn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Transport of a core under test: records what is sent, and runs posted
+ * tasks right away, or keeps them for the test to run.
+ */
+class TestTransport implements SocketIOCore.Transport {
+
+    final List<Object> mSent = new ArrayList<Object>();
+    final List<Runnable> mPosted = new ArrayList<Runnable>();
+
+    // / Whether posted tasks are kept rather than run.
+    boolean mDeferPosts;
+
+    // / The clock, in milliseconds.
+    long mNow;
+
+    boolean mDisconnected;
+
+    // / The thread taken for the callback thread, or null.
+    Thread mCallbackThread;
+
+    public synchronized void send(Object message) {
+        mSent.add(message);
+    }
+
+    public void post(Runnable task) {
+        synchronized (this) {
+            if (mDeferPosts) {
+                mPosted.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    public synchronized long now() {
+        return mNow;
+    }
+
+    public boolean isCallbackThread() {
+        return Thread.currentThread() == mCallbackThread;
+    }
+
+    public void disconnect() {
+        mDisconnected = true;
+    }
+
+    /**
+     * Run the tasks posted so far.
+     */
+    void runPosted() {
+        List<Runnable> posted;
+        synchronized (this) {
+            posted = new ArrayList<Runnable>(mPosted);
+            mPosted.clear();
+        }
+        for (Runnable task : posted) {
+            task.run();
+        }
+    }
+}